@@ -0,0 +1,214 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A pool of buffers that transport layers borrow from and return to, so that the buffers of closed connections are
+ * reused by new ones instead of being allocated again. One pool can be shared by any number of layers and connections.
+ *
+ * <p>Buffers are kept in size classes, one per buffer capacity. Transport layers ask for a handful of capacities: the
+ * proxy handshake size and the frame size of each WebSocket configuration. The pool retains at most
+ * {@code maxRetainedBytes} of idle buffers. When a returned buffer takes it over that budget, the least recently
+ * returned buffers of the size class that retains the most bytes are dropped until it fits again.</p>
+ *
+ * <p>A pool hands out either heap or direct buffers. Direct buffers save the copy the JDK makes of a heap buffer
+ * before every socket read and write, at the cost of memory outside the heap that is only freed once the buffer is
+ * garbage collected, which makes them best used with a pool that keeps them.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+public final class ByteBufferPool {
+    private final long maxRetainedBytes;
+    private final boolean direct;
+    private final Map<Integer, ArrayDeque<ByteBuffer>> sizeClasses = new HashMap<>();
+
+    private long retainedBytes;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * Creates a pool of heap buffers that retains at most {@code maxRetainedBytes} of idle buffers.
+     *
+     * @param maxRetainedBytes Largest number of bytes of idle buffers the pool keeps.
+     * @throws IllegalArgumentException if {@code maxRetainedBytes} is negative.
+     */
+    public ByteBufferPool(long maxRetainedBytes) {
+        this(maxRetainedBytes, false);
+    }
+
+    /**
+     * Creates a pool that retains at most {@code maxRetainedBytes} of idle buffers.
+     *
+     * @param maxRetainedBytes Largest number of bytes of idle buffers the pool keeps.
+     * @param direct true to hand out direct buffers, false to hand out heap buffers.
+     * @throws IllegalArgumentException if {@code maxRetainedBytes} is negative.
+     */
+    public ByteBufferPool(long maxRetainedBytes, boolean direct) {
+        if (maxRetainedBytes < 0) {
+            throw new IllegalArgumentException("'maxRetainedBytes' cannot be negative.");
+        }
+
+        this.maxRetainedBytes = maxRetainedBytes;
+        this.direct = direct;
+    }
+
+    /**
+     * Borrows a buffer. The buffer is cleared and has exactly the requested capacity. It is a pooled buffer if one of
+     * that capacity is idle, otherwise a new one.
+     *
+     * @param capacity Capacity of the buffer.
+     * @return A cleared buffer of {@code capacity} bytes.
+     * @throws IllegalArgumentException if {@code capacity} is less than one.
+     */
+    public ByteBuffer acquire(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("'capacity' must be at least one.");
+        }
+
+        synchronized (this) {
+            final ArrayDeque<ByteBuffer> sizeClass = sizeClasses.get(capacity);
+            if (sizeClass != null && !sizeClass.isEmpty()) {
+                hitCount++;
+                retainedBytes -= capacity;
+                return sizeClass.pollFirst();
+            }
+
+            missCount++;
+        }
+
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not use the buffer, or any view of it, afterwards, and must return
+     * it only once.
+     *
+     * @param buffer The buffer to return.
+     * @throws NullPointerException if {@code buffer} is null.
+     * @throws IllegalArgumentException if {@code buffer} is read-only, or is a heap buffer returned to a pool of direct
+     *     buffers or the other way round.
+     */
+    public void release(ByteBuffer buffer) {
+        Objects.requireNonNull(buffer, "'buffer' cannot be null.");
+        if (buffer.isReadOnly()) {
+            throw new IllegalArgumentException("'buffer' cannot be read-only.");
+        }
+        if (buffer.isDirect() != direct) {
+            throw new IllegalArgumentException(direct
+                ? "'buffer' must be a direct buffer."
+                : "'buffer' must be a heap buffer.");
+        }
+
+        final int capacity = buffer.capacity();
+        buffer.clear();
+
+        synchronized (this) {
+            if (capacity > maxRetainedBytes) {
+                evictionCount++;
+                return;
+            }
+
+            sizeClasses.computeIfAbsent(capacity, key -> new ArrayDeque<>()).addFirst(buffer);
+            retainedBytes += capacity;
+
+            while (retainedBytes > maxRetainedBytes) {
+                evict();
+            }
+        }
+    }
+
+    /**
+     * Drops the least recently returned buffer of the size class that retains the most bytes.
+     */
+    private void evict() {
+        ArrayDeque<ByteBuffer> largest = null;
+        long largestBytes = 0;
+
+        for (Map.Entry<Integer, ArrayDeque<ByteBuffer>> entry : sizeClasses.entrySet()) {
+            final long bytes = (long) entry.getKey() * entry.getValue().size();
+            if (bytes > largestBytes) {
+                largest = entry.getValue();
+                largestBytes = bytes;
+            }
+        }
+
+        if (largest == null) {
+            return;
+        }
+
+        retainedBytes -= largest.pollLast().capacity();
+        evictionCount++;
+    }
+
+    /**
+     * Gets whether the pool hands out direct buffers.
+     *
+     * @return true if the buffers are direct, false if they are heap buffers.
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Gets the largest number of bytes of idle buffers the pool keeps.
+     *
+     * @return The byte budget of the pool.
+     */
+    public long getMaxRetainedBytes() {
+        return maxRetainedBytes;
+    }
+
+    /**
+     * Gets the number of bytes of idle buffers the pool currently keeps.
+     *
+     * @return The bytes retained by the pool.
+     */
+    public synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    /**
+     * Gets the number of times a pooled buffer was handed out.
+     *
+     * @return The number of pool hits.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Gets the number of times a buffer had to be allocated because none of that capacity was idle.
+     *
+     * @return The number of pool misses.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Gets the share of {@link #acquire(int)} calls that were served from the pool.
+     *
+     * @return The hit rate, between 0 and 1. 0 if no buffer was acquired yet.
+     */
+    public synchronized double getHitRate() {
+        final long acquired = hitCount + missCount;
+        return acquired == 0 ? 0 : (double) hitCount / acquired;
+    }
+
+    /**
+     * Gets the number of returned buffers that were dropped to stay within the byte budget.
+     *
+     * @return The number of evicted buffers.
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+}
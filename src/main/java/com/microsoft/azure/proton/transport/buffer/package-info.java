@@ -0,0 +1,7 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+/**
+ * Package containing classes for sharing transport buffers between connections.
+ */
+package com.microsoft.azure.proton.transport.buffer;
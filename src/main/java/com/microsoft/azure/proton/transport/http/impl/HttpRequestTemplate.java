@@ -0,0 +1,273 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.http.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * The head of an HTTP/1.1 request, encoded once as ISO-8859-1 bytes, with slots for the values that change from one
+ * request to the next. Writing a request copies the encoded bytes and encodes only the values of its slots, so the
+ * requests sent to one endpoint share everything that does not change between them.
+ *
+ * <p>Text is written one byte per {@code char}, and a {@code char} that ISO-8859-1 cannot encode is written as
+ * {@code '?'}.</p>
+ *
+ * <p>Templates are immutable and can be shared between threads. {@link #getOrCreate(List, Supplier)} keeps them by
+ * endpoint, so the template of an endpoint is built once however many connections are opened to it.</p>
+ *
+ * @see <a href="https://datatracker.ietf.org/doc/html/rfc7230#section-3.2.4">RFC7230: Field Parsing</a>
+ */
+public final class HttpRequestTemplate {
+    /**
+     * The largest number of templates kept by {@link #getOrCreate(List, Supplier)}.
+     */
+    public static final int MAX_CACHED_TEMPLATES = 256;
+
+    private static final byte[] HEADER_SEPARATOR = {':', ' '};
+    private static final byte[] NEW_LINE = {'\r', '\n'};
+    private static final byte UNMAPPABLE = '?';
+    private static final int MAX_ISO_8859_1 = 0xFF;
+
+    private static final Map<List<String>, HttpRequestTemplate> CACHE = new ConcurrentHashMap<>();
+
+    // The literal bytes around the slots: the slot i is between segments i and i + 1.
+    private final byte[][] segments;
+    private final int literalLength;
+
+    private HttpRequestTemplate(byte[][] segments) {
+        this.segments = segments;
+
+        int length = 0;
+        for (byte[] segment : segments) {
+            length += segment.length;
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * Gets the template cached for {@code key}, building it with {@code factory} if there is none. Once
+     * {@link #MAX_CACHED_TEMPLATES} templates are cached, the templates of new keys are built but not kept.
+     *
+     * @param key The values that identify the template, such as the host and path of the endpoint. Since the templates
+     *     stay cached, it should not hold values that change between requests, such as tokens, and it should not be
+     *     modified afterwards.
+     * @param factory Builds the template of {@code key}.
+     * @return The template of {@code key}.
+     */
+    public static HttpRequestTemplate getOrCreate(List<String> key, Supplier<HttpRequestTemplate> factory) {
+        Objects.requireNonNull(key, "'key' cannot be null.");
+        Objects.requireNonNull(factory, "'factory' cannot be null.");
+
+        final HttpRequestTemplate cached = CACHE.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        final HttpRequestTemplate template = factory.get();
+        if (CACHE.size() < MAX_CACHED_TEMPLATES) {
+            final HttpRequestTemplate previous = CACHE.putIfAbsent(key, template);
+            return previous != null ? previous : template;
+        }
+
+        return template;
+    }
+
+    /**
+     * Removes all the cached templates.
+     */
+    static void clearCache() {
+        CACHE.clear();
+    }
+
+    /**
+     * Gets the number of slots of this template.
+     *
+     * @return The number of values {@link #write(ByteBuffer, String...)} expects.
+     */
+    public int getSlotCount() {
+        return segments.length - 1;
+    }
+
+    /**
+     * Gets the size of the request once the slots hold {@code values}.
+     *
+     * @param values The values of the slots, in order.
+     * @return The size of the request, in bytes.
+     * @throws IllegalArgumentException if there is not one value per slot.
+     */
+    public int size(String... values) {
+        checkSlots(values);
+
+        int size = literalLength;
+        for (String value : values) {
+            size += value.length();
+        }
+        return size;
+    }
+
+    /**
+     * Writes the request, with {@code values} in its slots, at the position of {@code buffer}.
+     *
+     * @param buffer The buffer to write to. It must have room for {@link #size(String...)} bytes.
+     * @param values The values of the slots, in order.
+     * @throws IllegalArgumentException if there is not one value per slot.
+     * @throws java.nio.BufferOverflowException if {@code buffer} does not have enough room.
+     */
+    public void write(ByteBuffer buffer, String... values) {
+        checkSlots(values);
+
+        buffer.put(segments[0]);
+        for (int i = 0; i < values.length; i++) {
+            putString(buffer, values[i]);
+            buffer.put(segments[i + 1]);
+        }
+    }
+
+    /**
+     * Gets the size of a header line, {@code name: value} followed by CRLF.
+     *
+     * @param name The name of the header.
+     * @param value The value of the header.
+     * @return The size of the header line, in bytes.
+     */
+    public static int headerSize(String name, String value) {
+        return name.length() + HEADER_SEPARATOR.length + value.length() + NEW_LINE.length;
+    }
+
+    /**
+     * Writes a header line, {@code name: value} followed by CRLF, at the position of {@code buffer}.
+     *
+     * @param buffer The buffer to write to.
+     * @param name The name of the header.
+     * @param value The value of the header.
+     * @throws java.nio.BufferOverflowException if {@code buffer} does not have enough room.
+     */
+    public static void putHeader(ByteBuffer buffer, String name, String value) {
+        putString(buffer, name);
+        buffer.put(HEADER_SEPARATOR);
+        putString(buffer, value);
+        buffer.put(NEW_LINE);
+    }
+
+    /**
+     * Writes the CRLF that ends a line, or the head when it follows the last header.
+     *
+     * @param buffer The buffer to write to.
+     * @throws java.nio.BufferOverflowException if {@code buffer} does not have enough room.
+     */
+    public static void putNewLine(ByteBuffer buffer) {
+        buffer.put(NEW_LINE);
+    }
+
+    /**
+     * Gets the size of the CRLF that ends a line.
+     *
+     * @return The size of a line ending, in bytes.
+     */
+    public static int newLineSize() {
+        return NEW_LINE.length;
+    }
+
+    private void checkSlots(String[] values) {
+        if (values.length != segments.length - 1) {
+            throw new IllegalArgumentException(String.format(Locale.ROOT, "Template has %d slots, but %d values were given.",
+                segments.length - 1, values.length));
+        }
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            buffer.put(c > MAX_ISO_8859_1 ? UNMAPPABLE : (byte) c);
+        }
+    }
+
+    private static void putString(ByteArrayOutputStream stream, String value) {
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            stream.write(c > MAX_ISO_8859_1 ? UNMAPPABLE : c);
+        }
+    }
+
+    /**
+     * Builds an {@link HttpRequestTemplate} from its literal text and slots, in order.
+     */
+    public static final class Builder {
+        private final List<byte[]> segments = new ArrayList<>();
+        private final ByteArrayOutputStream current = new ByteArrayOutputStream(256);
+
+        /**
+         * Creates a builder for an empty template.
+         */
+        public Builder() {
+        }
+
+        /**
+         * Appends literal text.
+         *
+         * @param text The text, written as is.
+         * @return The updated builder.
+         */
+        public Builder append(String text) {
+            putString(current, text);
+            return this;
+        }
+
+        /**
+         * Appends a header line, {@code name: value} followed by CRLF.
+         *
+         * @param name The name of the header.
+         * @param value The value of the header.
+         * @return The updated builder.
+         */
+        public Builder appendHeader(String name, String value) {
+            putString(current, name);
+            current.write(HEADER_SEPARATOR, 0, HEADER_SEPARATOR.length);
+            putString(current, value);
+            return appendNewLine();
+        }
+
+        /**
+         * Appends a CRLF.
+         *
+         * @return The updated builder.
+         */
+        public Builder appendNewLine() {
+            current.write(NEW_LINE, 0, NEW_LINE.length);
+            return this;
+        }
+
+        /**
+         * Appends a slot, filled by the value given for it when the request is written.
+         *
+         * @return The updated builder.
+         */
+        public Builder appendSlot() {
+            segments.add(current.toByteArray());
+            current.reset();
+            return this;
+        }
+
+        /**
+         * Creates the template.
+         *
+         * @return The template.
+         */
+        public HttpRequestTemplate build() {
+            final byte[][] all = segments.toArray(new byte[segments.size() + 1][]);
+            all[segments.size()] = current.toByteArray();
+            return new HttpRequestTemplate(all);
+        }
+    }
+}
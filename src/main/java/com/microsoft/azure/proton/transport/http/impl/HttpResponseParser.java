@@ -0,0 +1,293 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.http.impl;
+
+import com.microsoft.azure.proton.transport.proxy.HttpStatusLine;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads the head of an HTTP/1.1 response, its status line and headers, straight from the bytes received. The head may
+ * arrive over several reads: each call to {@link #parse(ByteBuffer)} continues where the previous one stopped, and
+ * stops right after the empty line that ends the head, so whatever follows it stays in the buffer.
+ *
+ * <p>Header values are decoded as ISO-8859-1, and header names are compared case-insensitively. Lines may end with
+ * CRLF or a bare LF. The head is rejected once it grows larger than its size limit or has too many headers, so a
+ * misbehaving server cannot make it grow without bound.</p>
+ *
+ * <p>This class is not thread-safe.</p>
+ *
+ * @see <a href="https://datatracker.ietf.org/doc/html/rfc7230#section-3">RFC7230: Message Format</a>
+ */
+public final class HttpResponseParser {
+    /**
+     * The default largest size of a response head, in bytes.
+     */
+    public static final int DEFAULT_MAX_HEAD_SIZE = 16 * 1024;
+    /**
+     * The default largest number of headers in a response head.
+     */
+    public static final int DEFAULT_MAX_HEADER_COUNT = 128;
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte SPACE = ' ';
+    private static final byte TAB = '\t';
+    private static final byte COLON = ':';
+
+    private final int maxHeadSize;
+    private final int maxHeaderCount;
+    private final Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    // The line being read, without its line ending.
+    private byte[] line = new byte[256];
+    private int lineLength;
+
+    private int headLength;
+    private int headerCount;
+    private boolean statusLineRead;
+    private HttpStatusLine statusLine;
+    private List<String> lastHeaderValues;
+    private boolean complete;
+
+    /**
+     * Creates a parser with the default limits.
+     */
+    public HttpResponseParser() {
+        this(DEFAULT_MAX_HEAD_SIZE, DEFAULT_MAX_HEADER_COUNT);
+    }
+
+    /**
+     * Creates a parser.
+     *
+     * @param maxHeadSize The largest size of the response head, in bytes, line endings included.
+     * @param maxHeaderCount The largest number of headers in the response head.
+     * @throws IllegalArgumentException if {@code maxHeadSize} or {@code maxHeaderCount} is not positive.
+     */
+    public HttpResponseParser(int maxHeadSize, int maxHeaderCount) {
+        if (maxHeadSize <= 0) {
+            throw new IllegalArgumentException("'maxHeadSize' must be positive.");
+        }
+        if (maxHeaderCount <= 0) {
+            throw new IllegalArgumentException("'maxHeaderCount' must be positive.");
+        }
+
+        this.maxHeadSize = maxHeadSize;
+        this.maxHeaderCount = maxHeaderCount;
+    }
+
+    /**
+     * Reads response head bytes from {@code buffer}, from its position up to its limit or the end of the head,
+     * whichever comes first. Once the head is complete, the position of {@code buffer} is right after it.
+     *
+     * @param buffer The bytes received.
+     * @return true if the head is complete, false if more bytes are needed.
+     * @throws IllegalArgumentException if the head is malformed, or larger than the limits of this parser.
+     */
+    public boolean parse(ByteBuffer buffer) {
+        if (complete) {
+            return true;
+        }
+
+        final int limit = buffer.limit();
+        int position = buffer.position();
+
+        while (position < limit) {
+            final byte value = buffer.get(position++);
+
+            if (++headLength > maxHeadSize) {
+                buffer.position(position);
+                throw new IllegalArgumentException(String.format(Locale.ROOT,
+                    "HTTP response head is larger than %d bytes.", maxHeadSize));
+            }
+
+            if (value != LF) {
+                appendToLine(value);
+                continue;
+            }
+
+            if (lineLength > 0 && line[lineLength - 1] == CR) {
+                lineLength--;
+            }
+
+            if (endLine()) {
+                complete = true;
+                break;
+            }
+        }
+
+        buffer.position(position);
+        return complete;
+    }
+
+    /**
+     * Gets whether the whole response head was read.
+     *
+     * @return true if the head is complete.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Gets the size of the response head read so far, including the empty line that ends it once complete.
+     *
+     * @return The number of bytes read.
+     */
+    public int getHeadLength() {
+        return headLength;
+    }
+
+    /**
+     * Gets the status line of the response.
+     *
+     * @return The status line, or null if it was not read yet, or if the head is empty.
+     */
+    public HttpStatusLine getStatusLine() {
+        return statusLine;
+    }
+
+    /**
+     * Gets the headers read so far. Names are compared case-insensitively, and the values of a header that appears
+     * more than once are in the order they were received.
+     *
+     * @return A read-only view of the headers by name.
+     */
+    public Map<String, List<String>> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * Gets the first value of a header.
+     *
+     * @param name The name of the header, in any case.
+     * @return The first value of the header, or null if the response does not have it.
+     */
+    public String getHeader(String name) {
+        final List<String> values = headers.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * Gets whether a header holds a token, in any of its values. A value may hold several tokens separated by
+     * commas, as in {@code Connection: keep-alive, Upgrade}. Tokens are compared case-insensitively.
+     *
+     * @param name The name of the header, in any case.
+     * @param token The token to look for.
+     * @return true if the header holds the token.
+     */
+    public boolean hasToken(String name, String token) {
+        return hasToken(headers.get(name), token);
+    }
+
+    /**
+     * Gets whether any of the header values holds a token. A value may hold several tokens separated by commas.
+     * Tokens are compared case-insensitively.
+     *
+     * @param values The values of a header, or null.
+     * @param token The token to look for.
+     * @return true if one of the values holds the token.
+     */
+    public static boolean hasToken(List<String> values, String token) {
+        if (values == null) {
+            return false;
+        }
+
+        for (String value : values) {
+            for (String candidate : value.split(",")) {
+                if (candidate.trim().equalsIgnoreCase(token)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Forgets the response read so far, to read another one.
+     */
+    public void reset() {
+        headers.clear();
+        lineLength = 0;
+        headLength = 0;
+        headerCount = 0;
+        statusLineRead = false;
+        statusLine = null;
+        lastHeaderValues = null;
+        complete = false;
+    }
+
+    private void appendToLine(byte value) {
+        if (lineLength == line.length) {
+            line = Arrays.copyOf(line, Math.min(line.length * 2, maxHeadSize));
+        }
+
+        line[lineLength++] = value;
+    }
+
+    /**
+     * Takes in the line that was just read.
+     *
+     * @return true if the line is the empty line that ends the head.
+     */
+    private boolean endLine() {
+        final int length = lineLength;
+        lineLength = 0;
+
+        if (length == 0) {
+            return true;
+        }
+
+        if (!statusLineRead) {
+            statusLineRead = true;
+            statusLine = HttpStatusLine.create(decode(0, length));
+            return false;
+        }
+
+        // A line starting with whitespace continues the value of the previous header.
+        if (line[0] == SPACE || line[0] == TAB) {
+            if (lastHeaderValues == null) {
+                throw new IllegalArgumentException("HTTP header continuation line without a header. Line: " + decode(0, length));
+            }
+
+            final int last = lastHeaderValues.size() - 1;
+            lastHeaderValues.set(last, lastHeaderValues.get(last) + " " + decode(0, length).trim());
+            return false;
+        }
+
+        int colon = 0;
+        while (colon < length && line[colon] != COLON) {
+            colon++;
+        }
+
+        if (colon == 0 || colon == length) {
+            throw new IllegalArgumentException("Line is not a valid header. Contents: " + decode(0, length));
+        }
+
+        if (++headerCount > maxHeaderCount) {
+            throw new IllegalArgumentException(String.format(Locale.ROOT,
+                "HTTP response has more than %d headers.", maxHeaderCount));
+        }
+
+        final String name = decode(0, colon).trim();
+        final String value = decode(colon + 1, length - colon - 1).trim();
+
+        lastHeaderValues = headers.computeIfAbsent(name, key -> new ArrayList<>(1));
+        lastHeaderValues.add(value);
+        return false;
+    }
+
+    private String decode(int offset, int length) {
+        return new String(line, offset, length, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,8 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+/**
+ * Package containing the HTTP request encoding and response parsing shared by the WebSocket upgrade and the proxy
+ * CONNECT handshake.
+ */
+package com.microsoft.azure.proton.transport.http.impl;
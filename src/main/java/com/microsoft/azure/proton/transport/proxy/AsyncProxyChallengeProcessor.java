@@ -0,0 +1,72 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.proxy;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+
+/**
+ * Creates a set of headers to add to the HTTP request when responding to a proxy challenge, without blocking the
+ * thread that processes the transport. Looking up credentials may take a while, for instance when they are fetched
+ * from a vault or prompted for.
+ *
+ * @see ProxyChallengeProcessor
+ * @see <a href="https://developer.mozilla.org/docs/Web/HTTP/Headers/Proxy-Authenticate">Proxy-Authenticate</a>
+ */
+@FunctionalInterface
+public interface AsyncProxyChallengeProcessor {
+    /**
+     * Starts computing the headers to add to the HTTP request when a proxy challenge is issued.
+     *
+     * @return A stage completed with the headers to add to the HTTP request, or completed exceptionally if they could
+     *         not be computed.
+     */
+    CompletionStage<Map<String, String>> getHeaderAsync();
+
+    /**
+     * Called when the proxy rejects the request carrying the headers of this processor, so that credentials it keeps
+     * are not sent again. Does nothing by default.
+     */
+    default void onRejected() {
+    }
+
+    /**
+     * Adapts a synchronous processor. Its headers are computed on the thread that calls {@link #getHeaderAsync()}.
+     *
+     * @param processor The synchronous processor.
+     * @return A processor whose stage is completed before {@link #getHeaderAsync()} returns.
+     * @throws NullPointerException if {@code processor} is {@code null}.
+     */
+    static AsyncProxyChallengeProcessor fromProcessor(ProxyChallengeProcessor processor) {
+        Objects.requireNonNull(processor, "'processor' cannot be null.");
+
+        return () -> {
+            try {
+                return CompletableFuture.completedFuture(processor.getHeader());
+            } catch (RuntimeException e) {
+                final CompletableFuture<Map<String, String>> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+        };
+    }
+
+    /**
+     * Adapts a synchronous processor, computing its headers on {@code executor}.
+     *
+     * @param processor The synchronous processor.
+     * @param executor The executor to compute the headers on.
+     * @return A processor whose headers are computed on {@code executor}.
+     * @throws NullPointerException if {@code processor} or {@code executor} is {@code null}.
+     */
+    static AsyncProxyChallengeProcessor fromProcessor(ProxyChallengeProcessor processor, Executor executor) {
+        Objects.requireNonNull(processor, "'processor' cannot be null.");
+        Objects.requireNonNull(executor, "'executor' cannot be null.");
+
+        return () -> CompletableFuture.supplyAsync(processor::getHeader, executor);
+    }
+}
@@ -0,0 +1,259 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Answers Bearer challenges of a proxy with a token from a token supplier, such as the issuer of a zero-trust gateway.
+ * Register it for the {@code Bearer} scheme in a {@link ProxyChallengeProcessorRegistry}, and configure the proxy with
+ * {@link ProxyAuthenticationType#BEARER}.
+ *
+ * <p>The token is kept until it expires, and shared by all the connections answering with this cache. It is refreshed
+ * ahead of its expiry: once it is within {@code refreshAhead} of expiring, handshakes are still answered with it at
+ * once, while a new token is fetched in the background. With a scheduler, the refresh is also scheduled, so that the
+ * token is renewed even while no connection is made. Handshakes only wait for a token when none is valid, which is
+ * the case before the first one is fetched; {@link #refresh()} fetches it ahead of the first connection. At most one
+ * token is fetched at a time.</p>
+ *
+ * <p>If the proxy rejects a token, it is dropped and the next handshake fetches a new one. If fetching a token fails,
+ * the handshakes waiting for it fail, and a valid token is kept until it expires.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @see <a href="https://datatracker.ietf.org/doc/html/rfc6750">RFC6750: Bearer Token Usage</a>
+ */
+public final class BearerTokenCache implements ProxyChallengeProcessorRegistry.Factory, AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BearerTokenCache.class);
+    private static final String BEARER = "Bearer";
+    private static final String PROXY_AUTHORIZATION = "Proxy-Authorization";
+    // The shortest delay of a scheduled refresh, so that short-lived tokens do not make the issuer be called in a loop.
+    private static final Duration MIN_REFRESH_DELAY = Duration.ofSeconds(1);
+
+    private final Supplier<? extends CompletionStage<ProxyAccessToken>> tokenSupplier;
+    private final Duration refreshAhead;
+    private final ScheduledExecutorService scheduler;
+    private final Clock clock;
+
+    private final AtomicReference<ProxyAccessToken> current = new AtomicReference<>();
+    private final AtomicReference<CompletableFuture<ProxyAccessToken>> inFlight = new AtomicReference<>();
+    private final AtomicReference<ScheduledFuture<?>> scheduledRefresh = new AtomicReference<>();
+    private volatile boolean closed;
+
+    /**
+     * Creates a cache that refreshes the token when a handshake finds it within {@code refreshAhead} of expiring.
+     *
+     * @param tokenSupplier Starts fetching a new token. It is called on the thread processing a transport, so it must
+     *     not block, for instance by fetching the token on another thread.
+     * @param refreshAhead How long before its expiry a token is refreshed.
+     * @throws NullPointerException if {@code tokenSupplier} or {@code refreshAhead} is {@code null}.
+     * @throws IllegalArgumentException if {@code refreshAhead} is negative.
+     */
+    public BearerTokenCache(Supplier<? extends CompletionStage<ProxyAccessToken>> tokenSupplier, Duration refreshAhead) {
+        this(tokenSupplier, refreshAhead, null, Clock.systemUTC());
+    }
+
+    /**
+     * Creates a cache that also schedules the refresh of each token on {@code scheduler}, {@code refreshAhead} before
+     * it expires. Tokens that are issued already within {@code refreshAhead} of expiring are refreshed halfway through
+     * their lifetime instead.
+     *
+     * @param tokenSupplier Starts fetching a new token. It must not block, for instance by fetching the token on
+     *     another thread.
+     * @param refreshAhead How long before its expiry a token is refreshed.
+     * @param scheduler Schedules the refreshes, or null to only refresh tokens when handshakes use them.
+     * @throws NullPointerException if {@code tokenSupplier} or {@code refreshAhead} is {@code null}.
+     * @throws IllegalArgumentException if {@code refreshAhead} is negative.
+     */
+    public BearerTokenCache(Supplier<? extends CompletionStage<ProxyAccessToken>> tokenSupplier, Duration refreshAhead,
+                            ScheduledExecutorService scheduler) {
+        this(tokenSupplier, refreshAhead, scheduler, Clock.systemUTC());
+    }
+
+    BearerTokenCache(Supplier<? extends CompletionStage<ProxyAccessToken>> tokenSupplier, Duration refreshAhead,
+                     ScheduledExecutorService scheduler, Clock clock) {
+        this.tokenSupplier = Objects.requireNonNull(tokenSupplier, "'tokenSupplier' cannot be null.");
+        this.refreshAhead = Objects.requireNonNull(refreshAhead, "'refreshAhead' cannot be null.");
+        this.scheduler = scheduler;
+        this.clock = Objects.requireNonNull(clock, "'clock' cannot be null.");
+
+        if (refreshAhead.isNegative()) {
+            throw new IllegalArgumentException("'refreshAhead' cannot be negative.");
+        }
+    }
+
+    /**
+     * Creates the processor answering a Bearer challenge with the token of this cache.
+     *
+     * @param host The host being connected to through the proxy.
+     * @param challenge The challenge of the proxy.
+     * @return The processor.
+     */
+    @Override
+    public AsyncProxyChallengeProcessor create(String host, ProxyChallenge challenge) {
+        return new Processor();
+    }
+
+    /**
+     * Gets a valid token, refreshing it in the background if it is about to expire.
+     *
+     * @return A stage completed with the token, at once if a valid token is kept, otherwise once a new one is fetched.
+     */
+    public CompletionStage<ProxyAccessToken> getToken() {
+        final ProxyAccessToken token = current.get();
+        final Instant now = clock.instant();
+        if (token == null || token.isExpired(now)) {
+            return refresh();
+        }
+
+        if (!now.isBefore(token.getExpiresAt().minus(refreshAhead))) {
+            refreshInBackground();
+        }
+        return CompletableFuture.completedFuture(token);
+    }
+
+    /**
+     * Fetches a new token, unless one is being fetched already.
+     *
+     * @return A stage completed with the new token, or completed exceptionally if it could not be fetched.
+     */
+    public CompletionStage<ProxyAccessToken> refresh() {
+        while (true) {
+            final CompletableFuture<ProxyAccessToken> running = inFlight.get();
+            if (running != null) {
+                return running;
+            }
+
+            final CompletableFuture<ProxyAccessToken> refresh = new CompletableFuture<>();
+            if (inFlight.compareAndSet(null, refresh)) {
+                startRefresh(refresh);
+                return refresh;
+            }
+        }
+    }
+
+    /**
+     * Drops {@code token}, if it is still the one kept, so that the next handshake fetches a new one.
+     *
+     * @param token The token that was rejected.
+     */
+    public void invalidate(ProxyAccessToken token) {
+        if (token != null && current.compareAndSet(token, null)) {
+            LOGGER.info("Proxy rejected the bearer token. It will be fetched again.");
+        }
+    }
+
+    /**
+     * Cancels the scheduled refresh, if any. Tokens are still fetched when handshakes need them.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        final ScheduledFuture<?> scheduled = scheduledRefresh.getAndSet(null);
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+    }
+
+    private void refreshInBackground() {
+        refresh();
+    }
+
+    private void startRefresh(CompletableFuture<ProxyAccessToken> refresh) {
+        final CompletionStage<ProxyAccessToken> fetch;
+        try {
+            fetch = Objects.requireNonNull(tokenSupplier.get(), "Token supplier returned null.");
+        } catch (RuntimeException e) {
+            onRefreshed(refresh, null, e);
+            return;
+        }
+
+        fetch.whenComplete((token, error) -> onRefreshed(refresh, token, error));
+    }
+
+    /**
+     * Keeps the new token before the refresh stops being in flight, so that a handshake in between either joins the
+     * refresh or finds the new token, rather than fetching another one.
+     */
+    private void onRefreshed(CompletableFuture<ProxyAccessToken> refresh, ProxyAccessToken token, Throwable error) {
+        if (error != null || token == null) {
+            inFlight.compareAndSet(refresh, null);
+
+            final Throwable cause = error != null ? error : new IllegalStateException("Token supplier returned no token.");
+            LOGGER.warn("Could not fetch a bearer token for the proxy.", cause);
+            refresh.completeExceptionally(cause);
+            return;
+        }
+
+        current.set(token);
+        scheduleRefresh(token);
+        inFlight.compareAndSet(refresh, null);
+        refresh.complete(token);
+    }
+
+    /**
+     * Schedules the refresh of {@code token}, {@code refreshAhead} before it expires. A token that is already within
+     * {@code refreshAhead} of expiring is refreshed halfway through the rest of its lifetime instead, and no sooner than
+     * {@link #MIN_REFRESH_DELAY}. An expired token is not refreshed until a handshake needs one.
+     */
+    private void scheduleRefresh(ProxyAccessToken token) {
+        if (scheduler == null || closed) {
+            return;
+        }
+
+        final Duration lifetime = Duration.between(clock.instant(), token.getExpiresAt());
+        if (lifetime.isNegative() || lifetime.isZero()) {
+            return;
+        }
+
+        Duration delay = lifetime.minus(refreshAhead);
+        if (delay.isNegative() || delay.isZero()) {
+            delay = lifetime.dividedBy(2);
+        }
+        if (delay.compareTo(MIN_REFRESH_DELAY) < 0) {
+            delay = MIN_REFRESH_DELAY;
+        }
+
+        final ScheduledFuture<?> previous = scheduledRefresh.getAndSet(
+            scheduler.schedule(this::refreshInBackground, delay.toMillis(), TimeUnit.MILLISECONDS));
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    /**
+     * Answers one challenge, and drops the token it sent if the proxy rejects it.
+     */
+    private final class Processor implements AsyncProxyChallengeProcessor {
+        private volatile ProxyAccessToken sent;
+
+        @Override
+        public CompletionStage<Map<String, String>> getHeaderAsync() {
+            return getToken().thenApply(token -> {
+                sent = token;
+                return Collections.singletonMap(PROXY_AUTHORIZATION, BEARER + " " + token.getToken());
+            });
+        }
+
+        @Override
+        public void onRejected() {
+            invalidate(sent);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.proxy;
+
+import java.time.Instant;
+import java.util.Objects;
+
+/**
+ * A bearer token that authenticates against a proxy, with the time it expires at.
+ *
+ * @see BearerTokenCache
+ */
+public final class ProxyAccessToken {
+    private final String token;
+    private final Instant expiresAt;
+
+    /**
+     * Creates a token.
+     *
+     * @param token The token, sent as is after {@code Bearer} in the {@code Proxy-Authorization} header.
+     * @param expiresAt The time the token expires at.
+     * @throws NullPointerException if {@code token} or {@code expiresAt} is {@code null}.
+     * @throws IllegalArgumentException if {@code token} is empty.
+     */
+    public ProxyAccessToken(String token, Instant expiresAt) {
+        Objects.requireNonNull(token, "'token' cannot be null.");
+        Objects.requireNonNull(expiresAt, "'expiresAt' cannot be null.");
+        if (token.isEmpty()) {
+            throw new IllegalArgumentException("'token' cannot be empty.");
+        }
+
+        this.token = token;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Gets the token.
+     *
+     * @return The token.
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Gets the time the token expires at.
+     *
+     * @return The time the token expires at.
+     */
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Gets whether the token has expired.
+     *
+     * @param now The current time.
+     * @return true if the token expires at or before {@code now}.
+     */
+    public boolean isExpired(Instant now) {
+        return !now.isBefore(expiresAt);
+    }
+
+    @Override
+    public String toString() {
+        // The token is a credential, so it is left out.
+        return "ProxyAccessToken{expiresAt=" + expiresAt + "}";
+    }
+}
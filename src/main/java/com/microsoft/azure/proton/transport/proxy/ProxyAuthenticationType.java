@@ -19,4 +19,9 @@ public enum ProxyAuthenticationType {
      * Authenticates against proxy with digest access authentication.
      */
     DIGEST,
+    /**
+     * Authenticates against proxy with a bearer token, from the processor registered for the {@code Bearer} scheme
+     * in the {@link ProxyChallengeProcessorRegistry}, such as a {@link BearerTokenCache}.
+     */
+    BEARER,
 }
@@ -0,0 +1,355 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * An authentication challenge sent by a proxy in a {@code Proxy-Authenticate} header: an authentication scheme, such
+ * as Basic or Digest, followed by either parameters or a single token68 value.
+ *
+ * <p>{@link #parse(String)} reads all the challenges of a header value in a single pass. Parameter values may be
+ * quoted strings, which can hold commas and backslash escapes, and one header value may hold several challenges.
+ * Schemes and parameter names are compared case-insensitively. Malformed parts of a header value are skipped up to the
+ * next comma, so one bad challenge does not hide the others.</p>
+ *
+ * @see <a href="https://datatracker.ietf.org/doc/html/rfc7235#section-2.1">RFC7235: Challenge and Response</a>
+ */
+public final class ProxyChallenge {
+    private final String scheme;
+    private final Map<String, String> parameters = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private String token68;
+
+    private ProxyChallenge(String scheme) {
+        this.scheme = scheme;
+    }
+
+    /**
+     * Reads the challenges of a {@code Proxy-Authenticate} header value.
+     *
+     * @param value The header value.
+     * @return The challenges, in the order they appear. Empty if {@code value} is null or holds no challenge.
+     */
+    public static List<ProxyChallenge> parse(String value) {
+        final List<ProxyChallenge> challenges = new ArrayList<>(2);
+        if (value != null) {
+            new Tokenizer(value).readChallenges(challenges);
+        }
+        return challenges;
+    }
+
+    /**
+     * Reads the challenges of all the values of a {@code Proxy-Authenticate} header.
+     *
+     * @param values The header values, or null if the response does not have the header.
+     * @return The challenges, in the order they appear.
+     */
+    public static List<ProxyChallenge> parse(List<String> values) {
+        if (values == null || values.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final List<ProxyChallenge> challenges = new ArrayList<>(values.size() * 2);
+        for (String value : values) {
+            new Tokenizer(value).readChallenges(challenges);
+        }
+        return challenges;
+    }
+
+    /**
+     * Gets the authentication scheme, as the proxy sent it.
+     *
+     * @return The authentication scheme.
+     */
+    public String getScheme() {
+        return scheme;
+    }
+
+    /**
+     * Gets whether this challenge is for the authentication scheme {@code scheme}.
+     *
+     * @param scheme The scheme, in any case.
+     * @return true if the scheme of this challenge is {@code scheme}.
+     */
+    public boolean isScheme(String scheme) {
+        return this.scheme.equalsIgnoreCase(scheme);
+    }
+
+    /**
+     * Gets the value of a parameter, with quotes and escapes removed.
+     *
+     * @param name The name of the parameter, in any case.
+     * @return The value of the parameter, or null if the challenge does not have it.
+     */
+    public String getParameter(String name) {
+        return parameters.get(name);
+    }
+
+    /**
+     * Gets the parameters of the challenge.
+     *
+     * @return A read-only view of the parameters by name. Names are compared case-insensitively.
+     */
+    public Map<String, String> getParameters() {
+        return Collections.unmodifiableMap(parameters);
+    }
+
+    /**
+     * Gets the token68 value of the challenge, which some schemes send instead of parameters.
+     *
+     * @return The token68 value, or null if the challenge does not have one.
+     */
+    public String getToken68() {
+        return token68;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder(scheme);
+        if (token68 != null) {
+            builder.append(' ').append(token68);
+        }
+
+        String separator = " ";
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            builder.append(separator).append(parameter.getKey()).append("=\"");
+            final String value = parameter.getValue();
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    builder.append('\\');
+                }
+                builder.append(c);
+            }
+            builder.append('"');
+            separator = ", ";
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Reads challenges from a header value, one character at a time.
+     */
+    private static final class Tokenizer {
+        private final String value;
+        private final int length;
+        private int position;
+
+        Tokenizer(String value) {
+            this.value = Objects.requireNonNull(value, "'value' cannot be null.");
+            this.length = value.length();
+        }
+
+        void readChallenges(List<ProxyChallenge> challenges) {
+            ProxyChallenge current = null;
+
+            while (true) {
+                skipWhitespaceAndCommas();
+                if (position == length) {
+                    return;
+                }
+
+                final String token = readToken();
+                if (token.isEmpty()) {
+                    skipToComma();
+                    continue;
+                }
+
+                final int afterToken = position;
+                skipWhitespace();
+
+                if (position < length && value.charAt(position) == '=' && current != null) {
+                    position++;
+                    skipWhitespace();
+                    final String parameterValue = readParameterValue();
+                    if (parameterValue == null) {
+                        skipToComma();
+                    } else {
+                        current.parameters.putIfAbsent(token, parameterValue);
+                    }
+                    continue;
+                }
+
+                if (position < length && value.charAt(position) == '=') {
+                    // A parameter without a scheme before it.
+                    skipToComma();
+                    continue;
+                }
+
+                if (afterToken < length && !isWhitespace(value.charAt(afterToken)) && value.charAt(afterToken) != ',') {
+                    // The token runs into a character that cannot follow a scheme.
+                    skipToComma();
+                    continue;
+                }
+
+                // The token is a new scheme. Whatever follows it on the same element may be its token68 value.
+                current = new ProxyChallenge(token);
+                challenges.add(current);
+
+                if (position > afterToken && position < length && value.charAt(position) != ',') {
+                    final String token68 = readToken68();
+                    if (token68 != null) {
+                        current.token68 = token68;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reads a token68 value, if one starts at the position and runs to the end of the element. Otherwise, the
+         * position does not move, so that the element is read as parameters.
+         */
+        private String readToken68() {
+            final int start = position;
+            while (position < length && isToken68Char(value.charAt(position))) {
+                position++;
+            }
+            if (position == start) {
+                return null;
+            }
+            while (position < length && value.charAt(position) == '=') {
+                position++;
+            }
+
+            final int end = position;
+            skipWhitespace();
+            if (position == length || value.charAt(position) == ',') {
+                return value.substring(start, end);
+            }
+
+            position = start;
+            return null;
+        }
+
+        /**
+         * Reads a parameter value, a token or a quoted string.
+         *
+         * @return The value, or null if there is none at the position or its quoted string is not closed.
+         */
+        private String readParameterValue() {
+            if (position < length && value.charAt(position) == '"') {
+                return readQuotedString();
+            }
+
+            final String token = readToken();
+            return token.isEmpty() ? null : token;
+        }
+
+        private String readQuotedString() {
+            // Skip the opening quote. Most values have no escapes, and are returned as a substring.
+            final int start = ++position;
+            StringBuilder unescaped = null;
+
+            while (position < length) {
+                final char c = value.charAt(position);
+                if (c == '"') {
+                    final String result = unescaped == null
+                        ? value.substring(start, position)
+                        : unescaped.toString();
+                    position++;
+                    return result;
+                }
+
+                if (c == '\\' && position + 1 < length) {
+                    if (unescaped == null) {
+                        unescaped = new StringBuilder(value.length() - start);
+                        unescaped.append(value, start, position);
+                    }
+                    unescaped.append(value.charAt(position + 1));
+                    position += 2;
+                    continue;
+                }
+
+                if (unescaped != null) {
+                    unescaped.append(c);
+                }
+                position++;
+            }
+
+            return null;
+        }
+
+        private String readToken() {
+            final int start = position;
+            while (position < length && isTokenChar(value.charAt(position))) {
+                position++;
+            }
+            return value.substring(start, position);
+        }
+
+        private void skipWhitespace() {
+            while (position < length && isWhitespace(value.charAt(position))) {
+                position++;
+            }
+        }
+
+        private void skipWhitespaceAndCommas() {
+            while (position < length && (isWhitespace(value.charAt(position)) || value.charAt(position) == ',')) {
+                position++;
+            }
+        }
+
+        /**
+         * Skips a malformed part of the value, up to the next comma that is not in a quoted string.
+         */
+        private void skipToComma() {
+            boolean quoted = false;
+            while (position < length) {
+                final char c = value.charAt(position);
+                if (quoted && c == '\\') {
+                    position++;
+                } else if (c == '"') {
+                    quoted = !quoted;
+                } else if (c == ',' && !quoted) {
+                    return;
+                }
+                position++;
+            }
+        }
+
+        private static boolean isWhitespace(char c) {
+            return c == ' ' || c == '\t';
+        }
+
+        // tchar = "!" / "#" / "$" / "%" / "&" / "'" / "*" / "+" / "-" / "." / "^" / "_" / "`" / "|" / "~" / DIGIT / ALPHA
+        private static boolean isTokenChar(char c) {
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+                return true;
+            }
+
+            switch (c) {
+                case '!':
+                case '#':
+                case '$':
+                case '%':
+                case '&':
+                case '\'':
+                case '*':
+                case '+':
+                case '-':
+                case '.':
+                case '^':
+                case '_':
+                case '`':
+                case '|':
+                case '~':
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        // token68 = 1*( ALPHA / DIGIT / "-" / "." / "_" / "~" / "+" / "/" ) *"="
+        private static boolean isToken68Char(char c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '-' || c == '.' || c == '_' || c == '~' || c == '+' || c == '/';
+        }
+    }
+}
@@ -8,6 +8,7 @@ import java.util.Map;
 /**
  * Creates a set of headers to add to the HTTP request when responding to a proxy challenge.
  *
+ * @see AsyncProxyChallengeProcessor
  * @see <a href="https://developer.mozilla.org/docs/Web/HTTP/Headers/Proxy-Authenticate">Proxy-Authenticate</a>
  */
 public interface ProxyChallengeProcessor {
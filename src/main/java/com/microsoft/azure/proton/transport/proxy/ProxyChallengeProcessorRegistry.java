@@ -0,0 +1,85 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.proxy;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The challenge processors a {@link Proxy} answers challenges with, by authentication scheme. A processor registered
+ * for Basic or Digest is used instead of the built-in one, and processors can be registered for other schemes, such as
+ * Bearer with a {@link BearerTokenCache}.
+ *
+ * <p>This class is thread-safe. One registry can be shared by any number of connections.</p>
+ */
+public final class ProxyChallengeProcessorRegistry {
+    private final Map<String, Factory> factories = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the processor answering one challenge of a proxy.
+     */
+    @FunctionalInterface
+    public interface Factory {
+        /**
+         * Creates the processor answering {@code challenge}.
+         *
+         * @param host The host being connected to through the proxy.
+         * @param challenge The challenge of the proxy.
+         * @return The processor, or null if the challenge cannot be answered.
+         */
+        AsyncProxyChallengeProcessor create(String host, ProxyChallenge challenge);
+    }
+
+    /**
+     * Registers the processors for an authentication scheme, replacing any registered before.
+     *
+     * @param scheme The authentication scheme, in any case, such as {@code Bearer}.
+     * @param factory Creates the processors for the scheme.
+     * @return This registry.
+     * @throws NullPointerException if {@code scheme} or {@code factory} is {@code null}.
+     */
+    public ProxyChallengeProcessorRegistry register(String scheme, Factory factory) {
+        Objects.requireNonNull(scheme, "'scheme' cannot be null.");
+        Objects.requireNonNull(factory, "'factory' cannot be null.");
+
+        factories.put(scheme.toLowerCase(Locale.ROOT), factory);
+        return this;
+    }
+
+    /**
+     * Removes the processors of an authentication scheme.
+     *
+     * @param scheme The authentication scheme, in any case.
+     * @return This registry.
+     */
+    public ProxyChallengeProcessorRegistry unregister(String scheme) {
+        if (scheme != null) {
+            factories.remove(scheme.toLowerCase(Locale.ROOT));
+        }
+        return this;
+    }
+
+    /**
+     * Gets the processors of an authentication scheme.
+     *
+     * @param scheme The authentication scheme, in any case.
+     * @return The factory of the processors, or null if none is registered for {@code scheme}.
+     */
+    public Factory getFactory(String scheme) {
+        return scheme == null ? null : factories.get(scheme.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Gets the authentication schemes that have processors.
+     *
+     * @return A read-only view of the schemes, in lowercase.
+     */
+    public Set<String> getSchemes() {
+        return Collections.unmodifiableSet(factories.keySet());
+    }
+}
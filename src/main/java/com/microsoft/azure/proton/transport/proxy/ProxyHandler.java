@@ -3,6 +3,8 @@
 
 package com.microsoft.azure.proton.transport.proxy;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 /**
@@ -19,6 +21,20 @@ public interface ProxyHandler {
      */
     String createProxyRequest(String hostName, Map<String, String> additionalHeaders);
 
+    /**
+     * Creates a CONNECT request to the provided {@code hostName} and adds {@code additionalHeaders} to the request,
+     * encoded as the bytes to send. HTTP headers are encoded as ISO-8859-1.
+     *
+     * <p>The default implementation encodes the result of {@link #createProxyRequest(String, Map)}.</p>
+     *
+     * @param hostName Name of the host to connect to.
+     * @param additionalHeaders Optional. Additional headers to add to the request.
+     * @return The HTTP CONNECT request, from the position to the limit of the buffer.
+     */
+    default ByteBuffer createProxyRequestBuffer(String hostName, Map<String, String> additionalHeaders) {
+        return ByteBuffer.wrap(createProxyRequest(hostName, additionalHeaders).getBytes(StandardCharsets.ISO_8859_1));
+    }
+
     /**
      * Verifies that {@code httpResponse} contains a successful CONNECT response.
      *
@@ -14,6 +14,7 @@ class Constants {
 
     static final String DIGEST = "Digest";
     static final String BASIC = "Basic";
+    static final String BEARER = "Bearer";
     static final String BASIC_LOWERCASE = Constants.BASIC.toLowerCase(Locale.ROOT);
     static final String DIGEST_LOWERCASE = Constants.DIGEST.toLowerCase(Locale.ROOT);
 
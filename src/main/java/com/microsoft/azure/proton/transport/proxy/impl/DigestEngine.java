@@ -0,0 +1,263 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.proxy.impl;
+
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Computes the hashes of DIGEST access authentication. Each thread has its own engine, which keeps a
+ * {@link MessageDigest} per algorithm and a scratch buffer that text and hexadecimal hashes are encoded into, so that
+ * answering a challenge does not look up providers or build intermediate strings.
+ *
+ * <p>The hash of the user name, realm and password is computed for every response and not kept, since it is as
+ * sensitive as the password and takes a single block of the digest to compute.</p>
+ *
+ * @see <a href="https://datatracker.ietf.org/doc/html/rfc7616#section-3.4">RFC7616: The Authorization Header Field</a>
+ */
+final class DigestEngine {
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+    private static final byte SEPARATOR = ':';
+    private static final int NONCE_COUNT_DIGITS = 8;
+    private static final int MAX_ASCII = 0x7F;
+
+    private static final ThreadLocal<DigestEngine> ENGINES = ThreadLocal.withInitial(DigestEngine::new);
+
+    private final MessageDigest[] digests = new MessageDigest[Algorithm.values().length];
+    // Holds text being hashed, and the hexadecimal hashes.
+    private byte[] scratch = new byte[256];
+
+    /**
+     * The algorithms of RFC7616, with the name a challenge gives them.
+     */
+    enum Algorithm {
+        MD5("MD5", "MD5", false),
+        MD5_SESS("MD5-sess", "MD5", true),
+        SHA_256("SHA-256", "SHA-256", false),
+        SHA_256_SESS("SHA-256-sess", "SHA-256", true),
+        SHA_512_256("SHA-512-256", "SHA-512/256", false),
+        SHA_512_256_SESS("SHA-512-256-sess", "SHA-512/256", true);
+
+        private final String challengeName;
+        private final String digestName;
+        private final boolean session;
+
+        Algorithm(String challengeName, String digestName, boolean session) {
+            this.challengeName = challengeName;
+            this.digestName = digestName;
+            this.session = session;
+        }
+
+        /**
+         * Gets the algorithm named in a challenge.
+         *
+         * @param name The {@code algorithm} parameter of the challenge, in any case, or null if it has none.
+         * @return The algorithm, {@link #MD5} if {@code name} is null, or null if the algorithm is not supported.
+         */
+        static Algorithm fromName(String name) {
+            if (name == null) {
+                return MD5;
+            }
+
+            for (Algorithm algorithm : values()) {
+                if (algorithm.challengeName.equalsIgnoreCase(name)) {
+                    return algorithm;
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * Gets the name of the algorithm in challenges and responses.
+         *
+         * @return The name of the algorithm.
+         */
+        String getChallengeName() {
+            return challengeName;
+        }
+
+        /**
+         * Gets whether the hash of the credentials is combined with the nonces of the session, as in MD5-sess.
+         *
+         * @return true for the -sess algorithms.
+         */
+        boolean isSession() {
+            return session;
+        }
+    }
+
+    private DigestEngine() {
+    }
+
+    /**
+     * Gets the engine of the current thread.
+     *
+     * @return The engine. It must only be used by the current thread.
+     */
+    static DigestEngine get() {
+        return ENGINES.get();
+    }
+
+    /**
+     * Hashes {@code parts}, joined with colons.
+     *
+     * @param algorithm The algorithm.
+     * @param parts The text to hash.
+     * @return The hash, as lowercase hexadecimal.
+     */
+    String hash(Algorithm algorithm, String... parts) {
+        final MessageDigest digest = getDigest(algorithm);
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                digest.update(SEPARATOR);
+            }
+            update(digest, parts[i]);
+        }
+
+        return finishHex(digest);
+    }
+
+    /**
+     * Gets the hash of {@code user:realm:password}, the HA1 of algorithms without -sess.
+     *
+     * @param algorithm The algorithm.
+     * @param user The user name.
+     * @param realm The realm of the challenge.
+     * @param password The password.
+     * @return The hash, as lowercase hexadecimal.
+     */
+    String getCredentialsHash(Algorithm algorithm, String user, String realm, char[] password) {
+        final MessageDigest digest = getDigest(algorithm);
+        update(digest, user);
+        digest.update(SEPARATOR);
+        update(digest, realm);
+        digest.update(SEPARATOR);
+        updateSecret(digest, password);
+        return finishHex(digest);
+    }
+
+    /**
+     * Computes the response to a challenge.
+     *
+     * @param algorithm The algorithm.
+     * @param credentialsHash The hash of the credentials, from {@link #getCredentialsHash(Algorithm, String, String, char[])}.
+     * @param nonce The nonce of the challenge.
+     * @param nonceCount The nonce count, as eight hexadecimal digits, or null without qop.
+     * @param cnonce The client nonce.
+     * @param qop The quality of protection, or null if the challenge has none.
+     * @param method The method of the request.
+     * @param uri The URI of the request.
+     * @return The response, as lowercase hexadecimal.
+     */
+    String response(Algorithm algorithm, String credentialsHash, String nonce, String nonceCount, String cnonce, String qop,
+                    String method, String uri) {
+        final String ha1 = algorithm.isSession() ? hash(algorithm, credentialsHash, nonce, cnonce) : credentialsHash;
+        final String ha2 = hash(algorithm, method, uri);
+
+        return qop == null
+            ? hash(algorithm, ha1, nonce, ha2)
+            : hash(algorithm, ha1, nonce, nonceCount, cnonce, qop, ha2);
+    }
+
+    /**
+     * Encodes {@code data} as lowercase hexadecimal.
+     *
+     * @param data The bytes to encode.
+     * @return The hexadecimal text.
+     */
+    String toHex(byte[] data) {
+        final int length = encodeHex(data);
+        return new String(scratch, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Encodes a nonce count as the eight lowercase hexadecimal digits of the {@code nc} parameter.
+     *
+     * @param nonceCount The nonce count.
+     * @return The nonce count, zero padded.
+     * @see <a href="https://datatracker.ietf.org/doc/html/rfc7616#section-3.4">RFC7616: nc</a>
+     */
+    String toNonceCount(int nonceCount) {
+        ensureScratch(NONCE_COUNT_DIGITS);
+        int value = nonceCount;
+        for (int i = NONCE_COUNT_DIGITS - 1; i >= 0; i--) {
+            scratch[i] = HEX[value & 0xF];
+            value >>>= 4;
+        }
+        return new String(scratch, 0, NONCE_COUNT_DIGITS, StandardCharsets.US_ASCII);
+    }
+
+    private MessageDigest getDigest(Algorithm algorithm) {
+        MessageDigest digest = digests[algorithm.ordinal()];
+        if (digest == null) {
+            try {
+                digest = MessageDigest.getInstance(algorithm.digestName);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(String.format(Locale.ROOT,
+                    "Digest algorithm '%s' is not available.", algorithm.digestName), e);
+            }
+            digests[algorithm.ordinal()] = digest;
+        } else {
+            digest.reset();
+        }
+
+        return digest;
+    }
+
+    /**
+     * Adds the UTF-8 bytes of {@code text} to {@code digest}. ASCII text, the common case, is encoded into the scratch
+     * buffer.
+     */
+    private void update(MessageDigest digest, CharSequence text) {
+        if (text == null) {
+            return;
+        }
+
+        final int length = text.length();
+        ensureScratch(length);
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            if (c > MAX_ASCII) {
+                digest.update(StandardCharsets.UTF_8.encode(CharBuffer.wrap(text)));
+                return;
+            }
+            scratch[i] = (byte) c;
+        }
+
+        digest.update(scratch, 0, length);
+    }
+
+    /**
+     * Adds the UTF-8 bytes of a password to {@code digest}, then clears them from the scratch buffer.
+     */
+    private void updateSecret(MessageDigest digest, char[] password) {
+        update(digest, CharBuffer.wrap(password));
+        Arrays.fill(scratch, 0, Math.min(password.length, scratch.length), (byte) 0);
+    }
+
+    private String finishHex(MessageDigest digest) {
+        return toHex(digest.digest());
+    }
+
+    private int encodeHex(byte[] data) {
+        ensureScratch(data.length * 2);
+        int position = 0;
+        for (byte b : data) {
+            scratch[position++] = HEX[(b >> 4) & 0xF];
+            scratch[position++] = HEX[b & 0xF];
+        }
+        return position;
+    }
+
+    private void ensureScratch(int length) {
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+    }
+}
@@ -3,22 +3,17 @@
 
 package com.microsoft.azure.proton.transport.proxy.impl;
 
+import com.microsoft.azure.proton.transport.proxy.ProxyChallenge;
 import com.microsoft.azure.proton.transport.proxy.ProxyChallengeProcessor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.PasswordAuthentication;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Scanner;
-import java.util.concurrent.atomic.AtomicInteger;
-
-import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
  * Implementation to support digest authentication for proxies.
@@ -27,52 +22,52 @@ import static java.nio.charset.StandardCharsets.UTF_8;
  * @see <a href="https://developer.mozilla.orgdocs/Web/HTTP/Authentication#authentication_schemes">Authentication Schemes</a>
  */
 public class DigestProxyChallengeProcessorImpl implements ProxyChallengeProcessor {
-    static final String DEFAULT_ALGORITHM = "MD5";
+    static final String DEFAULT_ALGORITHM = DigestEngine.Algorithm.MD5.getChallengeName();
     private static final String PROXY_AUTH_DIGEST = Constants.DIGEST;
-    private static final char[] HEX_CODE = "0123456789ABCDEF".toCharArray();
+    private static final String QOP_AUTH = "auth";
     private static final SecureRandom SECURE_RANDOM = new SecureRandom();
 
     private final Logger logger = LoggerFactory.getLogger(DigestProxyChallengeProcessorImpl.class);
-    private final AtomicInteger nonceCounter = new AtomicInteger(0);
     private final Map<String, String> headers;
     private final ProxyAuthenticator proxyAuthenticator;
 
     private final String host;
-    private final String challenge;
+    private final DigestSession session;
 
     DigestProxyChallengeProcessorImpl(String host, String challenge, ProxyAuthenticator authenticator) {
+        this(host, DigestSession.fromChallenges(
+            ProxyChallenge.parse(challenge != null ? Arrays.asList(challenge.split("\\R")) : null), System.nanoTime()),
+            authenticator);
+    }
+
+    /**
+     * Creates a processor that answers the nonce of {@code session}. Processors answering the same session share its
+     * nonce count.
+     *
+     * @param host The host being connected to through the proxy.
+     * @param session The session to answer, or null if the proxy did not send a DIGEST challenge.
+     * @param authenticator Gets the credentials for the proxy.
+     */
+    DigestProxyChallengeProcessorImpl(String host, DigestSession session, ProxyAuthenticator authenticator) {
         Objects.requireNonNull(authenticator);
         this.host = host;
-        this.challenge = challenge;
+        this.session = session;
         headers = new HashMap<>();
         proxyAuthenticator = authenticator;
     }
 
     @Override
     public Map<String, String> getHeader() {
-        final Scanner responseScanner = new Scanner(challenge);
-        final Map<String, String> challengeQuestionValues = new HashMap<>();
+        if (session == null) {
+            logger.warn("Challenge does not have a DIGEST challenge. Not computing authorization header.");
+            return headers;
+        }
 
         if (logger.isInfoEnabled()) {
-            logger.info("Fetching header from:");
+            logger.info("Answering challenge of realm '{}'.", session.getRealm());
         }
 
-        while (responseScanner.hasNextLine()) {
-            String line = responseScanner.nextLine();
-
-            if (logger.isInfoEnabled()) {
-                logger.info(line);
-            }
-
-            if (line.contains(PROXY_AUTH_DIGEST)) {
-                getChallengeQuestionHeaders(line, challengeQuestionValues);
-                computeDigestAuthHeader(challengeQuestionValues, host,
-                        proxyAuthenticator.getPasswordAuthentication(Constants.DIGEST_LOWERCASE, host));
-
-                logger.info("Finished getting auth header.");
-                break;
-            }
-        }
+        computeDigestAuthHeader(host, proxyAuthenticator.getPasswordAuthentication(Constants.DIGEST_LOWERCASE, host));
 
         if (logger.isInfoEnabled()) {
             logger.info("Headers added are:");
@@ -85,34 +80,7 @@ public class DigestProxyChallengeProcessorImpl implements ProxyChallengeProcesso
         return headers;
     }
 
-    private void getChallengeQuestionHeaders(String line, Map<String, String> challengeQuestionValues) {
-        final String context = line.substring(PROXY_AUTH_DIGEST.length());
-        final String[] headerValues = context.split(",");
-
-        if (logger.isInfoEnabled()) {
-            logger.info("Fetching challenge questions.");
-        }
-
-        for (String headerValue : headerValues) {
-            if (headerValue.contains("=")) {
-                String key = headerValue.substring(0, headerValue.indexOf("="));
-                String value = headerValue.substring(headerValue.indexOf("=") + 1);
-                challengeQuestionValues.put(key.trim(), value.replaceAll("\"", "").trim());
-            }
-        }
-
-        if (logger.isInfoEnabled()) {
-            logger.info("Challenge questions are: ");
-
-            challengeQuestionValues.forEach((key, value) -> {
-                logger.info("{}: {}", key, value);
-            });
-        }
-    }
-
-    private void computeDigestAuthHeader(Map<String, String> challengeQuestionValues,
-                                         String uri,
-                                         PasswordAuthentication passwordAuthentication) {
+    private void computeDigestAuthHeader(String uri, PasswordAuthentication passwordAuthentication) {
         if (logger.isInfoEnabled()) {
             logger.info("Computing password authentication...");
         }
@@ -125,59 +93,89 @@ public class DigestProxyChallengeProcessorImpl implements ProxyChallengeProcesso
             return;
         }
 
-        final String proxyUserName = passwordAuthentication.getUserName();
-        final String proxyPassword = new String(passwordAuthentication.getPassword());
-
-        try {
-            String digestValue;
-            final String nonce = challengeQuestionValues.get("nonce");
-            final String realm = challengeQuestionValues.get("realm");
-            final String qop = challengeQuestionValues.get("qop");
+        final DigestEngine.Algorithm algorithm = DigestEngine.Algorithm.fromName(session.getAlgorithm());
+        if (algorithm == null) {
+            if (logger.isErrorEnabled()) {
+                logger.error("Digest algorithm '{}' is not supported. Not computing authorization header.", session.getAlgorithm());
+            }
 
-            final MessageDigest md5 = MessageDigest.getInstance(DEFAULT_ALGORITHM);
+            return;
+        }
 
-            final String a1 = printHexBinary(md5.digest(String.format("%s:%s:%s", proxyUserName, realm, proxyPassword).getBytes(UTF_8)));
-            final String a2 = printHexBinary(md5.digest(String.format("%s:%s", Constants.CONNECT, uri).getBytes(UTF_8)));
+        final String qop = selectQop(session.getQop());
+        if (qop == null && !StringUtils.isNullOrEmpty(session.getQop())) {
+            if (logger.isErrorEnabled()) {
+                logger.error("None of the qop values '{}' is supported. Not computing authorization header.", session.getQop());
+            }
 
-            final byte[] cnonceBytes = new byte[16];
-            SECURE_RANDOM.nextBytes(cnonceBytes);
-            final String cnonce = printHexBinary(cnonceBytes);
+            return;
+        }
 
-            String response;
-            if (StringUtils.isNullOrEmpty(qop)) {
-                response = printHexBinary(md5.digest(String.format("%s:%s:%s", a1, nonce, a2).getBytes(UTF_8)));
-                digestValue = String.format("Digest username=\"%s\",realm=\"%s\",nonce=\"%s\",uri=\"%s\",cnonce=\"%s\",response=\"%s\"",
-                        proxyUserName, realm, nonce, uri, cnonce, response);
-            } else {
-                int nc = nonceCounter.incrementAndGet();
+        final DigestEngine engine = DigestEngine.get();
+        final String proxyUserName = passwordAuthentication.getUserName();
+        final String nonce = session.getNonce();
+        final String realm = session.getRealm();
+
+        final byte[] cnonceBytes = new byte[16];
+        SECURE_RANDOM.nextBytes(cnonceBytes);
+        final String cnonce = engine.toHex(cnonceBytes);
+        final String nc = qop != null ? engine.toNonceCount(session.nextNonceCount()) : null;
+
+        final String credentialsHash = engine.getCredentialsHash(algorithm, proxyUserName, realm, passwordAuthentication.getPassword());
+        final String response = engine.response(algorithm, credentialsHash, nonce, nc, cnonce, qop, Constants.CONNECT, uri);
+        final String username = session.isUserHash() ? engine.hash(algorithm, proxyUserName, realm) : proxyUserName;
+
+        final StringBuilder digestValue = new StringBuilder(256)
+            .append(PROXY_AUTH_DIGEST).append(" username=\"").append(username)
+            .append("\",realm=\"").append(realm)
+            .append("\",nonce=\"").append(nonce)
+            .append("\",uri=\"").append(uri)
+            .append("\",cnonce=\"").append(cnonce).append('"');
+        if (qop != null) {
+            digestValue.append(",nc=").append(nc);
+        }
+        digestValue.append(",response=\"").append(response).append('"');
+        if (qop != null) {
+            digestValue.append(",qop=\"").append(qop).append('"');
+        }
+        if (session.getOpaque() != null) {
+            digestValue.append(",opaque=\"").append(session.getOpaque()).append('"');
+        }
+        if (session.getAlgorithm() != null) {
+            digestValue.append(",algorithm=").append(algorithm.getChallengeName());
+        }
+        if (session.isUserHash()) {
+            digestValue.append(",userhash=true");
+        }
 
-                response = printHexBinary(md5.digest(String.format("%s:%s:%08X:%s:%s:%s", a1, nonce, nc, cnonce, qop, a2).getBytes(UTF_8)));
+        headers.put(Constants.PROXY_AUTHORIZATION, digestValue.toString());
 
-                digestValue = String.format(
-                        "Digest username=\"%s\",realm=\"%s\",nonce=\"%s\",uri=\"%s\",cnonce=\"%s\",nc=%08X,response=\"%s\",qop=\"%s\"",
-                        proxyUserName, realm, nonce, uri, cnonce, nc, response, qop);
-            }
+        if (logger.isInfoEnabled()) {
+            logger.info("Adding authorization header. {} '{}'", Constants.PROXY_AUTHORIZATION, digestValue);
+        }
+    }
 
-            headers.put(Constants.PROXY_AUTHORIZATION, digestValue);
+    /**
+     * Picks the quality of protection to answer with. Only "auth" is supported, since a CONNECT request has no body
+     * to protect.
+     *
+     * @return "auth", or null if the challenge has no qop or does not offer "auth".
+     */
+    private static String selectQop(String qop) {
+        if (StringUtils.isNullOrEmpty(qop)) {
+            return null;
+        }
 
-            if (logger.isInfoEnabled()) {
-                logger.info("Adding authorization header. {} '{}'", Constants.PROXY_AUTHORIZATION, digestValue);
-            }
-        } catch (NoSuchAlgorithmException ex) {
-            if (logger.isErrorEnabled()) {
-                logger.error("Error encountered when computing header.", ex);
+        for (String option : qop.split(",")) {
+            if (QOP_AUTH.equalsIgnoreCase(option.trim())) {
+                return QOP_AUTH;
             }
-
-            throw new RuntimeException(ex);
         }
+
+        return null;
     }
 
     static String printHexBinary(byte[] data) {
-        StringBuilder r = new StringBuilder(data.length * 2);
-        for (byte b : data) {
-            r.append(HEX_CODE[(b >> 4) & 0xF]);
-            r.append(HEX_CODE[(b & 0xF)]);
-        }
-        return r.toString().toLowerCase(Locale.ROOT);
+        return DigestEngine.get().toHex(data);
     }
 }
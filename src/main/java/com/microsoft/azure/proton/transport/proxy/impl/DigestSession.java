@@ -0,0 +1,147 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.proxy.impl;
+
+import com.microsoft.azure.proton.transport.proxy.ProxyChallenge;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A nonce issued by a proxy in a DIGEST challenge, along with the other parameters of the challenge and the number of
+ * requests that answered it so far. Connections that answer the same nonce share the session, so that each request
+ * carries a nonce count the proxy has not seen yet.
+ *
+ * @see <a href="https://datatracker.ietf.org/doc/html/rfc7616#section-3.3">RFC7616: The WWW-Authenticate Response Header Field</a>
+ */
+final class DigestSession {
+    private final String realm;
+    private final String nonce;
+    private final String opaque;
+    private final String qop;
+    private final String algorithm;
+    private final boolean stale;
+    private final boolean userHash;
+    private final long createdAtNanos;
+    private final AtomicInteger nonceCount = new AtomicInteger(0);
+
+    private DigestSession(ProxyChallenge challenge, long createdAtNanos) {
+        this.realm = challenge.getParameter("realm");
+        this.nonce = challenge.getParameter("nonce");
+        this.opaque = challenge.getParameter("opaque");
+        this.qop = challenge.getParameter("qop");
+        this.algorithm = challenge.getParameter("algorithm");
+        this.stale = "true".equalsIgnoreCase(challenge.getParameter("stale"));
+        this.userHash = "true".equalsIgnoreCase(challenge.getParameter("userhash"));
+        this.createdAtNanos = createdAtNanos;
+    }
+
+    /**
+     * Creates a session from a DIGEST challenge.
+     *
+     * @param challenge The challenge.
+     * @param nowNanos The current time, from {@link System#nanoTime()} or the clock of the cache.
+     * @return The session, or null if {@code challenge} is not a DIGEST challenge.
+     */
+    static DigestSession fromChallenge(ProxyChallenge challenge, long nowNanos) {
+        return challenge != null && challenge.isScheme(Constants.DIGEST) ? new DigestSession(challenge, nowNanos) : null;
+    }
+
+    /**
+     * Creates a session from the first DIGEST challenge in {@code challenges}.
+     *
+     * @param challenges The challenges, as read by {@link ProxyChallenge#parse(List)}.
+     * @param nowNanos The current time, from {@link System#nanoTime()} or the clock of the cache.
+     * @return The session, or null if {@code challenges} does not hold a DIGEST challenge.
+     */
+    static DigestSession fromChallenges(List<ProxyChallenge> challenges, long nowNanos) {
+        for (ProxyChallenge challenge : challenges) {
+            if (challenge.isScheme(Constants.DIGEST)) {
+                return new DigestSession(challenge, nowNanos);
+            }
+        }
+
+        return null;
+    }
+
+    String getRealm() {
+        return realm;
+    }
+
+    String getNonce() {
+        return nonce;
+    }
+
+    /**
+     * Gets the opaque value of the challenge, which requests echo unchanged.
+     *
+     * @return The opaque value, or null if the challenge has none.
+     */
+    String getOpaque() {
+        return opaque;
+    }
+
+    String getQop() {
+        return qop;
+    }
+
+    /**
+     * Gets the algorithm of the challenge.
+     *
+     * @return The algorithm, or null if the challenge does not name one.
+     */
+    String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Gets whether the challenge rejected a request only because its nonce expired. The credentials were right, and
+     * answering the new nonce is expected to succeed.
+     *
+     * @return true if the challenge has {@code stale=true}.
+     */
+    boolean isStale() {
+        return stale;
+    }
+
+    /**
+     * Gets whether the proxy asks for the user name to be hashed, so that it is not sent in clear.
+     *
+     * @return true if the challenge has {@code userhash=true}.
+     */
+    boolean isUserHash() {
+        return userHash;
+    }
+
+    /**
+     * Gets the nonce count for the next request answering this nonce.
+     *
+     * @return The number of requests that answered this nonce, this one included.
+     */
+    int nextNonceCount() {
+        return nonceCount.incrementAndGet();
+    }
+
+    /**
+     * Gets whether this session answers the same nonce as {@code other}.
+     *
+     * @param other The other session.
+     * @return true if both sessions have the same realm, nonce and opaque value.
+     */
+    boolean hasSameNonce(DigestSession other) {
+        return Objects.equals(realm, other.realm) && Objects.equals(nonce, other.nonce) && Objects.equals(opaque, other.opaque);
+    }
+
+    /**
+     * Gets whether this session is older than {@code timeToLiveNanos}.
+     *
+     * @param nowNanos The current time, on the clock the session was created with.
+     * @param timeToLiveNanos How long the session is used for, in nanoseconds.
+     * @return true if the session should no longer be used.
+     */
+    boolean isExpired(long nowNanos, long timeToLiveNanos) {
+        return nowNanos - createdAtNanos >= timeToLiveNanos;
+    }
+}
@@ -0,0 +1,154 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.proxy.impl;
+
+import com.microsoft.azure.proton.transport.proxy.ProxyChallenge;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps the {@link DigestSession} of each proxy and realm, so that connections through a proxy answer the nonce it
+ * issued last instead of each being challenged for their own, and so that later connections can answer it
+ * preemptively, in their first CONNECT request. Shared by all the {@link ProxyImpl} of the process.
+ *
+ * <p>A session is dropped once it is older than the time to live of the cache, or once the proxy rejects a request
+ * that answered it. Once {@link #MAX_ENTRIES} sessions are kept, the sessions of other proxies and realms are used
+ * but not kept.</p>
+ */
+final class DigestSessionCache {
+    /**
+     * The largest number of sessions kept.
+     */
+    static final int MAX_ENTRIES = 256;
+
+    /**
+     * How long a session is used for by default. Proxies commonly let a nonce live for a few minutes.
+     */
+    static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofMinutes(5);
+
+    /**
+     * The cache used by {@link ProxyImpl}.
+     */
+    static final DigestSessionCache SHARED = new DigestSessionCache(DEFAULT_TIME_TO_LIVE, System::nanoTime);
+
+    private final long timeToLiveNanos;
+    private final LongSupplier clock;
+    // The sessions by proxy and realm.
+    private final Map<List<String>, DigestSession> sessions = new ConcurrentHashMap<>();
+    // The session each proxy issued last, answered preemptively.
+    private final Map<String, DigestSession> latest = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a cache.
+     *
+     * @param timeToLive How long a session is used for.
+     * @param clock The current time in nanoseconds, such as {@link System#nanoTime()}.
+     */
+    DigestSessionCache(Duration timeToLive, LongSupplier clock) {
+        this.timeToLiveNanos = Objects.requireNonNull(timeToLive, "'timeToLive' cannot be null.").toNanos();
+        this.clock = Objects.requireNonNull(clock, "'clock' cannot be null.");
+    }
+
+    /**
+     * Gets the session the proxy issued last.
+     *
+     * @param proxy The proxy.
+     * @return The session, or null if there is none or it expired.
+     */
+    DigestSession get(String proxy) {
+        final DigestSession session = latest.get(proxy);
+        if (session == null || !session.isExpired(clock.getAsLong(), timeToLiveNanos)) {
+            return session;
+        }
+
+        remove(proxy, session);
+        return null;
+    }
+
+    /**
+     * Takes in a DIGEST challenge of the proxy. If it repeats the nonce of the session kept for its realm, that
+     * session is kept and returned, so that its nonce count goes on. Otherwise, the challenge starts a new session.
+     *
+     * @param proxy The proxy.
+     * @param challenge The challenge.
+     * @return The session answering the challenge, or null if {@code challenge} is not a DIGEST challenge.
+     */
+    DigestSession update(String proxy, ProxyChallenge challenge) {
+        Objects.requireNonNull(proxy, "'proxy' cannot be null.");
+
+        final long now = clock.getAsLong();
+        final DigestSession challenged = DigestSession.fromChallenge(challenge, now);
+        if (challenged == null) {
+            return null;
+        }
+
+        if (sessions.size() >= MAX_ENTRIES) {
+            removeExpired(now);
+        }
+
+        final List<String> key = Arrays.asList(proxy, challenged.getRealm());
+        final DigestSession session = sessions.compute(key, (k, current) ->
+            current != null && current.hasSameNonce(challenged) && !current.isExpired(now, timeToLiveNanos) ? current : challenged);
+
+        if (sessions.size() > MAX_ENTRIES) {
+            sessions.remove(key, session);
+            return session;
+        }
+
+        latest.put(proxy, session);
+        return session;
+    }
+
+    /**
+     * Drops a session, once the proxy rejected a request that answered it. The session is only dropped if it is still
+     * the one kept, so that a newer session taken in by another connection stays.
+     *
+     * @param proxy The proxy.
+     * @param session The session that was rejected.
+     */
+    void remove(String proxy, DigestSession session) {
+        sessions.remove(Arrays.asList(proxy, session.getRealm()), session);
+        latest.remove(proxy, session);
+    }
+
+    /**
+     * Drops the session the proxy issued last.
+     *
+     * @param proxy The proxy.
+     */
+    void remove(String proxy) {
+        final DigestSession session = latest.get(proxy);
+        if (session != null) {
+            remove(proxy, session);
+        }
+    }
+
+    private void removeExpired(long now) {
+        sessions.values().removeIf(session -> session.isExpired(now, timeToLiveNanos));
+        latest.values().removeIf(session -> session.isExpired(now, timeToLiveNanos));
+    }
+
+    /**
+     * Gets the number of sessions kept, expired ones included until they are next looked up.
+     *
+     * @return The number of sessions.
+     */
+    int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Drops all the sessions.
+     */
+    void clear() {
+        sessions.clear();
+        latest.clear();
+    }
+}
@@ -16,12 +16,14 @@ import java.util.List;
 import java.util.Objects;
 
 /**
- * Responds to proxy challenge requests by providing authentication information.
+ * Responds to proxy challenge requests by providing authentication information. Credentials of the system-wide
+ * authenticator are kept in a {@link ProxyCredentialCache}.
  */
 class ProxyAuthenticator {
     private static final String PROMPT = "Event Hubs client web socket proxy support";
 
     private final ProxyConfiguration configuration;
+    private final ProxyCredentialCache credentialCache;
 
     /**
      * Creates an authenticator that authenticates using system-configured authenticator and system-configured proxy
@@ -38,9 +40,23 @@ class ProxyAuthenticator {
      * @throws NullPointerException if {@code configuration} is {@code null}.
      */
     ProxyAuthenticator(ProxyConfiguration configuration) {
+        this(configuration, ProxyCredentialCache.SHARED);
+    }
+
+    /**
+     * Creates an authenticator that responses to authentication requests with the provided configuration, keeping the
+     * credentials of the system-wide authenticator in {@code credentialCache}.
+     *
+     * @param configuration Proxy configuration to use for requests.
+     * @param credentialCache The cache of the credentials of the system-wide authenticator.
+     * @throws NullPointerException if {@code configuration} or {@code credentialCache} is {@code null}.
+     */
+    ProxyAuthenticator(ProxyConfiguration configuration, ProxyCredentialCache credentialCache) {
         Objects.requireNonNull(configuration);
+        Objects.requireNonNull(credentialCache);
 
         this.configuration = configuration;
+        this.credentialCache = credentialCache;
     }
 
     /**
@@ -51,6 +67,8 @@ class ProxyAuthenticator {
      *     <li>If user specified proxy address, tries to fetch credentials using the system-wide authenticator.</li>
      *     <li>Use system-wide proxy configuration and authenticator to fetch credentials.</li>
      * </ol>
+     * The credentials of the system-wide authenticator, or the lack of them, are kept per proxy and scheme until they
+     * expire or {@link #invalidate(String, String)} is called.
      *
      * @param scheme The authentication scheme for the proxy.
      * @param host The proxy's URL that is requesting authentication.
@@ -61,6 +79,33 @@ class ProxyAuthenticator {
             return configuration.credentials();
         }
 
+        return credentialCache.get(getProxyKey(host), scheme, () -> requestPasswordAuthentication(scheme, host));
+    }
+
+    /**
+     * Drops the kept credentials for {@code scheme} and {@code host}, once the proxy rejected them, so that the
+     * system-wide authenticator is asked again. Does nothing if the user specified the credentials.
+     *
+     * @param scheme The authentication scheme for the proxy.
+     * @param host The proxy's URL that is requesting authentication.
+     */
+    void invalidate(String scheme, String host) {
+        if (!configuration.hasUserDefinedCredentials()) {
+            credentialCache.invalidate(getProxyKey(host), scheme);
+        }
+    }
+
+    /**
+     * Gets the proxy the credentials are for: its address when it is configured, otherwise the host being connected
+     * to, since the system picks the proxy by host.
+     */
+    private String getProxyKey(String host) {
+        return configuration.isProxyAddressConfigured()
+            ? String.valueOf(configuration.proxyAddress().address())
+            : String.valueOf(host);
+    }
+
+    private PasswordAuthentication requestPasswordAuthentication(String scheme, String host) {
         // The user has specified the proxy address, so we'll use that address to try to fetch the system-wide
         // credentials for this.
         if (configuration.isProxyAddressConfigured()) {
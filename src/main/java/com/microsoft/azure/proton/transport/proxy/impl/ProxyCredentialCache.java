@@ -0,0 +1,192 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.proxy.impl;
+
+import java.net.PasswordAuthentication;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the credentials the system-wide authenticator gave for each proxy and authentication scheme, so that
+ * connections through a proxy do not each ask the {@link java.net.Authenticator}, which is synchronized. Shared by all
+ * the {@link ProxyAuthenticator} of the process.
+ *
+ * <p>Lookups of kept credentials do not take locks. When credentials are missing or expired, a single caller per proxy
+ * and scheme asks the authenticator, outside of any lock of the map, and the others wait for its answer. Lookups of
+ * other proxies and schemes do not wait for it. Failed lookups, which gave no credentials, are
+ * kept too, for a shorter time, so that a misconfigured proxy is not asked about on every connection. Credentials are
+ * dropped once they are older than their time to live, or once the proxy rejects them. Once {@link #MAX_ENTRIES}
+ * entries are kept, the credentials of other proxies are looked up but not kept.</p>
+ *
+ * <p>Credentials given by a new default authenticator are only used once the ones kept expire or are rejected.</p>
+ */
+final class ProxyCredentialCache {
+    /**
+     * The largest number of entries kept.
+     */
+    static final int MAX_ENTRIES = 256;
+
+    /**
+     * How long credentials are used for by default.
+     */
+    static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofMinutes(10);
+
+    /**
+     * How long a failed lookup is remembered for by default.
+     */
+    static final Duration DEFAULT_NEGATIVE_TIME_TO_LIVE = Duration.ofSeconds(30);
+
+    /**
+     * The cache used by {@link ProxyAuthenticator}.
+     */
+    static final ProxyCredentialCache SHARED = new ProxyCredentialCache(DEFAULT_TIME_TO_LIVE, DEFAULT_NEGATIVE_TIME_TO_LIVE,
+        System::nanoTime);
+
+    private final long timeToLiveNanos;
+    private final long negativeTimeToLiveNanos;
+    private final LongSupplier clock;
+    // The credentials by proxy and lowercase scheme, or the lookup giving them while it runs.
+    private final Map<List<String>, CompletableFuture<Entry>> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a cache.
+     *
+     * @param timeToLive How long credentials are used for.
+     * @param negativeTimeToLive How long a failed lookup is remembered for.
+     * @param clock The current time in nanoseconds, such as {@link System#nanoTime()}.
+     */
+    ProxyCredentialCache(Duration timeToLive, Duration negativeTimeToLive, LongSupplier clock) {
+        this.timeToLiveNanos = Objects.requireNonNull(timeToLive, "'timeToLive' cannot be null.").toNanos();
+        this.negativeTimeToLiveNanos = Objects.requireNonNull(negativeTimeToLive, "'negativeTimeToLive' cannot be null.")
+            .toNanos();
+        this.clock = Objects.requireNonNull(clock, "'clock' cannot be null.");
+    }
+
+    /**
+     * Gets the credentials for a proxy and scheme, looking them up if none are kept or they expired.
+     *
+     * @param proxy The proxy.
+     * @param scheme The authentication scheme, in any case.
+     * @param lookup Asks the authenticator for the credentials. May return null.
+     * @return The credentials, or null if the lookup gave none.
+     */
+    PasswordAuthentication get(String proxy, String scheme, Supplier<PasswordAuthentication> lookup) {
+        Objects.requireNonNull(proxy, "'proxy' cannot be null.");
+        Objects.requireNonNull(lookup, "'lookup' cannot be null.");
+
+        final List<String> key = getKey(proxy, scheme);
+        while (true) {
+            final CompletableFuture<Entry> current = entries.get(key);
+            if (current != null) {
+                final Entry entry;
+                try {
+                    entry = current.join();
+                } catch (CompletionException e) {
+                    // The lookup of another caller failed. Look up again.
+                    entries.remove(key, current);
+                    continue;
+                }
+
+                if (!entry.isExpired(clock.getAsLong())) {
+                    return entry.credentials;
+                }
+            } else if (entries.size() >= MAX_ENTRIES) {
+                removeExpired(clock.getAsLong());
+                if (entries.size() >= MAX_ENTRIES) {
+                    return lookup.get();
+                }
+            }
+
+            final CompletableFuture<Entry> pending = new CompletableFuture<>();
+            final boolean claimed = current == null
+                ? entries.putIfAbsent(key, pending) == null
+                : entries.replace(key, current, pending);
+            if (claimed) {
+                return lookUp(key, pending, lookup);
+            }
+        }
+    }
+
+    /**
+     * Runs the lookup claimed by {@code pending}, and completes it for the callers waiting on it.
+     */
+    private PasswordAuthentication lookUp(List<String> key, CompletableFuture<Entry> pending,
+                                          Supplier<PasswordAuthentication> lookup) {
+        final PasswordAuthentication credentials;
+        try {
+            credentials = lookup.get();
+        } catch (RuntimeException | Error e) {
+            entries.remove(key, pending);
+            pending.completeExceptionally(e);
+            throw e;
+        }
+
+        final long expiresAt = clock.getAsLong() + (ProxyAuthenticator.isPasswordAuthenticationHasValues(credentials)
+            ? timeToLiveNanos
+            : negativeTimeToLiveNanos);
+        pending.complete(new Entry(credentials, expiresAt));
+        return credentials;
+    }
+
+    /**
+     * Drops the credentials for a proxy and scheme, once the proxy rejected them.
+     *
+     * @param proxy The proxy.
+     * @param scheme The authentication scheme, in any case.
+     */
+    void invalidate(String proxy, String scheme) {
+        entries.remove(getKey(proxy, scheme));
+    }
+
+    /**
+     * Gets the number of entries kept, expired ones included until they are next looked up.
+     *
+     * @return The number of entries.
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Drops all the entries.
+     */
+    void clear() {
+        entries.clear();
+    }
+
+    private void removeExpired(long now) {
+        entries.values().removeIf(entry -> entry.isDone() && !entry.isCompletedExceptionally()
+            && entry.join().isExpired(now));
+    }
+
+    private static List<String> getKey(String proxy, String scheme) {
+        return Arrays.asList(proxy, scheme == null ? "" : scheme.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * The credentials of a lookup, null if it failed, and when they expire.
+     */
+    private static final class Entry {
+        private final PasswordAuthentication credentials;
+        private final long expiresAtNanos;
+
+        Entry(PasswordAuthentication credentials, long expiresAtNanos) {
+            this.credentials = credentials;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+
+        boolean isExpired(long now) {
+            return now - expiresAtNanos >= 0;
+        }
+    }
+}
@@ -3,6 +3,7 @@
 
 package com.microsoft.azure.proton.transport.proxy.impl;
 
+import com.microsoft.azure.proton.transport.http.impl.HttpRequestTemplate;
 import com.microsoft.azure.proton.transport.proxy.HttpStatusLine;
 import com.microsoft.azure.proton.transport.proxy.Proxy;
 import com.microsoft.azure.proton.transport.proxy.ProxyHandler;
@@ -10,6 +11,9 @@ import com.microsoft.azure.proton.transport.proxy.ProxyResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
@@ -31,6 +35,7 @@ public class ProxyHandlerImpl implements ProxyHandler {
     static final String HEADER_FORMAT = "%s: %s";
     static final String NEW_LINE = "\r\n";
 
+    private static final String CONNECT = "CONNECT";
     private static final Set<String> SUPPORTED_VERSIONS = Stream.of("1.1", "1.0").collect(Collectors.toSet());
     private final Logger logger = LoggerFactory.getLogger(ProxyHandlerImpl.class);
 
@@ -46,19 +51,41 @@ public class ProxyHandlerImpl implements ProxyHandler {
      */
     @Override
     public String createProxyRequest(String hostName, Map<String, String> additionalHeaders) {
-        final StringBuilder connectRequestBuilder = new StringBuilder();
-        connectRequestBuilder.append(
-                String.format(Locale.ROOT, CONNECT_REQUEST, hostName, NEW_LINE));
+        return StandardCharsets.ISO_8859_1.decode(createProxyRequestBuffer(hostName, additionalHeaders)).toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The request line and the headers that only depend on {@code hostName} are encoded once per host and reused by
+     * later requests to it. Only {@code additionalHeaders}, such as Proxy-Authorization, are encoded every time.</p>
+     */
+    @Override
+    public ByteBuffer createProxyRequestBuffer(String hostName, Map<String, String> additionalHeaders) {
+        final HttpRequestTemplate template = HttpRequestTemplate.getOrCreate(Arrays.asList(CONNECT, hostName),
+            () -> new HttpRequestTemplate.Builder()
+                .append(String.format(Locale.ROOT, CONNECT_REQUEST, hostName, NEW_LINE))
+                .build());
+
+        int size = template.size() + HttpRequestTemplate.newLineSize();
+        if (additionalHeaders != null) {
+            for (Map.Entry<String, String> header : additionalHeaders.entrySet()) {
+                size += HttpRequestTemplate.headerSize(header.getKey(), String.valueOf(header.getValue()));
+            }
+        }
+
+        final ByteBuffer request = ByteBuffer.allocate(size);
+        template.write(request);
 
         if (additionalHeaders != null) {
-            additionalHeaders.forEach((header, value) -> {
-                connectRequestBuilder.append(String.format(HEADER_FORMAT, header, value));
-                connectRequestBuilder.append(NEW_LINE);
-            });
+            for (Map.Entry<String, String> header : additionalHeaders.entrySet()) {
+                HttpRequestTemplate.putHeader(request, header.getKey(), String.valueOf(header.getValue()));
+            }
         }
 
-        connectRequestBuilder.append(NEW_LINE);
-        return connectRequestBuilder.toString();
+        HttpRequestTemplate.putNewLine(request);
+        request.flip();
+        return request;
     }
 
     /**
@@ -3,9 +3,14 @@
 
 package com.microsoft.azure.proton.transport.proxy.impl;
 
+import com.microsoft.azure.proton.transport.buffer.ByteBufferPool;
+import com.microsoft.azure.proton.transport.http.impl.HttpResponseParser;
+import com.microsoft.azure.proton.transport.proxy.AsyncProxyChallengeProcessor;
 import com.microsoft.azure.proton.transport.proxy.Proxy;
 import com.microsoft.azure.proton.transport.proxy.ProxyAuthenticationType;
+import com.microsoft.azure.proton.transport.proxy.ProxyChallenge;
 import com.microsoft.azure.proton.transport.proxy.ProxyChallengeProcessor;
+import com.microsoft.azure.proton.transport.proxy.ProxyChallengeProcessorRegistry;
 import com.microsoft.azure.proton.transport.proxy.ProxyConfiguration;
 import com.microsoft.azure.proton.transport.proxy.ProxyHandler;
 import com.microsoft.azure.proton.transport.proxy.ProxyResponse;
@@ -20,21 +25,26 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 import static com.microsoft.azure.proton.transport.proxy.ProxyAuthenticationType.BASIC;
+import static com.microsoft.azure.proton.transport.proxy.ProxyAuthenticationType.BEARER;
 import static com.microsoft.azure.proton.transport.proxy.ProxyAuthenticationType.DIGEST;
 import static com.microsoft.azure.proton.transport.proxy.impl.Constants.PROXY_AUTHENTICATE;
+import static com.microsoft.azure.proton.transport.proxy.impl.Constants.PROXY_AUTHORIZATION;
 import static com.microsoft.azure.proton.transport.proxy.impl.Constants.PROXY_CONNECT_FAILED;
 import static com.microsoft.azure.proton.transport.proxy.impl.Constants.PROXY_CONNECT_USER_ERROR;
 import static com.microsoft.azure.proton.transport.proxy.impl.Constants.PROXY_HANDSHAKE_BUFFER_SIZE;
@@ -50,9 +60,10 @@ import static org.apache.qpid.proton.engine.impl.ByteBufferUtils.newWriteableBuf
 public class ProxyImpl implements Proxy, TransportLayer {
     private static final Logger LOGGER = LoggerFactory.getLogger(ProxyImpl.class);
 
-    private final ByteBuffer inputBuffer;
-    private final ByteBuffer outputBuffer;
+    private ByteBuffer inputBuffer;
+    private ByteBuffer outputBuffer;
     private final ProxyConfiguration proxyConfiguration;
+    private final ByteBufferPool bufferPool;
 
     private boolean tailClosed = false;
     private boolean headClosed = false;
@@ -66,6 +77,32 @@ public class ProxyImpl implements Proxy, TransportLayer {
     private volatile boolean respondToChallengeOnNewConnection = false;
     private final AtomicReference<State> fromState = new AtomicReference<>(null);
 
+    // Whether credentials are sent with the first CONNECT request, before the proxy challenges for them.
+    private boolean preemptiveAuthentication = false;
+    // Whether the CONNECT request that was sent last carried preemptive credentials.
+    private boolean preemptiveAuthenticationSent = false;
+    // Whether a challenge for a stale nonce was answered, which is done at most once per handshake.
+    private boolean staleNonceAnswered = false;
+    // Runs the challenge processors, or null to run them on the thread processing the transport.
+    private volatile Executor challengeExecutor;
+    // Run once the headers answering a challenge are computed on the challenge executor.
+    private volatile Runnable onChallengeAnswered;
+    // The headers answering the last challenge, while they are computed.
+    private volatile CompletableFuture<Map<String, String>> challengeAnswer;
+    // The headers with the credentials for the first CONNECT request, while they are computed.
+    private volatile CompletableFuture<Map<String, String>> preemptiveAnswer;
+    // The processor that answered the last challenge, told when the proxy rejects its answer.
+    private AsyncProxyChallengeProcessor challengeProcessor;
+    // The processors registered by authentication scheme, or null to only use the built-in ones.
+    private volatile ProxyChallengeProcessorRegistry challengeProcessors;
+    // Whether the handshake starts from the state kept in ProxyTunnelCache, and keeps its own there once it succeeds.
+    private boolean tunnelStateCaching = false;
+    // The state kept for this proxy and host when the handshake started, or null.
+    private ProxyTunnelCache.TunnelState cachedTunnelState;
+    // Whether the proxy challenged this handshake, and whether it closed the connection along with its challenge.
+    private boolean challenged = false;
+    private boolean closedAfterChallenge = false;
+
     /**
      * Create proxy transport layer - which, after configuring using the {@link #configure(String, Map, ProxyHandler,
      * Transport)} API is ready for layering in qpid-proton-j transport layers, using {@link
@@ -83,8 +120,24 @@ public class ProxyImpl implements Proxy, TransportLayer {
      * @param configuration Proxy configuration to use.
      */
     public ProxyImpl(ProxyConfiguration configuration) {
-        inputBuffer = newWriteableBuffer(PROXY_HANDSHAKE_BUFFER_SIZE);
-        outputBuffer = newWriteableBuffer(PROXY_HANDSHAKE_BUFFER_SIZE);
+        this(configuration, null);
+    }
+
+    /**
+     * Create proxy transport layer - which, after configuring using the {@link #configure(String, Map, ProxyHandler,
+     * Transport)} API is ready for layering in qpid-proton-j transport layers, using {@link
+     * org.apache.qpid.proton.engine.impl.TransportInternal#addTransportLayer(TransportLayer)} API.
+     *
+     * <p>The handshake buffers are borrowed from {@code bufferPool}. They are returned to it as soon as the proxy has
+     * connected, since the layer only passes bytes through after that, or by {@link #recycle()}. With a pool of direct
+     * buffers, the handshake buffers are off the heap.</p>
+     *
+     * @param configuration Proxy configuration to use.
+     * @param bufferPool Pool to borrow the handshake buffers from, or null to allocate them.
+     */
+    public ProxyImpl(ProxyConfiguration configuration, ByteBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        acquireBuffers();
         isProxyConfigured = false;
         proxyConfiguration = configuration;
     }
@@ -99,9 +152,78 @@ public class ProxyImpl implements Proxy, TransportLayer {
      */
     @Override
     public TransportWrapper wrap(TransportInput input, TransportOutput output) {
+        if (inputBuffer == null) {
+            acquireBuffers();
+        }
+
         return new ProxyTransportWrapper(input, output);
     }
 
+    /**
+     * Resets this layer so that it can be configured and added to a new transport. If the layer borrows its buffers
+     * from a {@link ByteBufferPool} and still holds them, they are returned to the pool, and borrowed again when the
+     * layer is next wrapped.
+     *
+     * <p>Only call this once the transport the layer was added to is closed and no longer used.</p>
+     */
+    public void recycle() {
+        if (bufferPool != null) {
+            releaseBuffers();
+        } else {
+            inputBuffer.clear();
+            outputBuffer.clear();
+        }
+
+        tailClosed = false;
+        headClosed = false;
+        host = "";
+        headers = null;
+        underlyingTransport = null;
+        proxyHandler = null;
+        isProxyConfigured = false;
+        proxyState = null;
+        respondToChallengeOnNewConnection = false;
+        preemptiveAuthenticationSent = false;
+        staleNonceAnswered = false;
+        challengeAnswer = null;
+        preemptiveAnswer = null;
+        challengeProcessor = null;
+        cachedTunnelState = null;
+        challenged = false;
+        closedAfterChallenge = false;
+        fromState.set(null);
+    }
+
+    private void acquireBuffers() {
+        if (bufferPool != null) {
+            inputBuffer = bufferPool.acquire(PROXY_HANDSHAKE_BUFFER_SIZE);
+            outputBuffer = bufferPool.acquire(PROXY_HANDSHAKE_BUFFER_SIZE);
+        } else {
+            inputBuffer = newWriteableBuffer(PROXY_HANDSHAKE_BUFFER_SIZE);
+            outputBuffer = newWriteableBuffer(PROXY_HANDSHAKE_BUFFER_SIZE);
+        }
+    }
+
+    private void releaseBuffers() {
+        if (inputBuffer != null) {
+            bufferPool.release(inputBuffer);
+            bufferPool.release(outputBuffer);
+            inputBuffer = null;
+            outputBuffer = null;
+        }
+    }
+
+    /**
+     * Marks the proxy as connected. The handshake buffers are not used from here on, so pooled ones are returned.
+     */
+    private void onConnected() {
+        proxyState = ProxyState.PN_PROXY_CONNECTED;
+
+        if (bufferPool != null) {
+            releaseBuffers();
+        }
+    }
+
     /**
      * Configures the AMQP broker {@code host} with the given proxy handler and transport.
      *
@@ -122,6 +244,14 @@ public class ProxyImpl implements Proxy, TransportLayer {
             // restore the state from the previous proxy to resume.
             this.headers = source.headers;
             this.proxyState = source.proxyState;
+            this.challengeAnswer = source.challengeAnswer;
+            this.cachedTunnelState = source.tunnelState;
+            // The state is only transferred when the proxy closed the connection along with its challenge.
+            this.challenged = true;
+            this.closedAfterChallenge = true;
+            if (source.challengeAnswer != null) {
+                source.challengeAnswer.whenComplete((answer, error) -> notifyChallengeAnswered());
+            }
         } else {
             this.headers = headers;
             this.proxyState = ProxyState.PN_PROXY_NOT_STARTED;
@@ -131,6 +261,145 @@ public class ProxyImpl implements Proxy, TransportLayer {
         isProxyConfigured = true;
     }
 
+    /**
+     * Sets whether credentials are sent with the first CONNECT request, instead of after the proxy challenges for
+     * them. This saves the round trip of the {@code 407} response, and the new connection needed when the proxy closes
+     * the connection along with its challenge. It is off by default.
+     *
+     * <p>Credentials are only sent preemptively when the {@link ProxyConfiguration} of this layer asks for BASIC or
+     * DIGEST authentication, or for a scheme with a processor in the {@link ProxyChallengeProcessorRegistry} of this
+     * layer. BASIC credentials are sent as configured. DIGEST credentials answer the last challenge the proxy sent to
+     * any connection of this process, so the first connection to a proxy is still challenged. The credentials are
+     * computed as set with {@link #setChallengeExecutor(Executor, Runnable)}. If the proxy rejects the credentials,
+     * the handshake goes on with the challenge it sent, as it would have without preemptive authentication.</p>
+     *
+     * @param preemptiveAuthentication true to send credentials with the first CONNECT request.
+     * @throws IllegalStateException if the handshake has started.
+     */
+    public void setPreemptiveAuthentication(boolean preemptiveAuthentication) {
+        if (proxyState != null && proxyState != ProxyState.PN_PROXY_NOT_STARTED) {
+            throw new IllegalStateException("Preemptive authentication cannot be changed once the handshake has started.");
+        }
+
+        this.preemptiveAuthentication = preemptiveAuthentication;
+    }
+
+    /**
+     * Gets whether credentials are sent with the first CONNECT request.
+     *
+     * @return true if credentials are sent preemptively.
+     */
+    public boolean isPreemptiveAuthentication() {
+        return preemptiveAuthentication;
+    }
+
+    /**
+     * Sets the executor that computes the headers answering the challenges of the proxy, so that looking up
+     * credentials, which may ask the system-wide {@link java.net.Authenticator}, does not block the thread processing
+     * the transport. By default, the headers are computed on that thread.
+     *
+     * <p>While the headers are computed, the layer stays in {@link ProxyState#PN_PROXY_CHALLENGE} and
+     * {@link TransportOutput#pending()} returns 0. Once they are, {@code onChallengeAnswered} is run on the thread that
+     * computed them, so that the transport can be processed again, for instance by waking up the reactor. If they
+     * cannot be computed, the transport is closed with an error. Credentials sent preemptively are computed on the
+     * executor too: the layer stays in {@link ProxyState#PN_PROXY_NOT_STARTED} with nothing pending until they are
+     * ready, and sends the first CONNECT request without them if they cannot be computed.</p>
+     *
+     * @param executor The executor to compute the headers on, or null to compute them on the thread processing the
+     *     transport.
+     * @param onChallengeAnswered Run once headers computed on {@code executor} are ready, or null.
+     * @throws IllegalStateException if the handshake has started.
+     */
+    public void setChallengeExecutor(Executor executor, Runnable onChallengeAnswered) {
+        if (proxyState != null && proxyState != ProxyState.PN_PROXY_NOT_STARTED) {
+            throw new IllegalStateException("The challenge executor cannot be changed once the handshake has started.");
+        }
+
+        this.challengeExecutor = executor;
+        this.onChallengeAnswered = onChallengeAnswered;
+    }
+
+    /**
+     * Sets the processors that answer the challenges of the proxy, by authentication scheme. A processor registered for
+     * the scheme of the configured {@link ProxyAuthenticationType} is used instead of the built-in one, and
+     * {@link ProxyAuthenticationType#BEARER} needs a processor registered for the {@code Bearer} scheme. Without a
+     * configured authentication type, the first challenge of the proxy with a registered processor is answered, and
+     * otherwise a DIGEST or BASIC challenge as before.
+     *
+     * @param registry The processors, or null to only use the built-in ones.
+     * @throws IllegalStateException if the handshake has started.
+     */
+    public void setChallengeProcessorRegistry(ProxyChallengeProcessorRegistry registry) {
+        if (proxyState != null && proxyState != ProxyState.PN_PROXY_NOT_STARTED) {
+            throw new IllegalStateException("The challenge processors cannot be changed once the handshake has started.");
+        }
+
+        this.challengeProcessors = registry;
+    }
+
+    /**
+     * Sets whether the handshake starts on the path that worked for the last successful handshake of this process
+     * through the same proxy to the same host, and keeps how its own went once it succeeds. It is off by default.
+     *
+     * <p>When the proxy accepted credentials last time, credentials of the same authentication scheme are sent with the
+     * first CONNECT request, as with {@link #setPreemptiveAuthentication(boolean)}, even without a configured
+     * authentication type. Only the scheme is kept, never the credentials: this layer computes its own with its
+     * authenticator, or with the processor of its {@link ProxyChallengeProcessorRegistry} for schemes such as Bearer,
+     * and sends none if it cannot compute them without a challenge. When the proxy closed the connection along with its
+     * challenge last time, its challenges are answered on a new connection even if it does not say it closes the
+     * connection. What was kept is dropped once a handshake started from it fails.</p>
+     *
+     * @param tunnelStateCaching true to start the handshake from the state of the last successful one.
+     * @throws IllegalStateException if the handshake has started.
+     * @see #getTunnelCacheHitCount()
+     */
+    public void setTunnelStateCaching(boolean tunnelStateCaching) {
+        if (proxyState != null && proxyState != ProxyState.PN_PROXY_NOT_STARTED) {
+            throw new IllegalStateException("Tunnel state caching cannot be changed once the handshake has started.");
+        }
+
+        this.tunnelStateCaching = tunnelStateCaching;
+    }
+
+    /**
+     * Gets whether the handshake starts from the state of the last successful one through the same proxy to the same
+     * host.
+     *
+     * @return true if tunnel state caching is on.
+     */
+    public boolean isTunnelStateCaching() {
+        return tunnelStateCaching;
+    }
+
+    /**
+     * Gets the number of handshakes of this process that started from the state of a previous one, since it started.
+     *
+     * @return The number of hits of the tunnel state cache.
+     * @see #setTunnelStateCaching(boolean)
+     */
+    public static long getTunnelCacheHitCount() {
+        return ProxyTunnelCache.SHARED.getHitCount();
+    }
+
+    /**
+     * Gets the number of handshakes of this process with tunnel state caching on that found no state to start from,
+     * since it started.
+     *
+     * @return The number of misses of the tunnel state cache.
+     */
+    public static long getTunnelCacheMissCount() {
+        return ProxyTunnelCache.SHARED.getMissCount();
+    }
+
+    /**
+     * Gets the number of states dropped from the tunnel state cache because a handshake started from them failed.
+     *
+     * @return The number of evictions of the tunnel state cache.
+     */
+    public static long getTunnelCacheEvictionCount() {
+        return ProxyTunnelCache.SHARED.getEvictionCount();
+    }
+
     /**
      * Gets headers for the proxy request.
      *
@@ -202,14 +471,226 @@ public class ProxyImpl implements Proxy, TransportLayer {
      */
     protected void writeProxyRequest() {
         outputBuffer.clear();
-        final String request = proxyHandler.createProxyRequest(host, headers);
+        final ByteBuffer request = proxyHandler.createProxyRequestBuffer(host, headers);
+
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("Writing proxy request:{} {}{}{}", this.hashCode(), "State: " + proxyState, System.lineSeparator(),
+                StandardCharsets.ISO_8859_1.decode(request.duplicate()));
+        }
+
+        outputBuffer.put(request);
+    }
+
+    /**
+     * Adds credentials to the first CONNECT request, if the proxy accepted credentials from the last handshake kept in
+     * {@link ProxyTunnelCache}, or if preemptive authentication is on and credentials can be computed without a
+     * challenge from the proxy. The credentials are computed like the answers to challenges, on the challenge executor
+     * if there is one, so the request waits until they are ready.
+     *
+     * @return true once the request can be written, false while the credentials are computed.
+     */
+    private boolean addPreemptiveAuthorization() {
+        CompletableFuture<Map<String, String>> answer = preemptiveAnswer;
+        if (answer == null) {
+            preemptiveAuthenticationSent = false;
+            cachedTunnelState = tunnelStateCaching ? ProxyTunnelCache.SHARED.get(getProxyKey(), host) : null;
+
+            final AsyncProxyChallengeProcessor processor = getPreemptiveProcessor();
+            if (processor == null) {
+                return true;
+            }
+
+            final CompletableFuture<Map<String, String>> computed = new CompletableFuture<>();
+            processor.getHeaderAsync().whenComplete((header, error) -> {
+                if (error != null) {
+                    computed.completeExceptionally(error);
+                } else {
+                    computed.complete(header);
+                }
+            });
+
+            answer = computed;
+            preemptiveAnswer = computed;
+            challengeProcessor = processor;
+            if (!computed.isDone()) {
+                LOGGER.info("Waiting for the preemptive credentials.");
+                computed.whenComplete((header, error) -> notifyChallengeAnswered());
+                return false;
+            }
+        } else if (!answer.isDone()) {
+            return false;
+        }
+
+        preemptiveAnswer = null;
+        final Map<String, String> authorization;
+        try {
+            authorization = answer.join();
+        } catch (CompletionException | CancellationException e) {
+            final Throwable cause = e.getCause() != null ? e.getCause() : e;
+            LOGGER.warn("Could not compute the preemptive credentials. Waiting for the challenge of the proxy.", cause);
+            challengeProcessor = null;
+            return true;
+        }
+
+        if (authorization == null || !authorization.containsKey(PROXY_AUTHORIZATION)) {
+            challengeProcessor = null;
+            return true;
+        }
+
+        final Map<String, String> requestHeaders = headers != null ? new HashMap<>(headers) : new HashMap<>();
+        requestHeaders.putAll(authorization);
+        headers = requestHeaders;
+        preemptiveAuthenticationSent = true;
+        LOGGER.info("Sending {} credentials preemptively.", getAuthorizationScheme(authorization.get(PROXY_AUTHORIZATION)));
+        return true;
+    }
+
+    /**
+     * Gets the processor computing credentials of this layer for the scheme the proxy accepted in the handshake kept
+     * in {@link ProxyTunnelCache}, unless another authentication type is configured, or else for the configured
+     * authentication type if preemptive authentication is on.
+     *
+     * @return The processor, or null if no credentials can be computed without a challenge.
+     */
+    private AsyncProxyChallengeProcessor getPreemptiveProcessor() {
+        final ProxyTunnelCache.TunnelState state = cachedTunnelState;
+        final String cachedScheme = state != null ? state.getScheme() : null;
+        AsyncProxyChallengeProcessor processor = null;
+        if (cachedScheme != null && (proxyConfiguration == null
+            || cachedScheme.equalsIgnoreCase(getScheme(proxyConfiguration.authentication())))) {
+            processor = getPreemptiveProcessor(cachedScheme);
+        }
+
+        if (processor == null && preemptiveAuthentication && proxyConfiguration != null) {
+            processor = getPreemptiveProcessor(getScheme(proxyConfiguration.authentication()));
+        }
+
+        return processor;
+    }
+
+    /**
+     * Gets the processor registered for {@code scheme}, answering a challenge of that scheme without parameters, or
+     * else one computing BASIC credentials, or DIGEST credentials answering the last challenge of the proxy.
+     *
+     * @return The processor, or null if no credentials of {@code scheme} can be computed without a challenge.
+     */
+    private AsyncProxyChallengeProcessor getPreemptiveProcessor(String scheme) {
+        final ProxyChallengeProcessorRegistry registry = challengeProcessors;
+        final ProxyChallengeProcessorRegistry.Factory factory = registry != null ? registry.getFactory(scheme) : null;
+        if (factory != null) {
+            final List<ProxyChallenge> challenge = ProxyChallenge.parse(scheme);
+            return challenge.isEmpty() ? null : factory.create(host, challenge.get(0));
+        }
+
+        final ProxyAuthenticator authenticator = createAuthenticator();
+        final ProxyChallengeProcessor processor;
+        if (Constants.BASIC.equalsIgnoreCase(scheme)) {
+            processor = new BasicProxyChallengeProcessorImpl(host, authenticator);
+        } else if (Constants.DIGEST.equalsIgnoreCase(scheme)) {
+            final DigestSession session = DigestSessionCache.SHARED.get(getProxyKey());
+            processor = session != null ? new DigestProxyChallengeProcessorImpl(host, session, authenticator) : null;
+        } else {
+            processor = null;
+        }
+
+        return processor != null ? toAsync(processor) : null;
+    }
+
+    /**
+     * Keeps how this handshake went in {@link ProxyTunnelCache}, once the proxy has connected. Only the scheme of the
+     * credentials that were accepted is kept.
+     */
+    private void keepTunnelState() {
+        if (!tunnelStateCaching) {
+            return;
+        }
+
+        final Map<String, String> sent = headers;
+        final String authorization = sent != null ? sent.get(PROXY_AUTHORIZATION) : null;
+        final String scheme = authorization != null ? getAuthorizationScheme(authorization) : null;
+        final boolean closesAfterChallenge = challenged
+            ? closedAfterChallenge
+            : cachedTunnelState != null && cachedTunnelState.closesAfterChallenge();
+
+        ProxyTunnelCache.SHARED.put(getProxyKey(), host, scheme, closesAfterChallenge);
+    }
+
+    /**
+     * Drops the state this handshake started from out of {@link ProxyTunnelCache}, once it failed.
+     */
+    private void evictTunnelState() {
+        final ProxyTunnelCache.TunnelState state = cachedTunnelState;
+        if (state != null) {
+            ProxyTunnelCache.SHARED.remove(getProxyKey(), host, state);
+        }
+    }
+
+    /**
+     * Gets the key of the proxy in {@link DigestSessionCache} and {@link ProxyTunnelCache}: its address when it is
+     * configured, otherwise the host being connected to, since the system picks the proxy by host.
+     */
+    private String getProxyKey() {
+        return proxyConfiguration != null && proxyConfiguration.isProxyAddressConfigured()
+            ? String.valueOf(proxyConfiguration.proxyAddress().address())
+            : host;
+    }
+
+    private static boolean isSupportedDigestChallenge(ProxyChallenge challenge) {
+        return challenge.isScheme(Constants.DIGEST) && DigestEngine.Algorithm.fromName(challenge.getParameter("algorithm")) != null;
+    }
+
+    private static boolean isStaleDigestChallenge(ProxyChallenge challenge) {
+        return challenge.isScheme(Constants.DIGEST) && "true".equalsIgnoreCase(challenge.getParameter("stale"));
+    }
+
+    /**
+     * Drops the credentials of the last CONNECT request from {@link ProxyCredentialCache}, once the proxy rejected
+     * them, so that the next connection asks the system-wide authenticator again.
+     */
+    private void invalidateCredentials() {
+        final Map<String, String> sent = headers;
+        final String authorization = sent != null ? sent.get(PROXY_AUTHORIZATION) : null;
+        if (authorization == null) {
+            return;
+        }
 
-        LOGGER.info("Writing proxy request:{} {}{}{}", this.hashCode(), "State: " + proxyState, System.lineSeparator(), request);
+        createAuthenticator().invalidate(getAuthorizationScheme(authorization), host);
+    }
+
+    private static String getAuthorizationScheme(String authorization) {
+        final int end = authorization.indexOf(' ');
+        return end > 0 ? authorization.substring(0, end) : authorization;
+    }
+
+    private static String getScheme(ProxyAuthenticationType authentication) {
+        switch (authentication) {
+            case BASIC:
+                return Constants.BASIC;
+            case DIGEST:
+                return Constants.DIGEST;
+            case BEARER:
+                return Constants.BEARER;
+            default:
+                return null;
+        }
+    }
+
+    private void notifyChallengeAnswered() {
+        final Runnable listener = onChallengeAnswered;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    private AsyncProxyChallengeProcessor toAsync(ProxyChallengeProcessor processor) {
+        final Executor executor = challengeExecutor;
+        return executor != null
+            ? AsyncProxyChallengeProcessor.fromProcessor(processor, executor)
+            : AsyncProxyChallengeProcessor.fromProcessor(processor);
+    }
 
-        //TODO (conniey): HTTP headers are encoded using StandardCharsets.ISO_8859_1. update proxyHandler.createProxyRequest to return bytes instead
-        // of String because encoding is not UTF-16. https://stackoverflow.com/a/655948/4220757
-        // See https://datatracker.ietf.org/doc/html/rfc2616#section-3.7.1
-        outputBuffer.put(request.getBytes());
+    private ProxyAuthenticator createAuthenticator() {
+        return proxyConfiguration != null ? new ProxyAuthenticator(proxyConfiguration) : new ProxyAuthenticator();
     }
 
     /**
@@ -245,6 +726,8 @@ public class ProxyImpl implements Proxy, TransportLayer {
 
         // Represents a response from a CONNECT request.
         private final AtomicReference<ProxyResponse> proxyResponse = new AtomicReference<>();
+        // Reads the head of the next response from the proxy.
+        private final HttpResponseParser responseParser = new HttpResponseParser();
 
         /**
          * Creates a transport wrapper that wraps the WebSocket transport input and output.
@@ -314,10 +797,12 @@ public class ProxyImpl implements Proxy, TransportLayer {
 
                     final boolean isSuccess = proxyHandler.validateProxyResponse(connectResponse);
                     // When connecting to proxy, it does not challenge us for authentication. If the user has specified
-                    // a configuration, and it is not NONE, then we fail due to misconfiguration.
+                    // a configuration, and it is not NONE, then we fail due to misconfiguration, unless the credentials
+                    // were sent preemptively and accepted.
                     if (isSuccess) {
-                        if (proxyConfiguration == null || proxyConfiguration.authentication() == ProxyAuthenticationType.NONE) {
-                            proxyState = ProxyState.PN_PROXY_CONNECTED;
+                        if (proxyConfiguration == null || proxyConfiguration.authentication() == ProxyAuthenticationType.NONE
+                            || preemptiveAuthenticationSent) {
+                            onProxyConnected();
                         } else {
                             if (LOGGER.isErrorEnabled()) {
                                 LOGGER.error("ProxyConfiguration mismatch. User configured: '{}', but authentication is not required",
@@ -329,7 +814,27 @@ public class ProxyImpl implements Proxy, TransportLayer {
                     }
 
                     final Map<String, List<String>> headers = connectResponse.getHeaders();
-                    final Set<ProxyAuthenticationType> supportedTypes = getAuthenticationTypes(headers);
+                    final List<ProxyChallenge> challenges = ProxyChallenge.parse(headers.get(PROXY_AUTHENTICATE));
+
+                    if (preemptiveAuthenticationSent) {
+                        // The proxy rejected the credentials. The session they answered is dropped, and a DIGEST
+                        // challenge in the response starts a new one. Unless it only found the nonce stale, the
+                        // credentials themselves are looked up again.
+                        LOGGER.info("Proxy rejected the preemptive credentials. Answering its challenge.");
+                        DigestSessionCache.SHARED.remove(getProxyKey());
+                        if (challenges.stream().noneMatch(ProxyImpl::isStaleDigestChallenge)) {
+                            invalidateCredentials();
+                        }
+                        if (challengeProcessor != null) {
+                            challengeProcessor.onRejected();
+                        }
+                        evictTunnelState();
+                    } else if (cachedTunnelState != null && cachedTunnelState.getScheme() == null) {
+                        // The proxy asks for credentials it did not ask for last time.
+                        evictTunnelState();
+                    }
+
+                    final Set<ProxyAuthenticationType> supportedTypes = getAuthenticationTypes(challenges);
 
                     // The proxy did not successfully connect, user has specified that they want a particular
                     // authentication method, but it is not in list of supported authentication methods.
@@ -344,23 +849,16 @@ public class ProxyImpl implements Proxy, TransportLayer {
                         break;
                     }
 
-                    final List<String> challenges = headers.getOrDefault(PROXY_AUTHENTICATE, new ArrayList<>());
-                    final ProxyChallengeProcessor processor = proxyConfiguration != null
+                    final AsyncProxyChallengeProcessor processor = proxyConfiguration != null
                             ? getChallengeProcessor(host, challenges, proxyConfiguration.authentication())
                             : getChallengeProcessor(host, challenges, supportedTypes);
 
                     if (processor != null) {
-                        proxyState = ProxyState.PN_PROXY_CHALLENGE;
-                        ProxyImpl.this.headers = processor.getHeader();
-                        if (connectResponse.hasConnectionCloseHeader()) {
-                            ProxyImpl.this.respondToChallengeOnNewConnection = true;
-                            LOGGER.info("Proxy server closed the connection, attempting challenge response on new connection.");
-                            closeTailProxyError("Proxy server closed the connection.");
-                            break;
-                        }
+                        respondToChallenge(connectResponse, processor);
                     } else {
                         LOGGER.warn("Could not get ProxyChallengeProcessor for challenges.");
-                        closeTailProxyError(PROXY_CONNECT_FAILED + String.join(";", challenges));
+                        closeTailProxyError(PROXY_CONNECT_FAILED
+                            + String.join(";", headers.getOrDefault(PROXY_AUTHENTICATE, Collections.emptyList())));
                     }
 
                     break;
@@ -378,8 +876,24 @@ public class ProxyImpl implements Proxy, TransportLayer {
                     final boolean result = proxyHandler.validateProxyResponse(challengeResponse);
 
                     if (result) {
-                        proxyState = ProxyState.PN_PROXY_CONNECTED;
+                        onProxyConnected();
+                        break;
+                    }
+
+                    // The proxy rejects a request whose nonce expired with a new nonce and stale=true. The
+                    // credentials were right, so the new nonce is answered, on this connection if it stays open.
+                    final DigestSession staleSession = staleNonceAnswered ? null : getStaleDigestSession(challengeResponse);
+                    if (staleSession != null) {
+                        LOGGER.info("Proxy nonce is stale. Answering the new nonce.");
+                        staleNonceAnswered = true;
+                        respondToChallenge(challengeResponse,
+                            toAsync(new DigestProxyChallengeProcessorImpl(host, staleSession, createAuthenticator())));
                     } else {
+                        DigestSessionCache.SHARED.remove(getProxyKey());
+                        invalidateCredentials();
+                        if (challengeProcessor != null) {
+                            challengeProcessor.onRejected();
+                        }
                         closeTailProxyError(PROXY_CONNECT_FAILED + challengeResponse);
                     }
                     break;
@@ -388,6 +902,128 @@ public class ProxyImpl implements Proxy, TransportLayer {
             }
         }
 
+        /**
+         * Hands the bytes the proxy sent right behind its response to the next layer, then completes the handshake.
+         * Those bytes belong to the next layer, such as the reply to a WebSocket upgrade request.
+         */
+        private void onProxyConnected() throws TransportException {
+            // The rest of the input buffer was compacted to its start after the response was read.
+            inputBuffer.flip();
+
+            while (inputBuffer.hasRemaining()) {
+                final int capacity = underlyingInput.capacity();
+                if (capacity <= 0) {
+                    LOGGER.error("Next layer cannot take the {} bytes received after the proxy response.", inputBuffer.remaining());
+                    inputBuffer.clear();
+                    closeTailProxyError(PROXY_CONNECT_FAILED + "Could not pass on the bytes received after the response.");
+                    return;
+                }
+
+                final ByteBuffer bytes = inputBuffer.duplicate();
+                bytes.limit(bytes.position() + Math.min(capacity, bytes.remaining()));
+                underlyingInput.tail().put(bytes);
+                inputBuffer.position(bytes.position());
+                underlyingInput.process();
+            }
+
+            inputBuffer.clear();
+            keepTunnelState();
+            onConnected();
+        }
+
+        /**
+         * Answers a challenge of the proxy with the headers of {@code processor}. The answer is sent on this
+         * connection, or on a new one if the proxy closes this one along with its challenge. Until the headers are
+         * computed, nothing is sent.
+         */
+        private void respondToChallenge(ProxyResponse response, AsyncProxyChallengeProcessor processor) {
+            proxyState = ProxyState.PN_PROXY_CHALLENGE;
+            challengeProcessor = processor;
+
+            final CompletableFuture<Map<String, String>> answer = new CompletableFuture<>();
+            processor.getHeaderAsync().whenComplete((header, error) -> {
+                if (error != null) {
+                    answer.completeExceptionally(error);
+                } else {
+                    answer.complete(header);
+                }
+            });
+
+            if (answer.isDone()) {
+                challengeAnswer = answer;
+                takeChallengeAnswer();
+            } else {
+                LOGGER.info("Waiting for the answer to the proxy challenge.");
+                challengeAnswer = answer;
+                answer.whenComplete((header, error) -> notifyChallengeAnswered());
+            }
+
+            if (proxyState == ProxyState.PN_PROXY_FAILED) {
+                return;
+            }
+
+            // A proxy may close the connection after its challenge without saying so. If it did last time, the
+            // challenge is answered on a new connection rather than on one that is about to close.
+            challenged = true;
+            closedAfterChallenge = response.hasConnectionCloseHeader()
+                || (cachedTunnelState != null && cachedTunnelState.closesAfterChallenge());
+            if (closedAfterChallenge) {
+                ProxyImpl.this.respondToChallengeOnNewConnection = true;
+                LOGGER.info("Proxy server closed the connection, attempting challenge response on new connection.");
+                closeTailProxyError("Proxy server closed the connection.");
+            }
+        }
+
+        /**
+         * Takes the headers answering the last challenge, once they are computed. If they could not be computed, the
+         * handshake fails.
+         *
+         * @return true if the headers are ready, false while they are computed or if computing them failed.
+         */
+        private boolean takeChallengeAnswer() {
+            final CompletableFuture<Map<String, String>> answer = challengeAnswer;
+            if (answer == null) {
+                return true;
+            }
+            if (!answer.isDone()) {
+                return false;
+            }
+
+            challengeAnswer = null;
+            try {
+                ProxyImpl.this.headers = answer.join();
+                return true;
+            } catch (CompletionException | CancellationException e) {
+                final Throwable cause = e.getCause() != null ? e.getCause() : e;
+                LOGGER.error("Could not compute the answer to the proxy challenge.", cause);
+                proxyState = ProxyState.PN_PROXY_FAILED;
+                closeTailProxyError(PROXY_CONNECT_FAILED + cause);
+                return false;
+            }
+        }
+
+        /**
+         * Gets the session of a DIGEST challenge with {@code stale=true} in {@code response}, if DIGEST authentication
+         * can be used with this proxy.
+         *
+         * @return The session for the new nonce, or null if the response does not have a stale DIGEST challenge.
+         */
+        private DigestSession getStaleDigestSession(ProxyResponse response) {
+            if (proxyConfiguration != null && proxyConfiguration.authentication() != DIGEST) {
+                return null;
+            }
+
+            for (ProxyChallenge challenge : ProxyChallenge.parse(response.getHeaders().get(PROXY_AUTHENTICATE))) {
+                if (isSupportedDigestChallenge(challenge)) {
+                    return isStaleDigestChallenge(challenge)
+                        ? DigestSessionCache.SHARED.update(getProxyKey(), challenge)
+                        : null;
+                }
+            }
+
+            return null;
+        }
+
         @Override
         public void close_tail() {
             tailClosed = true;
@@ -406,6 +1042,14 @@ public class ProxyImpl implements Proxy, TransportLayer {
             switch (proxyState) {
                 case PN_PROXY_NOT_STARTED:
                     if (outputBuffer.position() == 0) {
+                        if (!addPreemptiveAuthorization()) {
+                            if (headClosed) {
+                                proxyState = ProxyState.PN_PROXY_FAILED;
+                                return Transport.END_OF_STREAM;
+                            }
+                            return 0;
+                        }
+
                         proxyState = ProxyState.PN_PROXY_CONNECTING;
                         writeProxyRequest();
 
@@ -423,6 +1067,9 @@ public class ProxyImpl implements Proxy, TransportLayer {
                     if (respondToChallengeOnNewConnection) {
                         return Transport.END_OF_STREAM;
                     }
+                    if (!takeChallengeAnswer()) {
+                        return proxyState == ProxyState.PN_PROXY_FAILED ? Transport.END_OF_STREAM : 0;
+                    }
                     if (outputBuffer.position() == 0) {
                         proxyState = ProxyState.PN_PROXY_CHALLENGE_RESPONDED;
                         writeProxyRequest();
@@ -512,11 +1159,23 @@ public class ProxyImpl implements Proxy, TransportLayer {
         }
 
         /*
-         * Gets the ProxyChallengeProcessor based on authentication types supported. Prefers DIGEST authentication if
-         * supported over BASIC. Returns null if it cannot match any supported types.
+         * Gets the ProxyChallengeProcessor based on authentication types supported. Prefers the first challenge with a
+         * registered processor, then DIGEST authentication if supported over BASIC. Returns null if it cannot match any
+         * supported types.
          */
-        private ProxyChallengeProcessor getChallengeProcessor(String host, List<String> challenges,
-                                                              Set<ProxyAuthenticationType> authentication) {
+        private AsyncProxyChallengeProcessor getChallengeProcessor(String host, List<ProxyChallenge> challenges,
+                                                                   Set<ProxyAuthenticationType> authentication) {
+            final ProxyChallengeProcessorRegistry registry = challengeProcessors;
+            if (registry != null) {
+                for (ProxyChallenge challenge : challenges) {
+                    final ProxyChallengeProcessorRegistry.Factory factory = registry.getFactory(challenge.getScheme());
+                    final AsyncProxyChallengeProcessor processor = factory != null ? factory.create(host, challenge) : null;
+                    if (processor != null) {
+                        return processor;
+                    }
+                }
+            }
+
             final ProxyAuthenticationType authType;
             if (authentication.contains(DIGEST)) {
                 authType = DIGEST;
@@ -529,19 +1188,53 @@ public class ProxyImpl implements Proxy, TransportLayer {
             return getChallengeProcessor(host, challenges, authType);
         }
 
-        private ProxyChallengeProcessor getChallengeProcessor(String host, List<String> challenges,
-                                                              ProxyAuthenticationType authentication) {
-            final ProxyAuthenticator authenticator = proxyConfiguration != null
-                    ? new ProxyAuthenticator(proxyConfiguration)
-                    : new ProxyAuthenticator();
+        private AsyncProxyChallengeProcessor getChallengeProcessor(String host, List<ProxyChallenge> challenges,
+                                                                   ProxyAuthenticationType authentication) {
+            final AsyncProxyChallengeProcessor registered = getRegisteredProcessor(host, challenges, authentication);
+            if (registered != null) {
+                return registered;
+            }
+
+            final ProxyChallengeProcessor processor = getBuiltInProcessor(host, challenges, authentication);
+            return processor != null ? toAsync(processor) : null;
+        }
+
+        /**
+         * Gets the registered processor for the challenge of {@code authentication}, if there is one.
+         */
+        private AsyncProxyChallengeProcessor getRegisteredProcessor(String host, List<ProxyChallenge> challenges,
+                                                                    ProxyAuthenticationType authentication) {
+            final ProxyChallengeProcessorRegistry registry = challengeProcessors;
+            final String scheme = getScheme(authentication);
+            final ProxyChallengeProcessorRegistry.Factory factory = registry != null ? registry.getFactory(scheme) : null;
+            if (factory == null) {
+                return null;
+            }
+
+            for (ProxyChallenge challenge : challenges) {
+                if (challenge.isScheme(scheme)) {
+                    return factory.create(host, challenge);
+                }
+            }
+
+            return null;
+        }
+
+        private ProxyChallengeProcessor getBuiltInProcessor(String host, List<ProxyChallenge> challenges,
+                                                            ProxyAuthenticationType authentication) {
+            final ProxyAuthenticator authenticator = createAuthenticator();
 
             switch (authentication) {
                 case DIGEST:
-                    final Optional<String> matching = challenges.stream()
-                            .filter(challenge -> challenge.toLowerCase(Locale.ROOT).startsWith(Constants.DIGEST_LOWERCASE))
+                    // A proxy may offer a DIGEST challenge per algorithm, most preferred first.
+                    final Optional<ProxyChallenge> matching = challenges.stream()
+                            .filter(ProxyImpl::isSupportedDigestChallenge)
                             .findFirst();
 
-                    return matching.map(c -> new DigestProxyChallengeProcessorImpl(host, c, authenticator))
+                    // Connections through this proxy share the session of its nonce, and later ones answer it
+                    // preemptively.
+                    return matching.map(c -> DigestSessionCache.SHARED.update(getProxyKey(), c))
+                            .map(session -> new DigestProxyChallengeProcessorImpl(host, session, authenticator))
                             .orElse(null);
                 case BASIC:
                     return new BasicProxyChallengeProcessorImpl(host, authenticator);
@@ -552,30 +1245,28 @@ public class ProxyImpl implements Proxy, TransportLayer {
         }
 
         /**
-         * Gets the supported authentication types based on the {@code headers}.
+         * Gets the supported authentication types based on the {@code challenges}.
          *
-         * @param headers HTTP proxy response headers from service call.
-         * @return The supported proxy authentication methods. Or, an empty set if the value of {@code error} is {@code
-         *         null}, an empty string. Or, if it does not contain{@link Constants#PROXY_AUTHENTICATE} with
-         *         {@link Constants#BASIC_LOWERCASE} or {@link Constants#DIGEST_LOWERCASE}.
+         * @param challenges The challenges of the {@link Constants#PROXY_AUTHENTICATE} headers of the response.
+         * @return The supported proxy authentication methods. Or, an empty set if none of the challenges is for
+         *         {@link Constants#BASIC}, {@link Constants#DIGEST} or {@link Constants#BEARER}.
          */
-        private Set<ProxyAuthenticationType> getAuthenticationTypes(Map<String, List<String>> headers) {
-            if (!headers.containsKey(PROXY_AUTHENTICATE)) {
+        private Set<ProxyAuthenticationType> getAuthenticationTypes(List<ProxyChallenge> challenges) {
+            if (challenges.isEmpty()) {
                 return Collections.emptySet();
             }
 
             final Set<ProxyAuthenticationType> supportedTypes = new HashSet<>();
-            final List<String> authenticationTypes = headers.get(PROXY_AUTHENTICATE);
-
-            for (String type : authenticationTypes) {
-                final String lowercase = type.toLowerCase(Locale.ROOT);
 
-                if (lowercase.startsWith(Constants.BASIC_LOWERCASE)) {
+            for (ProxyChallenge challenge : challenges) {
+                if (challenge.isScheme(Constants.BASIC)) {
                     supportedTypes.add(BASIC);
-                } else if (lowercase.startsWith(Constants.DIGEST_LOWERCASE)) {
+                } else if (challenge.isScheme(Constants.DIGEST)) {
                     supportedTypes.add(DIGEST);
-                } else {
-                    LOGGER.warn("Did not understand this authentication type: {}", type);
+                } else if (challenge.isScheme(Constants.BEARER)) {
+                    supportedTypes.add(BEARER);
+                } else if (challengeProcessors == null || challengeProcessors.getFactory(challenge.getScheme()) == null) {
+                    LOGGER.warn("Did not understand this authentication type: {}", challenge.getScheme());
                 }
             }
 
@@ -583,6 +1274,9 @@ public class ProxyImpl implements Proxy, TransportLayer {
         }
 
         private void closeTailProxyError(String errorMessage) {
+            if (!respondToChallengeOnNewConnection) {
+                evictTunnelState();
+            }
             tailClosed = true;
             underlyingTransport.closed(new TransportException(errorMessage));
         }
@@ -603,7 +1297,18 @@ public class ProxyImpl implements Proxy, TransportLayer {
 
             ProxyResponse current = proxyResponse.get();
             if (current == null) {
-                proxyResponse.set(ProxyResponseImpl.create(buffer));
+                // The response head may arrive over several reads. The parser keeps what it has read so far.
+                try {
+                    if (responseParser.parse(buffer)) {
+                        proxyResponse.set(ProxyResponseImpl.create(responseParser, buffer));
+                        responseParser.reset();
+                    }
+                } catch (IllegalArgumentException e) {
+                    LOGGER.error("Could not read the response from the proxy.", e);
+                    buffer.clear();
+                    closeTailProxyError(PROXY_CONNECT_FAILED + e.getMessage());
+                    return null;
+                }
             } else {
                 current.addContent(buffer);
             }
@@ -617,9 +1322,13 @@ public class ProxyImpl implements Proxy, TransportLayer {
     private static final class State {
         final Map<String, String> headers;
         final ProxyState proxyState;
+        final CompletableFuture<Map<String, String>> challengeAnswer;
+        final ProxyTunnelCache.TunnelState tunnelState;
 
         static State from(ProxyImpl fromProxy) {
-            return new State(new HashMap<>(fromProxy.headers), fromProxy.proxyState);
+            final Map<String, String> headers = fromProxy.headers;
+            return new State(headers != null ? new HashMap<>(headers) : null, fromProxy.proxyState, fromProxy.challengeAnswer,
+                fromProxy.cachedTunnelState);
         }
 
         /**
@@ -627,10 +1336,15 @@ public class ProxyImpl implements Proxy, TransportLayer {
          *
          * @param headers
          * @param proxyState
+         * @param challengeAnswer The headers answering the challenge, while they are computed, or null.
+         * @param tunnelState The state kept in {@link ProxyTunnelCache} the handshake started from, or null.
          */
-        private State(Map<String, String> headers, ProxyState proxyState) {
+        private State(Map<String, String> headers, ProxyState proxyState, CompletableFuture<Map<String, String>> challengeAnswer,
+                      ProxyTunnelCache.TunnelState tunnelState) {
             this.headers = headers;
             this.proxyState = proxyState;
+            this.challengeAnswer = challengeAnswer;
+            this.tunnelState = tunnelState;
         }
     }
 }
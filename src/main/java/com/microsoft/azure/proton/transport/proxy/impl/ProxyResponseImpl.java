@@ -3,20 +3,19 @@
 
 package com.microsoft.azure.proton.transport.proxy.impl;
 
+import com.microsoft.azure.proton.transport.http.impl.HttpResponseParser;
 import com.microsoft.azure.proton.transport.proxy.HttpStatusLine;
 import com.microsoft.azure.proton.transport.proxy.ProxyResponse;
-import com.microsoft.azure.proton.transport.ws.WebSocket.WebSocketFrameReadState;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.TreeMap;
 
 import static com.microsoft.azure.proton.transport.proxy.impl.Constants.CONTENT_LENGTH;
 
@@ -39,11 +38,13 @@ public final class ProxyResponseImpl implements ProxyResponse {
     }
 
     /**
-     * Create a proxy response from a given {@code buffer}. Assumes that the {@code buffer} has been flipped.
+     * Create a proxy response from a given {@code buffer}. Assumes that the {@code buffer} has been flipped, and that
+     * it holds the whole response head.
      *
      * @param buffer Buffer which could parse to a proxy response.
      * @return A new instance of {@link ProxyResponseImpl} representing the given buffer.
-     * @throws IllegalArgumentException if {@code buffer} have no content to read.
+     * @throws IllegalArgumentException if {@code buffer} have no content to read, does not hold the whole response
+     *         head, or the response head is malformed.
      */
     public static ProxyResponse create(ByteBuffer buffer) {
         // Because we've flipped the buffer, position = 0, and the limit = size of the content.
@@ -54,81 +55,54 @@ public final class ProxyResponseImpl implements ProxyResponse {
                 + "Limit: %s. Position: %s. Cap: %s", buffer.limit(), buffer.position(), buffer.capacity()));
         }
 
-        final byte[] responseBytes = new byte[size];
-        buffer.get(responseBytes);
-
-        final String response = new String(responseBytes, StandardCharsets.UTF_8);
-        final String[] lines = response.split(StringUtils.NEW_LINE);
-        final Map<String, List<String>> headers = new HashMap<>();
-
-        WebSocketFrameReadState frameReadState = WebSocketFrameReadState.INIT_READ;
-        HttpStatusLine statusLine = null;
-        ByteBuffer contents = ByteBuffer.allocate(0);
-
-        //Assume the full header message is in the first frame
-        for (String line : lines) {
-            switch (frameReadState) {
-                case INIT_READ:
-                    statusLine = HttpStatusLine.create(line);
-                    frameReadState = WebSocketFrameReadState.CHUNK_READ;
-                    break;
-                case CHUNK_READ:
-                    if (StringUtils.isNullOrEmpty(line)) {
-                        // Now that we're done reading all the headers, figure out the size of the HTTP body and
-                        // allocate an array of that size.
-                        int length = 0;
-                        if (headers.containsKey(CONTENT_LENGTH)) {
-                            final List<String> contentLength = headers.get(CONTENT_LENGTH);
-                            length = Integer.parseInt(contentLength.get(0));
-                        }
-
-                        boolean hasBody = length > 0;
-                        if (!hasBody) {
-                            LOGGER.info("There is no content in the response. Response: {}", response);
-                            return new ProxyResponseImpl(statusLine, headers, contents);
-                        }
-
-                        contents = ByteBuffer.allocate(length);
-                        frameReadState = WebSocketFrameReadState.HEADER_READ;
-                    } else {
-                        final Map.Entry<String, String> header = parseHeader(line);
-                        final List<String> value = headers.getOrDefault(header.getKey(), new ArrayList<>());
-
-                        value.add(header.getValue());
-                        headers.put(header.getKey(), value);
-                    }
-                    break;
-                case HEADER_READ:
-                    if (contents.position() == 0) {
-                        frameReadState = WebSocketFrameReadState.CONTINUED_FRAME_READ;
-                    }
-
-                    contents.put(line.getBytes(StandardCharsets.UTF_8));
-                    contents.mark();
-                    break;
-                case CONTINUED_FRAME_READ:
-                    contents.put(line.getBytes(StandardCharsets.UTF_8));
-                    contents.mark();
-                    break;
-                default:
-                    LOGGER.error("Unknown state: {}. Response: {}", frameReadState, response);
-                    frameReadState = WebSocketFrameReadState.READ_ERROR;
-                    break;
-            }
+        final HttpResponseParser parser = new HttpResponseParser();
+        if (!parser.parse(buffer)) {
+            throw new IllegalArgumentException("Buffer does not contain the whole HTTP response head. Size: " + size);
         }
 
-
-        return new ProxyResponseImpl(statusLine, headers, contents);
+        return create(parser, buffer);
     }
 
-    private static Map.Entry<String, String> parseHeader(String contents) {
-        final String[] split = contents.split(":", 2);
+    /**
+     * Create a proxy response from a response head read by {@code parser}, and takes as much of the body as
+     * {@code buffer} holds. Bytes after the body are left in {@code buffer}.
+     *
+     * @param parser Parser that has read a whole response head.
+     * @param buffer Buffer positioned right after the response head.
+     * @return A new instance of {@link ProxyResponseImpl} representing the response.
+     * @throws IllegalArgumentException if the response head is not complete, or its Content-Length is invalid.
+     */
+    public static ProxyResponseImpl create(HttpResponseParser parser, ByteBuffer buffer) {
+        if (!parser.isComplete()) {
+            throw new IllegalArgumentException("The HTTP response head is not complete.");
+        }
+
+        // The headers are copied, so the parser can be reset and reused for another response.
+        final Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        parser.getHeaders().forEach((name, values) -> headers.put(name, new ArrayList<>(values)));
+
+        final String contentLength = parser.getHeader(CONTENT_LENGTH);
+        int length = 0;
+        if (contentLength != null) {
+            try {
+                length = Integer.parseInt(contentLength);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Content-Length is not valid: " + contentLength, e);
+            }
+        }
+
+        if (length <= 0) {
+            LOGGER.info("There is no content in the response. Status line: {}", parser.getStatusLine() != null
+                ? parser.getStatusLine().getStatusCode() + " " + parser.getStatusLine().getReason() : null);
+            return new ProxyResponseImpl(parser.getStatusLine(), headers, ByteBuffer.allocate(0));
+        }
 
-        if (split.length != 2) {
-            throw new IllegalStateException("Line is not a valid header. Contents: " + contents);
+        final ProxyResponseImpl response = new ProxyResponseImpl(parser.getStatusLine(), headers, ByteBuffer.allocate(length));
+        if (buffer.hasRemaining()) {
+            response.addContent(buffer);
         }
 
-        return new AbstractMap.SimpleEntry<>(split[0].trim(), split[1].trim());
+        return response;
     }
 
     /**
@@ -172,7 +146,8 @@ public final class ProxyResponseImpl implements ProxyResponse {
     }
 
     /**
-     * Adds additional content to the HTTP response's body. Assumes that the {@code content} has been flipped.
+     * Adds additional content to the HTTP response's body. Assumes that the {@code content} has been flipped. Only the
+     * bytes still missing from the body are taken, and any bytes after them are left in {@code content}.
      *
      * @param content Content to add to the body of the HTTP response.
      * @throws NullPointerException if {@code content} is {@code null}.
@@ -187,10 +162,11 @@ public final class ProxyResponseImpl implements ProxyResponse {
             throw new IllegalArgumentException("There was no content to add to current HTTP response.");
         }
 
-        final byte[] responseBytes = new byte[content.remaining()];
-        content.get(responseBytes);
-
-        this.contents.put(responseBytes);
+        // Only the missing part of the body is taken. Whatever follows it is not part of this response.
+        final ByteBuffer missing = content.duplicate();
+        missing.limit(missing.position() + Math.min(size, contents.remaining()));
+        contents.put(missing);
+        content.position(missing.position());
     }
 
     /**
@@ -200,17 +176,6 @@ public final class ProxyResponseImpl implements ProxyResponse {
      */
     @Override
     public boolean hasConnectionCloseHeader() {
-        final String headerKey = headers.containsKey("Connection") ? "Connection" : "connection";
-        if (headers.containsKey(headerKey)) {
-            final List<String> connectionHeaders = headers.get(headerKey);
-            if (connectionHeaders != null && !connectionHeaders.isEmpty()) {
-                for (String header : connectionHeaders) {
-                    if (header.equalsIgnoreCase("close")) {
-                        return true;
-                    }
-                }
-            }
-        }
-        return false;
+        return HttpResponseParser.hasToken(headers.get("Connection"), "close");
     }
 }
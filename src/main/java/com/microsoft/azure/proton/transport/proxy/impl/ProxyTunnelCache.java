@@ -0,0 +1,207 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.proxy.impl;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps how the last successful CONNECT handshake through a proxy to a host went, so that the next connection to that
+ * host starts on the path that worked instead of learning it from the challenges of the proxy again. Shared by all the
+ * {@link ProxyImpl} of the process.
+ *
+ * <p>A {@link TunnelState} is kept per proxy and target host. It is dropped once it is older than the time to live of
+ * the cache, or once a handshake started from it fails. Once {@link #MAX_ENTRIES} states are kept, the states of other
+ * proxies and hosts are not kept. The cache counts its hits and misses, and the states dropped after a failure.</p>
+ */
+final class ProxyTunnelCache {
+    /**
+     * The largest number of states kept.
+     */
+    static final int MAX_ENTRIES = 256;
+
+    /**
+     * How long a state is used for by default.
+     */
+    static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofMinutes(10);
+
+    /**
+     * The cache used by {@link ProxyImpl}.
+     */
+    static final ProxyTunnelCache SHARED = new ProxyTunnelCache(DEFAULT_TIME_TO_LIVE, System::nanoTime);
+
+    private final long timeToLiveNanos;
+    private final LongSupplier clock;
+    // The states by proxy and target host.
+    private final Map<List<String>, TunnelState> states = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a cache.
+     *
+     * @param timeToLive How long a state is used for.
+     * @param clock The current time in nanoseconds, such as {@link System#nanoTime()}.
+     */
+    ProxyTunnelCache(Duration timeToLive, LongSupplier clock) {
+        this.timeToLiveNanos = Objects.requireNonNull(timeToLive, "'timeToLive' cannot be null.").toNanos();
+        this.clock = Objects.requireNonNull(clock, "'clock' cannot be null.");
+    }
+
+    /**
+     * Gets the state of the last successful handshake through a proxy to a host.
+     *
+     * @param proxy The proxy.
+     * @param host The host connected to through the proxy.
+     * @return The state, or null if there is none or it expired.
+     */
+    TunnelState get(String proxy, String host) {
+        final List<String> key = Arrays.asList(proxy, host);
+        final TunnelState state = states.get(key);
+        if (state != null && !state.isExpired(clock.getAsLong(), timeToLiveNanos)) {
+            hits.increment();
+            return state;
+        }
+
+        if (state != null) {
+            states.remove(key, state);
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Keeps the state of a successful handshake through a proxy to a host, replacing the one kept before.
+     *
+     * @param proxy The proxy.
+     * @param host The host connected to through the proxy.
+     * @param scheme The authentication scheme of the credentials the proxy accepted, or null if it asked for none.
+     * @param closesAfterChallenge Whether the proxy closes the connection along with its challenges.
+     */
+    void put(String proxy, String host, String scheme, boolean closesAfterChallenge) {
+        Objects.requireNonNull(proxy, "'proxy' cannot be null.");
+        Objects.requireNonNull(host, "'host' cannot be null.");
+
+        final long now = clock.getAsLong();
+        final List<String> key = Arrays.asList(proxy, host);
+        if (states.size() >= MAX_ENTRIES && !states.containsKey(key)) {
+            removeExpired(now);
+            if (states.size() >= MAX_ENTRIES) {
+                return;
+            }
+        }
+
+        states.put(key, new TunnelState(scheme, closesAfterChallenge, now));
+    }
+
+    /**
+     * Drops the state of a proxy and host, once a handshake started from it failed. The state is only dropped if it is
+     * still the one kept, so that a newer state kept by another connection stays.
+     *
+     * @param proxy The proxy.
+     * @param host The host connected to through the proxy.
+     * @param state The state the failed handshake started from.
+     */
+    void remove(String proxy, String host, TunnelState state) {
+        if (states.remove(Arrays.asList(proxy, host), state)) {
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Gets the number of lookups that found a state.
+     *
+     * @return The number of hits.
+     */
+    long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of lookups that found no state, or an expired one.
+     *
+     * @return The number of misses.
+     */
+    long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the number of states dropped because a handshake started from them failed.
+     *
+     * @return The number of evictions.
+     */
+    long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Gets the number of states kept, expired ones included until they are next looked up.
+     *
+     * @return The number of states.
+     */
+    int size() {
+        return states.size();
+    }
+
+    /**
+     * Drops all the states and resets the counts.
+     */
+    void clear() {
+        states.clear();
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+
+    private void removeExpired(long now) {
+        states.values().removeIf(state -> state.isExpired(now, timeToLiveNanos));
+    }
+
+    /**
+     * How a handshake through a proxy to a host succeeded. The credentials themselves are not kept: each connection
+     * computes its own, with its own authenticator and challenge processors.
+     */
+    static final class TunnelState {
+        private final String scheme;
+        private final boolean closesAfterChallenge;
+        private final long createdAtNanos;
+
+        TunnelState(String scheme, boolean closesAfterChallenge, long createdAtNanos) {
+            this.scheme = scheme;
+            this.closesAfterChallenge = closesAfterChallenge;
+            this.createdAtNanos = createdAtNanos;
+        }
+
+        /**
+         * Gets the authentication scheme of the credentials the proxy accepted.
+         *
+         * @return The scheme, or null if the proxy asked for no credentials.
+         */
+        String getScheme() {
+            return scheme;
+        }
+
+        /**
+         * Gets whether the proxy closed the connection along with its challenge, so that the challenge has to be
+         * answered on a new connection.
+         *
+         * @return true if the proxy closes the connection after a challenge.
+         */
+        boolean closesAfterChallenge() {
+            return closesAfterChallenge;
+        }
+
+        boolean isExpired(long now, long timeToLiveNanos) {
+            return now - createdAtNanos >= timeToLiveNanos;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.ws;
+
+import java.util.zip.Deflater;
+
+/**
+ * Options of the permessage-deflate extension, which compresses WebSocket messages. The extension is offered in the
+ * upgrade request and only used if the server accepts it.
+ *
+ * <p>Compressing messages costs CPU on both ends and saves bandwidth, which pays off for payloads that compress well,
+ * such as JSON or text telemetry. Messages smaller than {@link #getMinCompressSize()}, and messages that do not get
+ * smaller when compressed, are sent uncompressed.</p>
+ *
+ * <p>This class is not thread-safe. Configure it before passing it to the WebSocket layer.</p>
+ *
+ * @see <a href="https://datatracker.ietf.org/doc/html/rfc7692">RFC7692: Compression Extensions for WebSocket</a>
+ */
+public final class PerMessageDeflateOptions {
+    /**
+     * The largest LZ77 window size, in bits, that the extension allows.
+     */
+    public static final int MAX_WINDOW_BITS = 15;
+    /**
+     * The smallest LZ77 window size, in bits, that the extension allows.
+     */
+    public static final int MIN_WINDOW_BITS = 8;
+
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private int minCompressSize = 128;
+    private boolean clientNoContextTakeover;
+    private boolean serverNoContextTakeover;
+    private int serverMaxWindowBits = MAX_WINDOW_BITS;
+
+    /**
+     * Gets the compression level of outgoing messages.
+     *
+     * @return The compression level, from 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Sets the compression level of outgoing messages. Higher levels compress better and cost more CPU. The default
+     * is {@link Deflater#DEFAULT_COMPRESSION}.
+     *
+     * @param compressionLevel The compression level, from 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}.
+     * @return The updated options.
+     * @throws IllegalArgumentException if {@code compressionLevel} is out of range.
+     */
+    public PerMessageDeflateOptions setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("'compressionLevel' must be between -1 and 9.");
+        }
+
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    /**
+     * Gets the size below which outgoing messages are not compressed.
+     *
+     * @return The smallest message size, in bytes, that is compressed.
+     */
+    public int getMinCompressSize() {
+        return minCompressSize;
+    }
+
+    /**
+     * Sets the size below which outgoing messages are not compressed, because the few bytes saved are not worth the
+     * CPU. The default is 128 bytes.
+     *
+     * @param minCompressSize The smallest message size, in bytes, that is compressed.
+     * @return The updated options.
+     * @throws IllegalArgumentException if {@code minCompressSize} is negative.
+     */
+    public PerMessageDeflateOptions setMinCompressSize(int minCompressSize) {
+        if (minCompressSize < 0) {
+            throw new IllegalArgumentException("'minCompressSize' cannot be negative.");
+        }
+
+        this.minCompressSize = minCompressSize;
+        return this;
+    }
+
+    /**
+     * Gets whether each outgoing message is compressed on its own.
+     *
+     * @return true if the client does not keep its compression context between messages.
+     */
+    public boolean isClientNoContextTakeover() {
+        return clientNoContextTakeover;
+    }
+
+    /**
+     * Sets whether each outgoing message is compressed on its own, instead of referring to earlier messages. This
+     * compresses worse, but lets the server release its decompression context between messages. The client also
+     * stops keeping its context if the server asks it to. The default is false.
+     *
+     * @param clientNoContextTakeover true to compress each outgoing message on its own.
+     * @return The updated options.
+     */
+    public PerMessageDeflateOptions setClientNoContextTakeover(boolean clientNoContextTakeover) {
+        this.clientNoContextTakeover = clientNoContextTakeover;
+        return this;
+    }
+
+    /**
+     * Gets whether the server is asked to compress each message on its own.
+     *
+     * @return true if the server is asked not to keep its compression context between messages.
+     */
+    public boolean isServerNoContextTakeover() {
+        return serverNoContextTakeover;
+    }
+
+    /**
+     * Sets whether the server is asked to compress each message on its own, which lets the client release its
+     * decompression context between messages, at the cost of worse compression. The default is false.
+     *
+     * @param serverNoContextTakeover true to ask the server to compress each message on its own.
+     * @return The updated options.
+     */
+    public PerMessageDeflateOptions setServerNoContextTakeover(boolean serverNoContextTakeover) {
+        this.serverNoContextTakeover = serverNoContextTakeover;
+        return this;
+    }
+
+    /**
+     * Gets the largest LZ77 window size the server is asked to compress with.
+     *
+     * @return The window size, in bits.
+     */
+    public int getServerMaxWindowBits() {
+        return serverMaxWindowBits;
+    }
+
+    /**
+     * Sets the largest LZ77 window size the server is asked to compress with. Smaller windows use less memory on the
+     * server and compress worse. The default is {@link #MAX_WINDOW_BITS}, which is not sent in the offer.
+     *
+     * <p>Outgoing messages are always compressed with a window of {@link #MAX_WINDOW_BITS}, so the client does not
+     * offer to use a smaller window.</p>
+     *
+     * @param serverMaxWindowBits The window size, in bits, from {@link #MIN_WINDOW_BITS} to {@link #MAX_WINDOW_BITS}.
+     * @return The updated options.
+     * @throws IllegalArgumentException if {@code serverMaxWindowBits} is out of range.
+     */
+    public PerMessageDeflateOptions setServerMaxWindowBits(int serverMaxWindowBits) {
+        if (serverMaxWindowBits < MIN_WINDOW_BITS || serverMaxWindowBits > MAX_WINDOW_BITS) {
+            throw new IllegalArgumentException(String.format(
+                "'serverMaxWindowBits' must be between %d and %d.", MIN_WINDOW_BITS, MAX_WINDOW_BITS));
+        }
+
+        this.serverMaxWindowBits = serverMaxWindowBits;
+        return this;
+    }
+}
@@ -4,6 +4,7 @@
 package com.microsoft.azure.proton.transport.ws;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 /**
@@ -60,7 +61,35 @@ public interface WebSocketHandler {
             Map<String, String> additionalHeaders);
 
     /**
-     * Validates the response.
+     * Creates an HTTP request to upgrade to use web sockets, encoded as the bytes to send. HTTP headers are encoded as
+     * ISO-8859-1.
+     *
+     * <p>The default implementation encodes the result of
+     * {@link #createUpgradeRequest(String, String, String, int, String, Map)}.</p>
+     *
+     * @param hostName Name of the host.
+     * @param webSocketPath Path for the websocket.
+     * @param webSocketQuery Query for the web socket.
+     * @param webSocketPort Port for web socket.
+     * @param webSocketProtocol Protocol to use for web sockets.
+     * @param additionalHeaders Any additional headers to add to the HTTP upgrade request.
+     * @return The HTTP request, from the position to the limit of the buffer.
+     */
+    default ByteBuffer createUpgradeRequestBuffer(
+            String hostName,
+            String webSocketPath,
+            String webSocketQuery,
+            int webSocketPort,
+            String webSocketProtocol,
+            Map<String, String> additionalHeaders) {
+        final String request = createUpgradeRequest(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol,
+            additionalHeaders);
+        return ByteBuffer.wrap(request.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Validates the response. A valid response is consumed from {@code buffer}. Any bytes left after it are read as
+     * WebSocket frames.
      *
      * @param buffer ByteBuffer to read from.
      * @return True if the response is valid, otherwise, false.
@@ -68,9 +97,22 @@ public interface WebSocketHandler {
     Boolean validateUpgradeReply(ByteBuffer buffer);
 
     /**
-     * Wraps the source buffer with additional contents from the web socket.
+     * Gets the Sec-WebSocket-Extensions header of the last upgrade reply that {@link #validateUpgradeReply(ByteBuffer)}
+     * accepted, so that the extensions the server agreed to are read from the same parse that validated the reply.
+     *
+     * <p>The default implementation returns null, as if the server accepted no extensions.</p>
+     *
+     * @return The values of the header, separated by commas, or null if the reply had none.
+     */
+    default String getUpgradeReplyExtensions() {
+        return null;
+    }
+
+    /**
+     * Wraps the source buffer with additional contents from the web socket. If the frame for the whole source buffer
+     * does not fit in the output buffer, only as much as fits is framed and the rest is left in the source buffer.
      *
-     * @param srcBuffer Source buffer to wrap input.
+     * @param srcBuffer Source buffer to wrap input. Its position is advanced past the bytes that were framed.
      * @param dstBuffer Output buffer that bytes are written to.
      */
     void wrapBuffer(ByteBuffer srcBuffer, ByteBuffer dstBuffer);
@@ -83,15 +125,90 @@ public interface WebSocketHandler {
      */
     WebsocketTuple unwrapBuffer(ByteBuffer srcBuffer);
 
+    /**
+     * Decodes the frame header at the position of the source buffer into {@code result}, without allocating. If the
+     * buffer does not hold the whole header, the type is set to
+     * {@link WebSocketMessageType#WEB_SOCKET_MESSAGE_TYPE_HEADER_CHUNK} and the buffer position is left where the
+     * header starts. Otherwise the position is advanced past the header.
+     *
+     * <p>The default implementation calls {@link #unwrapBuffer(ByteBuffer)} for the length and type, which handlers
+     * written before this method do not decode the other fields of. The opcode, FIN, RSV and MASK bits are read from
+     * the first two bytes of the header instead.</p>
+     *
+     * @param srcBuffer The source buffer.
+     * @param result The header to decode into.
+     * @return The decoded header, normally {@code result}.
+     */
+    default WebsocketTuple unwrapBuffer(ByteBuffer srcBuffer, WebsocketTuple result) {
+        final int start = srcBuffer.position();
+        final byte firstByte = srcBuffer.remaining() > 0 ? srcBuffer.get(start) : 0;
+        final byte secondByte = srcBuffer.remaining() > 1 ? srcBuffer.get(start + 1) : 0;
+
+        final WebsocketTuple tuple = unwrapBuffer(srcBuffer);
+        result.setLength(tuple.getLength());
+        result.setType(tuple.getType());
+        result.setOpcode((byte) (firstByte & WebSocketHeader.OPCODE_MASK));
+        result.setFinal((firstByte & WebSocketHeader.FINBIT_MASK) != 0);
+        result.setMasked((secondByte & WebSocketHeader.MASKBIT_MASK) != 0);
+        result.setReservedBits((byte) (firstByte & WebSocketHeader.RSV_MASK));
+        return result;
+    }
+
     /**
      * Creates the pong for the "keep-alive", heart beat, network status probing when connecting in a web socket.
      *
+     * <p>The pong is a complete frame that carries the remaining bytes of {@code srcBuffer}, the payload of the ping,
+     * cut to the 125 bytes a control frame can carry. It is written into {@code dstBuffer} from its start.</p>
+     *
      * @param srcBuffer The source buffer to read from.
      * @param dstBuffer The destination buffer with the pong.
      * @see <a href="https://html.spec.whatwg.org/multipage/web-sockets.html#ping-and-pong-frames">Ping and pong</a>
      */
     void createPong(ByteBuffer srcBuffer, ByteBuffer dstBuffer);
 
+    /**
+     * Creates a ping that carries the remaining bytes of {@code srcBuffer}, cut to the 125 bytes a control frame can
+     * carry. It is written into {@code dstBuffer} from its start.
+     *
+     * <p>The default implementation wraps the payload with {@link #wrapBuffer(ByteBuffer, ByteBuffer)} and turns the
+     * frame into a ping.</p>
+     *
+     * @param srcBuffer The payload of the ping.
+     * @param dstBuffer The destination buffer with the ping.
+     * @see <a href="https://datatracker.ietf.org/doc/html/rfc6455#section-5.5.2">RFC6455: Ping</a>
+     */
+    default void createPing(ByteBuffer srcBuffer, ByteBuffer dstBuffer) {
+        final ByteBuffer payload = srcBuffer.duplicate();
+        payload.limit(payload.position() + Math.min(payload.remaining(), WebSocketHeader.PAYLOAD_SHORT_MAX));
+        wrapBuffer(payload, dstBuffer);
+        srcBuffer.position(payload.position());
+        if (dstBuffer.position() > 0) {
+            dstBuffer.put(0, (byte) (WebSocketHeader.FINBIT_MASK | WebSocketHeader.OPCODE_PING));
+        }
+    }
+
+    /**
+     * Creates the close frame that answers the close frame of the peer. It carries the remaining bytes of
+     * {@code srcBuffer}, the payload of the peer's close frame, cut to the 125 bytes a control frame can carry. It is
+     * written into {@code dstBuffer} from its start.
+     *
+     * <p>The default implementation wraps the payload with {@link #wrapBuffer(ByteBuffer, ByteBuffer)} and turns the
+     * frame into a close frame.</p>
+     *
+     * @param srcBuffer The payload of the peer's close frame.
+     * @param dstBuffer The destination buffer with the close frame.
+     * @see <a href="https://datatracker.ietf.org/doc/html/rfc6455#section-5.5.1">RFC6455: Close</a>
+     */
+    default void createClose(ByteBuffer srcBuffer, ByteBuffer dstBuffer) {
+        final ByteBuffer payload = srcBuffer.duplicate();
+        payload.limit(payload.position() + Math.min(payload.remaining(), WebSocketHeader.PAYLOAD_SHORT_MAX));
+        wrapBuffer(payload, dstBuffer);
+        srcBuffer.position(payload.position());
+        if (dstBuffer.position() > 0) {
+            dstBuffer.put(0, (byte) (WebSocketHeader.FINBIT_MASK | WebSocketHeader.OPCODE_CLOSE));
+        }
+    }
+
     /**
      * Gets the size of the header.
      *
@@ -107,6 +224,18 @@ public interface WebSocketHandler {
 
         private long length;
         private WebSocketMessageType type;
+        private byte opcode;
+        private boolean isFinal;
+        private boolean isMasked;
+        private byte reservedBits;
+
+        /**
+         * Creates an instance that has not been decoded into yet, to be reused with
+         * {@link WebSocketHandler#unwrapBuffer(ByteBuffer, WebsocketTuple)}.
+         */
+        public WebsocketTuple() {
+            this(0, WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_HEADER_CHUNK);
+        }
 
         /**
          * Creates an instance with the given length and type.
@@ -154,5 +283,78 @@ public interface WebSocketHandler {
         public WebSocketMessageType getType() {
             return this.type;
         }
+
+        /**
+         * Sets the opcode of the frame.
+         *
+         * @param opcode The opcode of the frame.
+         */
+        public void setOpcode(byte opcode) {
+            this.opcode = opcode;
+        }
+
+        /**
+         * Gets the opcode of the frame.
+         *
+         * @return The opcode of the frame.
+         */
+        public byte getOpcode() {
+            return this.opcode;
+        }
+
+        /**
+         * Sets whether the frame is the final fragment of its message.
+         *
+         * @param isFinal Whether the FIN bit is set.
+         */
+        public void setFinal(boolean isFinal) {
+            this.isFinal = isFinal;
+        }
+
+        /**
+         * Gets whether the frame is the final fragment of its message.
+         *
+         * @return true if the FIN bit is set.
+         */
+        public boolean isFinal() {
+            return this.isFinal;
+        }
+
+        /**
+         * Sets whether the payload of the frame is masked.
+         *
+         * @param isMasked Whether the MASK bit is set.
+         */
+        public void setMasked(boolean isMasked) {
+            this.isMasked = isMasked;
+        }
+
+        /**
+         * Gets whether the payload of the frame is masked.
+         *
+         * @return true if the MASK bit is set.
+         */
+        public boolean isMasked() {
+            return this.isMasked;
+        }
+
+        /**
+         * Sets the reserved bits of the frame.
+         *
+         * @param reservedBits The RSV1, RSV2 and RSV3 bits, in their position in the first header byte.
+         */
+        public void setReservedBits(byte reservedBits) {
+            this.reservedBits = reservedBits;
+        }
+
+        /**
+         * Gets the reserved bits of the frame, which extensions such as permessage-deflate use.
+         *
+         * @return The RSV1, RSV2 and RSV3 bits, in their position in the first header byte.
+         * @see WebSocketHeader#RSV_MASK
+         */
+        public byte getReservedBits() {
+            return this.reservedBits;
+        }
     }
 }
@@ -61,6 +61,16 @@ public interface WebSocketHeader {
      * FIN denotes that this is the final fragment in a message.
      */
     byte FINBIT_MASK = (byte) 0x80;
+    /**
+     * The RSV1, RSV2 and RSV3 bits, which are reserved for extensions.
+     */
+    byte RSV_MASK = (byte) 0x70;
+    /**
+     * RSV1 denotes, with the permessage-deflate extension, that the message is compressed.
+     *
+     * @see <a href="https://datatracker.ietf.org/doc/html/rfc7692#section-6">RFC7692: permessage-deflate</a>
+     */
+    byte RSV1_MASK = (byte) 0x40;
     /**
      * Denotes whether the "Payload data" is masked. If set to 1, a masking key is present in 'masking-key' and this
      * will be used to unmask the "Payload data".
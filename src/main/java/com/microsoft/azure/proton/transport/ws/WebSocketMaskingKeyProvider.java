@@ -0,0 +1,21 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.ws;
+
+/**
+ * Supplies the masking keys for frames sent by the client. RFC 6455 requires a fresh key for every frame that an
+ * endpoint cannot predict, so implementations should be backed by a strong source of entropy. Keys are requested on
+ * the thread that frames the output, so implementations must be thread-safe and should not block.
+ *
+ * @see <a href="https://datatracker.ietf.org/doc/html/rfc6455#section-5.3">RFC6455: Client-to-Server Masking</a>
+ */
+@FunctionalInterface
+public interface WebSocketMaskingKeyProvider {
+    /**
+     * Gets the masking key for the next frame.
+     *
+     * @return The 4 byte masking key, most significant byte first.
+     */
+    int nextMaskingKey();
+}
@@ -0,0 +1,79 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.ws.impl;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Decides the capacity of a buffer that follows the traffic it carries. The buffer starts at {@code initialSize},
+ * doubles whenever it needs more room, up to {@code maxSize}, and falls back to {@code initialSize} once it has been
+ * empty for {@code idleNanos}.
+ */
+final class AdaptiveBufferSizing {
+    private final int initialSize;
+    private final int maxSize;
+    private final long idleNanos;
+    private final LongSupplier nanoClock;
+
+    /**
+     * Creates the sizing policy.
+     *
+     * @param initialSize Capacity buffers start at and shrink back to.
+     * @param maxSize Largest capacity buffers grow to.
+     * @param idleNanos Time a buffer must stay empty before it shrinks, in nanoseconds.
+     * @param nanoClock Source of the current time, in nanoseconds.
+     */
+    AdaptiveBufferSizing(int initialSize, int maxSize, long idleNanos, LongSupplier nanoClock) {
+        this.initialSize = initialSize;
+        this.maxSize = maxSize;
+        this.idleNanos = idleNanos;
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Gets the capacity buffers start at.
+     *
+     * @return The initial capacity.
+     */
+    int getInitialSize() {
+        return initialSize;
+    }
+
+    /**
+     * Gets the capacity a buffer should have to hold {@code required} bytes.
+     *
+     * @param capacity Current capacity of the buffer.
+     * @param required Number of bytes the buffer should hold.
+     * @return The current capacity if it holds {@code required} bytes or is already at the maximum, otherwise the
+     *     smallest doubling of it that holds them, capped at the maximum.
+     */
+    int grownCapacity(int capacity, int required) {
+        int grown = capacity;
+        while (grown < required && grown < maxSize) {
+            grown = (int) Math.min(2L * grown, maxSize);
+        }
+
+        return grown;
+    }
+
+    /**
+     * Gets the current time, to be passed back to {@link #isIdle(int, long)}.
+     *
+     * @return The current time, in nanoseconds.
+     */
+    long now() {
+        return nanoClock.getAsLong();
+    }
+
+    /**
+     * Gets whether an empty buffer should shrink back to the initial capacity.
+     *
+     * @param capacity Current capacity of the buffer.
+     * @param lastUsed Time the buffer last held bytes, from {@link #now()}.
+     * @return true if the buffer is larger than the initial capacity and has been empty for long enough.
+     */
+    boolean isIdle(int capacity, long lastUsed) {
+        return capacity > initialSize && nanoClock.getAsLong() - lastUsed >= idleNanos;
+    }
+}
@@ -0,0 +1,198 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.ws.impl;
+
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides when a keepalive ping is sent and when the peer is considered dead, and measures the round-trip time of the
+ * pings. A ping is due once the connection has carried no bytes in either direction for {@code intervalNanos}. Each
+ * ping carries an 8 byte sequence number, and only a pong that echoes the sequence number of the outstanding ping
+ * counts as its answer. The peer is dead once a ping stays unanswered for {@code timeoutNanos}.
+ */
+final class KeepAlive {
+    /**
+     * Size of the payload of a keepalive ping.
+     */
+    static final int PING_PAYLOAD_SIZE = Long.BYTES;
+
+    // Number of most recent round-trip times the percentile is computed from.
+    private static final int SAMPLE_WINDOW = 128;
+
+    private final long intervalNanos;
+    private final long timeoutNanos;
+    private final LongSupplier nanoClock;
+
+    private long lastActivity;
+    private long nextSequence;
+    private boolean pingOutstanding;
+    private long pingSequence;
+    private long pingSentAt;
+
+    // The pong being read: its payload so far, as a big endian number, and its length.
+    private long pongPayload;
+    private int pongLength;
+
+    private final long[] samples = new long[SAMPLE_WINDOW];
+
+    private long sampleCount;
+    private long totalRoundTripNanos;
+    private long minRoundTripNanos;
+
+    /**
+     * Creates the keepalive policy.
+     *
+     * @param intervalNanos Time without traffic after which a ping is sent, in nanoseconds.
+     * @param timeoutNanos Time a ping may stay unanswered before the peer is considered dead, in nanoseconds.
+     * @param nanoClock Source of the current time, in nanoseconds.
+     */
+    KeepAlive(long intervalNanos, long timeoutNanos, LongSupplier nanoClock) {
+        this.intervalNanos = intervalNanos;
+        this.timeoutNanos = timeoutNanos;
+        this.nanoClock = nanoClock;
+        this.lastActivity = nanoClock.getAsLong();
+    }
+
+    /**
+     * Gets the time a ping may stay unanswered before the peer is considered dead.
+     *
+     * @return The timeout, in nanoseconds.
+     */
+    long getTimeoutNanos() {
+        return timeoutNanos;
+    }
+
+    /**
+     * Records that bytes were sent or received.
+     */
+    void onActivity() {
+        lastActivity = nanoClock.getAsLong();
+    }
+
+    /**
+     * Gets whether the outstanding ping has stayed unanswered for longer than the timeout.
+     *
+     * @return true if the peer should be considered dead.
+     */
+    boolean isPeerDead() {
+        return pingOutstanding && nanoClock.getAsLong() - pingSentAt >= timeoutNanos;
+    }
+
+    /**
+     * Gets whether a ping should be sent, because the connection has been idle for the interval and no ping is
+     * outstanding.
+     *
+     * @return true if a ping is due.
+     */
+    boolean isPingDue() {
+        return !pingOutstanding && nanoClock.getAsLong() - lastActivity >= intervalNanos;
+    }
+
+    /**
+     * Records that a ping is sent.
+     *
+     * @return The sequence number of the ping, to be sent as its {@link #PING_PAYLOAD_SIZE} byte payload, most
+     *     significant byte first.
+     */
+    long onPingSent() {
+        pingOutstanding = true;
+        pingSequence = nextSequence++;
+        pingSentAt = nanoClock.getAsLong();
+        return pingSequence;
+    }
+
+    /**
+     * Starts reading the payload of a pong.
+     */
+    void onPongStart() {
+        pongPayload = 0;
+        pongLength = 0;
+    }
+
+    /**
+     * Reads the next byte of the payload of a pong.
+     *
+     * @param value The payload byte.
+     */
+    void onPongByte(byte value) {
+        pongPayload = (pongPayload << 8) | (value & 0xFF);
+        pongLength++;
+    }
+
+    /**
+     * Completes a pong, and records the round-trip time if it answers the outstanding ping. Unsolicited pongs and
+     * pongs for earlier pings are ignored.
+     */
+    void onPongEnd() {
+        if (!pingOutstanding || pongLength != PING_PAYLOAD_SIZE || pongPayload != pingSequence) {
+            return;
+        }
+
+        final long roundTrip = nanoClock.getAsLong() - pingSentAt;
+        pingOutstanding = false;
+
+        samples[(int) (sampleCount % SAMPLE_WINDOW)] = roundTrip;
+        minRoundTripNanos = sampleCount == 0 ? roundTrip : Math.min(minRoundTripNanos, roundTrip);
+        totalRoundTripNanos += roundTrip;
+        sampleCount++;
+    }
+
+    /**
+     * Forgets the outstanding ping and clears the statistics, for use on a new connection.
+     */
+    void reset() {
+        lastActivity = nanoClock.getAsLong();
+        pingOutstanding = false;
+        sampleCount = 0;
+        totalRoundTripNanos = 0;
+        minRoundTripNanos = 0;
+    }
+
+    /**
+     * Gets the number of pings that were answered.
+     *
+     * @return The number of round-trip times measured.
+     */
+    long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Gets the shortest round-trip time, in nanoseconds.
+     *
+     * @return The minimum round-trip time, 0 if none was measured.
+     */
+    long getMinRoundTripNanos() {
+        return minRoundTripNanos;
+    }
+
+    /**
+     * Gets the average round-trip time, in nanoseconds.
+     *
+     * @return The average round-trip time, 0 if none was measured.
+     */
+    long getAverageRoundTripNanos() {
+        return sampleCount == 0 ? 0 : totalRoundTripNanos / sampleCount;
+    }
+
+    /**
+     * Gets the 99th percentile of the most recent round-trip times, in nanoseconds.
+     *
+     * @return The 99th percentile round-trip time, 0 if none was measured.
+     */
+    long getP99RoundTripNanos() {
+        final int count = (int) Math.min(sampleCount, SAMPLE_WINDOW);
+        if (count == 0) {
+            return 0;
+        }
+
+        final long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+
+        // Nearest rank: the smallest sample that at least 99% of the samples do not exceed.
+        final int rank = (int) Math.ceil(0.99 * count);
+        return sorted[rank - 1];
+    }
+}
@@ -0,0 +1,435 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.ws.impl;
+
+import com.microsoft.azure.proton.transport.ws.PerMessageDeflateOptions;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The permessage-deflate extension of one connection: the negotiation of its parameters, and the compression and
+ * decompression of messages, with statistics on the bytes saved and the time spent.
+ *
+ * <p>Each message is compressed into raw DEFLATE blocks ended by a sync flush, without the four byte
+ * {@code 00 00 FF FF} trailer the flush ends with. Incoming messages get the trailer back before their last bytes are
+ * decompressed.</p>
+ *
+ * @see <a href="https://datatracker.ietf.org/doc/html/rfc7692">RFC7692: Compression Extensions for WebSocket</a>
+ */
+final class PerMessageDeflate {
+    /**
+     * Name of the extension.
+     */
+    static final String EXTENSION_NAME = "permessage-deflate";
+    /**
+     * Name of the header extensions are negotiated with.
+     */
+    static final String EXTENSIONS_HEADER = "Sec-WebSocket-Extensions";
+
+    private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+    private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    private static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+    private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+
+    private static final byte[] TRAILER = {0, 0, (byte) 0xFF, (byte) 0xFF};
+    private static final int INFLATE_CHUNK_SIZE = 8 * 1024;
+
+    private final int minCompressSize;
+    private final boolean resetDeflater;
+    private final boolean resetInflater;
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater(true);
+
+    private byte[] deflateInput = new byte[0];
+    private byte[] deflateOutput = new byte[0];
+    private final byte[] inflateInput = new byte[INFLATE_CHUNK_SIZE];
+    private final byte[] inflateOutput = new byte[INFLATE_CHUNK_SIZE];
+
+    // The trailer still has to be decompressed, the last decompression may have more output, and the message ended.
+    private boolean trailerPending;
+    private boolean outputPending;
+    private boolean messageEnded;
+    private boolean deflaterEnded;
+    private boolean inflaterEnded;
+
+    private long deflateInputBytes;
+    private long deflateOutputBytes;
+    private long deflateNanos;
+    private long inflateInputBytes;
+    private long inflateOutputBytes;
+    private long inflateNanos;
+
+    private PerMessageDeflate(int compressionLevel, int minCompressSize, boolean resetDeflater, boolean resetInflater) {
+        this.deflater = new Deflater(compressionLevel, true);
+        this.minCompressSize = minCompressSize;
+        this.resetDeflater = resetDeflater;
+        this.resetInflater = resetInflater;
+    }
+
+    /**
+     * Creates the value of the {@link #EXTENSIONS_HEADER} header that offers the extension.
+     *
+     * @param options The options of the extension.
+     * @return The extension offer.
+     */
+    static String createOffer(PerMessageDeflateOptions options) {
+        final StringBuilder offer = new StringBuilder(EXTENSION_NAME);
+
+        if (options.isClientNoContextTakeover()) {
+            offer.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+        }
+        if (options.isServerNoContextTakeover()) {
+            offer.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+        }
+        if (options.getServerMaxWindowBits() < PerMessageDeflateOptions.MAX_WINDOW_BITS) {
+            offer.append("; ").append(SERVER_MAX_WINDOW_BITS).append('=').append(options.getServerMaxWindowBits());
+        }
+
+        return offer.toString();
+    }
+
+    /**
+     * Reads the extensions the server accepted.
+     *
+     * @param options The options the extension was offered with.
+     * @param extensions The value of the {@link #EXTENSIONS_HEADER} header of the upgrade reply, or null.
+     * @return The extension, or null if the server did not accept it.
+     * @throws IllegalArgumentException if the server accepted an extension or a parameter that was not offered.
+     */
+    static PerMessageDeflate negotiate(PerMessageDeflateOptions options, String extensions) {
+        if (extensions == null || extensions.trim().isEmpty()) {
+            return null;
+        }
+
+        boolean accepted = false;
+        boolean resetDeflater = options.isClientNoContextTakeover();
+        boolean resetInflater = false;
+
+        for (String extension : extensions.split(",")) {
+            final String[] parameters = extension.split(";");
+            final String name = parameters[0].trim();
+
+            if (!EXTENSION_NAME.equalsIgnoreCase(name)) {
+                throw new IllegalArgumentException("Server accepted an extension that was not offered: " + name);
+            }
+            if (accepted) {
+                throw new IllegalArgumentException("Server accepted " + EXTENSION_NAME + " more than once.");
+            }
+            accepted = true;
+
+            final Set<String> seen = new HashSet<>();
+            for (int i = 1; i < parameters.length; i++) {
+                final String parameter = parameters[i].trim();
+                final int equals = parameter.indexOf('=');
+                final String key = (equals < 0 ? parameter : parameter.substring(0, equals)).trim().toLowerCase(Locale.ROOT);
+                final String value = equals < 0 ? null : unquote(parameter.substring(equals + 1).trim());
+
+                if (!seen.add(key)) {
+                    throw new IllegalArgumentException("Server repeated the " + EXTENSION_NAME + " parameter " + key);
+                }
+
+                switch (key) {
+                    case CLIENT_NO_CONTEXT_TAKEOVER:
+                        requireNoValue(key, value);
+                        resetDeflater = true;
+                        break;
+                    case SERVER_NO_CONTEXT_TAKEOVER:
+                        requireNoValue(key, value);
+                        resetInflater = true;
+                        break;
+                    case SERVER_MAX_WINDOW_BITS:
+                        final int windowBits = parseWindowBits(value);
+                        if (windowBits > options.getServerMaxWindowBits()) {
+                            throw new IllegalArgumentException("Server window of " + windowBits + " bits is larger than offered.");
+                        }
+                        break;
+                    case CLIENT_MAX_WINDOW_BITS:
+                        // Outgoing messages are compressed with the largest window, so a smaller one is never offered.
+                        throw new IllegalArgumentException("Server limited the client window, which was not offered.");
+                    default:
+                        throw new IllegalArgumentException("Server sent an unknown " + EXTENSION_NAME + " parameter: " + key);
+                }
+            }
+        }
+
+        return new PerMessageDeflate(options.getCompressionLevel(), options.getMinCompressSize(), resetDeflater, resetInflater);
+    }
+
+    private static String unquote(String value) {
+        return value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"'
+            ? value.substring(1, value.length() - 1)
+            : value;
+    }
+
+    private static void requireNoValue(String key, String value) {
+        if (value != null) {
+            throw new IllegalArgumentException("The " + EXTENSION_NAME + " parameter " + key + " cannot have a value.");
+        }
+    }
+
+    private static int parseWindowBits(String value) {
+        final int windowBits;
+        try {
+            windowBits = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid window size: " + value, e);
+        }
+
+        if (windowBits < PerMessageDeflateOptions.MIN_WINDOW_BITS || windowBits > PerMessageDeflateOptions.MAX_WINDOW_BITS) {
+            throw new IllegalArgumentException("Invalid window size: " + value);
+        }
+
+        return windowBits;
+    }
+
+    /**
+     * Compresses the next {@code length} bytes of {@code src} into one message. Messages that are smaller than the
+     * minimum size, or that would not get smaller, are not compressed.
+     *
+     * @param src The bytes to compress.
+     * @param length Number of bytes to compress.
+     * @return The compressed message, or null if the message should be sent uncompressed, as all messages are once
+     *     the compressor was ended. The buffer is only valid until the next call. On success, the position of
+     *     {@code src} is moved past the compressed bytes.
+     */
+    ByteBuffer deflate(ByteBuffer src, int length) {
+        if (deflaterEnded || length < minCompressSize || length < 1) {
+            return null;
+        }
+
+        final long start = System.nanoTime();
+
+        final byte[] input;
+        final int offset;
+        if (src.hasArray()) {
+            input = src.array();
+            offset = src.arrayOffset() + src.position();
+        } else {
+            if (deflateInput.length < length) {
+                deflateInput = new byte[length];
+            }
+            src.duplicate().get(deflateInput, 0, length);
+            input = deflateInput;
+            offset = 0;
+        }
+
+        // The message is only worth sending compressed if it is smaller than the input, trailer excluded. Room for
+        // one more byte tells when it is not.
+        final int maxOutput = length - 1 + TRAILER.length;
+        if (deflateOutput.length < maxOutput + 1) {
+            deflateOutput = new byte[maxOutput + 1];
+        }
+
+        deflater.setInput(input, offset, length);
+        final int size = deflater.deflate(deflateOutput, 0, maxOutput + 1, Deflater.SYNC_FLUSH);
+
+        final ByteBuffer message;
+        if (size > maxOutput || !deflater.needsInput()) {
+            // The peer never sees these bytes, so later messages must not refer to them.
+            deflater.reset();
+            message = null;
+        } else {
+            if (resetDeflater) {
+                deflater.reset();
+            }
+
+            src.position(src.position() + length);
+            message = ByteBuffer.wrap(deflateOutput, 0, size - TRAILER.length);
+            deflateInputBytes += length;
+            deflateOutputBytes += message.remaining();
+        }
+
+        deflateNanos += System.nanoTime() - start;
+        return message;
+    }
+
+    /**
+     * Hands compressed bytes of the current message to the decompressor. Only call this once
+     * {@link #hasInflaterOutput()} is false.
+     *
+     * @param src The compressed bytes.
+     * @return The number of bytes taken from {@code src}.
+     */
+    int setInflaterInput(ByteBuffer src) {
+        final int length = Math.min(src.remaining(), inflateInput.length);
+        src.get(inflateInput, 0, length);
+        inflater.setInput(inflateInput, 0, length);
+        inflateInputBytes += length;
+        return length;
+    }
+
+    /**
+     * Marks the end of the current message, once all of its bytes were handed to the decompressor.
+     */
+    void endMessage() {
+        trailerPending = true;
+    }
+
+    /**
+     * Gets whether the decompressor has output left, which must be read with {@link #inflate(ByteBuffer)} before
+     * more compressed bytes are handed to it.
+     *
+     * @return true if there is output left.
+     */
+    boolean hasInflaterOutput() {
+        return trailerPending || outputPending || !inflater.needsInput();
+    }
+
+    /**
+     * Decompresses as many bytes as fit into {@code dst}.
+     *
+     * @param dst The buffer to decompress into.
+     * @return The number of bytes decompressed.
+     * @throws DataFormatException if the compressed bytes are invalid.
+     */
+    int inflate(ByteBuffer dst) throws DataFormatException {
+        final long start = System.nanoTime();
+        int produced = 0;
+
+        while (dst.hasRemaining()) {
+            if (inflater.needsInput() && !outputPending) {
+                if (!trailerPending) {
+                    break;
+                }
+
+                inflater.setInput(TRAILER);
+                trailerPending = false;
+                messageEnded = true;
+            }
+
+            final int space;
+            final int count;
+            if (dst.hasArray()) {
+                space = dst.remaining();
+                count = inflater.inflate(dst.array(), dst.arrayOffset() + dst.position(), space);
+                dst.position(dst.position() + count);
+            } else {
+                space = Math.min(dst.remaining(), inflateOutput.length);
+                count = inflater.inflate(inflateOutput, 0, space);
+                dst.put(inflateOutput, 0, count);
+            }
+
+            produced += count;
+            // A full output buffer may mean the decompressor has more, even without input left.
+            outputPending = count == space;
+
+            if (inflater.finished()) {
+                // The message ended with a final block, so the stream starts over.
+                inflater.reset();
+                outputPending = false;
+            } else if (count == 0 && !inflater.needsInput()) {
+                break;
+            }
+        }
+
+        if (messageEnded && !hasInflaterOutput()) {
+            messageEnded = false;
+            if (resetInflater) {
+                inflater.reset();
+            }
+        }
+
+        inflateOutputBytes += produced;
+        inflateNanos += System.nanoTime() - start;
+        return produced;
+    }
+
+    /**
+     * Releases the native memory of the compressor and decompressor. The extension cannot be used afterwards, but its
+     * counts can still be read. Calling this again has no effect.
+     */
+    void end() {
+        endDeflater();
+        endInflater();
+    }
+
+    /**
+     * Releases the native memory of the compressor, once no more messages are sent.
+     */
+    void endDeflater() {
+        if (!deflaterEnded) {
+            deflaterEnded = true;
+            deflater.end();
+        }
+    }
+
+    /**
+     * Releases the native memory of the decompressor, once no more messages are received.
+     */
+    void endInflater() {
+        if (!inflaterEnded) {
+            inflaterEnded = true;
+            inflater.end();
+        }
+    }
+
+    /**
+     * Gets whether the native memory of both the compressor and decompressor was released.
+     *
+     * @return true if the extension was ended.
+     */
+    boolean isEnded() {
+        return deflaterEnded && inflaterEnded;
+    }
+
+    /**
+     * Gets the number of bytes that were sent compressed, before compression.
+     *
+     * @return The uncompressed size of the compressed outgoing messages.
+     */
+    long getDeflateInputBytes() {
+        return deflateInputBytes;
+    }
+
+    /**
+     * Gets the compressed size of the outgoing messages that were sent compressed.
+     *
+     * @return The compressed size of the compressed outgoing messages.
+     */
+    long getDeflateOutputBytes() {
+        return deflateOutputBytes;
+    }
+
+    /**
+     * Gets the time spent compressing, in nanoseconds, including messages that were then sent uncompressed.
+     *
+     * @return The compression time.
+     */
+    long getDeflateNanos() {
+        return deflateNanos;
+    }
+
+    /**
+     * Gets the number of compressed bytes received.
+     *
+     * @return The compressed size of the incoming messages.
+     */
+    long getInflateInputBytes() {
+        return inflateInputBytes;
+    }
+
+    /**
+     * Gets the number of bytes the compressed incoming messages decompressed to.
+     *
+     * @return The decompressed size of the incoming messages.
+     */
+    long getInflateOutputBytes() {
+        return inflateOutputBytes;
+    }
+
+    /**
+     * Gets the time spent decompressing, in nanoseconds.
+     *
+     * @return The decompression time.
+     */
+    long getInflateNanos() {
+        return inflateNanos;
+    }
+}
@@ -0,0 +1,76 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.ws.impl;
+
+import com.microsoft.azure.proton.transport.ws.WebSocketMaskingKeyProvider;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Default {@link WebSocketMaskingKeyProvider}. Every thread draws its keys in blocks from its own generator, so
+ * framing on one reactor thread never waits on another. The generators are seeded, and periodically reseeded, from
+ * the shared {@link Utils#getSecureRandom()}.
+ */
+final class ThreadLocalMaskingKeyProvider implements WebSocketMaskingKeyProvider {
+    static final ThreadLocalMaskingKeyProvider INSTANCE = new ThreadLocalMaskingKeyProvider();
+
+    static final int KEYS_PER_BLOCK = 64;
+    static final int BLOCKS_PER_SEED = 1024;
+
+    private static final int SEED_LENGTH = 32;
+    private static final String PRNG_ALGORITHM = "SHA1PRNG";
+
+    private final ThreadLocal<KeyBlock> keyBlocks = ThreadLocal.withInitial(KeyBlock::new);
+
+    private ThreadLocalMaskingKeyProvider() {
+    }
+
+    @Override
+    public int nextMaskingKey() {
+        return keyBlocks.get().next();
+    }
+
+    private static final class KeyBlock {
+        private final SecureRandom random = createGenerator();
+        private final byte[] block = new byte[KEYS_PER_BLOCK * Integer.BYTES];
+        private int index = block.length;
+        private int blocksUntilReseed = 0;
+
+        int next() {
+            if (index == block.length) {
+                refill();
+            }
+
+            final int key = ((block[index] & 0xFF) << 24)
+                | ((block[index + 1] & 0xFF) << 16)
+                | ((block[index + 2] & 0xFF) << 8)
+                | (block[index + 3] & 0xFF);
+            index += Integer.BYTES;
+            return key;
+        }
+
+        private void refill() {
+            if (blocksUntilReseed == 0) {
+                // Seeding before the first draw also stops the generator from seeding itself, which can block.
+                final byte[] seed = new byte[SEED_LENGTH];
+                Utils.getSecureRandom().nextBytes(seed);
+                random.setSeed(seed);
+                blocksUntilReseed = BLOCKS_PER_SEED;
+            }
+
+            random.nextBytes(block);
+            blocksUntilReseed--;
+            index = 0;
+        }
+
+        private static SecureRandom createGenerator() {
+            try {
+                return SecureRandom.getInstance(PRNG_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                return new SecureRandom();
+            }
+        }
+    }
+}
@@ -3,6 +3,8 @@
 
 package com.microsoft.azure.proton.transport.ws.impl;
 
+import com.microsoft.azure.proton.transport.ws.WebSocketHeader;
+
 import java.security.SecureRandom;
 
 /**
@@ -20,6 +22,22 @@ final class Utils {
         return SECURE_RANDOM;
     }
 
+    /**
+     * Gets the largest payload that fits in a single masked frame of {@code frameSize} bytes, header included.
+     *
+     * @param frameSize Number of bytes available for the whole frame.
+     * @return The largest payload size, or a value less than one if not even a single payload byte fits.
+     */
+    static int getMaxPayloadSize(int frameSize) {
+        if (frameSize - WebSocketHeader.MAX_HEADER_LENGTH_MASKED > WebSocketHeader.PAYLOAD_MEDIUM_MAX) {
+            return frameSize - WebSocketHeader.MAX_HEADER_LENGTH_MASKED;
+        } else if (frameSize - WebSocketHeader.MED_HEADER_LENGTH_MASKED > WebSocketHeader.PAYLOAD_SHORT_MAX) {
+            return Math.min(frameSize - WebSocketHeader.MED_HEADER_LENGTH_MASKED, WebSocketHeader.PAYLOAD_MEDIUM_MAX);
+        } else {
+            return Math.min(frameSize - WebSocketHeader.MIN_HEADER_LENGTH_MASKED, WebSocketHeader.PAYLOAD_SHORT_MAX);
+        }
+    }
+
     /**
      * So an instance of class cannot be created.
      */
@@ -5,23 +5,53 @@ package com.microsoft.azure.proton.transport.ws.impl;
 
 import com.microsoft.azure.proton.transport.ws.WebSocketHandler;
 import com.microsoft.azure.proton.transport.ws.WebSocketHeader;
+import com.microsoft.azure.proton.transport.ws.WebSocketMaskingKeyProvider;
 
-import java.io.ByteArrayOutputStream;
-import java.nio.BufferUnderflowException;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * Implementation for {@link WebSocketHandler}.
  */
 public class WebSocketHandlerImpl implements WebSocketHandler {
+    // Whether a subclass overrides the deprecated createRandomMaskingKey(), by class.
+    private static final ClassValue<Boolean> OVERRIDES_RANDOM_MASKING_KEY = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            for (Class<?> c = type; c != WebSocketHandlerImpl.class; c = c.getSuperclass()) {
+                for (Method method : c.getDeclaredMethods()) {
+                    if (method.getName().equals("createRandomMaskingKey") && method.getParameterCount() == 0) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    };
+
+    private final WebSocketMaskingKeyProvider maskingKeyProvider;
+    private final boolean overridesRandomMaskingKey;
     private WebSocketUpgrade webSocketUpgrade = null;
+    private String upgradeReplyExtensions = null;
 
     /**
      * Creates a new instance of WebSocketHandlerImpl.
      */
     public WebSocketHandlerImpl() {
+        this(ThreadLocalMaskingKeyProvider.INSTANCE);
+    }
 
+    /**
+     * Creates a new instance of WebSocketHandlerImpl that masks outgoing frames with keys from the given provider.
+     *
+     * @param maskingKeyProvider Supplies the masking key for every outgoing frame.
+     * @throws NullPointerException if {@code maskingKeyProvider} is null.
+     */
+    public WebSocketHandlerImpl(WebSocketMaskingKeyProvider maskingKeyProvider) {
+        this.maskingKeyProvider = Objects.requireNonNull(maskingKeyProvider, "'maskingKeyProvider' cannot be null.");
+        this.overridesRandomMaskingKey = OVERRIDES_RANDOM_MASKING_KEY.get(getClass());
     }
 
     /**
@@ -36,32 +66,70 @@ public class WebSocketHandlerImpl implements WebSocketHandler {
             String webSocketProtocol,
             Map<String, String> additionalHeaders) {
         webSocketUpgrade = createWebSocketUpgrade(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders);
+        upgradeReplyExtensions = null;
         return webSocketUpgrade.createUpgradeRequest();
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The request is encoded by {@link WebSocketUpgrade#createUpgradeRequestBuffer()}, which reuses the encoding of
+     * earlier requests to the same endpoint.</p>
+     */
+    @Override
+    public ByteBuffer createUpgradeRequestBuffer(
+            String hostName,
+            String webSocketPath,
+            String webSocketQuery,
+            int webSocketPort,
+            String webSocketProtocol,
+            Map<String, String> additionalHeaders) {
+        webSocketUpgrade = createWebSocketUpgrade(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders);
+        upgradeReplyExtensions = null;
+        return webSocketUpgrade.createUpgradeRequestBuffer();
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void createPong(ByteBuffer ping, ByteBuffer pong) {
-        if ((ping == null) || (pong == null)) {
+        createControlFrame(ping, pong, WebSocketHeader.OPCODE_PONG);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void createPing(ByteBuffer srcBuffer, ByteBuffer dstBuffer) {
+        createControlFrame(srcBuffer, dstBuffer, WebSocketHeader.OPCODE_PING);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void createClose(ByteBuffer srcBuffer, ByteBuffer dstBuffer) {
+        createControlFrame(srcBuffer, dstBuffer, WebSocketHeader.OPCODE_CLOSE);
+    }
+
+    /**
+     * Writes a masked control frame carrying the remaining bytes of {@code srcBuffer}, cut to the largest control
+     * frame payload.
+     */
+    private void createControlFrame(ByteBuffer srcBuffer, ByteBuffer dstBuffer, byte opcode) {
+        if ((srcBuffer == null) || (dstBuffer == null)) {
             throw new IllegalArgumentException("input parameter cannot be null");
         }
 
-        if (ping.capacity() > pong.capacity()) {
+        // RFC: "All control frames MUST have a payload length of 125 bytes or less"
+        final int dataLength = Math.min(srcBuffer.remaining(), WebSocketHeader.PAYLOAD_SHORT_MAX);
+        if (WebSocketHeader.MIN_HEADER_LENGTH_MASKED + dataLength > dstBuffer.capacity()) {
             throw new IllegalArgumentException("insufficient output buffer size");
         }
 
-        if (ping.remaining() > 0) {
-            byte[] buffer = ping.array();
-            buffer[0] = WebSocketHeader.FINBIT_MASK | WebSocketHeader.OPCODE_PONG;
-
-            pong.clear();
-            pong.put(buffer);
-        } else {
-            pong.clear();
-            pong.limit(0);
-        }
+        dstBuffer.clear();
+        writeFrame(srcBuffer, dstBuffer, opcode, dataLength);
     }
 
     /**
@@ -71,23 +139,25 @@ public class WebSocketHandlerImpl implements WebSocketHandler {
     public Boolean validateUpgradeReply(ByteBuffer buffer) {
         Boolean retVal = false;
 
-        if (webSocketUpgrade != null) {
-            int size = buffer.remaining();
-
-            if (size > 0) {
-                byte[] data = new byte[buffer.remaining()];
-                buffer.get(data);
-
-                retVal = webSocketUpgrade.validateUpgradeReply(data);
-                if (retVal) {
-                    webSocketUpgrade = null;
-                }
+        if (webSocketUpgrade != null && buffer.hasRemaining()) {
+            retVal = webSocketUpgrade.validateUpgradeReply(buffer);
+            if (retVal) {
+                upgradeReplyExtensions = webSocketUpgrade.getExtensions();
+                webSocketUpgrade = null;
             }
         }
 
         return retVal;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getUpgradeReplyExtensions() {
+        return upgradeReplyExtensions;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -97,80 +167,75 @@ public class WebSocketHandlerImpl implements WebSocketHandler {
             throw new IllegalArgumentException("input parameter is null");
         }
 
+        dstBuffer.clear();
+
         if (srcBuffer.remaining() > 0) {
-            // We always send masked data
-            // RFC: "client MUST mask all frames that it sends to the server"
-            final byte[] maskingKey = createRandomMaskingKey();
+            // The frame is written straight into the destination. Payloads that do not fit are split across frames,
+            // so only frame what fits and leave the rest of the source for the next call.
+            final int maxPayloadSize = Utils.getMaxPayloadSize(dstBuffer.capacity());
+            if (maxPayloadSize < 1) {
+                throw new OutOfMemoryError("insufficient output buffer size");
+            }
 
             // Get data length
-            final int dataLength = srcBuffer.remaining();
-
-            // Auto growing buffer for the WS frame, initialized to minimum size
-            ByteArrayOutputStream webSocketFrame = new ByteArrayOutputStream(WebSocketHeader.MIN_HEADER_LENGTH_MASKED + dataLength);
+            final int dataLength = Math.min(srcBuffer.remaining(), maxPayloadSize);
 
-            // Create the first byte
             // We always send final WebSocket frame
             // We always send binary message (AMQP)
-            byte firstByte = (byte) (WebSocketHeader.FINBIT_MASK | WebSocketHeader.OPCODE_BINARY);
-            webSocketFrame.write(firstByte);
-
-            // Create the second byte
-            // RFC: "client MUST mask all frames that it sends to the server"
-            byte secondByte = WebSocketHeader.MASKBIT_MASK;
-
-            // RFC: The length of the "Payload data", in bytes: if 0-125, that is the payload length.
-            if (dataLength <= WebSocketHeader.PAYLOAD_SHORT_MAX) {
-                secondByte = (byte) (secondByte | dataLength);
-                webSocketFrame.write(secondByte);
-            } else if (dataLength <= WebSocketHeader.PAYLOAD_MEDIUM_MAX) {
-                // RFC: If 126, the following 2 bytes interpreted as a 16-bit unsigned integer are the payload length
-                // Create payload byte
-                secondByte = (byte) (secondByte | WebSocketHeader.PAYLOAD_EXTENDED_16);
-                webSocketFrame.write(secondByte);
-
-                // Create extended length bytes
-                webSocketFrame.write((byte) (dataLength >>> 8));
-                webSocketFrame.write((byte) (dataLength));
-            } else {
-                // RFC: If 127, the following 8 bytes interpreted as a 64-bit unsigned integer
-                // (the most significant bit MUST be 0) are the payload length.
-                // No need for "else if" because if it is longer than what 8 byte length can hold... all bets are off anyway
-                secondByte = (byte) (secondByte | WebSocketHeader.PAYLOAD_EXTENDED_64);
-                webSocketFrame.write(secondByte);
-
-                webSocketFrame.write((byte) (dataLength >>> 56));
-                webSocketFrame.write((byte) (dataLength >>> 48));
-                webSocketFrame.write((byte) (dataLength >>> 40));
-                webSocketFrame.write((byte) (dataLength >>> 32));
-                webSocketFrame.write((byte) (dataLength >>> 24));
-                webSocketFrame.write((byte) (dataLength >>> 16));
-                webSocketFrame.write((byte) (dataLength >>> 8));
-                webSocketFrame.write((byte) (dataLength));
-            }
-
-            // Write mask
-            webSocketFrame.write(maskingKey[0]);
-            webSocketFrame.write(maskingKey[1]);
-            webSocketFrame.write(maskingKey[2]);
-            webSocketFrame.write(maskingKey[3]);
-
-            // Write masked data
-            for (int i = 0; i < dataLength; i++) {
-                byte nextByte = srcBuffer.get();
-                nextByte ^= maskingKey[i % 4];
-                webSocketFrame.write(nextByte);
-            }
+            writeFrame(srcBuffer, dstBuffer, WebSocketHeader.OPCODE_BINARY, dataLength);
+        }
+    }
 
-            // Copy frame to destination buffer
-            dstBuffer.clear();
-            if (dstBuffer.capacity() >= webSocketFrame.size()) {
-                dstBuffer.put(webSocketFrame.toByteArray());
-            } else {
-                throw new OutOfMemoryError("insufficient output buffer size");
-            }
+    /**
+     * Writes a final, masked frame with the given opcode, carrying the next {@code dataLength} bytes of
+     * {@code srcBuffer}.
+     */
+    private void writeFrame(ByteBuffer srcBuffer, ByteBuffer dstBuffer, byte opcode, int dataLength) {
+        // We always send masked data
+        // RFC: "client MUST mask all frames that it sends to the server"
+        final int maskingKey = createMaskingKey();
+
+        // Create the first byte
+        dstBuffer.put((byte) (WebSocketHeader.FINBIT_MASK | opcode));
+
+        // Create the second byte
+        // RFC: "client MUST mask all frames that it sends to the server"
+        final byte secondByte = WebSocketHeader.MASKBIT_MASK;
+
+        // RFC: The length of the "Payload data", in bytes: if 0-125, that is the payload length.
+        if (dataLength <= WebSocketHeader.PAYLOAD_SHORT_MAX) {
+            dstBuffer.put((byte) (secondByte | dataLength));
+        } else if (dataLength <= WebSocketHeader.PAYLOAD_MEDIUM_MAX) {
+            // RFC: If 126, the following 2 bytes interpreted as a 16-bit unsigned integer are the payload length
+            dstBuffer.put((byte) (secondByte | WebSocketHeader.PAYLOAD_EXTENDED_16));
+            dstBuffer.put((byte) (dataLength >>> 8));
+            dstBuffer.put((byte) dataLength);
         } else {
-            dstBuffer.clear();
+            // RFC: If 127, the following 8 bytes interpreted as a 64-bit unsigned integer
+            // (the most significant bit MUST be 0) are the payload length.
+            dstBuffer.put((byte) (secondByte | WebSocketHeader.PAYLOAD_EXTENDED_64));
+            putBigEndianInt(dstBuffer, 0);
+            putBigEndianInt(dstBuffer, dataLength);
         }
+
+        // Write mask
+        putBigEndianInt(dstBuffer, maskingKey);
+
+        // Write masked data
+        final int srcLimit = srcBuffer.limit();
+        srcBuffer.limit(srcBuffer.position() + dataLength);
+        WebSocketMasking.mask(srcBuffer, dstBuffer, maskingKey, 0);
+        srcBuffer.limit(srcLimit);
+    }
+
+    /**
+     * Writes {@code value} most significant byte first, whatever the byte order of {@code buffer}.
+     */
+    private static void putBigEndianInt(ByteBuffer buffer, int value) {
+        buffer.put((byte) (value >>> 24));
+        buffer.put((byte) (value >>> 16));
+        buffer.put((byte) (value >>> 8));
+        buffer.put((byte) value);
     }
 
     /**
@@ -178,68 +243,79 @@ public class WebSocketHandlerImpl implements WebSocketHandler {
      */
     @Override
     public WebsocketTuple unwrapBuffer(ByteBuffer srcBuffer) {
-        // Default to HEADER_CHUNK, if there are enough bytes in buffer, it will be updated.
-        WebsocketTuple result = new WebsocketTuple(0, WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_HEADER_CHUNK);
+        return unwrapBuffer(srcBuffer, new WebsocketTuple());
+    }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public WebsocketTuple unwrapBuffer(ByteBuffer srcBuffer, WebsocketTuple result) {
         if (srcBuffer == null) {
             throw new IllegalArgumentException("input parameter is null");
         }
 
-        WebSocketMessageType retVal = WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_UNKNOWN;
-
-        if (srcBuffer.remaining() > WebSocketHeader.MIN_HEADER_LENGTH) {
-            // Read the first byte
-            byte firstByte = srcBuffer.get();
-
-            // Get and check the opcode
-            byte opcode = (byte) (firstByte & WebSocketHeader.OPCODE_MASK);
-
-            // Read the second byte
-            byte secondByte = srcBuffer.get();
-            // The MASK bit is never used.
-            // byte maskBit = (byte) (secondByte & WebSocketHeader.MASKBIT_MASK);
-            byte payloadLength = (byte) (secondByte & WebSocketHeader.PAYLOAD_MASK);
-
-            long finalPayloadLength = -1;
-
-            // We want to be explicit about the WebSocket payload length because the RFC specifies these ranges.
-            if (payloadLength <= WebSocketHeader.PAYLOAD_SHORT_MAX) {
-                finalPayloadLength = payloadLength;
-            } else if (payloadLength == WebSocketHeader.PAYLOAD_EXTENDED_16) {
-                // Check if we have enough bytes to read
-                try {
-                    //Apply mask to turn into unsigned value
-                    finalPayloadLength = srcBuffer.getShort() & 0xFFFF;
-                } catch (BufferUnderflowException e) {
-                    retVal = WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_HEADER_CHUNK;
-                }
-            } else if (payloadLength == WebSocketHeader.PAYLOAD_EXTENDED_64) {
-                //Check if we have enough bytes to read
-                try {
-                    finalPayloadLength = srcBuffer.getLong();
-                } catch (BufferUnderflowException e) {
-                    retVal = WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_HEADER_CHUNK;
-                }
+        // Default to HEADER_CHUNK, if there are enough bytes in buffer, it will be updated.
+        result.setLength(0);
+        result.setType(WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_HEADER_CHUNK);
+
+        final int start = srcBuffer.position();
+        final int remaining = srcBuffer.remaining();
+        if (remaining < WebSocketHeader.MIN_HEADER_LENGTH) {
+            return result;
+        }
+
+        // The header is read with absolute gets, so the position only moves once all of it is here.
+        final byte firstByte = srcBuffer.get(start);
+        final byte secondByte = srcBuffer.get(start + 1);
+        final byte payloadLength = (byte) (secondByte & WebSocketHeader.PAYLOAD_MASK);
+
+        final long finalPayloadLength;
+        final int headerLength;
+
+        // We want to be explicit about the WebSocket payload length because the RFC specifies these ranges.
+        if (payloadLength <= WebSocketHeader.PAYLOAD_SHORT_MAX) {
+            finalPayloadLength = payloadLength;
+            headerLength = WebSocketHeader.MIN_HEADER_LENGTH;
+        } else if (payloadLength == WebSocketHeader.PAYLOAD_EXTENDED_16) {
+            if (remaining < WebSocketHeader.MED_HEADER_LENGTH_NOMASK) {
+                return result;
             }
 
-            if (retVal == WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_UNKNOWN) {
-                if (opcode == WebSocketHeader.OPCODE_BINARY) {
-                    retVal = WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_AMQP;
-                } else if (opcode == WebSocketHeader.OPCODE_PING) {
-                    retVal = WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_PING;
-                } else if (opcode == WebSocketHeader.OPCODE_CLOSE) {
-                    retVal = WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_CLOSE;
-                } else if (opcode == WebSocketHeader.OPCODE_CONTINUATION) {
-                    retVal = WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_CHUNK;
-                } else {
-                    retVal = WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_UNKNOWN;
-                }
+            //Apply mask to turn into unsigned value
+            finalPayloadLength = srcBuffer.getShort(start + WebSocketHeader.MIN_HEADER_LENGTH) & 0xFFFF;
+            headerLength = WebSocketHeader.MED_HEADER_LENGTH_NOMASK;
+        } else {
+            if (remaining < WebSocketHeader.MAX_HEADER_LENGTH_NOMASK) {
+                return result;
             }
 
-            result.setLength(finalPayloadLength);
-            result.setType(retVal);
+            finalPayloadLength = srcBuffer.getLong(start + WebSocketHeader.MIN_HEADER_LENGTH);
+            headerLength = WebSocketHeader.MAX_HEADER_LENGTH_NOMASK;
+        }
+
+        final byte opcode = (byte) (firstByte & WebSocketHeader.OPCODE_MASK);
+        final WebSocketMessageType retVal;
+        if (opcode == WebSocketHeader.OPCODE_BINARY) {
+            retVal = WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_AMQP;
+        } else if (opcode == WebSocketHeader.OPCODE_PING) {
+            retVal = WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_PING;
+        } else if (opcode == WebSocketHeader.OPCODE_CLOSE) {
+            retVal = WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_CLOSE;
+        } else if (opcode == WebSocketHeader.OPCODE_CONTINUATION) {
+            retVal = WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_CHUNK;
+        } else {
+            retVal = WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_UNKNOWN;
         }
 
+        srcBuffer.position(start + headerLength);
+
+        result.setLength(finalPayloadLength);
+        result.setType(retVal);
+        result.setOpcode(opcode);
+        result.setFinal((firstByte & WebSocketHeader.FINBIT_MASK) != 0);
+        result.setMasked((secondByte & WebSocketHeader.MASKBIT_MASK) != 0);
+        result.setReservedBits((byte) (firstByte & WebSocketHeader.RSV_MASK));
         return result;
     }
 
@@ -270,12 +346,30 @@ public class WebSocketHandlerImpl implements WebSocketHandler {
      * Returns a set of random bytes.
      *
      * @return a random set of 4 bytes.
+     * @deprecated Override {@link #createMaskingKey()} or supply a {@link WebSocketMaskingKeyProvider} instead. Frames
+     *     are still masked with the key from this method when a subclass overrides it, until the next major version.
      */
+    @Deprecated
     protected byte[] createRandomMaskingKey() {
-        final byte[] maskingKey = new byte[4];
-        Utils.getSecureRandom().nextBytes(maskingKey);
+        final int maskingKey = maskingKeyProvider.nextMaskingKey();
+
+        return new byte[]{(byte) (maskingKey >>> 24), (byte) (maskingKey >>> 16), (byte) (maskingKey >>> 8), (byte) maskingKey};
+    }
+
+    /**
+     * Gets the masking key for the next outgoing frame. It comes from the {@link WebSocketMaskingKeyProvider}, or from
+     * {@link #createRandomMaskingKey()} if a subclass overrides it.
+     *
+     * @return The 4 byte masking key, most significant byte first.
+     */
+    @SuppressWarnings("deprecation")
+    protected int createMaskingKey() {
+        if (overridesRandomMaskingKey) {
+            final byte[] key = createRandomMaskingKey();
+            return (key[0] & 0xFF) << 24 | (key[1] & 0xFF) << 16 | (key[2] & 0xFF) << 8 | (key[3] & 0xFF);
+        }
 
-        return maskingKey;
+        return maskingKeyProvider.nextMaskingKey();
     }
 
     @Override
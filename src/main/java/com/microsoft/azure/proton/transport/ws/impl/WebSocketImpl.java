@@ -3,6 +3,8 @@
 
 package com.microsoft.azure.proton.transport.ws.impl;
 
+import com.microsoft.azure.proton.transport.buffer.ByteBufferPool;
+import com.microsoft.azure.proton.transport.ws.PerMessageDeflateOptions;
 import com.microsoft.azure.proton.transport.ws.WebSocket;
 import com.microsoft.azure.proton.transport.ws.WebSocketHandler;
 import com.microsoft.azure.proton.transport.ws.WebSocketHeader;
@@ -10,6 +12,7 @@ import org.apache.qpid.proton.engine.Transport;
 import org.apache.qpid.proton.engine.TransportException;
 import org.apache.qpid.proton.engine.impl.ByteBufferUtils;
 import org.apache.qpid.proton.engine.impl.PlainTransportWrapper;
+import org.apache.qpid.proton.engine.impl.TransportImpl;
 import org.apache.qpid.proton.engine.impl.TransportInput;
 import org.apache.qpid.proton.engine.impl.TransportLayer;
 import org.apache.qpid.proton.engine.impl.TransportOutput;
@@ -18,9 +21,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.zip.DataFormatException;
 
+import static com.microsoft.azure.proton.transport.ws.WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_AMQP;
+import static com.microsoft.azure.proton.transport.ws.WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_CLOSE;
 import static com.microsoft.azure.proton.transport.ws.WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_HEADER_CHUNK;
+import static com.microsoft.azure.proton.transport.ws.WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_PING;
 import static com.microsoft.azure.proton.transport.ws.WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_UNKNOWN;
 import static org.apache.qpid.proton.engine.impl.ByteBufferUtils.newWriteableBuffer;
 import static org.apache.qpid.proton.engine.impl.ByteBufferUtils.pourAll;
@@ -31,19 +41,46 @@ import static org.apache.qpid.proton.engine.impl.ByteBufferUtils.pourAll;
 public class WebSocketImpl implements WebSocket, TransportLayer {
     private static final Logger TRACE_LOGGER = LoggerFactory.getLogger(WebSocketImpl.class);
     private static final int MAX_FRAME_SIZE = (4 * 1024) + (16 * WebSocketHeader.MED_HEADER_LENGTH_MASKED);
+    private static final int MIN_ADAPTIVE_BUFFER_SIZE = 256;
+    private static final int MAX_CONTROL_FRAME_SIZE = WebSocketHeader.MIN_HEADER_LENGTH_MASKED + WebSocketHeader.PAYLOAD_SHORT_MAX;
+    private static final int CONTROL_QUEUE_SIZE = 4 * MAX_CONTROL_FRAME_SIZE;
+
+    private final int maxFrameSize;
+    private final ByteBufferPool bufferPool;
 
     private boolean tailClosed = false;
-    private final ByteBuffer inputBuffer;
+    private ByteBuffer inputBuffer;
     private boolean headClosed = false;
-    private final ByteBuffer outputBuffer;
+    private ByteBuffer outputBuffer;
+    // Read-only view of outputBuffer that the transport reads the output from.
+    private ByteBuffer outputHead;
     private ByteBuffer pingBuffer;
     private ByteBuffer wsInputBuffer;
-    private ByteBuffer tempBuffer;
+    // Control frames waiting to be sent between data frames, and a read-only view of them for the transport.
+    private ByteBuffer controlBuffer;
+    private ByteBuffer controlHead;
 
     private int underlyingOutputSize = 0;
-    private int webSocketHeaderSize = 0;
+    // Bytes at the start of outputBuffer that were framed but not popped yet, and how many bytes of the underlying
+    // output they carry. The underlying output is popped once the frame has been fully sent.
+    private int framedBytes = 0;
+    private int framedPayloadSize = 0;
 
     private WebSocketHandler webSocketHandler;
+    private WriteCoalescer writeCoalescer;
+    private KeepAlive keepAlive;
+    // The payload of the keepalive pings, and the transport closed with an error when a ping goes unanswered.
+    private ByteBuffer keepAlivePing;
+    private TransportImpl keepAliveTransport;
+    private PerMessageDeflateOptions perMessageDeflateOptions;
+    // The negotiated extension, and whether the message being read is compressed.
+    private PerMessageDeflate perMessageDeflate;
+    private boolean inflatingMessage;
+    private AdaptiveBufferSizing bufferSizing;
+    // Whether AMQP output is sent right behind the upgrade request, before the reply arrives.
+    private boolean pipelinedUpgrade;
+    private long inputLastUsed;
+    private long outputLastUsed;
     private WebSocketState webSocketState = WebSocketState.PN_WS_NOT_STARTED;
 
     private String host = "";
@@ -60,7 +97,10 @@ public class WebSocketImpl implements WebSocket, TransportLayer {
 
     private WebSocketHandler.WebSocketMessageType lastType;
     private long lastLength;
+    private byte lastOpcode;
+    private boolean lastFinal;
     private long bytesRead = 0;
+    private final WebSocketHandler.WebsocketTuple frameHeader = new WebSocketHandler.WebsocketTuple();
     private WebSocketFrameReadState frameReadState = WebSocketFrameReadState.INIT_READ;
 
     /**
@@ -81,11 +121,25 @@ public class WebSocketImpl implements WebSocket, TransportLayer {
      * @param customMaxFrameSize the maximum frame size that this layer will buffer for
      */
     public WebSocketImpl(int customMaxFrameSize) {
-        inputBuffer = newWriteableBuffer(customMaxFrameSize);
-        outputBuffer = newWriteableBuffer(customMaxFrameSize);
-        pingBuffer = newWriteableBuffer(customMaxFrameSize);
-        wsInputBuffer = newWriteableBuffer(customMaxFrameSize);
-        tempBuffer = newWriteableBuffer(customMaxFrameSize);
+        this(customMaxFrameSize, null);
+    }
+
+    /**
+     * Create WebSocket transport layer - which, after configuring using
+     * the {@link #configure(String, String, String, int, String, Map, WebSocketHandler)} API
+     * is ready for layering in qpid-proton-j transport layers, using
+     * {@link org.apache.qpid.proton.engine.impl.TransportInternal#addTransportLayer(TransportLayer)} API.
+     *
+     * <p>The buffers of the layer are borrowed from {@code bufferPool}, and are returned to it by {@link #recycle()}
+     * once the connection is closed. With a pool of direct buffers, all buffers of the layer are off the heap.</p>
+     *
+     * @param customMaxFrameSize the maximum frame size that this layer will buffer for
+     * @param bufferPool the pool to borrow buffers from, or null to allocate them
+     */
+    public WebSocketImpl(int customMaxFrameSize, ByteBufferPool bufferPool) {
+        this.maxFrameSize = customMaxFrameSize;
+        this.bufferPool = bufferPool;
+        acquireBuffers();
         lastType = WEB_SOCKET_MESSAGE_TYPE_UNKNOWN;
         lastLength = 0;
         isWebSocketEnabled = false;
@@ -93,9 +147,226 @@ public class WebSocketImpl implements WebSocket, TransportLayer {
 
     @Override
     public TransportWrapper wrap(final TransportInput input, final TransportOutput output) {
+        if (inputBuffer == null) {
+            acquireBuffers();
+        }
+
+        outputHead = outputBuffer.asReadOnlyBuffer();
+        outputHead.limit(0);
+
         return new WebSocketSnifferTransportWrapper(input, output);
     }
 
+    /**
+     * Resets this layer so that it can be added to a new transport, keeping its configuration. If the layer borrows its
+     * buffers from a {@link ByteBufferPool}, they are returned to the pool, and borrowed again when the layer is next
+     * wrapped. Until then, the buffer getters return null.
+     *
+     * <p>Only call this once the transport the layer was added to is closed and no longer used.</p>
+     */
+    public void recycle() {
+        if (bufferPool != null) {
+            releaseBuffers();
+        } else {
+            inputBuffer.clear();
+            outputBuffer.clear();
+            if (pingBuffer != null) {
+                pingBuffer.clear();
+            }
+            if (wsInputBuffer != null) {
+                wsInputBuffer.clear();
+            }
+            if (controlBuffer != null) {
+                controlBuffer.clear();
+                controlHead.limit(0);
+            }
+        }
+
+        tailClosed = false;
+        headClosed = false;
+        underlyingOutputSize = 0;
+        framedBytes = 0;
+        framedPayloadSize = 0;
+        webSocketState = WebSocketState.PN_WS_NOT_STARTED;
+        lastType = WEB_SOCKET_MESSAGE_TYPE_UNKNOWN;
+        lastLength = 0;
+        bytesRead = 0;
+        frameReadState = WebSocketFrameReadState.INIT_READ;
+
+        if (writeCoalescer != null) {
+            writeCoalescer.reset();
+        }
+        if (keepAlive != null) {
+            keepAlive.reset();
+        }
+        if (perMessageDeflate != null) {
+            perMessageDeflate.end();
+            perMessageDeflate = null;
+        }
+        inflatingMessage = false;
+    }
+
+    /**
+     * Enables adaptive buffer sizing. The input and output buffers start at {@code initialSize} bytes and double
+     * whenever the traffic needs more room, up to the maximum frame size of this layer, and shrink back to
+     * {@code initialSize} once they have been empty for {@code idleTimeout}. The ping and header staging buffers are
+     * only allocated when a control frame or a split frame header is first received, so {@link #getPingBuffer()} and
+     * {@link #getWsInputBuffer()} return null until then.
+     *
+     * <p>Output is framed in frames no larger than the output buffer, so a grown buffer also means larger frames.
+     * This must be called before the layer connects.</p>
+     *
+     * @param initialSize Capacity the input and output buffers start at.
+     * @param idleTimeout Time a buffer must stay empty before it shrinks back to {@code initialSize}.
+     * @throws IllegalArgumentException if {@code initialSize} is less than 256 or larger than the maximum frame size,
+     *     or {@code idleTimeout} is null or negative.
+     * @throws IllegalStateException if the layer has already started connecting.
+     */
+    public void setAdaptiveBufferSizing(int initialSize, Duration idleTimeout) {
+        setAdaptiveBufferSizing(initialSize, idleTimeout, System::nanoTime);
+    }
+
+    void setAdaptiveBufferSizing(int initialSize, Duration idleTimeout, LongSupplier nanoClock) {
+        if (initialSize < MIN_ADAPTIVE_BUFFER_SIZE || initialSize > maxFrameSize) {
+            throw new IllegalArgumentException(String.format(
+                "'initialSize' must be between %d and %d.", MIN_ADAPTIVE_BUFFER_SIZE, maxFrameSize));
+        }
+        if (idleTimeout == null || idleTimeout.isNegative()) {
+            throw new IllegalArgumentException("'idleTimeout' cannot be null or negative.");
+        }
+        if (webSocketState != WebSocketState.PN_WS_NOT_STARTED) {
+            throw new IllegalStateException("Adaptive buffer sizing must be set before the layer connects.");
+        }
+
+        releaseBuffers();
+        bufferSizing = new AdaptiveBufferSizing(initialSize, maxFrameSize, idleTimeout.toNanos(), nanoClock);
+        acquireBuffers();
+    }
+
+    private void acquireBuffers() {
+        if (bufferSizing != null) {
+            inputBuffer = allocateBuffer(bufferSizing.getInitialSize());
+            setOutputBuffer(allocateBuffer(bufferSizing.getInitialSize()));
+            inputLastUsed = bufferSizing.now();
+            outputLastUsed = inputLastUsed;
+        } else {
+            inputBuffer = allocateBuffer(maxFrameSize);
+            setOutputBuffer(allocateBuffer(maxFrameSize));
+            pingBuffer = allocateBuffer(maxFrameSize);
+            wsInputBuffer = allocateBuffer(maxFrameSize);
+        }
+    }
+
+    private void releaseBuffers() {
+        inputBuffer = releaseBuffer(inputBuffer);
+        setOutputBuffer(releaseBuffer(outputBuffer));
+        pingBuffer = releaseBuffer(pingBuffer);
+        wsInputBuffer = releaseBuffer(wsInputBuffer);
+        controlBuffer = releaseBuffer(controlBuffer);
+        controlHead = null;
+    }
+
+    private ByteBuffer releaseBuffer(ByteBuffer buffer) {
+        if (bufferPool != null && buffer != null) {
+            bufferPool.release(buffer);
+        }
+
+        return null;
+    }
+
+    private void setOutputBuffer(ByteBuffer buffer) {
+        outputBuffer = buffer;
+
+        if (buffer != null) {
+            outputHead = buffer.asReadOnlyBuffer();
+            outputHead.limit(buffer.position());
+        } else {
+            outputHead = null;
+        }
+    }
+
+    private ByteBuffer allocateBuffer(int capacity) {
+        return bufferPool != null ? bufferPool.acquire(capacity) : newWriteableBuffer(capacity);
+    }
+
+    /**
+     * Moves the bytes written to {@code buffer} into a new buffer of {@code capacity} bytes.
+     */
+    private ByteBuffer resizeBuffer(ByteBuffer buffer, int capacity) {
+        final ByteBuffer resized = allocateBuffer(capacity);
+        buffer.flip();
+        resized.put(buffer);
+        releaseBuffer(buffer);
+        return resized;
+    }
+
+    /**
+     * With adaptive buffer sizing, grows the input buffer once it is more than half full and shrinks it once it has
+     * been empty for the idle timeout.
+     */
+    private void adaptInputBuffer() {
+        if (inputBuffer.position() > 0) {
+            inputLastUsed = bufferSizing.now();
+
+            if (inputBuffer.remaining() < inputBuffer.capacity() / 2) {
+                final int capacity = bufferSizing.grownCapacity(inputBuffer.capacity(), inputBuffer.capacity() + 1);
+                if (capacity > inputBuffer.capacity()) {
+                    inputBuffer = resizeBuffer(inputBuffer, capacity);
+                }
+            }
+        } else if (bufferSizing.isIdle(inputBuffer.capacity(), inputLastUsed)) {
+            inputBuffer = resizeBuffer(inputBuffer, bufferSizing.getInitialSize());
+        }
+    }
+
+    /**
+     * With adaptive buffer sizing, grows the output buffer to hold {@code required} bytes, up to the maximum frame
+     * size. Only called while the output buffer holds no frame that is being sent.
+     */
+    private void growOutputBuffer(int required) {
+        if (bufferSizing != null) {
+            outputLastUsed = bufferSizing.now();
+
+            final int capacity = bufferSizing.grownCapacity(outputBuffer.capacity(), required);
+            if (capacity > outputBuffer.capacity()) {
+                setOutputBuffer(resizeBuffer(outputBuffer, capacity));
+            }
+        }
+    }
+
+    /**
+     * With adaptive buffer sizing, shrinks the output buffer once it has been empty for the idle timeout.
+     */
+    private void shrinkOutputBuffer() {
+        if (bufferSizing != null && bufferSizing.isIdle(outputBuffer.capacity(), outputLastUsed)) {
+            setOutputBuffer(resizeBuffer(outputBuffer, bufferSizing.getInitialSize()));
+        }
+    }
+
+    /**
+     * Allocates the ping buffer on first use with adaptive buffer sizing. Control frames carry at most 125 bytes, so
+     * the initial size is always enough.
+     */
+    private ByteBuffer getOrCreatePingBuffer() {
+        if (pingBuffer == null) {
+            pingBuffer = allocateBuffer(bufferSizing.getInitialSize());
+        }
+
+        return pingBuffer;
+    }
+
+    /**
+     * Allocates the header staging buffer on first use with adaptive buffer sizing. It only ever holds the start of a
+     * frame header.
+     */
+    private ByteBuffer getOrCreateWsInputBuffer() {
+        if (wsInputBuffer == null) {
+            wsInputBuffer = allocateBuffer(bufferSizing.getInitialSize());
+        }
+
+        return wsInputBuffer;
+    }
+
     @Override
     public void configure(
             String host,
@@ -140,6 +411,309 @@ public class WebSocketImpl implements WebSocket, TransportLayer {
         }
     }
 
+    /**
+     * Decodes the frame header at the position of {@code buffer} into this layer's reusable header.
+     */
+    private WebSocketHandler.WebsocketTuple unwrapHeader(ByteBuffer buffer) {
+        if (isWebSocketEnabled) {
+            return webSocketHandler.unwrapBuffer(buffer, frameHeader);
+        } else {
+            frameHeader.setLength(0);
+            frameHeader.setType(WEB_SOCKET_MESSAGE_TYPE_UNKNOWN);
+            return frameHeader;
+        }
+    }
+
+    /**
+     * Enables write coalescing. Once connected, AMQP output is held back until at least {@code thresholdBytes} are
+     * pending or {@code maxDelay} has passed since it was first held back, and is then sent in as few frames as
+     * possible. This trades a little latency for fewer frames, masking keys and packets when many small AMQP frames
+     * are written, for example dispositions and flow frames.
+     *
+     * <p>Held back output is only sent when the transport asks this layer for pending output again. Make sure that
+     * happens within {@code maxDelay}, for example from the transport's tick, otherwise small writes can wait until
+     * the next I/O event on the connection.</p>
+     *
+     * @param thresholdBytes Number of pending bytes at which output is sent right away.
+     * @param maxDelay Longest time output is held back.
+     * @throws IllegalArgumentException if {@code thresholdBytes} is less than one or {@code maxDelay} is null or
+     *     negative.
+     */
+    public void setWriteCoalescing(int thresholdBytes, Duration maxDelay) {
+        if (thresholdBytes < 1) {
+            throw new IllegalArgumentException("'thresholdBytes' must be greater than zero.");
+        }
+        if (maxDelay == null || maxDelay.isNegative()) {
+            throw new IllegalArgumentException("'maxDelay' cannot be null or negative.");
+        }
+
+        writeCoalescer = new WriteCoalescer(thresholdBytes, maxDelay.toNanos(), System::nanoTime);
+    }
+
+    /**
+     * Disables write coalescing, so AMQP output is framed as soon as it is pending. This is the default.
+     */
+    public void disableWriteCoalescing() {
+        writeCoalescer = null;
+    }
+
+    /**
+     * Gets the number of frames that were not sent because their output was added to another frame, since write
+     * coalescing was last enabled.
+     *
+     * @return The number of frames saved by write coalescing.
+     * @see #setWriteCoalescing(int, Duration)
+     */
+    public long getCoalescedFrameCount() {
+        return writeCoalescer != null ? writeCoalescer.getCoalescedFrameCount() : 0;
+    }
+
+    /**
+     * Gets the total time AMQP output was held back by write coalescing, since it was last enabled.
+     *
+     * @return The total latency added by write coalescing.
+     * @see #setWriteCoalescing(int, Duration)
+     */
+    public Duration getCoalescingDelay() {
+        return Duration.ofNanos(writeCoalescer != null ? writeCoalescer.getTotalDelayNanos() : 0);
+    }
+
+    /**
+     * Gets the longest time AMQP output was held back by write coalescing, since it was last enabled.
+     *
+     * @return The largest latency added by write coalescing.
+     * @see #setWriteCoalescing(int, Duration)
+     */
+    public Duration getMaxCoalescingDelay() {
+        return Duration.ofNanos(writeCoalescer != null ? writeCoalescer.getMaxDelayNanos() : 0);
+    }
+
+    /**
+     * Enables keepalive. Once connected, a ping is sent whenever the connection has carried no bytes in either
+     * direction for {@code interval}, and the transport fails if the ping is not answered within {@code timeout}. The
+     * round-trip times of the answered pings are reported by {@link #getMinRoundTripTime()},
+     * {@link #getAverageRoundTripTime()} and {@link #getP99RoundTripTime()}.
+     *
+     * <p>Like write coalescing, keepalive is driven by the transport asking this layer for pending output, which it
+     * does on every tick. No threads or timers are added, so the transport must be ticked at least as often as
+     * {@code interval}.</p>
+     *
+     * <p>This layer then stops reading and writing, which the transport cannot tell from the peer closing the
+     * connection. Use {@link #setKeepAlive(Duration, Duration, Transport)} to have the transport fail with an error.</p>
+     *
+     * @param interval Time without traffic after which a ping is sent.
+     * @param timeout Time a ping may stay unanswered before the transport fails.
+     * @throws IllegalArgumentException if {@code interval} or {@code timeout} is null, zero or negative.
+     */
+    public void setKeepAlive(Duration interval, Duration timeout) {
+        setKeepAlive(interval, timeout, null);
+    }
+
+    /**
+     * Enables keepalive as {@link #setKeepAlive(Duration, Duration)} does. When a ping goes unanswered, {@code transport}
+     * is closed with a {@link TransportException} that names the keepalive timeout, so that its error condition tells
+     * the dead peer apart from a closed connection.
+     *
+     * @param interval Time without traffic after which a ping is sent.
+     * @param timeout Time a ping may stay unanswered before the transport fails.
+     * @param transport The transport this layer is added to, or null to only stop this layer.
+     * @throws IllegalArgumentException if {@code interval} or {@code timeout} is null, zero or negative.
+     */
+    public void setKeepAlive(Duration interval, Duration timeout, Transport transport) {
+        setKeepAlive(interval, timeout, transport, System::nanoTime);
+    }
+
+    void setKeepAlive(Duration interval, Duration timeout, Transport transport, LongSupplier nanoClock) {
+        if (interval == null || interval.isNegative() || interval.isZero()) {
+            throw new IllegalArgumentException("'interval' must be positive.");
+        }
+        if (timeout == null || timeout.isNegative() || timeout.isZero()) {
+            throw new IllegalArgumentException("'timeout' must be positive.");
+        }
+
+        keepAlive = new KeepAlive(interval.toNanos(), timeout.toNanos(), nanoClock);
+        keepAlivePing = ByteBuffer.allocate(KeepAlive.PING_PAYLOAD_SIZE);
+        keepAliveTransport = (TransportImpl) transport;
+    }
+
+    /**
+     * Disables keepalive, so pings are only answered, never sent. This is the default.
+     */
+    public void disableKeepAlive() {
+        keepAlive = null;
+        keepAlivePing = null;
+        keepAliveTransport = null;
+    }
+
+    /**
+     * Gets the number of keepalive pings that were answered, since keepalive was last enabled.
+     *
+     * @return The number of round-trip times measured.
+     * @see #setKeepAlive(Duration, Duration)
+     */
+    public long getRoundTripTimeCount() {
+        return keepAlive != null ? keepAlive.getSampleCount() : 0;
+    }
+
+    /**
+     * Gets the shortest round-trip time of the keepalive pings, since keepalive was last enabled.
+     *
+     * @return The minimum round-trip time, zero if no ping was answered.
+     * @see #setKeepAlive(Duration, Duration)
+     */
+    public Duration getMinRoundTripTime() {
+        return Duration.ofNanos(keepAlive != null ? keepAlive.getMinRoundTripNanos() : 0);
+    }
+
+    /**
+     * Gets the average round-trip time of the keepalive pings, since keepalive was last enabled.
+     *
+     * @return The average round-trip time, zero if no ping was answered.
+     * @see #setKeepAlive(Duration, Duration)
+     */
+    public Duration getAverageRoundTripTime() {
+        return Duration.ofNanos(keepAlive != null ? keepAlive.getAverageRoundTripNanos() : 0);
+    }
+
+    /**
+     * Gets the 99th percentile of the round-trip times of the most recent keepalive pings.
+     *
+     * @return The 99th percentile round-trip time, zero if no ping was answered.
+     * @see #setKeepAlive(Duration, Duration)
+     */
+    public Duration getP99RoundTripTime() {
+        return Duration.ofNanos(keepAlive != null ? keepAlive.getP99RoundTripNanos() : 0);
+    }
+
+    /**
+     * Offers the permessage-deflate extension in the upgrade request, so that AMQP messages are compressed if the
+     * server accepts it. This must be called before the layer connects.
+     *
+     * <p>Whether the server accepted the extension is known once connected, from
+     * {@link #isPerMessageDeflateNegotiated()}. The connection fails if the server accepts it with parameters that were
+     * not offered.</p>
+     *
+     * @param options The options of the extension, or null to not offer it. This is the default.
+     * @throws IllegalStateException if the layer has already started connecting.
+     */
+    public void setPerMessageDeflate(PerMessageDeflateOptions options) {
+        if (webSocketState != WebSocketState.PN_WS_NOT_STARTED) {
+            throw new IllegalStateException("permessage-deflate must be set before the layer connects.");
+        }
+
+        perMessageDeflateOptions = options;
+    }
+
+    /**
+     * Sends AMQP output right behind the upgrade request, without waiting for the server to accept the upgrade. The
+     * first AMQP frames then reach the server one round trip earlier. This must be called before the layer connects.
+     *
+     * <p>Frames sent before the upgrade reply are not compressed, since permessage-deflate is only negotiated by the
+     * reply. If the server refuses the upgrade, the layer fails as it otherwise would, but the server has received
+     * those frames as well, so only enable this for servers known to accept the upgrade.</p>
+     *
+     * @param enabled true to send AMQP output before the upgrade reply, false to wait for it. The default is false.
+     * @throws IllegalStateException if the layer has already started connecting.
+     */
+    public void setPipelinedUpgrade(boolean enabled) {
+        if (webSocketState != WebSocketState.PN_WS_NOT_STARTED) {
+            throw new IllegalStateException("Pipelined upgrade must be set before the layer connects.");
+        }
+
+        pipelinedUpgrade = enabled;
+    }
+
+    /**
+     * Gets whether AMQP output is sent before the upgrade reply arrives.
+     *
+     * @return true if the upgrade is pipelined.
+     * @see #setPipelinedUpgrade(boolean)
+     */
+    public boolean isPipelinedUpgrade() {
+        return pipelinedUpgrade;
+    }
+
+    /**
+     * Gets whether the server accepted the permessage-deflate extension.
+     *
+     * @return true if messages can be compressed on this connection.
+     * @see #setPerMessageDeflate(PerMessageDeflateOptions)
+     */
+    public boolean isPerMessageDeflateNegotiated() {
+        return perMessageDeflate != null;
+    }
+
+    /**
+     * Gets the negotiated permessage-deflate extension.
+     *
+     * @return The extension, or null if it was not negotiated.
+     */
+    PerMessageDeflate getPerMessageDeflate() {
+        return perMessageDeflate;
+    }
+
+    /**
+     * Gets the number of bytes of AMQP output that were sent compressed, before compression. Together with
+     * {@link #getCompressedOutputBytes()}, this tells how many bytes compression saved.
+     *
+     * @return The uncompressed size of the compressed messages sent.
+     * @see #setPerMessageDeflate(PerMessageDeflateOptions)
+     */
+    public long getCompressionInputBytes() {
+        return perMessageDeflate != null ? perMessageDeflate.getDeflateInputBytes() : 0;
+    }
+
+    /**
+     * Gets the compressed size of the messages that were sent compressed.
+     *
+     * @return The compressed size of the compressed messages sent.
+     * @see #setPerMessageDeflate(PerMessageDeflateOptions)
+     */
+    public long getCompressedOutputBytes() {
+        return perMessageDeflate != null ? perMessageDeflate.getDeflateOutputBytes() : 0;
+    }
+
+    /**
+     * Gets the time spent compressing messages, including messages that were then sent uncompressed because they did
+     * not get smaller.
+     *
+     * @return The CPU time spent compressing.
+     * @see #setPerMessageDeflate(PerMessageDeflateOptions)
+     */
+    public Duration getCompressionTime() {
+        return Duration.ofNanos(perMessageDeflate != null ? perMessageDeflate.getDeflateNanos() : 0);
+    }
+
+    /**
+     * Gets the number of compressed bytes received.
+     *
+     * @return The compressed size of the compressed messages received.
+     * @see #setPerMessageDeflate(PerMessageDeflateOptions)
+     */
+    public long getCompressedInputBytes() {
+        return perMessageDeflate != null ? perMessageDeflate.getInflateInputBytes() : 0;
+    }
+
+    /**
+     * Gets the number of bytes the compressed messages received decompressed to.
+     *
+     * @return The decompressed size of the compressed messages received.
+     * @see #setPerMessageDeflate(PerMessageDeflateOptions)
+     */
+    public long getDecompressionOutputBytes() {
+        return perMessageDeflate != null ? perMessageDeflate.getInflateOutputBytes() : 0;
+    }
+
+    /**
+     * Gets the time spent decompressing messages.
+     *
+     * @return The CPU time spent decompressing.
+     * @see #setPerMessageDeflate(PerMessageDeflateOptions)
+     */
+    public Duration getDecompressionTime() {
+        return Duration.ofNanos(perMessageDeflate != null ? perMessageDeflate.getInflateNanos() : 0);
+    }
+
     @Override
     public WebSocketState getState() {
         return webSocketState;
@@ -209,98 +783,424 @@ public class WebSocketImpl implements WebSocket, TransportLayer {
     protected void writeUpgradeRequest() {
         outputBuffer.clear();
 
-        //TODO (conniey): HTTP headers are encoded using StandardCharsets.ISO_8859_1. update webSocketHandler.createProxyRequest to return bytes
-        //  instead of String because encoding is not UTF-16. https://stackoverflow.com/a/655948/4220757
-        // See https://datatracker.ietf.org/doc/html/rfc2616#section-3.7.1
-        String request = webSocketHandler.createUpgradeRequest(host, path, query, port, protocol, additionalHeaders);
-        outputBuffer.put(request.getBytes());
+        Map<String, String> headers = additionalHeaders;
+        if (perMessageDeflateOptions != null) {
+            headers = additionalHeaders != null ? new LinkedHashMap<>(additionalHeaders) : new LinkedHashMap<>();
+            headers.put(PerMessageDeflate.EXTENSIONS_HEADER, PerMessageDeflate.createOffer(perMessageDeflateOptions));
+        }
+
+        final ByteBuffer request = webSocketHandler.createUpgradeRequestBuffer(host, path, query, port, protocol, headers);
+        growOutputBuffer(request.remaining());
+        outputBuffer.put(request);
     }
 
     /**
-     * Writes the response to a PING request.
+     * Queues the response to a PING request. It carries the payload of the ping, and is sent as soon as the data frame
+     * being sent, if any, is complete.
      */
     protected void writePong() {
-        webSocketHandler.createPong(pingBuffer, outputBuffer);
+        final ByteBuffer ping = pingBuffer.duplicate();
+        ping.flip();
+        queueControlFrame(ping, WebSocketHeader.OPCODE_PONG);
     }
 
     /**
-     * Writes the CLOSE frame.
+     * Queues the CLOSE frame that answers the CLOSE frame of the peer. It carries the payload of the peer's frame, and
+     * is sent as soon as the data frame being sent, if any, is complete.
      */
     protected void writeClose() {
-        outputBuffer.clear();
-        pingBuffer.flip();
-        outputBuffer.put(pingBuffer);
+        final ByteBuffer close = pingBuffer.duplicate();
+        close.flip();
+        queueControlFrame(close, WebSocketHeader.OPCODE_CLOSE);
+    }
+
+    /**
+     * Fails the transport if the keepalive ping went unanswered, and queues a keepalive ping if one is due. The ping is
+     * copied into the control queue, so its payload buffer is reused.
+     *
+     * @return false if the transport failed.
+     */
+    private boolean checkKeepAlive() {
+        if (keepAlive.isPeerDead()) {
+            final String message = "WebSocket keepalive ping was not answered within "
+                + Duration.ofNanos(keepAlive.getTimeoutNanos()) + ".";
+            TRACE_LOGGER.error("{} Failing the transport.", message);
+            webSocketState = WebSocketState.PN_WS_FAILED;
+            endPerMessageDeflate();
+            tailClosed = true;
+            if (keepAliveTransport != null) {
+                keepAliveTransport.closed(new TransportException(message));
+            }
+            return false;
+        }
+
+        if (keepAlive.isPingDue() && canQueueControlFrame(WebSocketHeader.OPCODE_PING)) {
+            keepAlivePing.clear();
+            keepAlivePing.putLong(keepAlive.onPingSent());
+            keepAlivePing.flip();
+            queueControlFrame(keepAlivePing, WebSocketHeader.OPCODE_PING);
+        }
+
+        return true;
+    }
+
+    /**
+     * Releases the native memory of the permessage-deflate extension, once the layer failed or closed. Its counts can
+     * still be read.
+     */
+    private void endPerMessageDeflate() {
+        if (perMessageDeflate != null) {
+            perMessageDeflate.end();
+        }
+    }
+
+    /**
+     * Gets whether the control queue has room for a frame with {@code opcode}. Room for a close frame is always kept,
+     * so that the closing handshake can be answered.
+     */
+    private boolean canQueueControlFrame(byte opcode) {
+        if (controlBuffer == null) {
+            controlBuffer = allocateBuffer(CONTROL_QUEUE_SIZE);
+            controlHead = controlBuffer.asReadOnlyBuffer();
+            controlHead.limit(0);
+        }
+
+        final int reserved = opcode == WebSocketHeader.OPCODE_CLOSE ? 0 : MAX_CONTROL_FRAME_SIZE;
+        return controlBuffer.remaining() - reserved >= MAX_CONTROL_FRAME_SIZE;
+    }
+
+    /**
+     * Appends a control frame to the control queue, which is allocated on first use. A pong is dropped rather than
+     * taking the room kept for a close frame. The peer only expects a pong to its latest ping anyway.
+     */
+    private void queueControlFrame(ByteBuffer payload, byte opcode) {
+        if (!canQueueControlFrame(opcode)) {
+            TRACE_LOGGER.warn("Control frame queue is full, dropping pong");
+            return;
+        }
+
+        final ByteBuffer frame = controlBuffer.slice();
+        if (opcode == WebSocketHeader.OPCODE_CLOSE) {
+            webSocketHandler.createClose(payload, frame);
+        } else if (opcode == WebSocketHeader.OPCODE_PING) {
+            webSocketHandler.createPing(payload, frame);
+        } else {
+            webSocketHandler.createPong(payload, frame);
+        }
+
+        controlBuffer.position(controlBuffer.position() + frame.position());
+        controlHead.limit(controlBuffer.position());
+    }
+
+    private boolean hasQueuedControlFrames() {
+        return controlBuffer != null && controlBuffer.position() > 0;
+    }
+
+    private void popControlFrames(int bytes) {
+        controlBuffer.flip();
+        controlBuffer.position(bytes);
+        controlBuffer.compact();
+        controlHead.position(0);
+        controlHead.limit(controlBuffer.position());
     }
 
     private final class WebSocketTransportWrapper implements TransportWrapper {
         private final TransportInput underlyingInput;
         private final TransportOutput underlyingOutput;
-        private final ByteBuffer head;
 
         private WebSocketTransportWrapper(TransportInput input, TransportOutput output) {
             underlyingInput = input;
             underlyingOutput = output;
-            head = outputBuffer.asReadOnlyBuffer();
-            head.limit(0);
         }
 
-        private void readInputBuffer() {
-            ByteBufferUtils.pour(inputBuffer, tempBuffer);
+        /**
+         * Decodes as many frames as possible from the input buffer. Frame headers are parsed in place and payload
+         * bytes are handed to the underlying input straight from the input buffer; only a header that is split
+         * across reads is copied, into {@code wsInputBuffer}, until the rest of it arrives.
+         */
+        private void readFrames() throws TransportException {
+            boolean readComplete = false;
+            while (!readComplete) {
+                switch (frameReadState) {
+                    //State 1: Init_Read - a new frame header starts at the input buffer position
+                    case INIT_READ:
+                        readComplete = !readHeader();
+                        break;
+
+                    //State 2: Chunk_Read - the start of the header was stashed by an earlier read
+                    case CHUNK_READ:
+                        readComplete = !readSplitHeader();
+                        break;
+
+                    //State 3: Continued_Frame_Read - reading until we've read the number of bytes
+                    // specified when unwrapping the header
+                    case CONTINUED_FRAME_READ:
+                        readComplete = !readPayload();
+                        break;
+
+                    case HEADER_READ:
+                    case READ_ERROR:
+                        readComplete = true;
+                        break;
+
+                    default:
+                        assert false : String.format("unexpected value for WebSocketFrameReadState: %s", frameReadState);
+                }
+            }
+        }
+
+        /**
+         * Parses a frame header at the input buffer position.
+         *
+         * @return true if a header was read, false if more bytes are needed to complete it.
+         */
+        private boolean readHeader() {
+            if (inputBuffer.remaining() >= WebSocketHeader.MIN_HEADER_LENGTH) {
+                final int frameStart = inputBuffer.position();
+                final WebSocketHandler.WebsocketTuple unwrapResult = unwrapHeader(inputBuffer);
+
+                if (unwrapResult.getType() != WEB_SOCKET_MESSAGE_TYPE_HEADER_CHUNK) {
+                    startFrame(unwrapResult);
+                    return true;
+                }
+
+                inputBuffer.position(frameStart);
+            }
+
+            // Only the start of the header is here. Keep it until the rest arrives.
+            getOrCreateWsInputBuffer().clear();
+            wsInputBuffer.put(inputBuffer);
+            frameReadState = WebSocketFrameReadState.CHUNK_READ;
+            return false;
         }
 
-        private boolean sendToUnderlyingInput() {
-            boolean readComplete = false;
+        /**
+         * Completes a frame header whose first bytes were stashed in {@code wsInputBuffer} by an earlier read.
+         *
+         * @return true if a header was read, false if more bytes are needed to complete it.
+         */
+        private boolean readSplitHeader() {
+            final int stashed = wsInputBuffer.position();
+            final int topUp = Math.min(inputBuffer.remaining(), Math.max(0, WebSocketHeader.MAX_HEADER_LENGTH_MASKED - stashed));
+
+            final ByteBuffer headerBytes = inputBuffer.duplicate();
+            headerBytes.limit(headerBytes.position() + topUp);
+            wsInputBuffer.put(headerBytes);
+            wsInputBuffer.flip();
+
+            if (wsInputBuffer.remaining() >= WebSocketHeader.MIN_HEADER_LENGTH) {
+                final WebSocketHandler.WebsocketTuple unwrapResult = unwrapHeader(wsInputBuffer);
+
+                if (unwrapResult.getType() != WEB_SOCKET_MESSAGE_TYPE_HEADER_CHUNK) {
+                    // Only the bytes that belong to the header are taken from the input buffer.
+                    inputBuffer.position(inputBuffer.position() + wsInputBuffer.position() - stashed);
+                    wsInputBuffer.clear();
+                    startFrame(unwrapResult);
+                    return true;
+                }
+            }
+
+            inputBuffer.position(inputBuffer.position() + topUp);
+            wsInputBuffer.position(wsInputBuffer.limit());
+            wsInputBuffer.limit(wsInputBuffer.capacity());
+            return false;
+        }
+
+        private void startFrame(WebSocketHandler.WebsocketTuple unwrapResult) {
+            lastType = unwrapResult.getType();
+            lastLength = unwrapResult.getLength();
+            lastOpcode = unwrapResult.getOpcode();
+            lastFinal = unwrapResult.isFinal();
+            bytesRead = 0;
+
+            // A message is compressed if its first frame has RSV1 set. Its continuation frames follow suit.
+            if (lastType == WEB_SOCKET_MESSAGE_TYPE_AMQP) {
+                inflatingMessage = perMessageDeflate != null && (unwrapResult.getReservedBits() & WebSocketHeader.RSV1_MASK) != 0;
+            }
+
+            if (isKeepAlivePong()) {
+                keepAlive.onPongStart();
+            }
+
+            if ((lastType == WEB_SOCKET_MESSAGE_TYPE_PING) || (lastType == WEB_SOCKET_MESSAGE_TYPE_CLOSE)) {
+                getOrCreatePingBuffer().clear();
+            }
+
+            frameReadState = WebSocketFrameReadState.CONTINUED_FRAME_READ;
+        }
+
+        /**
+         * Hands the payload bytes of the current frame that are in the input buffer to their destination.
+         *
+         * @return true if the frame was completed and more input remains, otherwise false.
+         */
+        private boolean readPayload() throws TransportException {
+            final int length = (int) Math.min(inputBuffer.remaining(), lastLength - bytesRead);
+            final int payloadEnd = inputBuffer.position() + length;
+            int consumed;
+
             switch (lastType) {
-                case WEB_SOCKET_MESSAGE_TYPE_UNKNOWN:
-                case WEB_SOCKET_MESSAGE_TYPE_CHUNK:
-                    wsInputBuffer.position(wsInputBuffer.limit());
-                    wsInputBuffer.limit(wsInputBuffer.capacity());
-                    break;
                 case WEB_SOCKET_MESSAGE_TYPE_AMQP:
-                    wsInputBuffer.flip();
+                case WEB_SOCKET_MESSAGE_TYPE_CHUNK:
+                    // Decompressed bytes of an earlier message go to the underlying input first.
+                    if (perMessageDeflate != null && !inflateToUnderlying()) {
+                        consumed = 0;
+                        break;
+                    }
+
+                    if (inflatingMessage) {
+                        consumed = readCompressedPayload(payloadEnd);
+                        break;
+                    }
+
+                    final int limit = inputBuffer.limit();
+                    inputBuffer.limit(payloadEnd);
 
-                    int bytes2 = pourAll(wsInputBuffer, underlyingInput);
-                    if (bytes2 == Transport.END_OF_STREAM) {
+                    consumed = pourAll(inputBuffer, underlyingInput);
+                    if (consumed == Transport.END_OF_STREAM) {
                         tailClosed = true;
+                        consumed = 0;
                     }
-                    //underlyingInput.process();
 
-                    wsInputBuffer.compact();
-                    wsInputBuffer.flip();
-                    readComplete = true;
+                    inputBuffer.limit(limit);
                     break;
+                case WEB_SOCKET_MESSAGE_TYPE_PING:
                 case WEB_SOCKET_MESSAGE_TYPE_CLOSE:
-                    wsInputBuffer.flip();
-                    pingBuffer.put(wsInputBuffer);
-                    webSocketState = WebSocketState.PN_WS_CONNECTED_CLOSING;
+                    final ByteBuffer payload = inputBuffer.duplicate();
+                    payload.limit(payloadEnd);
+                    ByteBufferUtils.pour(payload, pingBuffer);
 
-                    wsInputBuffer.compact();
-                    wsInputBuffer.flip();
-                    readComplete = true;
+                    inputBuffer.position(payloadEnd);
+                    consumed = length;
                     break;
-                case WEB_SOCKET_MESSAGE_TYPE_PING:
-                    wsInputBuffer.flip();
-                    pingBuffer.put(wsInputBuffer);
-                    webSocketState = WebSocketState.PN_WS_CONNECTED_PONG;
+                case WEB_SOCKET_MESSAGE_TYPE_UNKNOWN:
+                default:
+                    // Payloads of frames we don't understand are skipped. Pongs are only read for keepalive.
+                    if (isKeepAlivePong()) {
+                        for (int i = inputBuffer.position(); i < payloadEnd; i++) {
+                            keepAlive.onPongByte(inputBuffer.get(i));
+                        }
+                    }
 
-                    wsInputBuffer.compact();
-                    wsInputBuffer.flip();
-                    readComplete = true;
+                    inputBuffer.position(payloadEnd);
+                    consumed = length;
                     break;
-                default:
-                    assert false : String.format("unexpected value for WebSocketFrameReadState: %s", lastType);
             }
-            wsInputBuffer.position(wsInputBuffer.limit());
-            wsInputBuffer.limit(wsInputBuffer.capacity());
-            return readComplete;
+
+            bytesRead += consumed;
+
+            if (bytesRead < lastLength) {
+                // Either the input buffer is empty or the underlying input cannot take any more right now.
+                return false;
+            }
+
+            if (lastType == WEB_SOCKET_MESSAGE_TYPE_PING) {
+                webSocketState = WebSocketState.PN_WS_CONNECTED_PONG;
+            } else if (lastType == WEB_SOCKET_MESSAGE_TYPE_CLOSE) {
+                webSocketState = WebSocketState.PN_WS_CONNECTED_CLOSING;
+            } else if (isKeepAlivePong()) {
+                keepAlive.onPongEnd();
+            }
+
+            frameReadState = WebSocketFrameReadState.INIT_READ;
+            return inputBuffer.hasRemaining();
+        }
+
+        /**
+         * Hands the compressed payload bytes of the current frame that are in the input buffer to the decompressor,
+         * and as much of their output as it takes to the underlying input.
+         *
+         * @return The number of payload bytes consumed.
+         */
+        private int readCompressedPayload(int payloadEnd) throws TransportException {
+            final ByteBuffer payload = inputBuffer.duplicate();
+            payload.limit(payloadEnd);
+
+            final int consumed = perMessageDeflate.setInflaterInput(payload);
+            inputBuffer.position(inputBuffer.position() + consumed);
+
+            if (lastFinal && bytesRead + consumed == lastLength) {
+                perMessageDeflate.endMessage();
+                inflatingMessage = false;
+            }
+
+            inflateToUnderlying();
+            return consumed;
+        }
+
+        /**
+         * Moves decompressed bytes to the underlying input until the decompressor has none left or the underlying
+         * input cannot take more.
+         *
+         * @return true if the decompressor has no output left.
+         */
+        private boolean inflateToUnderlying() throws TransportException {
+            while (perMessageDeflate.hasInflaterOutput()) {
+                final int capacity = underlyingInput.capacity();
+                if (capacity == Transport.END_OF_STREAM) {
+                    tailClosed = true;
+                    return false;
+                } else if (capacity == 0) {
+                    return false;
+                }
+
+                final int produced;
+                try {
+                    produced = perMessageDeflate.inflate(underlyingInput.tail());
+                } catch (DataFormatException e) {
+                    throw new TransportException("Invalid compressed WebSocket message", e);
+                }
+
+                underlyingInput.process();
+
+                if (produced == 0 && perMessageDeflate.hasInflaterOutput()) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private boolean isKeepAlivePong() {
+            return keepAlive != null && lastType == WEB_SOCKET_MESSAGE_TYPE_UNKNOWN && lastOpcode == WebSocketHeader.OPCODE_PONG;
+        }
+
+        /**
+         * Reads the extensions the server accepted from the upgrade reply the handler validated.
+         *
+         * @return false if the server accepted extensions or parameters that were not offered.
+         */
+        private boolean negotiateExtensions() {
+            if (perMessageDeflateOptions == null) {
+                return true;
+            }
+
+            try {
+                perMessageDeflate = PerMessageDeflate.negotiate(perMessageDeflateOptions,
+                    webSocketHandler.getUpgradeReplyExtensions());
+                return true;
+            } catch (IllegalArgumentException e) {
+                TRACE_LOGGER.error("Websocket extension negotiation failed: {}", e.getMessage());
+                tailClosed = true;
+                return false;
+            }
         }
 
         private void processInput() throws TransportException {
+            final int received = inputBuffer.remaining();
+
             switch (webSocketState) {
                 case PN_WS_CONNECTING:
                     inputBuffer.mark();
                     if (webSocketHandler.validateUpgradeReply(inputBuffer)) {
-                        webSocketState = WebSocketState.PN_WS_CONNECTED_FLOW;
+                        webSocketState = negotiateExtensions()
+                            ? WebSocketState.PN_WS_CONNECTED_FLOW
+                            : WebSocketState.PN_WS_FAILED;
+
+                        // Frames the server sent right behind its reply are read now, rather than on the next read.
+                        if (webSocketState == WebSocketState.PN_WS_CONNECTED_FLOW && inputBuffer.hasRemaining()) {
+                            readFrames();
+                        }
                     } else {
                         // Input data was incomplete. Reset buffer position and wait for another call after more data arrives.
                         inputBuffer.reset();
@@ -310,97 +1210,11 @@ public class WebSocketImpl implements WebSocket, TransportLayer {
                     break;
                 case PN_WS_CONNECTED_FLOW:
                 case PN_WS_CONNECTED_PONG:
-
+                    if (perMessageDeflate != null) {
+                        inflateToUnderlying();
+                    }
                     if (inputBuffer.remaining() > 0) {
-                        boolean readComplete = false;
-                        while (!readComplete) {
-                            switch (frameReadState) {
-                                //State 1: Init_Read
-                                case INIT_READ:
-                                    //Reset the bytes read count
-                                    bytesRead = 0;
-                                    //Determine how much to grab from the input buffer and only take that
-                                    readInputBuffer();
-
-                                    frameReadState = tempBuffer.position() < 2
-                                            ? WebSocketFrameReadState.CHUNK_READ
-                                            : WebSocketFrameReadState.HEADER_READ;
-                                    readComplete = frameReadState == WebSocketFrameReadState.CHUNK_READ;
-                                    break;
-
-                                //State 2: Chunk_Read
-                                case CHUNK_READ:
-                                    //Determine how much to grab from the input buffer and only take that
-                                    readInputBuffer();
-
-                                    frameReadState = tempBuffer.position() < 2 ? frameReadState : WebSocketFrameReadState.HEADER_READ;
-                                    readComplete = frameReadState == WebSocketFrameReadState.CHUNK_READ;
-                                    break;
-
-                                //State 3: Header_Read
-                                case HEADER_READ:
-                                    //Determine how much to grab from the input buffer and only take that
-                                    readInputBuffer();
-
-                                    tempBuffer.flip();
-                                    WebSocketHandler.WebsocketTuple unwrapResult = unwrapBuffer(tempBuffer);
-                                    lastType = unwrapResult.getType();
-                                    lastLength = unwrapResult.getLength();
-
-                                    frameReadState = lastType == WEB_SOCKET_MESSAGE_TYPE_HEADER_CHUNK
-                                            ? WebSocketFrameReadState.CHUNK_READ
-                                            : WebSocketFrameReadState.CONTINUED_FRAME_READ;
-                                    readComplete = frameReadState == WebSocketFrameReadState.CHUNK_READ
-                                            || tempBuffer.position() == tempBuffer.limit();
-
-                                    if (frameReadState == WebSocketFrameReadState.CONTINUED_FRAME_READ) {
-                                        tempBuffer.compact();
-                                    } else {
-                                        //Unflip the buffer to continue writing to it
-                                        tempBuffer.position(tempBuffer.limit());
-                                        tempBuffer.limit(tempBuffer.capacity());
-                                    }
-
-                                    break;
-
-                                //State 4: Continued_Frame_Read (Similar to Chunk_Read but reading until
-                                // we've read the number of bytes specified when unwrapping the buffer)
-                                case CONTINUED_FRAME_READ:
-                                    //Determine how much to grab from the input buffer and only take that
-                                    readInputBuffer();
-                                    tempBuffer.flip();
-
-                                    final byte[] data;
-                                    if (tempBuffer.remaining() >= lastLength - bytesRead) {
-                                        data = new byte[(int) (lastLength - bytesRead)];
-                                        tempBuffer.get(data, 0, (int) (lastLength - bytesRead));
-                                        wsInputBuffer.put(data);
-                                        bytesRead += lastLength - bytesRead;
-                                    } else {
-                                        //Otherwise the remaining bytes is < the rest that we need
-                                        data = new byte[tempBuffer.remaining()];
-                                        tempBuffer.get(data);
-                                        wsInputBuffer.put(data);
-                                        bytesRead += data.length;
-                                    }
-
-                                    //Send whatever we have
-                                    sendToUnderlyingInput();
-
-                                    frameReadState = bytesRead
-                                            == lastLength ? WebSocketFrameReadState.INIT_READ : WebSocketFrameReadState.CONTINUED_FRAME_READ;
-                                    readComplete = tempBuffer.remaining() == 0;
-                                    tempBuffer.compact();
-                                    break;
-
-                                //State 5: Read_Error
-                                case READ_ERROR:
-                                    break;
-
-                                default:
-                                    assert false : String.format("unexpected value for WebSocketFrameReadState: %s", frameReadState);
-                            }
-                        }
+                        readFrames();
                     }
                     inputBuffer.compact();
                     break;
@@ -410,6 +1224,11 @@ public class WebSocketImpl implements WebSocket, TransportLayer {
                 default:
                     break;
             }
+
+            // Whatever was taken from the input buffer counts as traffic from the peer.
+            if (keepAlive != null && inputBuffer.position() < received) {
+                keepAlive.onActivity();
+            }
         }
 
         @Override
@@ -418,6 +1237,10 @@ public class WebSocketImpl implements WebSocket, TransportLayer {
                 if (tailClosed) {
                     return Transport.END_OF_STREAM;
                 } else {
+                    if (bufferSizing != null) {
+                        adaptInputBuffer();
+                    }
+
                     return inputBuffer.remaining();
                 }
             } else {
@@ -455,6 +1278,7 @@ public class WebSocketImpl implements WebSocket, TransportLayer {
                 switch (webSocketState) {
                     case PN_WS_CONNECTING:
                     case PN_WS_CONNECTED_FLOW:
+                    case PN_WS_CONNECTED_PONG:
                         processInput();
                         break;
                     case PN_WS_NOT_STARTED:
@@ -470,6 +1294,9 @@ public class WebSocketImpl implements WebSocket, TransportLayer {
         @Override
         public void close_tail() {
             tailClosed = true;
+            if (perMessageDeflate != null) {
+                perMessageDeflate.endInflater();
+            }
             if (isWebSocketEnabled) {
                 headClosed = true;
                 underlyingInput.close_tail();
@@ -488,13 +1315,13 @@ public class WebSocketImpl implements WebSocket, TransportLayer {
 
                             writeUpgradeRequest();
 
-                            head.limit(outputBuffer.position());
+                            outputHead.limit(outputBuffer.position());
 
                             if (headClosed) {
                                 webSocketState = WebSocketState.PN_WS_FAILED;
                                 return Transport.END_OF_STREAM;
                             } else {
-                                return outputBuffer.position();
+                                return pending();
                             }
                         } else {
                             return outputBuffer.position();
@@ -504,16 +1331,49 @@ public class WebSocketImpl implements WebSocket, TransportLayer {
                         if (headClosed && (outputBuffer.position() == 0)) {
                             webSocketState = WebSocketState.PN_WS_FAILED;
                             return Transport.END_OF_STREAM;
-                        } else {
-                            return outputBuffer.position();
                         }
+
+                        // A pipelined upgrade frames AMQP output right behind what is left of the request, one frame
+                        // at a time, as in the connected state.
+                        if (pipelinedUpgrade && framedBytes == 0) {
+                            underlyingOutputSize = underlyingOutput.pending();
+
+                            if (underlyingOutputSize > 0) {
+                                frameOutput();
+                            }
+                        }
+
+                        return outputBuffer.position();
                     case PN_WS_CONNECTED_FLOW:
+                        if (keepAlive != null && !checkKeepAlive()) {
+                            return Transport.END_OF_STREAM;
+                        }
+
+                        // Control frames go out between data frames, ahead of any more AMQP output.
+                        if (framedBytes > 0) {
+                            return framedBytes;
+                        } else if (hasQueuedControlFrames()) {
+                            return controlBuffer.position();
+                        }
+
                         underlyingOutputSize = underlyingOutput.pending();
 
-                        if (underlyingOutputSize > 0) {
-                            webSocketHeaderSize = webSocketHandler.calculateHeaderSize(underlyingOutputSize);
-                            return underlyingOutputSize + webSocketHeaderSize;
+                        if ((writeCoalescer != null) && writeCoalescer.shouldDefer(underlyingOutputSize)) {
+                            return 0;
+                        }
+
+                        if (underlyingOutputSize > 0 && perMessageDeflate != null) {
+                            // The size of a compressed frame is only known once it is framed.
+                            frameOutput();
+                            return framedBytes;
+                        } else if (underlyingOutputSize > 0) {
+                            growOutputBuffer(underlyingOutputSize + WebSocketHeader.MAX_HEADER_LENGTH_MASKED);
+
+                            // Output that does not fit in one frame is sent as several, so only report the next one.
+                            final int framePayloadSize = Math.min(underlyingOutputSize, Utils.getMaxPayloadSize(outputBuffer.capacity()));
+                            return framePayloadSize + webSocketHandler.calculateHeaderSize(framePayloadSize);
                         } else {
+                            shrinkOutputBuffer();
                             return underlyingOutputSize;
                         }
                     case PN_WS_CONNECTED_PONG:
@@ -521,26 +1381,33 @@ public class WebSocketImpl implements WebSocket, TransportLayer {
 
                         writePong();
 
-                        head.limit(outputBuffer.position());
-
                         if (headClosed) {
                             webSocketState = WebSocketState.PN_WS_FAILED;
+                            endPerMessageDeflate();
                             return Transport.END_OF_STREAM;
                         } else {
-                            return outputBuffer.position();
+                            return pending();
                         }
                     case PN_WS_CONNECTED_CLOSING:
                         webSocketState = WebSocketState.PN_WS_CLOSED;
+                        endPerMessageDeflate();
 
                         writeClose();
 
-                        head.limit(outputBuffer.position());
-
                         if (headClosed) {
                             webSocketState = WebSocketState.PN_WS_FAILED;
                             return Transport.END_OF_STREAM;
                         } else {
-                            return outputBuffer.position();
+                            return pending();
+                        }
+                    case PN_WS_CLOSED:
+                        // Finish sending the data frame that was partially sent, then the close frame.
+                        if (framedBytes > 0) {
+                            return framedBytes;
+                        } else if (hasQueuedControlFrames()) {
+                            return controlBuffer.position();
+                        } else {
+                            return Transport.END_OF_STREAM;
                         }
                     case PN_WS_FAILED:
                     default:
@@ -551,28 +1418,87 @@ public class WebSocketImpl implements WebSocket, TransportLayer {
             }
         }
 
+        /**
+         * Frames as much of the pending underlying output as fits into the output buffer, compressed if
+         * permessage-deflate was negotiated and it makes the frame smaller. Nothing is framed if not even one byte of
+         * payload fits.
+         */
+        private void frameOutput() {
+            // Once connected, the output buffer holds nothing left to send when a frame is built, and the handler writes
+            // the frame from its start. While connecting, a pipelined frame follows what is left of the upgrade request,
+            // so it is written into the rest of the output buffer.
+            final int frameStart = webSocketState == WebSocketState.PN_WS_CONNECTING ? outputBuffer.position() : 0;
+
+            growOutputBuffer(frameStart + underlyingOutputSize + WebSocketHeader.MAX_HEADER_LENGTH_MASKED);
+
+            final int maxPayloadSize = Utils.getMaxPayloadSize(outputBuffer.capacity() - frameStart);
+            if (maxPayloadSize < 1) {
+                return;
+            }
+
+            // The bytes are only consumed from the underlying output once the frame is popped, so put its head back
+            // where it was after framing as much of it as fits.
+            final ByteBuffer underlyingHead = underlyingOutput.head();
+            final int underlyingHeadPosition = underlyingHead.position();
+
+            final int payloadSize = Math.min(underlyingHead.remaining(), maxPayloadSize);
+            final ByteBuffer frame = frameStart == 0 ? outputBuffer : outputBuffer.slice();
+
+            final ByteBuffer compressed = perMessageDeflate != null ? perMessageDeflate.deflate(underlyingHead, payloadSize) : null;
+            if (compressed != null) {
+                wrapBuffer(compressed, frame);
+                frame.put(0, (byte) (frame.get(0) | WebSocketHeader.RSV1_MASK));
+            } else {
+                wrapBuffer(underlyingHead, frame);
+            }
+
+            if (frameStart > 0) {
+                outputBuffer.position(frameStart + frame.position());
+            }
+
+            framedPayloadSize = underlyingHead.position() - underlyingHeadPosition;
+            underlyingHead.position(underlyingHeadPosition);
+
+            framedBytes = outputBuffer.position();
+            outputHead.position(0);
+            outputHead.limit(outputBuffer.position());
+        }
+
         @Override
         public ByteBuffer head() {
             if (isWebSocketEnabled) {
                 switch (webSocketState) {
                     case PN_WS_CONNECTING:
+                        return outputHead;
                     case PN_WS_CONNECTED_PONG:
                     case PN_WS_CONNECTED_CLOSING:
-                        return head;
+                        return (framedBytes == 0) && hasQueuedControlFrames() ? controlHead : outputHead;
                     case PN_WS_CONNECTED_FLOW:
-                        underlyingOutputSize = underlyingOutput.pending();
-
-                        if (underlyingOutputSize > 0) {
-                            wrapBuffer(underlyingOutput.head(), outputBuffer);
+                        // A frame is only built once the previous one was sent completely. Until then, the rest of
+                        // the previous frame is returned as it was framed and masked. Queued control frames go out
+                        // before the next one.
+                        if (framedBytes == 0) {
+                            if (hasQueuedControlFrames()) {
+                                return controlHead;
+                            }
 
-                            webSocketHeaderSize = outputBuffer.position() - underlyingOutputSize;
+                            underlyingOutputSize = underlyingOutput.pending();
 
-                            head.limit(outputBuffer.position());
+                            if (underlyingOutputSize > 0) {
+                                frameOutput();
+                            }
                         }
 
-                        return head;
-                    case PN_WS_NOT_STARTED:
+                        return outputHead;
                     case PN_WS_CLOSED:
+                        if (framedBytes > 0) {
+                            return outputHead;
+                        } else if (hasQueuedControlFrames()) {
+                            return controlHead;
+                        } else {
+                            return underlyingOutput.head();
+                        }
+                    case PN_WS_NOT_STARTED:
                     case PN_WS_FAILED:
                     default:
                         return underlyingOutput.head();
@@ -589,11 +1515,7 @@ public class WebSocketImpl implements WebSocket, TransportLayer {
                 switch (webSocketState) {
                     case PN_WS_CONNECTING:
                         if (outputBuffer.position() != 0) {
-                            outputBuffer.flip();
-                            outputBuffer.position(bytes);
-                            outputBuffer.compact();
-                            head.position(0);
-                            head.limit(outputBuffer.position());
+                            popOutputBuffer(bytes);
                         } else {
                             underlyingOutput.pop(bytes);
                         }
@@ -601,22 +1523,20 @@ public class WebSocketImpl implements WebSocket, TransportLayer {
                     case PN_WS_CONNECTED_FLOW:
                     case PN_WS_CONNECTED_PONG:
                     case PN_WS_CONNECTED_CLOSING:
-                        if ((bytes >= webSocketHeaderSize) && (outputBuffer.position() != 0)) {
-                            outputBuffer.flip();
-                            outputBuffer.position(bytes);
-                            outputBuffer.compact();
-                            head.position(0);
-                            head.limit(outputBuffer.position());
-                            underlyingOutput.pop(bytes - webSocketHeaderSize);
-                            webSocketHeaderSize = 0;
-                        } else if ((bytes > 0) && (bytes < webSocketHeaderSize)) {
-                            webSocketHeaderSize -= bytes;
+                    case PN_WS_CLOSED:
+                        if (keepAlive != null && bytes > 0) {
+                            keepAlive.onActivity();
+                        }
+
+                        if (framedBytes > 0) {
+                            popOutputBuffer(bytes);
+                        } else if (hasQueuedControlFrames()) {
+                            popControlFrames(bytes);
                         } else {
                             underlyingOutput.pop(bytes);
                         }
                         break;
                     case PN_WS_NOT_STARTED:
-                    case PN_WS_CLOSED:
                     case PN_WS_FAILED:
                         underlyingOutput.pop(bytes);
                         break;
@@ -628,8 +1548,32 @@ public class WebSocketImpl implements WebSocket, TransportLayer {
             }
         }
 
+        /**
+         * Removes the bytes sent from the output buffer. Once a frame is sent completely, the underlying output it
+         * carries is popped. With a pipelined upgrade, the frame follows the upgrade request in the buffer, and
+         * {@link #framedBytes} counts both.
+         */
+        private void popOutputBuffer(int bytes) {
+            outputBuffer.flip();
+            outputBuffer.position(bytes);
+            outputBuffer.compact();
+            outputHead.position(0);
+            outputHead.limit(outputBuffer.position());
+
+            if (framedBytes > 0) {
+                framedBytes -= bytes;
+                if ((framedBytes == 0) && (framedPayloadSize > 0)) {
+                    underlyingOutput.pop(framedPayloadSize);
+                    framedPayloadSize = 0;
+                }
+            }
+        }
+
         @Override
         public void close_head() {
+            if (perMessageDeflate != null) {
+                perMessageDeflate.endDeflater();
+            }
             underlyingOutput.close_head();
         }
     }
@@ -0,0 +1,70 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.ws.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Applies the WebSocket payload mask. Masking XORs the payload with a repeating 4 byte key, so the same operation
+ * also removes the mask.
+ *
+ * @see <a href="https://datatracker.ietf.org/doc/html/rfc6455#section-5.3">RFC6455: Client-to-Server Masking</a>
+ */
+final class WebSocketMasking {
+    private static final long INT_MASK = 0xFFFFFFFFL;
+
+    /**
+     * Copies the remaining bytes of {@code srcBuffer} into {@code dstBuffer}, XOR-ing them with {@code maskingKey}.
+     * Both buffers are advanced by the number of bytes copied, which is all of {@code srcBuffer}.
+     *
+     * <p>The bulk of the payload is processed eight bytes at a time through the buffers' long views. These are
+     * intrinsified by the JIT for both heap and direct buffers, so they run as plain 64 bit loads and stores.</p>
+     *
+     * @param srcBuffer Bytes to mask.
+     * @param dstBuffer Buffer to write the masked bytes to.
+     * @param maskingKey The 4 byte masking key, most significant byte first.
+     * @param keyIndex Index of the masking key byte to apply to the first byte, so that a payload can be masked in
+     *     several calls.
+     * @return The masking key index to pass for the byte that follows the ones masked.
+     */
+    static int mask(ByteBuffer srcBuffer, ByteBuffer dstBuffer, int maskingKey, int keyIndex) {
+        // Rotate the key so that the byte to apply first is the most significant one.
+        final int key = Integer.rotateLeft(maskingKey, (keyIndex & 3) << 3);
+        int index = 0;
+
+        if (srcBuffer.remaining() >= Long.BYTES) {
+            long mask = ((long) key << 32) | (key & INT_MASK);
+            if (srcBuffer.order() == ByteOrder.LITTLE_ENDIAN) {
+                mask = Long.reverseBytes(mask);
+            }
+
+            if (srcBuffer.order() == dstBuffer.order()) {
+                while (srcBuffer.remaining() >= Long.BYTES) {
+                    dstBuffer.putLong(srcBuffer.getLong() ^ mask);
+                    index += Long.BYTES;
+                }
+            } else {
+                // Swapping the bytes keeps them in the order they were read in.
+                while (srcBuffer.remaining() >= Long.BYTES) {
+                    dstBuffer.putLong(Long.reverseBytes(srcBuffer.getLong() ^ mask));
+                    index += Long.BYTES;
+                }
+            }
+        }
+
+        while (srcBuffer.hasRemaining()) {
+            dstBuffer.put((byte) (srcBuffer.get() ^ (key >>> (24 - ((index & 3) << 3)))));
+            index++;
+        }
+
+        return (keyIndex + index) & 3;
+    }
+
+    /**
+     * So an instance of class cannot be created.
+     */
+    private WebSocketMasking() {
+    }
+}
@@ -3,13 +3,18 @@
 
 package com.microsoft.azure.proton.transport.ws.impl;
 
+import com.microsoft.azure.proton.transport.http.impl.HttpRequestTemplate;
+import com.microsoft.azure.proton.transport.http.impl.HttpResponseParser;
+import com.microsoft.azure.proton.transport.proxy.HttpStatusLine;
+
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidParameterException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Locale;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 
 /**
  * Represents a web socket upgrade request.
@@ -18,6 +23,7 @@ public class WebSocketUpgrade {
     private static final String RFC_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
     private static final char QUESTION_MARK = '?';
     private static final char SLASH = '/';
+    private static final int SWITCHING_PROTOCOLS = 101;
 
     private final String query;
     private final String host;
@@ -27,6 +33,7 @@ public class WebSocketUpgrade {
     private final Map<String, String> additionalHeaders;
 
     private volatile String webSocketKey = "";
+    private volatile String extensions;
 
     /**
      * Create {@link WebSocketUpgrade} instance, which can be used for websocket upgrade hand-shake with http server
@@ -75,6 +82,16 @@ public class WebSocketUpgrade {
      * @return http request to upgrade to websockets.
      */
     public String createUpgradeRequest() {
+        return StandardCharsets.ISO_8859_1.decode(createUpgradeRequestBuffer()).toString();
+    }
+
+    /**
+     * Create the Upgrade to websocket request as per the RFC https://tools.ietf.org/html/rfc6455, encoded as ISO-8859-1.
+     * The request line and the fixed headers are encoded once per endpoint and reused by later requests to it. The
+     * Sec-WebSocket-Key and the additional headers are encoded every time.
+     * @return http request to upgrade to websockets, from the position to the limit of the buffer.
+     */
+    public ByteBuffer createUpgradeRequestBuffer() {
         if (this.host.isEmpty()) {
             throw new InvalidParameterException("host header has no value");
         }
@@ -83,31 +100,56 @@ public class WebSocketUpgrade {
             throw new InvalidParameterException("protocol header has no value");
         }
 
+        final HttpRequestTemplate template = HttpRequestTemplate.getOrCreate(createTemplateKey(), this::createTemplate);
+
         this.webSocketKey = createWebSocketKey();
 
-        final String endOfLine = "\r\n";
-        final StringBuilder stringBuilder = new StringBuilder()
-                .append("GET https://")
-                .append(this.host)
-                .append(this.path)
-                .append(this.query)
-                .append(" HTTP/1.1").append(endOfLine)
-                .append("Connection: Upgrade,Keep-Alive").append(endOfLine)
-                .append("Upgrade: websocket").append(endOfLine)
-                .append("Sec-WebSocket-Version: 13").append(endOfLine)
-                .append("Sec-WebSocket-Key: ").append(this.webSocketKey).append(endOfLine)
-                .append("Sec-WebSocket-Protocol: ").append(this.protocol).append(endOfLine)
-                .append("Host: ").append(this.host).append(endOfLine);
+        int size = template.size(this.webSocketKey) + HttpRequestTemplate.newLineSize();
+        if (additionalHeaders != null) {
+            for (Map.Entry<String, String> entry : additionalHeaders.entrySet()) {
+                size += HttpRequestTemplate.headerSize(entry.getKey(), String.valueOf(entry.getValue()));
+            }
+        }
+
+        final ByteBuffer request = ByteBuffer.allocate(size);
+        template.write(request, this.webSocketKey);
 
         if (additionalHeaders != null) {
             for (Map.Entry<String, String> entry : additionalHeaders.entrySet()) {
-                stringBuilder.append(entry.getKey()).append(": ").append(entry.getValue()).append(endOfLine);
+                HttpRequestTemplate.putHeader(request, entry.getKey(), String.valueOf(entry.getValue()));
             }
         }
 
-        stringBuilder.append(endOfLine);
+        HttpRequestTemplate.putNewLine(request);
+        request.flip();
+        return request;
+    }
+
+    /**
+     * Gets the values that identify the endpoint. The additional headers are left out, since their values, such as
+     * tokens, may change from one request to the next.
+     */
+    private List<String> createTemplateKey() {
+        return Arrays.asList("GET", this.host, this.path, this.query, this.protocol);
+    }
 
-        return stringBuilder.toString();
+    /**
+     * Encodes the request line and the fixed headers of the upgrade request, with a slot for the Sec-WebSocket-Key.
+     */
+    private HttpRequestTemplate createTemplate() {
+        return new HttpRequestTemplate.Builder()
+                .append("GET https://")
+                .append(this.host)
+                .append(this.path)
+                .append(this.query)
+                .append(" HTTP/1.1").appendNewLine()
+                .appendHeader("Connection", "Upgrade,Keep-Alive")
+                .appendHeader("Upgrade", "websocket")
+                .appendHeader("Sec-WebSocket-Version", "13")
+                .append("Sec-WebSocket-Key: ").appendSlot().appendNewLine()
+                .appendHeader("Sec-WebSocket-Protocol", this.protocol)
+                .appendHeader("Host", this.host)
+                .build();
     }
 
     /**
@@ -116,68 +158,77 @@ public class WebSocketUpgrade {
      * @return value indicating if the websockets upgrade succeeded
      */
     public Boolean validateUpgradeReply(byte[] responseBytes) {
-        final String httpString = new String(responseBytes, StandardCharsets.UTF_8);
-
-        boolean isStatusLineOk = false;
-        boolean isUpgradeHeaderOk = false;
-        boolean isConnectionHeaderOk = false;
-        boolean isProtocolHeaderOk = false;
-        boolean isAcceptHeaderOk = false;
-
-        final Scanner scanner = new Scanner(httpString);
-
-        while (scanner.hasNextLine()) {
-            final String line = scanner.nextLine();
-            final String lowercase = line.toLowerCase(Locale.ROOT);
-
-            if ((lowercase.contains("http/1.1"))
-                    && (line.contains("101"))
-                    && (lowercase.contains("switching protocols"))) {
-                isStatusLineOk = true;
-
-                continue;
-            }
+        return validateUpgradeReply(ByteBuffer.wrap(responseBytes));
+    }
 
-            if ((lowercase.contains("upgrade")) && (lowercase.contains("websocket"))) {
-                isUpgradeHeaderOk = true;
+    /**
+     * Validate the response received for 'upgrade to websockets' request from http server. The reply is read from the
+     * position of {@code buffer}. If the upgrade succeeded, the position is moved to the end of the reply, so that any
+     * frames the server sent right after it stay in the buffer.
+     * @param buffer bytes received from http server
+     * @return value indicating if the websockets upgrade succeeded. false if the reply is incomplete or malformed.
+     */
+    public Boolean validateUpgradeReply(ByteBuffer buffer) {
+        final ByteBuffer reply = buffer.duplicate();
+        final HttpResponseParser parser = new HttpResponseParser();
 
-                continue;
+        try {
+            if (!parser.parse(reply)) {
+                return false;
             }
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
 
-            if ((lowercase.contains("connection")) && (lowercase.contains("upgrade"))) {
-                isConnectionHeaderOk = true;
+        final HttpStatusLine statusLine = parser.getStatusLine();
+        if (statusLine == null
+                || !"1.1".equals(statusLine.getProtocolVersion())
+                || statusLine.getStatusCode() != SWITCHING_PROTOCOLS) {
+            return false;
+        }
 
-                continue;
-            }
+        if (!parser.hasToken("Upgrade", "websocket") || !parser.hasToken("Connection", "Upgrade")) {
+            return false;
+        }
 
-            if (lowercase.contains("sec-websocket-protocol") && (lowercase.contains(protocol.toLowerCase(Locale.ROOT)))) {
-                isProtocolHeaderOk = true;
+        if (!parser.hasToken("Sec-WebSocket-Protocol", protocol)) {
+            return false;
+        }
 
-                continue;
-            }
+        final String accept = parser.getHeader("Sec-WebSocket-Accept");
+        if (accept == null || !accept.equals(createExpectedAccept())) {
+            return false;
+        }
 
-            if (lowercase.contains("sec-websocket-accept")) {
-                MessageDigest messageDigest = null;
+        final List<String> extensionValues = parser.getHeaders().get(PerMessageDeflate.EXTENSIONS_HEADER);
+        extensions = extensionValues == null ? null : String.join(", ", extensionValues);
 
-                try {
-                    messageDigest = MessageDigest.getInstance("SHA-1");
-                } catch (NoSuchAlgorithmException e) {
-                    // can't happen since SHA-1 is a known digest
-                    break;
-                }
+        buffer.position(reply.position());
+        return true;
+    }
 
-                final byte[] bytes = (this.webSocketKey + RFC_GUID).getBytes(StandardCharsets.ISO_8859_1);
-                final String expectedKey = Base64.encodeBase64StringLocal(messageDigest.digest(bytes)).trim();
+    /**
+     * Gets the Sec-WebSocket-Extensions headers of the last upgrade reply that was validated.
+     * @return the values of the headers, separated by commas, or null if the reply had none
+     */
+    public String getExtensions() {
+        return extensions;
+    }
 
-                if (line.contains(expectedKey)) {
-                    isAcceptHeaderOk = true;
-                }
-            }
+    /**
+     * Computes the Sec-WebSocket-Accept value the server answers the current key with.
+     */
+    private String createExpectedAccept() {
+        final MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // can't happen since SHA-1 is a known digest
+            throw new IllegalStateException(e);
         }
 
-        scanner.close();
-
-        return (isStatusLineOk) && (isUpgradeHeaderOk) && (isConnectionHeaderOk) && (isProtocolHeaderOk) && (isAcceptHeaderOk);
+        final byte[] bytes = (this.webSocketKey + RFC_GUID).getBytes(StandardCharsets.ISO_8859_1);
+        return Base64.encodeBase64StringLocal(messageDigest.digest(bytes)).trim();
     }
 
     @Override
@@ -0,0 +1,115 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.ws.impl;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Decides when pending AMQP output is framed, so that several small writes can share one WebSocket frame. Output is
+ * held back until at least {@code thresholdBytes} are pending or the oldest held back byte has waited
+ * {@code maxDelayNanos}.
+ */
+final class WriteCoalescer {
+    private final int thresholdBytes;
+    private final long maxDelayNanos;
+    private final LongSupplier nanoClock;
+
+    private long deferredSince;
+    private int deferredBytes;
+
+    private long coalescedFrameCount;
+    private long totalDelayNanos;
+    private long maxObservedDelayNanos;
+
+    /**
+     * Creates a coalescer.
+     *
+     * @param thresholdBytes Number of pending bytes at which output is framed right away.
+     * @param maxDelayNanos Longest time output is held back, in nanoseconds.
+     * @param nanoClock Source of the current time, in nanoseconds.
+     */
+    WriteCoalescer(int thresholdBytes, long maxDelayNanos, LongSupplier nanoClock) {
+        this.thresholdBytes = thresholdBytes;
+        this.maxDelayNanos = maxDelayNanos;
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Gets whether framing {@code pendingBytes} of output should wait for more output.
+     *
+     * @param pendingBytes Number of bytes the underlying output has pending.
+     * @return true if the output should be held back, false if it should be framed now.
+     */
+    boolean shouldDefer(int pendingBytes) {
+        if (pendingBytes <= 0) {
+            return false;
+        }
+
+        final long now = nanoClock.getAsLong();
+
+        if (deferredBytes == 0) {
+            if (pendingBytes >= thresholdBytes || maxDelayNanos <= 0) {
+                return false;
+            }
+
+            deferredSince = now;
+            deferredBytes = pendingBytes;
+            return true;
+        }
+
+        // Output grew while it was held back, so one frame fewer is sent.
+        if (pendingBytes > deferredBytes) {
+            coalescedFrameCount++;
+            deferredBytes = pendingBytes;
+        }
+
+        final long delay = now - deferredSince;
+        if (pendingBytes < thresholdBytes && delay < maxDelayNanos) {
+            return true;
+        }
+
+        totalDelayNanos += delay;
+        maxObservedDelayNanos = Math.max(maxObservedDelayNanos, delay);
+        deferredBytes = 0;
+        return false;
+    }
+
+    /**
+     * Forgets held back output and clears the statistics, for use on a new connection.
+     */
+    void reset() {
+        deferredSince = 0;
+        deferredBytes = 0;
+        coalescedFrameCount = 0;
+        totalDelayNanos = 0;
+        maxObservedDelayNanos = 0;
+    }
+
+    /**
+     * Gets the number of frames that were not sent because their output was added to another frame.
+     *
+     * @return The number of frames saved.
+     */
+    long getCoalescedFrameCount() {
+        return coalescedFrameCount;
+    }
+
+    /**
+     * Gets the total time output was held back, in nanoseconds.
+     *
+     * @return The total added latency.
+     */
+    long getTotalDelayNanos() {
+        return totalDelayNanos;
+    }
+
+    /**
+     * Gets the longest time output was held back, in nanoseconds.
+     *
+     * @return The largest added latency.
+     */
+    long getMaxDelayNanos() {
+        return maxObservedDelayNanos;
+    }
+}
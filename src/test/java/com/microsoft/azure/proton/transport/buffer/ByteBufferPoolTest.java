@@ -0,0 +1,132 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.buffer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ByteBufferPoolTest {
+    @Test
+    public void testAcquireReusesReleasedBuffer() {
+        ByteBufferPool pool = new ByteBufferPool(1024);
+
+        ByteBuffer buffer = pool.acquire(100);
+        assertEquals(100, buffer.capacity());
+        assertEquals(0, buffer.position());
+        assertEquals(100, buffer.limit());
+
+        buffer.put((byte) 1).limit(50);
+        pool.release(buffer);
+        assertEquals(100, pool.getRetainedBytes());
+
+        ByteBuffer reused = pool.acquire(100);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(100, reused.limit());
+        assertEquals(0, pool.getRetainedBytes());
+
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(0.5, pool.getHitRate(), 0);
+    }
+
+    @Test
+    public void testAcquireOnlyReusesSameCapacity() {
+        ByteBufferPool pool = new ByteBufferPool(1024);
+
+        ByteBuffer buffer = pool.acquire(100);
+        pool.release(buffer);
+
+        ByteBuffer other = pool.acquire(200);
+        assertNotSame(buffer, other);
+        assertEquals(200, other.capacity());
+        assertEquals(100, pool.getRetainedBytes());
+        assertEquals(0, pool.getHitCount());
+    }
+
+    @Test
+    public void testReleaseEvictsFromLargestSizeClass() {
+        ByteBufferPool pool = new ByteBufferPool(500);
+
+        ByteBuffer small = pool.acquire(100);
+        ByteBuffer large1 = pool.acquire(200);
+        ByteBuffer large2 = pool.acquire(200);
+        pool.release(small);
+        pool.release(large1);
+        pool.release(large2);
+        assertEquals(500, pool.getRetainedBytes());
+
+        // Over budget: the least recently released buffer of the 200 byte class is dropped.
+        pool.release(pool.acquire(100));
+        pool.release(ByteBuffer.allocate(100));
+        assertEquals(400, pool.getRetainedBytes());
+        assertEquals(1, pool.getEvictionCount());
+
+        assertSame(large2, pool.acquire(200));
+        assertEquals(200, pool.getRetainedBytes());
+    }
+
+    @Test
+    public void testReleaseBufferLargerThanBudget() {
+        ByteBufferPool pool = new ByteBufferPool(100);
+
+        pool.release(ByteBuffer.allocate(101));
+
+        assertEquals(0, pool.getRetainedBytes());
+        assertEquals(1, pool.getEvictionCount());
+    }
+
+    @Test
+    public void testDirectPool() {
+        ByteBufferPool pool = new ByteBufferPool(1024, true);
+
+        ByteBuffer buffer = pool.acquire(100);
+        assertTrue(buffer.isDirect());
+        assertTrue(pool.isDirect());
+
+        pool.release(buffer);
+        assertSame(buffer, pool.acquire(100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReleaseHeapBufferToDirectPool() {
+        new ByteBufferPool(1024, true).release(ByteBuffer.allocate(100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReleaseDirectBufferToHeapPool() {
+        new ByteBufferPool(1024).release(ByteBuffer.allocateDirect(100));
+    }
+
+    @Test
+    public void testHitRateWithoutAcquire() {
+        assertEquals(0, new ByteBufferPool(100).getHitRate(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeBudget() {
+        new ByteBufferPool(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAcquireZeroCapacity() {
+        new ByteBufferPool(100).acquire(0);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testReleaseNull() {
+        new ByteBufferPool(100).release(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReleaseReadOnly() {
+        new ByteBufferPool(100).release(ByteBuffer.allocate(10).asReadOnlyBuffer());
+    }
+}
@@ -0,0 +1,108 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.http.impl;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+
+public class HttpRequestTemplateTest {
+    @After
+    public void teardown() {
+        HttpRequestTemplate.clearCache();
+    }
+
+    @Test
+    public void testWriteWithSlots() {
+        HttpRequestTemplate template = new HttpRequestTemplate.Builder()
+            .append("GET /path HTTP/1.1").appendNewLine()
+            .append("X-Key: ").appendSlot().appendNewLine()
+            .appendHeader("Host", "example.com")
+            .append("X-Other: ").appendSlot().appendNewLine()
+            .appendNewLine()
+            .build();
+
+        assertEquals(2, template.getSlotCount());
+
+        String expected = "GET /path HTTP/1.1\r\nX-Key: abc\r\nHost: example.com\r\nX-Other: \r\n\r\n";
+        ByteBuffer buffer = ByteBuffer.allocateDirect(template.size("abc", ""));
+        template.write(buffer, "abc", "");
+
+        assertEquals(expected.length(), buffer.position());
+        buffer.flip();
+        assertEquals(expected, StandardCharsets.ISO_8859_1.decode(buffer).toString());
+    }
+
+    @Test
+    public void testWriteHeaders() {
+        ByteBuffer buffer = ByteBuffer.allocate(HttpRequestTemplate.headerSize("Name", "café €")
+            + HttpRequestTemplate.newLineSize());
+
+        HttpRequestTemplate.putHeader(buffer, "Name", "café €");
+        HttpRequestTemplate.putNewLine(buffer);
+
+        // The euro sign is not in ISO-8859-1.
+        assertEquals(0, buffer.remaining());
+        assertEquals("Name: café ?\r\n\r\n", new String(buffer.array(), StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void testWrongNumberOfValues() {
+        HttpRequestTemplate template = new HttpRequestTemplate.Builder().append("a").appendSlot().build();
+
+        assertThrows(IllegalArgumentException.class, () -> template.size());
+        assertThrows(IllegalArgumentException.class, () -> template.write(ByteBuffer.allocate(10), "b", "c"));
+    }
+
+    @Test
+    public void testWriteOverflow() {
+        HttpRequestTemplate template = new HttpRequestTemplate.Builder().append("abc").build();
+
+        assertThrows(BufferOverflowException.class, () -> template.write(ByteBuffer.allocate(2)));
+    }
+
+    @Test
+    public void testGetOrCreateCachesByKey() {
+        HttpRequestTemplate first = HttpRequestTemplate.getOrCreate(Arrays.asList("host", "path"),
+            () -> new HttpRequestTemplate.Builder().append("one").build());
+        HttpRequestTemplate second = HttpRequestTemplate.getOrCreate(Arrays.asList("host", "path"),
+            () -> new HttpRequestTemplate.Builder().append("two").build());
+        HttpRequestTemplate other = HttpRequestTemplate.getOrCreate(Arrays.asList("host", "other"),
+            () -> new HttpRequestTemplate.Builder().append("three").build());
+
+        assertSame(first, second);
+        assertNotSame(first, other);
+    }
+
+    @Test
+    public void testGetOrCreateIsBounded() {
+        for (int i = 0; i < HttpRequestTemplate.MAX_CACHED_TEMPLATES; i++) {
+            HttpRequestTemplate.getOrCreate(Collections.singletonList(String.valueOf(i)),
+                () -> new HttpRequestTemplate.Builder().build());
+        }
+
+        // Once the cache is full, new templates are still built, but not kept.
+        HttpRequestTemplate first = HttpRequestTemplate.getOrCreate(Collections.singletonList("new"),
+            () -> new HttpRequestTemplate.Builder().build());
+        HttpRequestTemplate second = HttpRequestTemplate.getOrCreate(Collections.singletonList("new"),
+            () -> new HttpRequestTemplate.Builder().build());
+        assertNotSame(first, second);
+
+        // Templates cached before are still returned.
+        HttpRequestTemplate cached = HttpRequestTemplate.getOrCreate(Collections.singletonList("0"),
+            () -> new HttpRequestTemplate.Builder().build());
+        assertSame(cached, HttpRequestTemplate.getOrCreate(Collections.singletonList("0"),
+            () -> new HttpRequestTemplate.Builder().build()));
+    }
+}
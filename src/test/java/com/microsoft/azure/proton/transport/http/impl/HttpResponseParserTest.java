@@ -0,0 +1,150 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.http.impl;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class HttpResponseParserTest {
+    private static final String HEAD = "HTTP/1.1 101 Switching Protocols\r\n"
+        + "Upgrade: websocket\r\n"
+        + "Connection: keep-alive, Upgrade\r\n"
+        + "Set-Cookie: a=1\r\n"
+        + "set-cookie: b=2\r\n"
+        + "\r\n";
+
+    @Test
+    public void testParseWholeHead() {
+        HttpResponseParser parser = new HttpResponseParser();
+        ByteBuffer buffer = encode(HEAD + "body");
+
+        assertTrue(parser.parse(buffer));
+
+        assertTrue(parser.isComplete());
+        assertEquals(HEAD.length(), buffer.position());
+        assertEquals(HEAD.length(), parser.getHeadLength());
+        assertEquals("1.1", parser.getStatusLine().getProtocolVersion());
+        assertEquals(101, parser.getStatusLine().getStatusCode());
+        assertEquals("Switching Protocols", parser.getStatusLine().getReason());
+        assertEquals("websocket", parser.getHeader("UPGRADE"));
+        assertEquals(Arrays.asList("a=1", "b=2"), parser.getHeaders().get("Set-Cookie"));
+        assertNull(parser.getHeader("Sec-WebSocket-Accept"));
+    }
+
+    @Test
+    public void testParseOneByteAtATime() {
+        HttpResponseParser parser = new HttpResponseParser();
+        byte[] bytes = (HEAD + "AB").getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+
+        for (int i = 0; i < HEAD.length() - 1; i++) {
+            buffer.limit(i + 1);
+            buffer.put(i, bytes[i]);
+            assertFalse(parser.parse(buffer));
+            assertEquals(i + 1, buffer.position());
+        }
+
+        // The last byte of the head arrives with bytes that follow it, which are left in the buffer.
+        buffer.limit(bytes.length);
+        for (int i = HEAD.length() - 1; i < bytes.length; i++) {
+            buffer.put(i, bytes[i]);
+        }
+
+        assertTrue(parser.parse(buffer));
+        assertEquals(2, buffer.remaining());
+        assertEquals(Arrays.asList("keep-alive, Upgrade"), parser.getHeaders().get("connection"));
+    }
+
+    @Test
+    public void testBareLineFeedsAndContinuationLines() {
+        HttpResponseParser parser = new HttpResponseParser();
+
+        assertTrue(parser.parse(encode("HTTP/1.0 200 OK\nX-Long: first\n\tsecond\nX-Empty:\n\n")));
+
+        assertEquals("1.0", parser.getStatusLine().getProtocolVersion());
+        assertEquals("first second", parser.getHeader("x-long"));
+        assertEquals("", parser.getHeader("X-Empty"));
+    }
+
+    @Test
+    public void testEmptyHead() {
+        HttpResponseParser parser = new HttpResponseParser();
+
+        assertTrue(parser.parse(encode("\r\n")));
+        assertNull(parser.getStatusLine());
+        assertTrue(parser.getHeaders().isEmpty());
+    }
+
+    @Test
+    public void testHasToken() {
+        HttpResponseParser parser = new HttpResponseParser();
+        parser.parse(encode(HEAD));
+
+        assertTrue(parser.hasToken("Connection", "upgrade"));
+        assertTrue(parser.hasToken("connection", "KEEP-ALIVE"));
+        assertFalse(parser.hasToken("Connection", "close"));
+        assertFalse(parser.hasToken("Proxy-Connection", "close"));
+    }
+
+    @Test
+    public void testReset() {
+        HttpResponseParser parser = new HttpResponseParser();
+        parser.parse(encode(HEAD));
+
+        parser.reset();
+
+        assertFalse(parser.isComplete());
+        assertEquals(0, parser.getHeadLength());
+        assertTrue(parser.getHeaders().isEmpty());
+        assertTrue(parser.parse(encode("HTTP/1.1 200 Connection Established\r\n\r\n")));
+        assertEquals(200, parser.getStatusLine().getStatusCode());
+    }
+
+    @Test
+    public void testHeadTooLarge() {
+        HttpResponseParser parser = new HttpResponseParser(HEAD.length() - 1, 10);
+
+        assertThrows(IllegalArgumentException.class, () -> parser.parse(encode(HEAD)));
+    }
+
+    @Test
+    public void testTooManyHeaders() {
+        HttpResponseParser parser = new HttpResponseParser(1024, 3);
+
+        assertThrows(IllegalArgumentException.class, () -> parser.parse(encode(HEAD)));
+    }
+
+    @Test
+    public void testMalformedHeader() {
+        HttpResponseParser parser = new HttpResponseParser();
+
+        assertThrows(IllegalArgumentException.class, () -> parser.parse(encode("HTTP/1.1 200 OK\r\nUpgrade websocket\r\n\r\n")));
+    }
+
+    @Test
+    public void testMalformedStatusLine() {
+        HttpResponseParser parser = new HttpResponseParser();
+
+        assertThrows(IllegalArgumentException.class, () -> parser.parse(encode("HTTP/1.1 abc OK\r\n\r\n")));
+    }
+
+    @Test
+    public void testInvalidLimits() {
+        assertThrows(IllegalArgumentException.class, () -> new HttpResponseParser(0, 10));
+        assertThrows(IllegalArgumentException.class, () -> new HttpResponseParser(10, 0));
+    }
+
+    private static ByteBuffer encode(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
@@ -0,0 +1,250 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.proxy;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BearerTokenCacheTest {
+    private static final Duration LIFETIME = Duration.ofMinutes(10);
+    private static final Duration REFRESH_AHEAD = Duration.ofMinutes(2);
+
+    private final TestClock clock = new TestClock();
+    private final LocalTokenIssuer issuer = new LocalTokenIssuer(clock);
+    private final BearerTokenCache cache = new BearerTokenCache(issuer, REFRESH_AHEAD, null, clock);
+
+    @Test
+    public void testFirstHandshakeWaitsForToken() {
+        CompletionStage<Map<String, String>> header = cache.create("host", null).getHeaderAsync();
+
+        assertFalse(header.toCompletableFuture().isDone());
+        assertEquals(1, issuer.requests.size());
+
+        issuer.issue();
+
+        assertEquals("Bearer token-1", header.toCompletableFuture().join().get("Proxy-Authorization"));
+    }
+
+    @Test
+    public void testTokenSharedUntilRefreshWindow() {
+        cache.refresh();
+        issuer.issue();
+
+        clock.advance(LIFETIME.minus(REFRESH_AHEAD).minusSeconds(1));
+        for (int i = 0; i < 3; i++) {
+            assertEquals("token-1", cache.getToken().toCompletableFuture().join().getToken());
+        }
+
+        assertEquals(1, issuer.requests.size());
+    }
+
+    @Test
+    public void testRefreshAheadDoesNotMakeHandshakeWait() {
+        cache.refresh();
+        issuer.issue();
+        clock.advance(LIFETIME.minus(REFRESH_AHEAD));
+
+        // The token about to expire is used at once, while one new token is fetched.
+        CompletableFuture<ProxyAccessToken> first = cache.getToken().toCompletableFuture();
+        CompletableFuture<ProxyAccessToken> second = cache.getToken().toCompletableFuture();
+
+        assertEquals("token-1", first.join().getToken());
+        assertEquals("token-1", second.join().getToken());
+        assertEquals(2, issuer.requests.size());
+
+        issuer.issue();
+        assertEquals("token-2", cache.getToken().toCompletableFuture().join().getToken());
+    }
+
+    @Test
+    public void testExpiredTokenIsNotUsed() {
+        cache.refresh();
+        issuer.issue();
+        clock.advance(LIFETIME);
+
+        CompletableFuture<ProxyAccessToken> token = cache.getToken().toCompletableFuture();
+
+        assertFalse(token.isDone());
+        issuer.issue();
+        assertEquals("token-2", token.join().getToken());
+    }
+
+    @Test
+    public void testFailedRefreshKeepsValidToken() {
+        cache.refresh();
+        issuer.issue();
+        clock.advance(LIFETIME.minus(REFRESH_AHEAD));
+
+        cache.getToken();
+        issuer.fail(new IllegalStateException("Issuer is down."));
+
+        assertEquals("token-1", cache.getToken().toCompletableFuture().join().getToken());
+        assertEquals(3, issuer.requests.size());
+    }
+
+    @Test
+    public void testFailedFirstFetchFailsHandshake() {
+        CompletableFuture<Map<String, String>> header = cache.create("host", null).getHeaderAsync().toCompletableFuture();
+
+        issuer.fail(new IllegalStateException("Issuer is down."));
+
+        assertTrue(header.isCompletedExceptionally());
+    }
+
+    @Test
+    public void testRejectedTokenIsFetchedAgain() {
+        cache.refresh();
+        issuer.issue();
+
+        AsyncProxyChallengeProcessor processor = cache.create("host", null);
+        processor.getHeaderAsync();
+        processor.onRejected();
+
+        CompletableFuture<ProxyAccessToken> token = cache.getToken().toCompletableFuture();
+        assertFalse(token.isDone());
+        issuer.issue();
+        assertEquals("token-2", token.join().getToken());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRefreshScheduledAheadOfExpiry() {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        ScheduledFuture<Object> scheduled = mock(ScheduledFuture.class);
+        when(scheduler.schedule(any(Runnable.class), anyLong(), any())).thenAnswer(invocation -> scheduled);
+
+        try (BearerTokenCache scheduledCache = new BearerTokenCache(issuer, REFRESH_AHEAD, scheduler, clock)) {
+            scheduledCache.refresh();
+            issuer.issue();
+
+            verify(scheduler).schedule(any(Runnable.class), eq(LIFETIME.minus(REFRESH_AHEAD).toMillis()),
+                eq(TimeUnit.MILLISECONDS));
+        }
+
+        verify(scheduled).cancel(false);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRefreshAheadLongerThanLifetimeIsNotScheduledAtOnce() {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        when(scheduler.schedule(any(Runnable.class), anyLong(), any())).thenAnswer(invocation -> mock(ScheduledFuture.class));
+
+        try (BearerTokenCache scheduledCache = new BearerTokenCache(issuer, LIFETIME.plusMinutes(1), scheduler, clock)) {
+            scheduledCache.refresh();
+            issuer.issue();
+
+            // The token is refreshed halfway through its lifetime, rather than right away.
+            ArgumentCaptor<Runnable> refresh = ArgumentCaptor.forClass(Runnable.class);
+            verify(scheduler).schedule(refresh.capture(), eq(LIFETIME.dividedBy(2).toMillis()), eq(TimeUnit.MILLISECONDS));
+            assertEquals(1, issuer.requests.size());
+
+            // Close to its expiry, the delay does not drop below the minimum.
+            clock.advance(LIFETIME.minusMillis(100));
+            refresh.getValue().run();
+            issuer.issue(Duration.ofMillis(100));
+            verify(scheduler).schedule(any(Runnable.class), eq(1000L), eq(TimeUnit.MILLISECONDS));
+            assertEquals(2, issuer.requests.size());
+        }
+    }
+
+    @Test
+    public void testRegistry() {
+        ProxyChallengeProcessorRegistry registry = new ProxyChallengeProcessorRegistry().register("Bearer", cache);
+
+        assertSame(cache, registry.getFactory("BEARER"));
+        assertTrue(registry.getSchemes().contains("bearer"));
+
+        registry.unregister("bearer");
+        assertTrue(registry.getSchemes().isEmpty());
+    }
+
+    /**
+     * Stands in for a token issuer. Each request is answered when the test calls {@link #issue()} or
+     * {@link #fail(Throwable)}.
+     */
+    private static final class LocalTokenIssuer implements Supplier<CompletionStage<ProxyAccessToken>> {
+        private final List<CompletableFuture<ProxyAccessToken>> requests = new ArrayList<>();
+        private final Clock clock;
+        private int issued;
+
+        LocalTokenIssuer(Clock clock) {
+            this.clock = clock;
+        }
+
+        @Override
+        public CompletionStage<ProxyAccessToken> get() {
+            final CompletableFuture<ProxyAccessToken> request = new CompletableFuture<>();
+            requests.add(request);
+            return request;
+        }
+
+        void issue() {
+            issue(LIFETIME);
+        }
+
+        void issue(Duration lifetime) {
+            issued++;
+            next().complete(new ProxyAccessToken("token-" + issued, clock.instant().plus(lifetime)));
+        }
+
+        void fail(Throwable error) {
+            next().completeExceptionally(error);
+        }
+
+        private CompletableFuture<ProxyAccessToken> next() {
+            return requests.stream().filter(r -> !r.isDone()).findFirst()
+                .orElseThrow(() -> new IllegalStateException("No token was requested."));
+        }
+    }
+
+    private static final class TestClock extends Clock {
+        private Instant now = Instant.parse("2024-01-01T00:00:00Z");
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
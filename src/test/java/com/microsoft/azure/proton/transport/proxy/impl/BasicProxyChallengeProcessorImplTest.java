@@ -31,6 +31,7 @@ public class BasicProxyChallengeProcessorImplTest {
 
     @Before
     public void setup() {
+        ProxyCredentialCache.SHARED.clear();
         ProxySelector.setDefault(new ProxySelector() {
             @Override
             public List<Proxy> select(URI uri) {
@@ -0,0 +1,92 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.proxy.impl;
+
+import org.junit.Test;
+
+import static com.microsoft.azure.proton.transport.proxy.impl.DigestEngine.Algorithm.MD5;
+import static com.microsoft.azure.proton.transport.proxy.impl.DigestEngine.Algorithm.SHA_256;
+import static com.microsoft.azure.proton.transport.proxy.impl.DigestEngine.Algorithm.SHA_512_256;
+import static com.microsoft.azure.proton.transport.proxy.impl.DigestEngine.Algorithm.SHA_512_256_SESS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the engine against the examples of RFC7616, section 3.9.
+ */
+public class DigestEngineTest {
+    private static final String USER = "Mufasa";
+    private static final String REALM = "http-auth@example.org";
+    private static final char[] PASSWORD = "Circle of Life".toCharArray();
+    private static final String NONCE = "7ypf/xlj9XXwfDPEoM4URrv/xwf94BcCAzFZH4GiTo0v";
+    private static final String CNONCE = "f2/wE4q74E6zIJEtWaHKaf5wv/H5QzzpXusqGemxURZJ";
+    private static final String URI = "/dir/index.html";
+
+    private final DigestEngine engine = DigestEngine.get();
+
+    @Test
+    public void testAlgorithmFromName() {
+        assertSame(MD5, DigestEngine.Algorithm.fromName(null));
+        assertSame(SHA_256, DigestEngine.Algorithm.fromName("sha-256"));
+        assertSame(SHA_512_256_SESS, DigestEngine.Algorithm.fromName("SHA-512-256-sess"));
+        assertTrue(DigestEngine.Algorithm.fromName("MD5-sess").isSession());
+        assertNull(DigestEngine.Algorithm.fromName("SHA-1"));
+    }
+
+    @Test
+    public void testMd5Response() {
+        String credentials = engine.getCredentialsHash(MD5, USER, REALM, PASSWORD);
+
+        assertEquals("8ca523f5e9506fed4657c9700eebdbec",
+            engine.response(MD5, credentials, NONCE, "00000001", CNONCE, "auth", "GET", URI));
+        assertEquals("7b2cc3b30e75b4777ea31027084363fd",
+            engine.response(MD5, credentials, NONCE, null, CNONCE, null, "GET", URI));
+    }
+
+    @Test
+    public void testSha256Response() {
+        String credentials = engine.getCredentialsHash(SHA_256, USER, REALM, PASSWORD);
+
+        assertEquals("753927fa0e85d155564e2e272a28d1802ca10daf4496794697cf8db5856cb6c1",
+            engine.response(SHA_256, credentials, NONCE, "00000001", CNONCE, "auth", "GET", URI));
+    }
+
+    @Test
+    public void testSha512256SessResponse() {
+        String credentials = engine.getCredentialsHash(SHA_512_256_SESS, USER, REALM, PASSWORD);
+
+        assertEquals("3f2a34f923c38b0fb26dce2fdfc2ce326c23cecf86fbb1444f3e51fbbc2cb92e",
+            engine.response(SHA_512_256_SESS, credentials, NONCE, "00000001", CNONCE, "auth", "GET", URI));
+    }
+
+    @Test
+    public void testUserHashWithNonAsciiName() {
+        assertEquals("793263caabb707a56211940d90411ea4a575adeccb7e360aeb624ed06ece9b0b",
+            engine.hash(SHA_512_256, "Jäsøn Doe", "api@example.org"));
+    }
+
+    @Test
+    public void testCredentialsHashFollowsPassword() {
+        String first = engine.getCredentialsHash(MD5, USER, REALM, PASSWORD);
+
+        assertEquals(first, engine.getCredentialsHash(MD5, USER, REALM, PASSWORD.clone()));
+        assertNotEquals(first, engine.getCredentialsHash(MD5, USER, REALM, "another password".toCharArray()));
+        assertEquals(first, engine.getCredentialsHash(MD5, USER, REALM, PASSWORD));
+    }
+
+    @Test
+    public void testToNonceCount() {
+        assertEquals("00000001", engine.toNonceCount(1));
+        assertEquals("0000000a", engine.toNonceCount(10));
+        assertEquals("ffffffff", engine.toNonceCount(-1));
+    }
+
+    @Test
+    public void testToHex() {
+        assertEquals("00ff7f80", engine.toHex(new byte[]{0, (byte) 0xFF, 0x7F, (byte) 0x80}));
+    }
+}
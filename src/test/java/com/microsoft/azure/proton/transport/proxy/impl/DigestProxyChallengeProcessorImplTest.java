@@ -4,6 +4,7 @@
 package com.microsoft.azure.proton.transport.proxy.impl;
 
 import com.microsoft.azure.proton.transport.proxy.ProxyAuthenticationType;
+import com.microsoft.azure.proton.transport.proxy.ProxyChallenge;
 import com.microsoft.azure.proton.transport.proxy.ProxyConfiguration;
 import org.junit.After;
 import org.junit.Assert;
@@ -49,6 +50,7 @@ public class DigestProxyChallengeProcessorImplTest {
 
     @Before
     public void setup() {
+        ProxyCredentialCache.SHARED.clear();
         originalProxy = ProxySelector.getDefault();
 
         ProxySelector.setDefault(new ProxySelector() {
@@ -141,6 +143,68 @@ public class DigestProxyChallengeProcessorImplTest {
         validator.assertEquals(resp, a1, a2);
     }
 
+    /**
+     * Verifies that processors answering the same session send increasing nonce counts, and echo the opaque value and
+     * algorithm of the challenge.
+     */
+    @Test
+    public void testSharedSessionIncrementsNonceCount() {
+        // Arrange
+        final String challenge = String.format("%s realm=\"realm\", nonce=\"nonce\", opaque=\"opaque-value\", qop=\"auth\", algorithm=MD5",
+            Constants.DIGEST);
+        final DigestSession session = DigestSession.fromChallenges(ProxyChallenge.parse(challenge), 0);
+
+        // Act
+        final String first = new DigestProxyChallengeProcessorImpl(HOSTNAME, session, new ProxyAuthenticator())
+            .getHeader().get(Constants.PROXY_AUTHORIZATION);
+        final String second = new DigestProxyChallengeProcessorImpl(HOSTNAME, session, new ProxyAuthenticator())
+            .getHeader().get(Constants.PROXY_AUTHORIZATION);
+
+        // Assert
+        Assert.assertTrue(first.contains(",nc=00000001,"));
+        Assert.assertTrue(second.contains(",nc=00000002,"));
+        Assert.assertTrue(second.contains(",opaque=\"opaque-value\""));
+        Assert.assertTrue(second.endsWith(",algorithm=MD5"));
+    }
+
+    /**
+     * Verifies that the algorithm of the challenge is used, and that the user name is hashed when asked to.
+     */
+    @Test
+    public void testGetHeaderSha256WithUserHash() {
+        // Arrange
+        final String realm = "realm";
+        final String challenge = String.format("%s realm=\"%s\", nonce=\"nonce\", qop=\"auth-int, auth\", algorithm=sha-256, userhash=true",
+            Constants.DIGEST, realm);
+        final DigestEngine engine = DigestEngine.get();
+        final String userHash = engine.hash(DigestEngine.Algorithm.SHA_256, USERNAME, realm);
+
+        // Act
+        final String header = new DigestProxyChallengeProcessorImpl(HOSTNAME, challenge, new ProxyAuthenticator())
+            .getHeader().get(Constants.PROXY_AUTHORIZATION);
+
+        // Assert
+        Assert.assertTrue(header.startsWith(Constants.DIGEST + " username=\"" + userHash + "\""));
+        Assert.assertTrue(header.contains(",qop=\"auth\""));
+        Assert.assertTrue(header.endsWith(",algorithm=SHA-256,userhash=true"));
+
+        final String cnonce = header.replaceAll(".*cnonce=\"([0-9a-f]+)\".*", "$1");
+        final String credentials = engine.getCredentialsHash(DigestEngine.Algorithm.SHA_256, USERNAME, realm, PASSWORD.toCharArray());
+        final String response = engine.response(DigestEngine.Algorithm.SHA_256, credentials, "nonce", "00000001", cnonce, "auth",
+            Constants.CONNECT, HOSTNAME);
+        Assert.assertTrue(header.contains(",response=\"" + response + "\""));
+    }
+
+    /**
+     * Verifies that no header is computed for an algorithm that is not supported.
+     */
+    @Test
+    public void unsupportedAlgorithmHasNoHeader() {
+        final String challenge = String.format("%s realm=\"realm\", nonce=\"nonce\", algorithm=SHA-1", Constants.DIGEST);
+
+        Assert.assertTrue(new DigestProxyChallengeProcessorImpl(HOSTNAME, challenge, new ProxyAuthenticator()).getHeader().isEmpty());
+    }
+
     /**
      * Verifies that if we cannot obtain credentials from proxyAuthenticator, then we return null.
      */
@@ -0,0 +1,120 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.proxy.impl;
+
+import com.microsoft.azure.proton.transport.proxy.ProxyChallenge;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DigestSessionCacheTest {
+    private static final String PROXY = "my.proxy:8888";
+    private static final String CHALLENGE = "Digest realm=\"proxy\", nonce=\"nonce-1\", opaque=\"abc\", qop=\"auth\", algorithm=MD5";
+
+    private final AtomicLong now = new AtomicLong(0);
+    private final DigestSessionCache cache = new DigestSessionCache(Duration.ofSeconds(60), now::get);
+
+    private static ProxyChallenge challenge(String value) {
+        return ProxyChallenge.parse(value).get(0);
+    }
+
+    @Test
+    public void testSessionFromChallenge() {
+        DigestSession session = DigestSession.fromChallenge(challenge(CHALLENGE + ", stale=TRUE"), 0);
+
+        assertEquals("proxy", session.getRealm());
+        assertEquals("nonce-1", session.getNonce());
+        assertEquals("abc", session.getOpaque());
+        assertEquals("auth", session.getQop());
+        assertEquals("MD5", session.getAlgorithm());
+        assertTrue(session.isStale());
+        assertFalse(DigestSession.fromChallenge(challenge(CHALLENGE), 0).isStale());
+        assertNull(DigestSession.fromChallenge(challenge("Basic realm=\"proxy\""), 0));
+    }
+
+    @Test
+    public void testSameNonceSharesNonceCount() {
+        DigestSession first = cache.update(PROXY, challenge(CHALLENGE));
+        assertEquals(1, first.nextNonceCount());
+
+        DigestSession second = cache.update(PROXY, challenge(CHALLENGE));
+
+        assertSame(first, second);
+        assertEquals(2, second.nextNonceCount());
+        assertSame(first, cache.get(PROXY));
+    }
+
+    @Test
+    public void testNewNonceStartsNewSession() {
+        DigestSession first = cache.update(PROXY, challenge(CHALLENGE));
+        first.nextNonceCount();
+
+        DigestSession second = cache.update(PROXY, challenge(CHALLENGE.replace("nonce-1", "nonce-2") + ", stale=true"));
+
+        assertNotSame(first, second);
+        assertEquals("nonce-2", cache.get(PROXY).getNonce());
+        assertEquals(1, second.nextNonceCount());
+    }
+
+    @Test
+    public void testSessionsByRealm() {
+        DigestSession first = cache.update(PROXY, challenge(CHALLENGE));
+        DigestSession other = cache.update(PROXY, challenge(CHALLENGE.replace("realm=\"proxy\"", "realm=\"other\"")));
+
+        assertNotSame(first, other);
+        assertEquals(2, cache.size());
+        assertSame(other, cache.get(PROXY));
+        assertSame(first, cache.update(PROXY, challenge(CHALLENGE)));
+    }
+
+    @Test
+    public void testExpiredSessionIsDropped() {
+        DigestSession first = cache.update(PROXY, challenge(CHALLENGE));
+
+        now.addAndGet(Duration.ofSeconds(60).toNanos());
+
+        assertNull(cache.get(PROXY));
+        assertEquals(0, cache.size());
+        assertNotSame(first, cache.update(PROXY, challenge(CHALLENGE)));
+    }
+
+    @Test
+    public void testRemoveOnlyDropsRejectedSession() {
+        DigestSession rejected = cache.update(PROXY, challenge(CHALLENGE));
+        DigestSession newer = cache.update(PROXY, challenge(CHALLENGE.replace("nonce-1", "nonce-2")));
+
+        cache.remove(PROXY, rejected);
+        assertSame(newer, cache.get(PROXY));
+
+        cache.remove(PROXY);
+        assertNull(cache.get(PROXY));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testSessionsAboveLimitAreNotKept() {
+        for (int i = 0; i < DigestSessionCache.MAX_ENTRIES; i++) {
+            cache.update("proxy" + i, challenge(CHALLENGE));
+        }
+
+        DigestSession session = cache.update(PROXY, challenge(CHALLENGE));
+
+        assertEquals("nonce-1", session.getNonce());
+        assertEquals(DigestSessionCache.MAX_ENTRIES, cache.size());
+        assertNull(cache.get(PROXY));
+
+        // Expired sessions make room for new ones.
+        now.addAndGet(Duration.ofSeconds(60).toNanos());
+        cache.update(PROXY, challenge(CHALLENGE));
+        assertEquals(1, cache.size());
+    }
+}
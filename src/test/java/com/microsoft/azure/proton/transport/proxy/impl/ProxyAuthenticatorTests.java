@@ -40,6 +40,7 @@ public class ProxyAuthenticatorTests {
      */
     @Before
     public void setup() {
+        ProxyCredentialCache.SHARED.clear();
         originalProxySelector = ProxySelector.getDefault();
 
         authenticator = new TestAuthenticator(USERNAME, PASSWORD);
@@ -193,4 +194,50 @@ public class ProxyAuthenticatorTests {
         Assert.assertEquals(scheme, authenticator.requestingScheme());
         Assert.assertEquals(Authenticator.RequestorType.PROXY, authenticator.requestorType());
     }
+
+    /**
+     * Verifies that the credentials of the system-wide authenticator are kept per proxy until the proxy rejects them.
+     */
+    @Test
+    public void systemCredentialsKeptUntilInvalidated() {
+        // Arrange
+        final String scheme = "Basic";
+        final InetSocketAddress address = InetSocketAddress.createUnresolved("my-proxy.myhost.com", 3138);
+        final ProxyConfiguration configuration = new ProxyConfiguration(ProxyAuthenticationType.BASIC,
+                new Proxy(Proxy.Type.HTTP, address), null, null);
+        final ProxyAuthenticator proxyAuthenticator = new ProxyAuthenticator(configuration);
+
+        // Act
+        final PasswordAuthentication first = proxyAuthenticator.getPasswordAuthentication(scheme, PROXY_ADDRESS);
+        Authenticator.setDefault(new TestAuthenticator("other-user", PASSWORD));
+        final PasswordAuthentication kept = new ProxyAuthenticator(configuration)
+                .getPasswordAuthentication(scheme, "other.host.com");
+
+        proxyAuthenticator.invalidate(scheme, PROXY_ADDRESS);
+        final PasswordAuthentication lookedUpAgain = proxyAuthenticator.getPasswordAuthentication(scheme, PROXY_ADDRESS);
+
+        // Assert
+        Assert.assertEquals(USERNAME, first.getUserName());
+        Assert.assertSame(first, kept);
+        Assert.assertEquals("other-user", lookedUpAgain.getUserName());
+    }
+
+    /**
+     * Verifies that credentials specified by the user are not kept, nor dropped.
+     */
+    @Test
+    public void userCredentialsAreNotCached() {
+        // Arrange
+        final ProxyConfiguration configuration = new ProxyConfiguration(ProxyAuthenticationType.BASIC,
+                null, "my-username", "my-password");
+        final ProxyAuthenticator proxyAuthenticator = new ProxyAuthenticator(configuration);
+
+        // Act
+        proxyAuthenticator.getPasswordAuthentication("Basic", PROXY_ADDRESS);
+        proxyAuthenticator.invalidate("Basic", PROXY_ADDRESS);
+
+        // Assert
+        Assert.assertEquals(0, ProxyCredentialCache.SHARED.size());
+        Assert.assertEquals("my-username", proxyAuthenticator.getPasswordAuthentication("Basic", PROXY_ADDRESS).getUserName());
+    }
 }
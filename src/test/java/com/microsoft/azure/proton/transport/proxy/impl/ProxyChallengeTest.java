@@ -0,0 +1,91 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.proxy.impl;
+
+import com.microsoft.azure.proton.transport.proxy.ProxyChallenge;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ProxyChallengeTest {
+    @Test
+    public void testParseDigestChallenge() {
+        List<ProxyChallenge> challenges = ProxyChallenge.parse(
+            "Digest realm=\"Squid proxy-caching web server\", nonce=\"zWV5XAAAAAAgz1AC\", qop=\"auth\", stale=false");
+
+        assertEquals(1, challenges.size());
+        ProxyChallenge digest = challenges.get(0);
+        assertEquals("Digest", digest.getScheme());
+        assertTrue(digest.isScheme("DIGEST"));
+        assertEquals("Squid proxy-caching web server", digest.getParameter("realm"));
+        assertEquals("zWV5XAAAAAAgz1AC", digest.getParameter("NONCE"));
+        assertEquals("auth", digest.getParameter("qop"));
+        assertEquals("false", digest.getParameter("stale"));
+        assertEquals(4, digest.getParameters().size());
+        assertNull(digest.getToken68());
+    }
+
+    @Test
+    public void testQuotedStringsWithCommasAndEscapes() {
+        ProxyChallenge digest = ProxyChallenge.parse(
+            "Digest realm=\"a, \\\"quoted\\\" realm\", qop=\"auth,auth-int\", nonce = \"n\\\\1\"").get(0);
+
+        assertEquals("a, \"quoted\" realm", digest.getParameter("realm"));
+        assertEquals("auth,auth-int", digest.getParameter("qop"));
+        assertEquals("n\\1", digest.getParameter("nonce"));
+    }
+
+    @Test
+    public void testSeveralChallengesInOneValue() {
+        List<ProxyChallenge> challenges = ProxyChallenge.parse(
+            "Basic realm=\"basic, realm\", Negotiate, Bearer abc/DEF+12==, Digest realm=proxy, nonce=n1");
+
+        assertEquals(4, challenges.size());
+        assertEquals("basic, realm", challenges.get(0).getParameter("realm"));
+        assertTrue(challenges.get(1).isScheme("negotiate"));
+        assertTrue(challenges.get(1).getParameters().isEmpty());
+        assertEquals("abc/DEF+12==", challenges.get(2).getToken68());
+        assertEquals("proxy", challenges.get(3).getParameter("realm"));
+        assertEquals("n1", challenges.get(3).getParameter("nonce"));
+    }
+
+    @Test
+    public void testSeveralHeaderValues() {
+        List<ProxyChallenge> challenges = ProxyChallenge.parse(Arrays.asList("Basic realm=\"r\"", "Digest realm=\"r\", nonce=\"n\""));
+
+        assertEquals(2, challenges.size());
+        assertTrue(challenges.get(0).isScheme(Constants.BASIC));
+        assertTrue(challenges.get(1).isScheme(Constants.DIGEST));
+        assertTrue(ProxyChallenge.parse((List<String>) null).isEmpty());
+        assertTrue(ProxyChallenge.parse((String) null).isEmpty());
+    }
+
+    @Test
+    public void testMalformedPartsAreSkipped() {
+        List<ProxyChallenge> challenges = ProxyChallenge.parse(
+            "=oops, Basic/1 realm=x, Digest realm=\"unclosed, nonce=a, Basic realm=r");
+
+        // The unclosed quoted string runs to the end of the value, so only the schemes before it are read.
+        assertEquals(1, challenges.size());
+        assertTrue(challenges.get(0).isScheme(Constants.DIGEST));
+        assertNull(challenges.get(0).getParameter("realm"));
+
+        challenges = ProxyChallenge.parse("realm=orphan, Basic realm=\"r\", realm=\"second\"");
+        assertEquals(1, challenges.size());
+        assertEquals("r", challenges.get(0).getParameter("realm"));
+    }
+
+    @Test
+    public void testToString() {
+        ProxyChallenge challenge = ProxyChallenge.parse("Digest realm=\"a \\\"b\\\"\", nonce=n").get(0);
+
+        assertEquals("Digest nonce=\"n\", realm=\"a \\\"b\\\"\"", challenge.toString());
+        assertEquals(challenge.getParameters(), ProxyChallenge.parse(challenge.toString()).get(0).getParameters());
+    }
+}
@@ -0,0 +1,166 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.proxy.impl;
+
+import org.junit.Test;
+
+import java.net.PasswordAuthentication;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ProxyCredentialCacheTest {
+    private static final String PROXY = "my.proxy:8888";
+    private static final PasswordAuthentication CREDENTIALS = new PasswordAuthentication("user", "password".toCharArray());
+
+    private final AtomicLong now = new AtomicLong(0);
+    private final AtomicInteger lookups = new AtomicInteger();
+    private final ProxyCredentialCache cache = new ProxyCredentialCache(Duration.ofSeconds(60), Duration.ofSeconds(5), now::get);
+
+    private Supplier<PasswordAuthentication> lookup(PasswordAuthentication credentials) {
+        return () -> {
+            lookups.incrementAndGet();
+            return credentials;
+        };
+    }
+
+    @Test
+    public void testCredentialsLookedUpOnce() {
+        assertSame(CREDENTIALS, cache.get(PROXY, "basic", lookup(CREDENTIALS)));
+        assertSame(CREDENTIALS, cache.get(PROXY, "BASIC", lookup(CREDENTIALS)));
+        assertEquals(1, lookups.get());
+
+        // Schemes and proxies are kept apart.
+        cache.get(PROXY, "digest", lookup(CREDENTIALS));
+        cache.get("other.proxy:8888", "basic", lookup(CREDENTIALS));
+        assertEquals(3, lookups.get());
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testExpiredCredentialsLookedUpAgain() {
+        cache.get(PROXY, "basic", lookup(CREDENTIALS));
+
+        now.addAndGet(Duration.ofSeconds(59).toNanos());
+        cache.get(PROXY, "basic", lookup(CREDENTIALS));
+        assertEquals(1, lookups.get());
+
+        now.addAndGet(Duration.ofSeconds(1).toNanos());
+        cache.get(PROXY, "basic", lookup(CREDENTIALS));
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void testFailedLookupKeptForShorterTime() {
+        assertNull(cache.get(PROXY, "basic", lookup(null)));
+        assertNull(cache.get(PROXY, "basic", lookup(CREDENTIALS)));
+        assertEquals(1, lookups.get());
+
+        now.addAndGet(Duration.ofSeconds(5).toNanos());
+        assertSame(CREDENTIALS, cache.get(PROXY, "basic", lookup(CREDENTIALS)));
+        assertEquals(2, lookups.get());
+
+        // Credentials without a password are a failed lookup too.
+        PasswordAuthentication empty = new PasswordAuthentication("user", new char[0]);
+        assertSame(empty, cache.get(PROXY, "digest", lookup(empty)));
+        now.addAndGet(Duration.ofSeconds(5).toNanos());
+        assertSame(CREDENTIALS, cache.get(PROXY, "digest", lookup(CREDENTIALS)));
+    }
+
+    @Test
+    public void testInvalidate() {
+        cache.get(PROXY, "basic", lookup(CREDENTIALS));
+        cache.get(PROXY, "digest", lookup(CREDENTIALS));
+
+        cache.invalidate(PROXY, "Basic");
+
+        assertEquals(1, cache.size());
+        cache.get(PROXY, "basic", lookup(CREDENTIALS));
+        assertEquals(3, lookups.get());
+    }
+
+    @Test
+    public void testEntriesAboveLimitAreNotKept() {
+        for (int i = 0; i < ProxyCredentialCache.MAX_ENTRIES; i++) {
+            cache.get("proxy" + i, "basic", lookup(CREDENTIALS));
+        }
+
+        assertSame(CREDENTIALS, cache.get(PROXY, "basic", lookup(CREDENTIALS)));
+        assertEquals(ProxyCredentialCache.MAX_ENTRIES, cache.size());
+
+        // Expired entries make room for new ones.
+        now.addAndGet(Duration.ofSeconds(60).toNanos());
+        cache.get(PROXY, "basic", lookup(CREDENTIALS));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testLookupRunsOutsideTheMap() {
+        // An authenticator that looks up other proxies, some of which share a bin of the map with this one.
+        PasswordAuthentication credentials = cache.get(PROXY, "basic", () -> {
+            for (int i = 0; i < 64; i++) {
+                assertSame(CREDENTIALS, cache.get("proxy" + i, "basic", lookup(CREDENTIALS)));
+            }
+            return CREDENTIALS;
+        });
+
+        assertSame(CREDENTIALS, credentials);
+        assertEquals(65, cache.size());
+    }
+
+    @Test
+    public void testWaitersShareOneLookup() throws Exception {
+        CountDownLatch lookupStarted = new CountDownLatch(1);
+        CountDownLatch answer = new CountDownLatch(1);
+        CompletableFuture<PasswordAuthentication> first = CompletableFuture.supplyAsync(() -> cache.get(PROXY, "basic", () -> {
+            lookups.incrementAndGet();
+            lookupStarted.countDown();
+            try {
+                answer.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return CREDENTIALS;
+        }));
+        assertTrue(lookupStarted.await(10, TimeUnit.SECONDS));
+
+        CompletableFuture<PasswordAuthentication> second = CompletableFuture.supplyAsync(
+            () -> cache.get(PROXY, "basic", lookup(CREDENTIALS)));
+
+        // Other proxies are not held up by the running lookup.
+        assertSame(CREDENTIALS, cache.get("other.proxy:8888", "basic", lookup(CREDENTIALS)));
+        assertFalse(first.isDone());
+
+        answer.countDown();
+        assertSame(CREDENTIALS, first.get(10, TimeUnit.SECONDS));
+        assertSame(CREDENTIALS, second.get(10, TimeUnit.SECONDS));
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void testFailedLookupIsNotKept() {
+        try {
+            cache.get(PROXY, "basic", () -> {
+                throw new SecurityException("Not allowed.");
+            });
+            fail("The lookup should have failed.");
+        } catch (SecurityException e) {
+            assertEquals(0, cache.size());
+        }
+
+        assertSame(CREDENTIALS, cache.get(PROXY, "basic", lookup(CREDENTIALS)));
+        assertEquals(1, lookups.get());
+    }
+}
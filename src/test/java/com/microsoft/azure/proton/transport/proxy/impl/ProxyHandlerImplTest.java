@@ -16,6 +16,7 @@ import java.util.HashMap;
 import java.util.stream.Stream;
 
 import static com.microsoft.azure.proton.transport.proxy.impl.StringUtils.NEW_LINE;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -41,6 +42,34 @@ public class ProxyHandlerImplTest {
         Assert.assertEquals(expectedProxyRequest, actualProxyRequest);
     }
 
+    @Test
+    public void testCreateProxyRequestBuffer() {
+        final ProxyHandlerImpl proxyHandler = new ProxyHandlerImpl();
+        final HashMap<String, String> headers = new HashMap<>();
+        headers.put("Proxy-Authorization", "Basic dXNlcjpwYXNz");
+
+        final ByteBuffer first = proxyHandler.createProxyRequestBuffer("testHostName", headers);
+        headers.put("Proxy-Authorization", "Basic b3RoZXI6cGFzcw==");
+        final ByteBuffer second = proxyHandler.createProxyRequestBuffer("testHostName", headers);
+        final ByteBuffer noHeaders = proxyHandler.createProxyRequestBuffer("testHostName", null);
+
+        // The request line is shared by the requests to the host, the headers are written for every request.
+        Assert.assertEquals(String.join("\r\n", "CONNECT testHostName HTTP/1.1",
+            "Host: testHostName",
+            "Connection: Keep-Alive",
+            "Proxy-Authorization: Basic dXNlcjpwYXNz",
+            "\r\n"), ISO_8859_1.decode(first).toString());
+        Assert.assertEquals(String.join("\r\n", "CONNECT testHostName HTTP/1.1",
+            "Host: testHostName",
+            "Connection: Keep-Alive",
+            "Proxy-Authorization: Basic b3RoZXI6cGFzcw==",
+            "\r\n"), ISO_8859_1.decode(second).toString());
+        Assert.assertEquals(String.join("\r\n", "CONNECT testHostName HTTP/1.1",
+            "Host: testHostName",
+            "Connection: Keep-Alive",
+            "\r\n"), ISO_8859_1.decode(noHeaders).toString());
+    }
+
     public static Stream<Arguments> testValidateProxyResponseOnSuccess() {
         return Stream.of(
             Arguments.of(200, "Connection Established"),
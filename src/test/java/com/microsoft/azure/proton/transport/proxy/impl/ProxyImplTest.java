@@ -3,8 +3,12 @@
 
 package com.microsoft.azure.proton.transport.proxy.impl;
 
+import com.microsoft.azure.proton.transport.buffer.ByteBufferPool;
+import com.microsoft.azure.proton.transport.proxy.BearerTokenCache;
 import com.microsoft.azure.proton.transport.proxy.Proxy;
+import com.microsoft.azure.proton.transport.proxy.ProxyAccessToken;
 import com.microsoft.azure.proton.transport.proxy.ProxyAuthenticationType;
+import com.microsoft.azure.proton.transport.proxy.ProxyChallengeProcessorRegistry;
 import com.microsoft.azure.proton.transport.proxy.ProxyConfiguration;
 import com.microsoft.azure.proton.transport.proxy.ProxyHandler;
 import org.apache.qpid.proton.engine.Transport;
@@ -21,6 +25,7 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.stubbing.Answer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,14 +39,20 @@ import java.net.SocketAddress;
 import java.net.URI;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.microsoft.azure.proton.transport.proxy.impl.Constants.BASIC;
+import static com.microsoft.azure.proton.transport.proxy.impl.Constants.BEARER;
 import static com.microsoft.azure.proton.transport.proxy.impl.Constants.DIGEST;
 import static com.microsoft.azure.proton.transport.proxy.impl.Constants.PROXY_AUTHENTICATE;
 import static com.microsoft.azure.proton.transport.proxy.impl.Constants.PROXY_AUTHORIZATION;
@@ -49,6 +60,7 @@ import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.argThat;
 import static org.mockito.Mockito.isA;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -87,6 +99,9 @@ public class ProxyImplTest {
     @Before
     public void setup() {
         closeable = MockitoAnnotations.openMocks(this);
+        DigestSessionCache.SHARED.clear();
+        ProxyCredentialCache.SHARED.clear();
+        ProxyTunnelCache.SHARED.clear();
 
         originalProxy = ProxySelector.getDefault();
 
@@ -174,7 +189,7 @@ public class ProxyImplTest {
         proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, spyProxyHandler, transport);
         proxyImpl.writeProxyRequest();
 
-        verify(spyProxyHandler, times(1)).createProxyRequest(PROXY_ADDRESS.getHostName(), headers);
+        verify(spyProxyHandler, times(1)).createProxyRequestBuffer(PROXY_ADDRESS.getHostName(), headers);
 
         ByteBuffer outputBuffer = proxyImpl.getOutputBuffer();
         outputBuffer.flip();
@@ -343,7 +358,7 @@ public class ProxyImplTest {
         TransportInput mockInput = mock(TransportInput.class);
         TransportWrapper transportWrapper = proxyImpl.wrap(mockInput, mock(TransportOutput.class));
 
-        when(mockHandler.createProxyRequest(any(), any())).thenReturn("proxy request");
+        when(mockHandler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request"));
 
         when(mockHandler.validateProxyResponse(any())).thenReturn(true);
 
@@ -360,6 +375,72 @@ public class ProxyImplTest {
         Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CONNECTED, proxyImpl.getProxyState());
     }
 
+    @Test
+    public void testPooledBuffersReturnedOnceConnected() {
+        ByteBufferPool pool = new ByteBufferPool(4 * BUFFER_SIZE);
+        ProxyImpl proxyImpl = new ProxyImpl(null, pool);
+        ProxyHandler mockHandler = mock(ProxyHandler.class);
+        proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, mockHandler, mock(TransportImpl.class));
+        TransportInput mockInput = mock(TransportInput.class);
+        TransportWrapper transportWrapper = proxyImpl.wrap(mockInput, mock(TransportOutput.class));
+
+        when(mockHandler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request"));
+        when(mockHandler.validateProxyResponse(any())).thenReturn(true);
+
+        final String[] statusLine = new String[]{"HTTP/1.1", "200", "Connection Established"};
+        setInputBuffer(proxyImpl, getProxyResponse(statusLine, new ArrayList<>()));
+        Assert.assertEquals(0, pool.getRetainedBytes());
+
+        transportWrapper.pending();
+        transportWrapper.process();
+
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CONNECTED, proxyImpl.getProxyState());
+        Assert.assertEquals(2 * BUFFER_SIZE, pool.getRetainedBytes());
+        Assert.assertNull(proxyImpl.getInputBuffer());
+
+        // Once connected, the layer only passes bytes through.
+        transportWrapper.process();
+        verify(mockInput, times(1)).process();
+
+        // A recycled layer borrows the buffers again when it is wrapped.
+        proxyImpl.recycle();
+        Assert.assertFalse(proxyImpl.getIsProxyConfigured());
+        proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, mockHandler, mock(TransportImpl.class));
+        proxyImpl.wrap(mockInput, mock(TransportOutput.class));
+
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_NOT_STARTED, proxyImpl.getProxyState());
+        Assert.assertEquals(BUFFER_SIZE, proxyImpl.getInputBuffer().capacity());
+        Assert.assertEquals(0, pool.getRetainedBytes());
+        Assert.assertEquals(2, pool.getHitCount());
+    }
+
+    @Test
+    public void testHandshakeWithDirectBuffers() {
+        ProxyImpl proxyImpl = new ProxyImpl(null, new ByteBufferPool(4 * BUFFER_SIZE, true));
+        ProxyHandler mockHandler = mock(ProxyHandler.class);
+        proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, mockHandler, mock(TransportImpl.class));
+        TransportWrapper transportWrapper = proxyImpl.wrap(mock(TransportInput.class), mock(TransportOutput.class));
+
+        final String request = "proxy request";
+        when(mockHandler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests(request));
+        when(mockHandler.validateProxyResponse(any())).thenReturn(true);
+
+        Assert.assertTrue(proxyImpl.getInputBuffer().isDirect());
+        Assert.assertTrue(proxyImpl.getOutputBuffer().isDirect());
+
+        Assert.assertEquals(request.length(), transportWrapper.pending());
+        byte[] written = new byte[request.length()];
+        transportWrapper.head().get(written);
+        Assert.assertEquals(request, new String(written, StandardCharsets.UTF_8));
+        transportWrapper.pop(written.length);
+
+        final String[] statusLine = new String[]{"HTTP/1.1", "200", "Connection Established"};
+        setInputBuffer(proxyImpl, getProxyResponse(statusLine, new ArrayList<>()));
+        transportWrapper.process();
+
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CONNECTED, proxyImpl.getProxyState());
+    }
+
     @Test
     public void testProcessProxyStateConnectingFailureLeadsToUnderlyingTransportClosed() {
         ProxyImpl proxyImpl = new ProxyImpl();
@@ -369,7 +450,7 @@ public class ProxyImplTest {
         TransportInput mockInput = mock(TransportInput.class);
         TransportWrapper transportWrapper = proxyImpl.wrap(mockInput, mock(TransportOutput.class));
 
-        when(mockHandler.createProxyRequest(any(), any())).thenReturn("proxy request");
+        when(mockHandler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request"));
 
         final String[] statusLine = new String[]{"HTTP/1.1", "500", "Internal Server Error"};
         final List<String> authentications = new ArrayList<>();
@@ -698,7 +779,7 @@ public class ProxyImplTest {
         TransportInput input = mock(TransportInput.class);
         TransportWrapper transportWrapper = proxyImpl.wrap(input, mock(TransportOutput.class));
 
-        when(handler.createProxyRequest(any(), any())).thenReturn("proxy request");
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request"));
         when(handler.validateProxyResponse(any())).thenReturn(false);
 
         final String[] statusLine = new String[]{"HTTP/1.1", "407", "Proxy Authentication Required"};
@@ -732,7 +813,7 @@ public class ProxyImplTest {
         TransportInput input = mock(TransportInput.class);
         TransportWrapper transportWrapper = proxyImpl.wrap(input, mock(TransportOutput.class));
 
-        when(handler.createProxyRequest(any(), any())).thenReturn("proxy request");
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request"));
         when(handler.validateProxyResponse(any())).thenReturn(true);
 
         final String[] statusLine = new String[]{"HTTP/1.1", "200", "Connection Established"};
@@ -766,7 +847,7 @@ public class ProxyImplTest {
         proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, handler, underlyingTransport);
         TransportWrapper transportWrapper = proxyImpl.wrap(mock(TransportInput.class), output);
 
-        when(handler.createProxyRequest(any(), any())).thenReturn("proxy request", "proxy request2");
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request", "proxy request2"));
         when(handler.validateProxyResponse(any())).thenReturn(false, true);
 
         String[] statusLine = new String[]{"HTTP/1.1", "407", "Proxy Authentication Required"};
@@ -801,7 +882,7 @@ public class ProxyImplTest {
         Assert.assertFalse(proxyImpl.getIsHandshakeInProgress());
         Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CONNECTED, proxyImpl.getProxyState());
 
-        verify(handler, times(2)).createProxyRequest(
+        verify(handler, times(2)).createProxyRequestBuffer(
                 argThat(string -> string != null && string.equals(PROXY_ADDRESS.getHostName())), additionalHeaders.capture());
 
 
@@ -828,7 +909,7 @@ public class ProxyImplTest {
         proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, handler, underlyingTransport);
         TransportWrapper transportWrapper = proxyImpl.wrap(transportInput, output);
 
-        when(handler.createProxyRequest(any(), any())).thenReturn("proxy request", "proxy request2");
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request", "proxy request2"));
         when(handler.validateProxyResponse(any())).thenReturn(false, true);
 
         String[] statusLine = new String[]{"HTTP/1.1", "407", "Proxy Authentication Required"};
@@ -863,7 +944,7 @@ public class ProxyImplTest {
         Assert.assertFalse(proxyImpl.getIsHandshakeInProgress());
         Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CONNECTED, proxyImpl.getProxyState());
 
-        verify(handler, times(2)).createProxyRequest(
+        verify(handler, times(2)).createProxyRequestBuffer(
                 argThat(string -> string != null && string.equals(PROXY_ADDRESS.getHostName())), additionalHeaders.capture());
 
         final Optional<Map<String, String>> matching = additionalHeaders.getAllValues()
@@ -876,6 +957,738 @@ public class ProxyImplTest {
     }
 
 
+    /**
+     * Verifies that a proxy response whose head arrives over several reads is read once the head is complete.
+     */
+    @Test
+    public void authenticationResponseHeadSplitAcrossReads() {
+        // Arrange
+        ProxyImpl proxyImpl = new ProxyImpl();
+        ProxyHandler handler = mock(ProxyHandler.class);
+        proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, handler, mock(TransportImpl.class));
+        TransportWrapper transportWrapper = proxyImpl.wrap(mock(TransportInput.class), mock(TransportOutput.class));
+
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request"));
+        when(handler.validateProxyResponse(any())).thenReturn(false);
+
+        String[] statusLine = new String[]{"HTTP/1.1", "407", "Proxy Authentication Required"};
+        String response = getProxyResponse(statusLine, Collections.singletonList(BASIC_HEADER));
+
+        transportWrapper.pending();
+
+        // Act and Assert
+        for (int i = 0; i < response.length() - 1; i++) {
+            setInputBuffer(proxyImpl, response.substring(i, i + 1));
+            transportWrapper.process();
+            Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CONNECTING, proxyImpl.getProxyState());
+        }
+
+        setInputBuffer(proxyImpl, response.substring(response.length() - 1));
+        transportWrapper.process();
+
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CHALLENGE, proxyImpl.getProxyState());
+        verify(handler, times(1)).validateProxyResponse(argThat(proxyResponse ->
+            proxyResponse.getStatus().getStatusCode() == 407
+                && proxyResponse.getHeaders().get("proxy-authenticate").contains(BASIC_HEADER)));
+    }
+
+    /**
+     * Verifies that a malformed proxy response fails the connection.
+     */
+    @Test
+    public void malformedResponseClosesTail() {
+        // Arrange
+        ProxyImpl proxyImpl = new ProxyImpl();
+        ProxyHandler handler = mock(ProxyHandler.class);
+        TransportImpl underlyingTransport = mock(TransportImpl.class);
+        proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, handler, underlyingTransport);
+        TransportWrapper transportWrapper = proxyImpl.wrap(mock(TransportInput.class), mock(TransportOutput.class));
+
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request"));
+        transportWrapper.pending();
+
+        // Act
+        setInputBuffer(proxyImpl, "HTTP/1.1 407 Proxy Authentication Required\r\nnot a header\r\n\r\n");
+        transportWrapper.process();
+
+        // Assert
+        Assert.assertEquals(Transport.END_OF_STREAM, transportWrapper.capacity());
+        verify(underlyingTransport, times(1)).closed(isA(TransportException.class));
+        verify(handler, never()).validateProxyResponse(any());
+    }
+
+    /**
+     * Verifies that the bytes received right behind a successful response are passed to the next layer.
+     */
+    @Test
+    public void bytesAfterResponseArePassedToNextLayer() throws TransportException {
+        // Arrange
+        ProxyImpl proxyImpl = new ProxyImpl();
+        ProxyHandler handler = mock(ProxyHandler.class);
+        TransportInput input = mock(TransportInput.class);
+        proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, handler, mock(TransportImpl.class));
+        TransportWrapper transportWrapper = proxyImpl.wrap(input, mock(TransportOutput.class));
+
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request"));
+        when(handler.validateProxyResponse(any())).thenReturn(true);
+
+        // The next layer takes 4 bytes at a time.
+        final ByteBuffer received = ByteBuffer.allocate(100);
+        when(input.capacity()).thenReturn(4);
+        when(input.tail()).thenReturn(received);
+
+        final String upgradeReply = "HTTP/1.1 101 Switching Protocols\r\n";
+        final String[] statusLine = new String[]{"HTTP/1.1", "200", "Connection Established"};
+        transportWrapper.pending();
+
+        // Act
+        setInputBuffer(proxyImpl, getProxyResponse(statusLine, new ArrayList<>()) + upgradeReply);
+        transportWrapper.process();
+
+        // Assert
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CONNECTED, proxyImpl.getProxyState());
+        received.flip();
+        Assert.assertEquals(upgradeReply, StandardCharsets.ISO_8859_1.decode(received).toString());
+        verify(input, times((upgradeReply.length() + 3) / 4)).process();
+    }
+
+    /**
+     * Verifies that the handshake fails if the next layer cannot take the bytes received behind the response.
+     */
+    @Test
+    public void bytesAfterResponseNotTakenClosesTail() {
+        // Arrange
+        ProxyImpl proxyImpl = new ProxyImpl();
+        ProxyHandler handler = mock(ProxyHandler.class);
+        TransportInput input = mock(TransportInput.class);
+        TransportImpl underlyingTransport = mock(TransportImpl.class);
+        proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, handler, underlyingTransport);
+        TransportWrapper transportWrapper = proxyImpl.wrap(input, mock(TransportOutput.class));
+
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request"));
+        when(handler.validateProxyResponse(any())).thenReturn(true);
+        when(input.capacity()).thenReturn(Transport.END_OF_STREAM);
+
+        final String[] statusLine = new String[]{"HTTP/1.1", "200", "Connection Established"};
+        transportWrapper.pending();
+
+        // Act
+        setInputBuffer(proxyImpl, getProxyResponse(statusLine, new ArrayList<>()) + "trailing");
+        transportWrapper.process();
+
+        // Assert
+        Assert.assertNotEquals(Proxy.ProxyState.PN_PROXY_CONNECTED, proxyImpl.getProxyState());
+        verify(underlyingTransport, times(1)).closed(isA(TransportException.class));
+    }
+
+    /**
+     * Verifies that BASIC credentials are sent with the first request when preemptive authentication is on, and that the
+     * proxy accepting them completes the handshake.
+     */
+    @Test
+    public void preemptiveBasicCredentialsSentWithFirstRequest() {
+        // Arrange
+        initHeaders();
+        ProxyConfiguration configuration = new ProxyConfiguration(ProxyAuthenticationType.BASIC, PROXY, USERNAME, PASSWORD);
+        ProxyImpl proxyImpl = new ProxyImpl(configuration);
+        ProxyHandler handler = mock(ProxyHandler.class);
+        TransportImpl underlyingTransport = mock(TransportImpl.class);
+        proxyImpl.setPreemptiveAuthentication(true);
+        proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, handler, underlyingTransport);
+        TransportWrapper transportWrapper = proxyImpl.wrap(mock(TransportInput.class), mock(TransportOutput.class));
+
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request"));
+        when(handler.validateProxyResponse(any())).thenReturn(true);
+
+        // Act
+        transportWrapper.pending();
+        setInputBuffer(proxyImpl, getProxyResponse(new String[]{"HTTP/1.1", "200", "Connection Established"}, new ArrayList<>()));
+        transportWrapper.process();
+
+        // Assert
+        Assert.assertTrue(proxyImpl.isPreemptiveAuthentication());
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CONNECTED, proxyImpl.getProxyState());
+        verify(underlyingTransport, never()).closed(any());
+        verify(handler, times(1)).createProxyRequestBuffer(any(), additionalHeaders.capture());
+
+        final Map<String, String> sent = additionalHeaders.getValue();
+        Assert.assertTrue(sent.get(PROXY_AUTHORIZATION).startsWith(BASIC));
+        Assert.assertEquals("value1", sent.get("header1"));
+        Assert.assertFalse(headers.containsKey(PROXY_AUTHORIZATION));
+    }
+
+    /**
+     * Verifies that the handshake answers the challenge of the proxy when it rejects the preemptive credentials.
+     */
+    @Test
+    public void preemptiveCredentialsRejectedFallsBackToChallenge() {
+        // Arrange
+        ProxyConfiguration configuration = new ProxyConfiguration(ProxyAuthenticationType.BASIC, PROXY, USERNAME, PASSWORD);
+        ProxyImpl proxyImpl = new ProxyImpl(configuration);
+        ProxyHandler handler = mock(ProxyHandler.class);
+        TransportImpl underlyingTransport = mock(TransportImpl.class);
+        proxyImpl.setPreemptiveAuthentication(true);
+        proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, handler, underlyingTransport);
+        TransportWrapper transportWrapper = proxyImpl.wrap(mock(TransportInput.class), mock(TransportOutput.class));
+
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request", "proxy request2"));
+        when(handler.validateProxyResponse(any())).thenReturn(false, true);
+
+        final String[] challenge = new String[]{"HTTP/1.1", "407", "Proxy Authentication Required"};
+
+        // Act and Assert
+        transportWrapper.pending();
+        setInputBuffer(proxyImpl, getProxyResponse(challenge, Collections.singletonList(BASIC_HEADER)));
+        transportWrapper.process();
+
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CHALLENGE, proxyImpl.getProxyState());
+        clearOutputBuffer(proxyImpl);
+        transportWrapper.pending();
+
+        setInputBuffer(proxyImpl, getProxyResponse(new String[]{"HTTP/1.1", "200", "Connection Established"}, new ArrayList<>()));
+        transportWrapper.process();
+
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CONNECTED, proxyImpl.getProxyState());
+        verify(handler, times(2)).createProxyRequestBuffer(any(), additionalHeaders.capture());
+        for (Map<String, String> sent : additionalHeaders.getAllValues()) {
+            Assert.assertTrue(sent.get(PROXY_AUTHORIZATION).startsWith(BASIC));
+        }
+    }
+
+    /**
+     * Verifies that DIGEST credentials are only sent preemptively once the proxy has challenged a connection, and that
+     * they answer that challenge.
+     */
+    @Test
+    public void preemptiveDigestAnswersLastChallengeOfProxy() {
+        // Arrange
+        ProxyConfiguration configuration = new ProxyConfiguration(ProxyAuthenticationType.DIGEST, PROXY, USERNAME, PASSWORD);
+        ProxyHandler handler = mock(ProxyHandler.class);
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request"));
+        when(handler.validateProxyResponse(any())).thenReturn(false);
+
+        ProxyImpl first = new ProxyImpl(configuration);
+        first.setPreemptiveAuthentication(true);
+        first.configure(PROXY_ADDRESS.getHostName(), headers, handler, mock(TransportImpl.class));
+        TransportWrapper firstWrapper = first.wrap(mock(TransportInput.class), mock(TransportOutput.class));
+
+        // Act
+        firstWrapper.pending();
+        setInputBuffer(first, getProxyResponse(new String[]{"HTTP/1.1", "407", "Proxy Authentication Required"},
+            Collections.singletonList(DIGEST_HEADER)));
+        firstWrapper.process();
+
+        ProxyImpl second = new ProxyImpl(configuration);
+        second.setPreemptiveAuthentication(true);
+        second.configure(PROXY_ADDRESS.getHostName(), headers, handler, mock(TransportImpl.class));
+        second.wrap(mock(TransportInput.class), mock(TransportOutput.class)).pending();
+
+        // Assert
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CHALLENGE, first.getProxyState());
+        verify(handler, times(2)).createProxyRequestBuffer(any(), additionalHeaders.capture());
+
+        final List<Map<String, String>> sent = additionalHeaders.getAllValues();
+        Assert.assertFalse(sent.get(0).containsKey(PROXY_AUTHORIZATION));
+        final String authorization = sent.get(1).get(PROXY_AUTHORIZATION);
+        Assert.assertTrue(authorization.startsWith(DIGEST));
+        Assert.assertTrue(authorization.contains("nonce=\"A randomly set nonce.\""));
+    }
+
+    /**
+     * Verifies that a challenge with a stale nonce is answered on the same connection, with the new nonce.
+     */
+    @Test
+    public void staleNonceAnsweredOnSameConnection() {
+        // Arrange
+        ProxyConfiguration configuration = new ProxyConfiguration(ProxyAuthenticationType.DIGEST, PROXY, USERNAME, PASSWORD);
+        ProxyImpl proxyImpl = new ProxyImpl(configuration);
+        ProxyHandler handler = mock(ProxyHandler.class);
+        TransportImpl underlyingTransport = mock(TransportImpl.class);
+        proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, handler, underlyingTransport);
+        TransportWrapper transportWrapper = proxyImpl.wrap(mock(TransportInput.class), mock(TransportOutput.class));
+
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request", "proxy request2"));
+        when(handler.validateProxyResponse(any())).thenReturn(false, false, true);
+
+        final String[] challenge = new String[]{"HTTP/1.1", "407", "Proxy Authentication Required"};
+        final String staleHeader = DIGEST_HEADER.replace("A randomly set nonce.", "A new nonce.").replace("stale=false", "stale=true");
+
+        // Act and Assert
+        transportWrapper.pending();
+        setInputBuffer(proxyImpl, getProxyResponse(challenge, Collections.singletonList(DIGEST_HEADER)));
+        transportWrapper.process();
+        clearOutputBuffer(proxyImpl);
+        transportWrapper.pending();
+
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CHALLENGE_RESPONDED, proxyImpl.getProxyState());
+        setInputBuffer(proxyImpl, getProxyResponse(challenge, Collections.singletonList(staleHeader)));
+        transportWrapper.process();
+
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CHALLENGE, proxyImpl.getProxyState());
+        clearOutputBuffer(proxyImpl);
+        transportWrapper.pending();
+
+        setInputBuffer(proxyImpl, getProxyResponse(new String[]{"HTTP/1.1", "200", "Connection Established"}, new ArrayList<>()));
+        transportWrapper.process();
+
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CONNECTED, proxyImpl.getProxyState());
+        verify(underlyingTransport, never()).closed(any());
+        verify(handler, times(3)).createProxyRequestBuffer(any(), additionalHeaders.capture());
+
+        final List<Map<String, String>> sent = additionalHeaders.getAllValues();
+        Assert.assertTrue(sent.get(1).get(PROXY_AUTHORIZATION).contains("nonce=\"A randomly set nonce.\""));
+        Assert.assertTrue(sent.get(2).get(PROXY_AUTHORIZATION).contains("nonce=\"A new nonce.\""));
+        Assert.assertEquals("A new nonce.", DigestSessionCache.SHARED.get(PROXY_ADDRESS.toString()).getNonce());
+    }
+
+    /**
+     * Verifies that credentials of the system-wide authenticator are looked up again once the proxy rejects them.
+     */
+    @Test
+    public void rejectedSystemCredentialsAreDropped() {
+        // Arrange
+        ProxyImpl proxyImpl = new ProxyImpl();
+        ProxyHandler handler = mock(ProxyHandler.class);
+        TransportImpl underlyingTransport = mock(TransportImpl.class);
+        proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, handler, underlyingTransport);
+        TransportWrapper transportWrapper = proxyImpl.wrap(mock(TransportInput.class), mock(TransportOutput.class));
+
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request", "proxy request2"));
+        when(handler.validateProxyResponse(any())).thenReturn(false);
+
+        final String[] challenge = new String[]{"HTTP/1.1", "407", "Proxy Authentication Required"};
+
+        // Act and Assert
+        transportWrapper.pending();
+        setInputBuffer(proxyImpl, getProxyResponse(challenge, Collections.singletonList(BASIC_HEADER)));
+        transportWrapper.process();
+
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CHALLENGE, proxyImpl.getProxyState());
+        Assert.assertEquals(1, ProxyCredentialCache.SHARED.size());
+        clearOutputBuffer(proxyImpl);
+        transportWrapper.pending();
+
+        setInputBuffer(proxyImpl, getProxyResponse(challenge, Collections.singletonList(BASIC_HEADER)));
+        transportWrapper.process();
+
+        verify(underlyingTransport).closed(any());
+        Assert.assertEquals(0, ProxyCredentialCache.SHARED.size());
+    }
+
+    /**
+     * Verifies that the layer sends nothing while the answer to a challenge is computed on the challenge executor,
+     * and sends it once it is ready.
+     */
+    @Test
+    public void challengeAnsweredOnExecutor() {
+        // Arrange
+        ProxyImpl proxyImpl = new ProxyImpl();
+        ProxyHandler handler = mock(ProxyHandler.class);
+        TransportImpl underlyingTransport = mock(TransportImpl.class);
+        List<Runnable> tasks = new ArrayList<>();
+        AtomicInteger answered = new AtomicInteger();
+        proxyImpl.setChallengeExecutor(tasks::add, answered::incrementAndGet);
+        proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, handler, underlyingTransport);
+        TransportWrapper transportWrapper = proxyImpl.wrap(mock(TransportInput.class), mock(TransportOutput.class));
+
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request", "proxy request2"));
+        when(handler.validateProxyResponse(any())).thenReturn(false);
+
+        // Act and Assert
+        transportWrapper.pending();
+        setInputBuffer(proxyImpl, getProxyResponse(new String[]{"HTTP/1.1", "407", "Proxy Authentication Required"},
+            Collections.singletonList(BASIC_HEADER)));
+        transportWrapper.process();
+        clearOutputBuffer(proxyImpl);
+
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CHALLENGE, proxyImpl.getProxyState());
+        Assert.assertEquals(0, transportWrapper.pending());
+        Assert.assertEquals(1, tasks.size());
+        Assert.assertEquals(0, answered.get());
+
+        tasks.get(0).run();
+
+        Assert.assertEquals(1, answered.get());
+        Assert.assertTrue(transportWrapper.pending() > 0);
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CHALLENGE_RESPONDED, proxyImpl.getProxyState());
+        verify(handler, times(2)).createProxyRequestBuffer(any(), additionalHeaders.capture());
+        Assert.assertTrue(additionalHeaders.getValue().get(PROXY_AUTHORIZATION).startsWith(BASIC));
+    }
+
+    /**
+     * Verifies that preemptive credentials are computed on the challenge executor, and that the first request waits
+     * for them.
+     */
+    @Test
+    public void preemptiveCredentialsComputedOnExecutor() {
+        // Arrange
+        ProxyConfiguration configuration = new ProxyConfiguration(ProxyAuthenticationType.BASIC, PROXY, USERNAME, PASSWORD);
+        ProxyImpl proxyImpl = new ProxyImpl(configuration);
+        ProxyHandler handler = mock(ProxyHandler.class);
+        List<Runnable> tasks = new ArrayList<>();
+        AtomicInteger answered = new AtomicInteger();
+        proxyImpl.setPreemptiveAuthentication(true);
+        proxyImpl.setChallengeExecutor(tasks::add, answered::incrementAndGet);
+        proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, handler, mock(TransportImpl.class));
+        TransportWrapper transportWrapper = proxyImpl.wrap(mock(TransportInput.class), mock(TransportOutput.class));
+
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request"));
+
+        // Act and Assert
+        Assert.assertEquals(0, transportWrapper.pending());
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_NOT_STARTED, proxyImpl.getProxyState());
+        Assert.assertEquals(1, tasks.size());
+        verify(handler, never()).createProxyRequestBuffer(any(), any());
+
+        tasks.get(0).run();
+
+        Assert.assertEquals(1, answered.get());
+        Assert.assertTrue(transportWrapper.pending() > 0);
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CONNECTING, proxyImpl.getProxyState());
+        verify(handler, times(1)).createProxyRequestBuffer(any(), additionalHeaders.capture());
+        Assert.assertTrue(additionalHeaders.getValue().get(PROXY_AUTHORIZATION).startsWith(BASIC));
+    }
+
+    /**
+     * Verifies that the handshake fails when the answer to a challenge cannot be computed.
+     */
+    @Test
+    public void challengeAnswerFailureFailsHandshake() {
+        // Arrange
+        Authenticator.setDefault(new Authenticator() {
+            @Override
+            protected PasswordAuthentication getPasswordAuthentication() {
+                throw new IllegalStateException("Vault is not reachable.");
+            }
+        });
+
+        ProxyImpl proxyImpl = new ProxyImpl();
+        ProxyHandler handler = mock(ProxyHandler.class);
+        TransportImpl underlyingTransport = mock(TransportImpl.class);
+        List<Runnable> tasks = new ArrayList<>();
+        proxyImpl.setChallengeExecutor(tasks::add, null);
+        proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, handler, underlyingTransport);
+        TransportWrapper transportWrapper = proxyImpl.wrap(mock(TransportInput.class), mock(TransportOutput.class));
+
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request"));
+        when(handler.validateProxyResponse(any())).thenReturn(false);
+
+        // Act
+        transportWrapper.pending();
+        setInputBuffer(proxyImpl, getProxyResponse(new String[]{"HTTP/1.1", "407", "Proxy Authentication Required"},
+            Collections.singletonList(BASIC_HEADER)));
+        transportWrapper.process();
+        clearOutputBuffer(proxyImpl);
+        tasks.get(0).run();
+
+        // Assert
+        Assert.assertEquals(Transport.END_OF_STREAM, transportWrapper.pending());
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_FAILED, proxyImpl.getProxyState());
+        verify(underlyingTransport).closed(argThat(e -> e.getMessage().contains("Vault is not reachable.")));
+        verify(handler, times(1)).createProxyRequestBuffer(any(), any());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void setChallengeExecutorAfterHandshakeStarted() {
+        ProxyImpl proxyImpl = new ProxyImpl();
+        ProxyHandler handler = mock(ProxyHandler.class);
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request"));
+        proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, handler, mock(TransportImpl.class));
+        proxyImpl.wrap(mock(TransportInput.class), mock(TransportOutput.class)).pending();
+
+        proxyImpl.setChallengeExecutor(Runnable::run, null);
+    }
+
+    /**
+     * Verifies that a Bearer challenge is answered with the token of the registered processor, and that the token is
+     * dropped when the proxy rejects it.
+     */
+    @Test
+    public void bearerChallengeAnsweredWithRegisteredProcessor() {
+        // Arrange
+        AtomicInteger issued = new AtomicInteger();
+        BearerTokenCache tokens = new BearerTokenCache(() -> CompletableFuture.completedFuture(
+            new ProxyAccessToken("token-" + issued.incrementAndGet(), Instant.now().plus(Duration.ofHours(1)))),
+            Duration.ofMinutes(5));
+        ProxyConfiguration configuration = new ProxyConfiguration(ProxyAuthenticationType.BEARER, PROXY, null, null);
+        ProxyImpl proxyImpl = new ProxyImpl(configuration);
+        proxyImpl.setChallengeProcessorRegistry(new ProxyChallengeProcessorRegistry().register(BEARER, tokens));
+        ProxyHandler handler = mock(ProxyHandler.class);
+        TransportImpl underlyingTransport = mock(TransportImpl.class);
+        proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, handler, underlyingTransport);
+        TransportWrapper transportWrapper = proxyImpl.wrap(mock(TransportInput.class), mock(TransportOutput.class));
+
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request", "proxy request2"));
+        when(handler.validateProxyResponse(any())).thenReturn(false);
+
+        final String[] challenge = new String[]{"HTTP/1.1", "407", "Proxy Authentication Required"};
+
+        // Act and Assert
+        transportWrapper.pending();
+        setInputBuffer(proxyImpl, getProxyResponse(challenge, Collections.singletonList(BASIC_HEADER + ", Bearer realm=\"gateway\"")));
+        transportWrapper.process();
+        clearOutputBuffer(proxyImpl);
+        transportWrapper.pending();
+
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CHALLENGE_RESPONDED, proxyImpl.getProxyState());
+        verify(handler, times(2)).createProxyRequestBuffer(any(), additionalHeaders.capture());
+        Assert.assertEquals("Bearer token-1", additionalHeaders.getValue().get(PROXY_AUTHORIZATION));
+
+        setInputBuffer(proxyImpl, getProxyResponse(challenge, Collections.singletonList("Bearer realm=\"gateway\"")));
+        transportWrapper.process();
+
+        verify(underlyingTransport).closed(any());
+        Assert.assertEquals("token-2", tokens.getToken().toCompletableFuture().join().getToken());
+    }
+
+    /**
+     * Verifies that BEARER authentication fails the handshake when no processor is registered for it.
+     */
+    @Test
+    public void bearerWithoutRegisteredProcessorFails() {
+        // Arrange
+        ProxyConfiguration configuration = new ProxyConfiguration(ProxyAuthenticationType.BEARER, PROXY, null, null);
+        ProxyImpl proxyImpl = new ProxyImpl(configuration);
+        ProxyHandler handler = mock(ProxyHandler.class);
+        TransportImpl underlyingTransport = mock(TransportImpl.class);
+        proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, handler, underlyingTransport);
+        TransportWrapper transportWrapper = proxyImpl.wrap(mock(TransportInput.class), mock(TransportOutput.class));
+
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request"));
+        when(handler.validateProxyResponse(any())).thenReturn(false);
+
+        // Act
+        transportWrapper.pending();
+        setInputBuffer(proxyImpl, getProxyResponse(new String[]{"HTTP/1.1", "407", "Proxy Authentication Required"},
+            Collections.singletonList("Bearer realm=\"gateway\"")));
+        transportWrapper.process();
+
+        // Assert
+        verify(underlyingTransport).closed(any());
+        verify(handler, times(1)).createProxyRequestBuffer(any(), any());
+    }
+
+    /**
+     * Verifies that a handshake with tunnel state caching sends credentials of the scheme the proxy accepted in the
+     * last handshake to the same host with its first request.
+     */
+    @Test
+    public void tunnelStateStartsNextHandshakeWithAcceptedScheme() {
+        // Arrange
+        ProxyHandler handler = mock(ProxyHandler.class);
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request"));
+        when(handler.validateProxyResponse(any())).thenReturn(false, true, true);
+
+        ProxyImpl first = new ProxyImpl();
+        first.setTunnelStateCaching(true);
+        first.configure(PROXY_ADDRESS.getHostName(), headers, handler, mock(TransportImpl.class));
+        TransportWrapper firstWrapper = first.wrap(mock(TransportInput.class), mock(TransportOutput.class));
+
+        // Act
+        firstWrapper.pending();
+        setInputBuffer(first, getProxyResponse(new String[]{"HTTP/1.1", "407", "Proxy Authentication Required"},
+            Collections.singletonList(BASIC_HEADER)));
+        firstWrapper.process();
+        clearOutputBuffer(first);
+        firstWrapper.pending();
+        setInputBuffer(first, getProxyResponse(new String[]{"HTTP/1.1", "200", "Connection Established"}, new ArrayList<>()));
+        firstWrapper.process();
+
+        ProxyImpl second = new ProxyImpl();
+        second.setTunnelStateCaching(true);
+        TransportImpl underlyingTransport = mock(TransportImpl.class);
+        second.configure(PROXY_ADDRESS.getHostName(), headers, handler, underlyingTransport);
+        TransportWrapper secondWrapper = second.wrap(mock(TransportInput.class), mock(TransportOutput.class));
+        secondWrapper.pending();
+        setInputBuffer(second, getProxyResponse(new String[]{"HTTP/1.1", "200", "Connection Established"}, new ArrayList<>()));
+        secondWrapper.process();
+
+        // Assert
+        Assert.assertTrue(second.isTunnelStateCaching());
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CONNECTED, first.getProxyState());
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CONNECTED, second.getProxyState());
+        verify(underlyingTransport, never()).closed(any());
+        verify(handler, times(3)).createProxyRequestBuffer(any(), additionalHeaders.capture());
+
+        final List<Map<String, String>> sent = additionalHeaders.getAllValues();
+        Assert.assertFalse(sent.get(0).containsKey(PROXY_AUTHORIZATION));
+        Assert.assertTrue(sent.get(2).get(PROXY_AUTHORIZATION).startsWith(BASIC));
+        Assert.assertEquals(1, ProxyImpl.getTunnelCacheHitCount());
+        Assert.assertEquals(1, ProxyImpl.getTunnelCacheMissCount());
+    }
+
+    /**
+     * Verifies that a handshake starting from the tunnel state of another connection sends the Bearer token of its own
+     * registered processor, never the token the other connection sent.
+     */
+    @Test
+    public void tunnelStateBearerTokenComesFromOwnProcessor() {
+        // Arrange
+        BearerTokenCache firstTokens = new BearerTokenCache(() -> CompletableFuture.completedFuture(
+            new ProxyAccessToken("first-token", Instant.now().plus(Duration.ofHours(1)))), Duration.ofMinutes(5));
+        BearerTokenCache secondTokens = new BearerTokenCache(() -> CompletableFuture.completedFuture(
+            new ProxyAccessToken("second-token", Instant.now().plus(Duration.ofHours(1)))), Duration.ofMinutes(5));
+        secondTokens.refresh();
+
+        ProxyHandler handler = mock(ProxyHandler.class);
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request"));
+        when(handler.validateProxyResponse(any())).thenReturn(false, true, true, false);
+
+        ProxyImpl first = new ProxyImpl();
+        first.setTunnelStateCaching(true);
+        first.setChallengeProcessorRegistry(new ProxyChallengeProcessorRegistry().register(BEARER, firstTokens));
+        first.configure(PROXY_ADDRESS.getHostName(), headers, handler, mock(TransportImpl.class));
+        TransportWrapper firstWrapper = first.wrap(mock(TransportInput.class), mock(TransportOutput.class));
+
+        // Act
+        firstWrapper.pending();
+        setInputBuffer(first, getProxyResponse(new String[]{"HTTP/1.1", "407", "Proxy Authentication Required"},
+            Collections.singletonList("Bearer realm=\"gateway\"")));
+        firstWrapper.process();
+        clearOutputBuffer(first);
+        firstWrapper.pending();
+        setInputBuffer(first, getProxyResponse(new String[]{"HTTP/1.1", "200", "Connection Established"}, new ArrayList<>()));
+        firstWrapper.process();
+
+        ProxyImpl second = new ProxyImpl();
+        second.setTunnelStateCaching(true);
+        second.setChallengeProcessorRegistry(new ProxyChallengeProcessorRegistry().register(BEARER, secondTokens));
+        second.configure(PROXY_ADDRESS.getHostName(), headers, handler, mock(TransportImpl.class));
+        TransportWrapper secondWrapper = second.wrap(mock(TransportInput.class), mock(TransportOutput.class));
+        secondWrapper.pending();
+        setInputBuffer(second, getProxyResponse(new String[]{"HTTP/1.1", "200", "Connection Established"}, new ArrayList<>()));
+        secondWrapper.process();
+
+        // Without a processor for the scheme, no credentials are sent.
+        ProxyImpl third = new ProxyImpl();
+        third.setTunnelStateCaching(true);
+        third.configure(PROXY_ADDRESS.getHostName(), headers, handler, mock(TransportImpl.class));
+        third.wrap(mock(TransportInput.class), mock(TransportOutput.class)).pending();
+
+        // Assert
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CONNECTED, second.getProxyState());
+        verify(handler, times(4)).createProxyRequestBuffer(any(), additionalHeaders.capture());
+
+        final List<Map<String, String>> sent = additionalHeaders.getAllValues();
+        Assert.assertEquals("Bearer first-token", sent.get(1).get(PROXY_AUTHORIZATION));
+        Assert.assertEquals("Bearer second-token", sent.get(2).get(PROXY_AUTHORIZATION));
+        Assert.assertFalse(sent.get(3).containsKey(PROXY_AUTHORIZATION));
+    }
+
+    /**
+     * Verifies that the tunnel state is dropped when the proxy rejects the credentials sent from it.
+     */
+    @Test
+    public void tunnelStateEvictedWhenHandshakeFails() {
+        // Arrange
+        ProxyTunnelCache.SHARED.put(PROXY_ADDRESS.getHostName(), PROXY_ADDRESS.getHostName(), BASIC, false);
+
+        ProxyImpl proxyImpl = new ProxyImpl();
+        proxyImpl.setTunnelStateCaching(true);
+        ProxyHandler handler = mock(ProxyHandler.class);
+        TransportImpl underlyingTransport = mock(TransportImpl.class);
+        proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, handler, underlyingTransport);
+        TransportWrapper transportWrapper = proxyImpl.wrap(mock(TransportInput.class), mock(TransportOutput.class));
+
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request"));
+        when(handler.validateProxyResponse(any())).thenReturn(false);
+
+        // Act
+        transportWrapper.pending();
+        setInputBuffer(proxyImpl, getProxyResponse(new String[]{"HTTP/1.1", "407", "Proxy Authentication Required"},
+            Collections.singletonList(BASIC_HEADER)));
+        transportWrapper.process();
+
+        // Assert
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CHALLENGE, proxyImpl.getProxyState());
+        verify(handler, times(1)).createProxyRequestBuffer(any(), additionalHeaders.capture());
+        Assert.assertTrue(additionalHeaders.getValue().get(PROXY_AUTHORIZATION).startsWith(BASIC));
+        Assert.assertEquals(1, ProxyImpl.getTunnelCacheEvictionCount());
+        Assert.assertEquals(0, ProxyTunnelCache.SHARED.size());
+    }
+
+    /**
+     * Verifies that the challenge of a proxy that closed the connection after its challenge last time is answered on
+     * a new connection, even when it does not say it closes the connection.
+     */
+    @Test
+    public void tunnelStateAnswersChallengeOnNewConnection() {
+        // Arrange
+        ProxyTunnelCache.SHARED.put(PROXY_ADDRESS.getHostName(), PROXY_ADDRESS.getHostName(), DIGEST, true);
+
+        ProxyImpl proxyImpl = new ProxyImpl();
+        proxyImpl.setTunnelStateCaching(true);
+        ProxyHandler handler = mock(ProxyHandler.class);
+        TransportImpl underlyingTransport = mock(TransportImpl.class);
+        proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, handler, underlyingTransport);
+        TransportWrapper transportWrapper = proxyImpl.wrap(mock(TransportInput.class), mock(TransportOutput.class));
+
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request"));
+        when(handler.validateProxyResponse(any())).thenReturn(false);
+
+        // Act
+        transportWrapper.pending();
+        setInputBuffer(proxyImpl, getProxyResponse(new String[]{"HTTP/1.1", "407", "Proxy Authentication Required"},
+            Collections.singletonList(DIGEST_HEADER)));
+        transportWrapper.process();
+
+        ProxyImpl next = new ProxyImpl();
+        next.transferState(proxyImpl);
+        next.configure(PROXY_ADDRESS.getHostName(), headers, handler, mock(TransportImpl.class));
+
+        // Assert
+        Assert.assertEquals(Transport.END_OF_STREAM, transportWrapper.pending());
+        verify(underlyingTransport).closed(argThat(e -> e.getMessage().contains("Proxy server closed the connection.")));
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CHALLENGE, next.getProxyState());
+        Assert.assertTrue(next.getProxyRequestHeaders().get(PROXY_AUTHORIZATION).startsWith(DIGEST));
+        Assert.assertEquals(1, ProxyTunnelCache.SHARED.size());
+        Assert.assertEquals(0, ProxyImpl.getTunnelCacheEvictionCount());
+    }
+
+    /**
+     * Verifies that challenges sent in one header value are told apart, even when quoted values hold commas.
+     */
+    @Test
+    public void severalChallengesInOneHeaderValue() {
+        // Arrange
+        ProxyImpl proxyImpl = new ProxyImpl();
+        ProxyHandler handler = mock(ProxyHandler.class);
+        TransportImpl underlyingTransport = mock(TransportImpl.class);
+        proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, handler, underlyingTransport);
+        TransportWrapper transportWrapper = proxyImpl.wrap(mock(TransportInput.class), mock(TransportOutput.class));
+
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request"));
+        when(handler.validateProxyResponse(any())).thenReturn(false);
+
+        final String challenges = "Basic realm=\"proxy, basic\", digest realm=\"proxy, digest\", nonce=\"n\", qop=\"auth\"";
+
+        // Act
+        transportWrapper.pending();
+        setInputBuffer(proxyImpl, getProxyResponse(new String[]{"HTTP/1.1", "407", "Proxy Authentication Required"},
+            Collections.singletonList(challenges)));
+        transportWrapper.process();
+
+        // Assert
+        Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CHALLENGE, proxyImpl.getProxyState());
+        final String authorization = proxyImpl.getProxyRequestHeaders().get(PROXY_AUTHORIZATION);
+        Assert.assertTrue(authorization.startsWith(DIGEST));
+        Assert.assertTrue(authorization.contains("realm=\"proxy, digest\""));
+    }
+
+    /**
+     * Verifies that preemptive authentication cannot be changed once the handshake has started.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void setPreemptiveAuthenticationAfterHandshakeStarted() {
+        ProxyImpl proxyImpl = new ProxyImpl();
+        ProxyHandler handler = mock(ProxyHandler.class);
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request"));
+        proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, handler, mock(TransportImpl.class));
+        proxyImpl.wrap(mock(TransportInput.class), mock(TransportOutput.class)).pending();
+
+        proxyImpl.setPreemptiveAuthentication(true);
+    }
+
     /**
      * Verifies that when proxy authentication response are transfer in multiple frames.
      */
@@ -890,7 +1703,7 @@ public class ProxyImplTest {
         proxyImpl.configure(PROXY_ADDRESS.getHostName(), headers, handler, underlyingTransport);
         TransportWrapper transportWrapper = proxyImpl.wrap(transportInput, output);
 
-        when(handler.createProxyRequest(any(), any())).thenReturn("proxy request", "proxy request2");
+        when(handler.createProxyRequestBuffer(any(), any())).thenAnswer(proxyRequests("proxy request", "proxy request2"));
         when(handler.validateProxyResponse(any())).thenReturn(false, true);
 
         String[] statusLine = new String[]{"HTTP/1.1", "407", "Proxy Authentication Required"};
@@ -934,7 +1747,7 @@ public class ProxyImplTest {
         Assert.assertFalse(proxyImpl.getIsHandshakeInProgress());
         Assert.assertEquals(Proxy.ProxyState.PN_PROXY_CONNECTED, proxyImpl.getProxyState());
 
-        verify(handler, times(2)).createProxyRequest(
+        verify(handler, times(2)).createProxyRequestBuffer(
             argThat(string -> string != null && string.equals(PROXY_ADDRESS.getHostName())), additionalHeaders.capture());
 
         final Optional<Map<String, String>> matching = additionalHeaders.getAllValues()
@@ -1011,6 +1824,17 @@ public class ProxyImplTest {
         }
     }
 
+    /**
+     * Answers with the encoded {@code requests}, one per call, and the last one once they are all used.
+     */
+    private static Answer<ByteBuffer> proxyRequests(String... requests) {
+        final AtomicInteger calls = new AtomicInteger();
+        return invocation -> {
+            final String request = requests[Math.min(calls.getAndIncrement(), requests.length - 1)];
+            return ByteBuffer.wrap(request.getBytes(StandardCharsets.ISO_8859_1));
+        };
+    }
+
     private String getProxyResponse(String[] statusLine, List<String> authentications) {
         final Map<String, List<String>> headers = new HashMap<>();
 
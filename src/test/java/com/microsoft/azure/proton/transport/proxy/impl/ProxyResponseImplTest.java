@@ -9,6 +9,7 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -115,4 +116,39 @@ public class ProxyResponseImplTest {
         Assert.assertEquals(0, response.getHeaders().size());
         Assert.assertEquals(0, response.getContents().position());
     }
+
+    /**
+     * Verifies that the body is read up to its Content-Length, and bytes after it are left in the buffer.
+     */
+    @Test
+    public void bodyIsReadUpToContentLength() {
+        // Arrange
+        final String response = "HTTP/1.1 407 Proxy Authentication Required" + NEW_LINE
+            + "content-length: 6" + NEW_LINE
+            + NEW_LINE
+            + "deniedAMQP";
+        final ByteBuffer contents = ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1));
+
+        // Act
+        final ProxyResponse actual = ProxyResponseImpl.create(contents);
+
+        // Assert
+        Assert.assertFalse(actual.isMissingContent());
+        Assert.assertEquals("denied", actual.getError());
+        Assert.assertEquals(4, contents.remaining());
+        Assert.assertEquals(Collections.singletonList("6"), actual.getHeaders().get("Content-Length"));
+    }
+
+    /**
+     * Verifies that an exception is thrown when the buffer does not hold the whole response head.
+     */
+    @Test
+    public void incompleteHead() {
+        // Arrange
+        final ByteBuffer contents = ByteBuffer.wrap(("HTTP/1.1 200 Connection Established" + NEW_LINE + "Via: proxy")
+            .getBytes(StandardCharsets.ISO_8859_1));
+
+        // Act & Assert
+        Assert.assertThrows(IllegalArgumentException.class, () -> ProxyResponseImpl.create(contents));
+    }
 }
@@ -0,0 +1,91 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.proxy.impl;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ProxyTunnelCacheTest {
+    private static final String PROXY = "my.proxy:8888";
+    private static final String HOST = "my.host.name";
+
+    private final AtomicLong now = new AtomicLong(0);
+    private final ProxyTunnelCache cache = new ProxyTunnelCache(Duration.ofSeconds(60), now::get);
+
+    @Test
+    public void testStateKeptPerProxyAndHost() {
+        cache.put(PROXY, HOST, "Bearer", true);
+
+        final ProxyTunnelCache.TunnelState state = cache.get(PROXY, HOST);
+        assertNotNull(state);
+        assertEquals("Bearer", state.getScheme());
+        assertTrue(state.closesAfterChallenge());
+
+        assertNull(cache.get(PROXY, "other.host.name"));
+        assertNull(cache.get("other.proxy:8888", HOST));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testExpiredStateDropped() {
+        cache.put(PROXY, HOST, null, false);
+
+        now.addAndGet(Duration.ofSeconds(59).toNanos());
+        assertNotNull(cache.get(PROXY, HOST));
+
+        now.addAndGet(Duration.ofSeconds(1).toNanos());
+        assertNull(cache.get(PROXY, HOST));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testRemoveOnlyDropsStateItStartedFrom() {
+        cache.put(PROXY, HOST, "Basic", false);
+        final ProxyTunnelCache.TunnelState failed = cache.get(PROXY, HOST);
+
+        // Another connection succeeded in the meantime.
+        cache.put(PROXY, HOST, "Basic", true);
+        cache.remove(PROXY, HOST, failed);
+
+        assertEquals(1, cache.size());
+        assertEquals(0, cache.getEvictionCount());
+
+        final ProxyTunnelCache.TunnelState current = cache.get(PROXY, HOST);
+        cache.remove(PROXY, HOST, current);
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testEntriesAboveLimitAreNotKept() {
+        for (int i = 0; i < ProxyTunnelCache.MAX_ENTRIES; i++) {
+            cache.put(PROXY, "host" + i, null, false);
+        }
+
+        cache.put(PROXY, HOST, null, false);
+        assertNull(cache.get(PROXY, HOST));
+        assertEquals(ProxyTunnelCache.MAX_ENTRIES, cache.size());
+
+        // States already kept are replaced.
+        cache.put(PROXY, "host0", "Basic", false);
+        assertEquals("Basic", cache.get(PROXY, "host0").getScheme());
+
+        // Expired states make room for new ones.
+        now.addAndGet(Duration.ofSeconds(60).toNanos());
+        cache.put(PROXY, HOST, null, false);
+        assertEquals(1, cache.size());
+        assertFalse(cache.get(PROXY, HOST).closesAfterChallenge());
+    }
+}
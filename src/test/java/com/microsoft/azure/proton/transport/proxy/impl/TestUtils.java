@@ -65,10 +65,9 @@ final class TestUtils {
                             .forEach(value -> builder.append(String.format(HEADER_FORMAT, entry.getKey(), value))),
                         StringBuilder::append);
 
-        String response = String.join(NEW_LINE,
-                String.join(" ", statusLine),
-                formattedHeaders.toString(),
-                NEW_LINE); // The empty new line that ends the HTTP headers.
+        String response = String.join(" ", statusLine) + NEW_LINE
+                + formattedHeaders
+                + NEW_LINE; // The empty new line that ends the HTTP headers.
 
         if (body != null) {
             response += body;
@@ -0,0 +1,111 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.ws.impl;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeepAliveTest {
+    private final AtomicLong now = new AtomicLong(1000);
+
+    @Test
+    public void testPingDueAfterIdleInterval() {
+        KeepAlive keepAlive = new KeepAlive(100, 50, now::get);
+
+        now.addAndGet(99);
+        assertFalse(keepAlive.isPingDue());
+
+        keepAlive.onActivity();
+        now.addAndGet(99);
+        assertFalse(keepAlive.isPingDue());
+
+        now.addAndGet(1);
+        assertTrue(keepAlive.isPingDue());
+    }
+
+    @Test
+    public void testNoSecondPingWhileOutstanding() {
+        KeepAlive keepAlive = new KeepAlive(100, 50, now::get);
+
+        now.addAndGet(100);
+        assertEquals(0, keepAlive.onPingSent());
+
+        now.addAndGet(100);
+        assertFalse(keepAlive.isPingDue());
+    }
+
+    @Test
+    public void testMatchingPongRecordsRoundTrip() {
+        KeepAlive keepAlive = new KeepAlive(100, 50, now::get);
+
+        receivePong(keepAlive, keepAlive.onPingSent());
+        now.addAndGet(10);
+        receivePong(keepAlive, keepAlive.onPingSent() + 1);
+        assertEquals(1, keepAlive.getSampleCount());
+
+        // The pong for the outstanding ping arrives after the stale one.
+        now.addAndGet(20);
+        receivePong(keepAlive, 1);
+
+        assertEquals(2, keepAlive.getSampleCount());
+        assertEquals(0, keepAlive.getMinRoundTripNanos());
+        assertEquals(10, keepAlive.getAverageRoundTripNanos());
+        assertEquals(20, keepAlive.getP99RoundTripNanos());
+        assertFalse(keepAlive.isPeerDead());
+    }
+
+    @Test
+    public void testUnsolicitedPongIsIgnored() {
+        KeepAlive keepAlive = new KeepAlive(100, 50, now::get);
+
+        receivePong(keepAlive, 0);
+
+        assertEquals(0, keepAlive.getSampleCount());
+        assertEquals(0, keepAlive.getP99RoundTripNanos());
+    }
+
+    @Test
+    public void testPeerDeadAfterTimeout() {
+        KeepAlive keepAlive = new KeepAlive(100, 50, now::get);
+
+        keepAlive.onPingSent();
+        now.addAndGet(49);
+        assertFalse(keepAlive.isPeerDead());
+
+        now.addAndGet(1);
+        assertTrue(keepAlive.isPeerDead());
+
+        keepAlive.reset();
+        assertFalse(keepAlive.isPeerDead());
+    }
+
+    @Test
+    public void testP99OfRecentSamples() {
+        KeepAlive keepAlive = new KeepAlive(100, 1000, now::get);
+
+        for (int roundTrip = 1; roundTrip <= 200; roundTrip++) {
+            final long sequence = keepAlive.onPingSent();
+            now.addAndGet(roundTrip);
+            receivePong(keepAlive, sequence);
+        }
+
+        // Only the last 128 samples, 73 to 200, count towards the percentile.
+        assertEquals(200, keepAlive.getSampleCount());
+        assertEquals(1, keepAlive.getMinRoundTripNanos());
+        assertEquals(199, keepAlive.getP99RoundTripNanos());
+    }
+
+    private static void receivePong(KeepAlive keepAlive, long payload) {
+        keepAlive.onPongStart();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            keepAlive.onPongByte((byte) (payload >>> shift));
+        }
+        keepAlive.onPongEnd();
+    }
+}
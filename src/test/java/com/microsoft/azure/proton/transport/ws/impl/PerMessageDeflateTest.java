@@ -0,0 +1,199 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.ws.impl;
+
+import com.microsoft.azure.proton.transport.ws.PerMessageDeflateOptions;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PerMessageDeflateTest {
+    private static final byte[] MESSAGE = ("{\"deviceId\":\"sensor-01\",\"temperature\":21.5,\"humidity\":40}"
+        + "{\"deviceId\":\"sensor-02\",\"temperature\":21.7,\"humidity\":41}"
+        + "{\"deviceId\":\"sensor-03\",\"temperature\":21.6,\"humidity\":42}").getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testCreateOffer() {
+        assertEquals("permessage-deflate", PerMessageDeflate.createOffer(new PerMessageDeflateOptions()));
+
+        PerMessageDeflateOptions options = new PerMessageDeflateOptions()
+            .setClientNoContextTakeover(true)
+            .setServerNoContextTakeover(true)
+            .setServerMaxWindowBits(10);
+        assertEquals("permessage-deflate; client_no_context_takeover; server_no_context_takeover; server_max_window_bits=10",
+            PerMessageDeflate.createOffer(options));
+    }
+
+    @Test
+    public void testNegotiate() {
+        PerMessageDeflateOptions options = new PerMessageDeflateOptions().setServerMaxWindowBits(12);
+
+        assertNull(PerMessageDeflate.negotiate(options, null));
+        assertNull(PerMessageDeflate.negotiate(options, " "));
+        assertNotNull(PerMessageDeflate.negotiate(options, "permessage-deflate"));
+        assertNotNull(PerMessageDeflate.negotiate(options,
+            "Permessage-Deflate; server_no_context_takeover; client_no_context_takeover; server_max_window_bits=\"10\""));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegotiateUnofferedExtension() {
+        PerMessageDeflate.negotiate(new PerMessageDeflateOptions(), "x-webkit-deflate-frame");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegotiateAcceptedTwice() {
+        PerMessageDeflate.negotiate(new PerMessageDeflateOptions(), "permessage-deflate, permessage-deflate");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegotiateClientWindowNotOffered() {
+        PerMessageDeflate.negotiate(new PerMessageDeflateOptions(), "permessage-deflate; client_max_window_bits=10");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegotiateServerWindowLargerThanOffered() {
+        PerMessageDeflate.negotiate(new PerMessageDeflateOptions().setServerMaxWindowBits(10),
+            "permessage-deflate; server_max_window_bits=11");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegotiateUnknownParameter() {
+        PerMessageDeflate.negotiate(new PerMessageDeflateOptions(), "permessage-deflate; mystery");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegotiateRepeatedParameter() {
+        PerMessageDeflate.negotiate(new PerMessageDeflateOptions(),
+            "permessage-deflate; server_no_context_takeover; server_no_context_takeover");
+    }
+
+    @Test
+    public void testRoundTripWithContextTakeover() throws DataFormatException {
+        PerMessageDeflate sender = PerMessageDeflate.negotiate(new PerMessageDeflateOptions(), "permessage-deflate");
+        PerMessageDeflate receiver = PerMessageDeflate.negotiate(new PerMessageDeflateOptions(), "permessage-deflate");
+
+        int firstSize = 0;
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer src = ByteBuffer.wrap(MESSAGE);
+            ByteBuffer compressed = sender.deflate(src, MESSAGE.length);
+            assertNotNull(compressed);
+            assertFalse(src.hasRemaining());
+
+            // Later messages refer to the earlier ones, so they compress better.
+            if (i == 0) {
+                firstSize = compressed.remaining();
+            } else {
+                assertTrue(compressed.remaining() < firstSize);
+            }
+
+            assertTrue(Arrays.equals(MESSAGE, inflate(receiver, compressed, MESSAGE.length)));
+        }
+
+        assertEquals(3L * MESSAGE.length, sender.getDeflateInputBytes());
+        assertTrue(sender.getDeflateOutputBytes() < sender.getDeflateInputBytes());
+        assertEquals(sender.getDeflateOutputBytes(), receiver.getInflateInputBytes());
+        assertEquals(3L * MESSAGE.length, receiver.getInflateOutputBytes());
+    }
+
+    @Test
+    public void testRoundTripWithoutContextTakeover() throws DataFormatException {
+        PerMessageDeflateOptions options = new PerMessageDeflateOptions().setClientNoContextTakeover(true);
+        PerMessageDeflate sender = PerMessageDeflate.negotiate(options, "permessage-deflate; client_no_context_takeover");
+        PerMessageDeflate receiver = PerMessageDeflate.negotiate(new PerMessageDeflateOptions(),
+            "permessage-deflate; server_no_context_takeover");
+
+        int size = -1;
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer compressed = sender.deflate(ByteBuffer.wrap(MESSAGE), MESSAGE.length);
+
+            // Every message is compressed on its own.
+            assertTrue(size == -1 || size == compressed.remaining());
+            size = compressed.remaining();
+
+            assertTrue(Arrays.equals(MESSAGE, inflate(receiver, compressed, MESSAGE.length)));
+        }
+    }
+
+    @Test
+    public void testSmallAndIncompressibleMessagesAreNotCompressed() {
+        PerMessageDeflate deflate = PerMessageDeflate.negotiate(new PerMessageDeflateOptions().setMinCompressSize(100),
+            "permessage-deflate");
+
+        ByteBuffer small = ByteBuffer.wrap(MESSAGE, 0, 99);
+        assertNull(deflate.deflate(small, 99));
+        assertEquals(0, small.position());
+
+        byte[] random = new byte[1000];
+        Utils.getSecureRandom().nextBytes(random);
+        ByteBuffer incompressible = ByteBuffer.wrap(random);
+        assertNull(deflate.deflate(incompressible, random.length));
+        assertEquals(0, incompressible.position());
+        assertEquals(0, deflate.getDeflateInputBytes());
+    }
+
+    @Test
+    public void testCompressDirectBuffer() throws DataFormatException {
+        PerMessageDeflate deflate = PerMessageDeflate.negotiate(new PerMessageDeflateOptions(), "permessage-deflate");
+
+        ByteBuffer src = ByteBuffer.allocateDirect(MESSAGE.length);
+        src.put(MESSAGE).flip();
+
+        ByteBuffer compressed = deflate.deflate(src, MESSAGE.length);
+        assertTrue(Arrays.equals(MESSAGE, inflate(deflate, compressed, MESSAGE.length)));
+    }
+
+    @Test
+    public void testInflateIntoSmallBuffers() throws DataFormatException {
+        PerMessageDeflate sender = PerMessageDeflate.negotiate(new PerMessageDeflateOptions(), "permessage-deflate");
+        PerMessageDeflate receiver = PerMessageDeflate.negotiate(new PerMessageDeflateOptions(), "permessage-deflate");
+
+        receiver.setInflaterInput(sender.deflate(ByteBuffer.wrap(MESSAGE), MESSAGE.length));
+        receiver.endMessage();
+
+        // The output is read in pieces smaller than the message, and no byte is lost in between.
+        ByteBuffer output = ByteBuffer.allocate(MESSAGE.length);
+        ByteBuffer dst = ByteBuffer.allocateDirect(7);
+        while (receiver.hasInflaterOutput()) {
+            dst.clear();
+            receiver.inflate(dst);
+            dst.flip();
+            output.put(dst);
+        }
+
+        assertTrue(Arrays.equals(MESSAGE, output.array()));
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void testInflateInvalidData() throws DataFormatException {
+        PerMessageDeflate deflate = PerMessageDeflate.negotiate(new PerMessageDeflateOptions(), "permessage-deflate");
+
+        deflate.setInflaterInput(ByteBuffer.wrap(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF}));
+        deflate.endMessage();
+        deflate.inflate(ByteBuffer.allocate(100));
+    }
+
+    private static byte[] inflate(PerMessageDeflate deflate, ByteBuffer compressed, int size) throws DataFormatException {
+        // Room for one more byte, so the trailer is processed in the same call as the last bytes of the message.
+        ByteBuffer output = ByteBuffer.allocate(size + 1);
+
+        while (compressed.hasRemaining()) {
+            deflate.setInflaterInput(compressed);
+            deflate.inflate(output);
+        }
+        deflate.endMessage();
+        deflate.inflate(output);
+
+        assertFalse(deflate.hasInflaterOutput());
+        return Arrays.copyOf(output.array(), output.position());
+    }
+}
@@ -0,0 +1,73 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.ws.impl;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertTrue;
+
+public class ThreadLocalMaskingKeyProviderTest {
+
+    @Test
+    public void testKeysAreNotRepeated() {
+        // Draw across several reseeds of the per-thread generator.
+        int count = ThreadLocalMaskingKeyProvider.KEYS_PER_BLOCK * ThreadLocalMaskingKeyProvider.BLOCKS_PER_SEED * 2 + 1;
+        Set<Integer> keys = new HashSet<>();
+
+        for (int i = 0; i < count; i++) {
+            keys.add(ThreadLocalMaskingKeyProvider.INSTANCE.nextMaskingKey());
+        }
+
+        // 32 bit keys collide now and then, but nowhere near this often if the generator works.
+        assertTrue(keys.size() > count - 16);
+    }
+
+    @Test
+    public void testThreadsDrawDifferentKeys() throws InterruptedException {
+        int threadCount = 8;
+        int keysPerThread = ThreadLocalMaskingKeyProvider.KEYS_PER_BLOCK * 4;
+        Set<Integer> keys = ConcurrentHashMap.newKeySet();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int j = 0; j < keysPerThread; j++) {
+                    keys.add(ThreadLocalMaskingKeyProvider.INSTANCE.nextMaskingKey());
+                }
+            });
+            threads[i].start();
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(keys.size() > threadCount * keysPerThread - 16);
+    }
+
+    @Test
+    public void testHandlerUsesDefaultProvider() {
+        WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl();
+        Set<Integer> keys = new HashSet<>();
+
+        for (int i = 0; i < 100; i++) {
+            keys.add(webSocketHandler.createMaskingKey());
+        }
+
+        assertTrue(keys.size() > 95);
+    }
+}
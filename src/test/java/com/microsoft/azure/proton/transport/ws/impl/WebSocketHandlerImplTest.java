@@ -8,6 +8,7 @@ import com.microsoft.azure.proton.transport.ws.WebSocketHeader;
 import org.junit.Test;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -16,7 +17,10 @@ import java.util.Scanner;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doCallRealMethod;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
@@ -158,7 +162,7 @@ public class WebSocketHandlerImplTest {
         WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl();
 
         ByteBuffer ping = ByteBuffer.allocate(10);
-        ByteBuffer pong = ByteBuffer.allocate(10);
+        ByteBuffer pong = ByteBuffer.allocate(16);
 
         byte[] buffer = new byte[10];
         buffer[0] = WebSocketHeader.FINBIT_MASK | WebSocketHeader.OPCODE_PING;
@@ -172,6 +176,73 @@ public class WebSocketHandlerImplTest {
         assertEquals(actual, expected);
     }
 
+    @Test
+    public void testCreatePongDirectBuffers() {
+        WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl(() -> 0x01020304);
+
+        ByteBuffer ping = ByteBuffer.allocateDirect(10);
+        ByteBuffer pong = ByteBuffer.allocateDirect(20);
+
+        ping.putLong(0x0102030405060708L);
+        ping.flip();
+        webSocketHandler.createPong(ping, pong);
+
+        assertEquals(14, pong.position());
+        assertFalse(ping.hasRemaining());
+        assertEquals(WebSocketHeader.FINBIT_MASK | WebSocketHeader.OPCODE_PONG, pong.get(0));
+        assertEquals(WebSocketHeader.MASKBIT_MASK | 8, pong.get(1));
+        assertEquals(0x01020304, pong.getInt(2));
+        assertEquals(0x0102030405060708L ^ 0x0102030401020304L, pong.getLong(6));
+    }
+
+    @Test
+    public void testCreatePongTruncatesPayload() {
+        WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl(() -> 0);
+
+        ByteBuffer ping = ByteBuffer.allocate(200);
+        ByteBuffer pong = ByteBuffer.allocate(200);
+
+        webSocketHandler.createPong(ping, pong);
+
+        // Control frames carry at most 125 bytes.
+        assertEquals(WebSocketHeader.MIN_HEADER_LENGTH_MASKED + WebSocketHeader.PAYLOAD_SHORT_MAX, pong.position());
+        assertEquals(WebSocketHeader.MASKBIT_MASK | WebSocketHeader.PAYLOAD_SHORT_MAX, pong.get(1));
+    }
+
+    @Test
+    public void testCreatePing() {
+        WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl(() -> 0);
+
+        ByteBuffer payload = ByteBuffer.allocate(8);
+        ByteBuffer frame = ByteBuffer.allocate(20);
+
+        payload.putLong(42);
+        payload.flip();
+        webSocketHandler.createPing(payload, frame);
+
+        assertEquals(14, frame.position());
+        assertEquals(WebSocketHeader.FINBIT_MASK | WebSocketHeader.OPCODE_PING, frame.get(0));
+        assertEquals(WebSocketHeader.MASKBIT_MASK | 8, frame.get(1));
+        assertEquals(42, frame.getLong(6));
+    }
+
+    @Test
+    public void testCreateClose() {
+        WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl(() -> 0);
+
+        ByteBuffer close = ByteBuffer.allocate(10);
+        ByteBuffer frame = ByteBuffer.allocate(20);
+
+        close.putShort((short) 1000);
+        close.flip();
+        webSocketHandler.createClose(close, frame);
+
+        assertEquals(8, frame.position());
+        assertEquals(WebSocketHeader.FINBIT_MASK | WebSocketHeader.OPCODE_CLOSE, frame.get(0));
+        assertEquals(WebSocketHeader.MASKBIT_MASK | 2, frame.get(1));
+        assertEquals(1000, frame.getShort(6));
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testCreatePongPingNull() {
         WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl();
@@ -211,8 +282,10 @@ public class WebSocketHandlerImplTest {
 
         webSocketHandler.createPong(ping, pong);
 
-        assertEquals(0, pong.limit());
-        assertEquals(0, pong.position());
+        // A ping without payload gets a pong without payload.
+        assertEquals(WebSocketHeader.MIN_HEADER_LENGTH_MASKED, pong.position());
+        assertEquals(WebSocketHeader.FINBIT_MASK | WebSocketHeader.OPCODE_PONG, pong.get(0));
+        assertEquals(WebSocketHeader.MASKBIT_MASK, pong.get(1));
     }
 
     @Test
@@ -227,7 +300,6 @@ public class WebSocketHandlerImplTest {
         additionalHeaders.put("header3", "content3");
 
         ByteBuffer buffer = ByteBuffer.allocate(10);
-        byte[] data = new byte[buffer.remaining()];
 
         WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl();
         WebSocketHandlerImpl spyWebSocketHandler = spy(webSocketHandler);
@@ -236,12 +308,12 @@ public class WebSocketHandlerImplTest {
 
         doReturn(mockWebSocketUpgrade).when(spyWebSocketHandler)
             .createWebSocketUpgrade(hostName, webSocketPath, "", webSocketPort, webSocketProtocol, additionalHeaders);
-        doReturn(true).when(mockWebSocketUpgrade).validateUpgradeReply(data);
+        doReturn(true).when(mockWebSocketUpgrade).validateUpgradeReply(buffer);
 
         spyWebSocketHandler.createUpgradeRequest(hostName, webSocketPath, "", webSocketPort, webSocketProtocol, additionalHeaders);
         assertTrue(spyWebSocketHandler.validateUpgradeReply(buffer));
         assertFalse(mockWebSocketUpgrade == null);
-        verify(mockWebSocketUpgrade, times(1)).validateUpgradeReply(data);
+        verify(mockWebSocketUpgrade, times(1)).validateUpgradeReply(buffer);
     }
 
     @Test
@@ -256,7 +328,6 @@ public class WebSocketHandlerImplTest {
         additionalHeaders.put("header3", "content3");
 
         ByteBuffer buffer = ByteBuffer.allocate(10);
-        byte[] data = new byte[buffer.remaining()];
         buffer.limit(0);
 
         WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl();
@@ -266,11 +337,11 @@ public class WebSocketHandlerImplTest {
 
         doReturn(mockWebSocketUpgrade).when(spyWebSocketHandler)
             .createWebSocketUpgrade(hostName, webSocketPath, "", webSocketPort, webSocketProtocol, additionalHeaders);
-        doReturn(true).when(mockWebSocketUpgrade).validateUpgradeReply(data);
+        doReturn(true).when(mockWebSocketUpgrade).validateUpgradeReply(buffer);
 
         spyWebSocketHandler.createUpgradeRequest(hostName, webSocketPath, "", webSocketPort, webSocketProtocol, additionalHeaders);
         assertFalse(spyWebSocketHandler.validateUpgradeReply(buffer));
-        verify(mockWebSocketUpgrade, times(0)).validateUpgradeReply(data);
+        verify(mockWebSocketUpgrade, times(0)).validateUpgradeReply(buffer);
     }
 
     @Test
@@ -321,7 +392,7 @@ public class WebSocketHandlerImplTest {
         }
         srcBuffer.flip();
 
-        doReturn(maskingKey).when(spyWebSocketHandler).createRandomMaskingKey();
+        doReturn(ByteBuffer.wrap(maskingKey).getInt()).when(spyWebSocketHandler).createMaskingKey();
 
         spyWebSocketHandler.wrapBuffer(srcBuffer, dstBuffer);
         dstBuffer.flip();
@@ -375,7 +446,7 @@ public class WebSocketHandlerImplTest {
         }
         srcBuffer.flip();
 
-        doReturn(maskingKey).when(spyWebSocketHandler).createRandomMaskingKey();
+        doReturn(ByteBuffer.wrap(maskingKey).getInt()).when(spyWebSocketHandler).createMaskingKey();
 
         spyWebSocketHandler.wrapBuffer(srcBuffer, dstBuffer);
         dstBuffer.flip();
@@ -429,7 +500,7 @@ public class WebSocketHandlerImplTest {
         }
         srcBuffer.flip();
 
-        doReturn(maskingKey).when(spyWebSocketHandler).createRandomMaskingKey();
+        doReturn(ByteBuffer.wrap(maskingKey).getInt()).when(spyWebSocketHandler).createMaskingKey();
 
         spyWebSocketHandler.wrapBuffer(srcBuffer, dstBuffer);
         dstBuffer.flip();
@@ -487,7 +558,7 @@ public class WebSocketHandlerImplTest {
         }
         srcBuffer.flip();
 
-        doReturn(maskingKey).when(spyWebSocketHandler).createRandomMaskingKey();
+        doReturn(ByteBuffer.wrap(maskingKey).getInt()).when(spyWebSocketHandler).createMaskingKey();
 
         spyWebSocketHandler.wrapBuffer(srcBuffer, dstBuffer);
         dstBuffer.flip();
@@ -548,7 +619,7 @@ public class WebSocketHandlerImplTest {
         }
         srcBuffer.flip();
 
-        doReturn(maskingKey).when(spyWebSocketHandler).createRandomMaskingKey();
+        doReturn(ByteBuffer.wrap(maskingKey).getInt()).when(spyWebSocketHandler).createMaskingKey();
 
         spyWebSocketHandler.wrapBuffer(srcBuffer, dstBuffer);
         dstBuffer.flip();
@@ -609,7 +680,7 @@ public class WebSocketHandlerImplTest {
         }
         srcBuffer.flip();
 
-        doReturn(maskingKey).when(spyWebSocketHandler).createRandomMaskingKey();
+        doReturn(ByteBuffer.wrap(maskingKey).getInt()).when(spyWebSocketHandler).createMaskingKey();
 
         spyWebSocketHandler.wrapBuffer(srcBuffer, dstBuffer);
         dstBuffer.flip();
@@ -655,10 +726,11 @@ public class WebSocketHandlerImplTest {
         expected[0] = (byte) (WebSocketHeader.FINBIT_MASK | WebSocketHeader.OPCODE_BINARY);
         expected[1] = (byte) (WebSocketHeader.MASKBIT_MASK | WebSocketHeader.PAYLOAD_EXTENDED_64);
 
-        expected[2] = (byte) (payloadLength >>> 56);
-        expected[3] = (byte) (payloadLength >>> 48);
-        expected[4] = (byte) (payloadLength >>> 40);
-        expected[5] = (byte) (payloadLength >>> 32);
+        // An int payload length never sets the upper 32 bits of the 64 bit extended length.
+        expected[2] = 0;
+        expected[3] = 0;
+        expected[4] = 0;
+        expected[5] = 0;
         expected[6] = (byte) (payloadLength >>> 24);
         expected[7] = (byte) (payloadLength >>> 16);
         expected[8] = (byte) (payloadLength >>> 8);
@@ -676,7 +748,7 @@ public class WebSocketHandlerImplTest {
         }
         srcBuffer.flip();
 
-        doReturn(maskingKey).when(spyWebSocketHandler).createRandomMaskingKey();
+        doReturn(ByteBuffer.wrap(maskingKey).getInt()).when(spyWebSocketHandler).createMaskingKey();
 
         spyWebSocketHandler.wrapBuffer(srcBuffer, dstBuffer);
         dstBuffer.flip();
@@ -728,10 +800,11 @@ public class WebSocketHandlerImplTest {
         expected[0] = (byte) (WebSocketHeader.FINBIT_MASK | WebSocketHeader.OPCODE_BINARY);
         expected[1] = (byte) (WebSocketHeader.MASKBIT_MASK | WebSocketHeader.PAYLOAD_EXTENDED_64);
 
-        expected[2] = (byte) (payloadLength >>> 56);
-        expected[3] = (byte) (payloadLength >>> 48);
-        expected[4] = (byte) (payloadLength >>> 40);
-        expected[5] = (byte) (payloadLength >>> 32);
+        // An int payload length never sets the upper 32 bits of the 64 bit extended length.
+        expected[2] = 0;
+        expected[3] = 0;
+        expected[4] = 0;
+        expected[5] = 0;
         expected[6] = (byte) (payloadLength >>> 24);
         expected[7] = (byte) (payloadLength >>> 16);
         expected[8] = (byte) (payloadLength >>> 8);
@@ -749,7 +822,7 @@ public class WebSocketHandlerImplTest {
         }
         srcBuffer.flip();
 
-        doReturn(maskingKey).when(spyWebSocketHandler).createRandomMaskingKey();
+        doReturn(ByteBuffer.wrap(maskingKey).getInt()).when(spyWebSocketHandler).createMaskingKey();
 
         spyWebSocketHandler.wrapBuffer(srcBuffer, dstBuffer);
         dstBuffer.flip();
@@ -824,7 +897,7 @@ public class WebSocketHandlerImplTest {
 //        }
 //        srcBuffer.flip();
 //
-//        doReturn(maskingKey).when(spyWebSocketHandler).createRandomMaskingKey();
+//        doReturn(ByteBuffer.wrap(maskingKey).getInt()).when(spyWebSocketHandler).createMaskingKey();
 //
 //        spyWebSocketHandler.wrapBuffer(srcBuffer, dstBuffer);
 //        dstBuffer.flip();
@@ -877,7 +950,7 @@ public class WebSocketHandlerImplTest {
         spyWebSocketHandler.wrapBuffer(srcBuffer, dstBuffer);
     }
 
-    @Test(expected = OutOfMemoryError.class)
+    @Test
     public void testWrapBufferDstBufferSmall() {
         WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl();
         WebSocketHandlerImpl spyWebSocketHandler = spy(webSocketHandler);
@@ -887,6 +960,62 @@ public class WebSocketHandlerImplTest {
         ByteBuffer dstBuffer = ByteBuffer.allocate(messageLength);
 
         spyWebSocketHandler.wrapBuffer(srcBuffer, dstBuffer);
+
+        // Only the part of the payload that fits next to the header is framed.
+        int framedLength = messageLength - WebSocketHeader.MIN_HEADER_LENGTH_MASKED;
+        assertEquals(messageLength, dstBuffer.position());
+        assertEquals(WebSocketHeader.MASKBIT_MASK | framedLength, dstBuffer.get(1));
+        assertEquals(framedLength, srcBuffer.position());
+    }
+
+    @Test(expected = OutOfMemoryError.class)
+    public void testWrapBufferDstBufferTooSmallForAnyPayload() {
+        WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl();
+
+        ByteBuffer srcBuffer = ByteBuffer.allocate(10);
+        ByteBuffer dstBuffer = ByteBuffer.allocate(WebSocketHeader.MIN_HEADER_LENGTH_MASKED);
+
+        webSocketHandler.wrapBuffer(srcBuffer, dstBuffer);
+    }
+
+    @Test
+    public void testWrapBufferSplitsLargePayloadIntoFrames() {
+        WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl();
+        WebSocketHandlerImpl spyWebSocketHandler = spy(webSocketHandler);
+
+        byte[] maskingKey = new byte[]{0x01, 0x02, 0x03, 0x04};
+        doReturn(ByteBuffer.wrap(maskingKey).getInt()).when(spyWebSocketHandler).createMaskingKey();
+
+        byte[] data = new byte[70000];
+        SECURE_RANDOM.nextBytes(data);
+        ByteBuffer srcBuffer = ByteBuffer.wrap(data);
+
+        // Frame sizes around the boundaries between the 7, 16 and 64 bit payload length encodings.
+        int[] frameSizes = new int[]{7, 131, 132, 134, 65543, 65550};
+        ByteBuffer unmasked = ByteBuffer.allocate(data.length);
+
+        int i = 0;
+        while (srcBuffer.hasRemaining()) {
+            int frameSize = frameSizes[i++ % frameSizes.length];
+            ByteBuffer dstBuffer = ByteBuffer.allocate(frameSize);
+            int framed = srcBuffer.position();
+
+            spyWebSocketHandler.wrapBuffer(srcBuffer, dstBuffer);
+
+            framed = srcBuffer.position() - framed;
+            int headerSize = webSocketHandler.calculateHeaderSize(framed);
+            assertTrue(framed > 0);
+            assertEquals(headerSize + framed, dstBuffer.position());
+            assertEquals(WebSocketHeader.FINBIT_MASK | WebSocketHeader.OPCODE_BINARY, dstBuffer.get(0));
+
+            dstBuffer.flip();
+            dstBuffer.position(headerSize);
+            for (int j = 0; j < framed; j++) {
+                unmasked.put((byte) (dstBuffer.get() ^ maskingKey[j % 4]));
+            }
+        }
+
+        assertTrue(Arrays.equals(data, unmasked.array()));
     }
 
     @Test
@@ -902,6 +1031,121 @@ public class WebSocketHandlerImplTest {
         spyWebSocketHandler.wrapBuffer(srcBuffer, dstBuffer);
     }
 
+    @Test
+    public void testWrapBufferUsesMaskingKeyProvider() {
+        WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl(() -> 0x11A233F4);
+
+        byte[] data = new byte[]{0x01, 0x02, 0x03, 0x04, 0x05};
+        ByteBuffer srcBuffer = ByteBuffer.wrap(data);
+        ByteBuffer dstBuffer = ByteBuffer.allocate(data.length + WebSocketHeader.MIN_HEADER_LENGTH_MASKED);
+
+        webSocketHandler.wrapBuffer(srcBuffer, dstBuffer);
+
+        byte[] expected = new byte[]{
+            (byte) (WebSocketHeader.FINBIT_MASK | WebSocketHeader.OPCODE_BINARY), (byte) (WebSocketHeader.MASKBIT_MASK | data.length),
+            0x11, (byte) 0xA2, 0x33, (byte) 0xF4,
+            0x01 ^ 0x11, (byte) (0x02 ^ 0xA2), 0x03 ^ 0x33, (byte) (0x04 ^ 0xF4), 0x05 ^ 0x11};
+        assertTrue(Arrays.equals(expected, dstBuffer.array()));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testConstructorMaskingKeyProviderNull() {
+        new WebSocketHandlerImpl(null);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void testCreateRandomMaskingKeyReturnsMaskingKeyBytes() {
+        WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl(() -> 0x01020304);
+
+        assertTrue(Arrays.equals(new byte[]{0x01, 0x02, 0x03, 0x04}, webSocketHandler.createRandomMaskingKey()));
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void testWrapBufferUsesOverriddenRandomMaskingKey() {
+        WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl(() -> 0) {
+            @Override
+            protected byte[] createRandomMaskingKey() {
+                return new byte[]{0x11, (byte) 0xA2, 0x33, (byte) 0xF4};
+            }
+        };
+
+        byte[] data = new byte[]{0x01, 0x02, 0x03, 0x04, 0x05};
+        ByteBuffer srcBuffer = ByteBuffer.wrap(data);
+        ByteBuffer dstBuffer = ByteBuffer.allocate(data.length + WebSocketHeader.MIN_HEADER_LENGTH_MASKED);
+
+        webSocketHandler.wrapBuffer(srcBuffer, dstBuffer);
+
+        byte[] expected = new byte[]{
+            (byte) (WebSocketHeader.FINBIT_MASK | WebSocketHeader.OPCODE_BINARY), (byte) (WebSocketHeader.MASKBIT_MASK | data.length),
+            0x11, (byte) 0xA2, 0x33, (byte) 0xF4,
+            0x01 ^ 0x11, (byte) (0x02 ^ 0xA2), 0x03 ^ 0x33, (byte) (0x04 ^ 0xF4), 0x05 ^ 0x11};
+        assertTrue(Arrays.equals(expected, dstBuffer.array()));
+    }
+
+    @Test
+    public void testSubclassWithoutRandomMaskingKeyUsesMaskingKeyProvider() {
+        WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl(() -> 0x01020304) {
+        };
+
+        assertEquals(0x01020304, webSocketHandler.createMaskingKey());
+    }
+
+    @Test
+    public void testWrapBufferMasksEveryPayloadAlignment() {
+        WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl();
+        WebSocketHandlerImpl spyWebSocketHandler = spy(webSocketHandler);
+
+        byte[] maskingKey = new byte[]{0x11, (byte) 0xA2, 0x33, (byte) 0xF4};
+        doReturn(ByteBuffer.wrap(maskingKey).getInt()).when(spyWebSocketHandler).createMaskingKey();
+
+        // Covers payloads that are not a multiple of the 8 byte masking stride, starting at an offset in the source.
+        for (int payloadLength = 1; payloadLength <= 2 * Long.BYTES + 3; payloadLength++) {
+            byte[] data = new byte[payloadLength + 3];
+            SECURE_RANDOM.nextBytes(data);
+
+            ByteBuffer srcBuffer = ByteBuffer.wrap(data);
+            srcBuffer.position(3);
+            ByteBuffer dstBuffer = ByteBuffer.allocate(payloadLength + WebSocketHeader.MIN_HEADER_LENGTH_MASKED);
+
+            spyWebSocketHandler.wrapBuffer(srcBuffer, dstBuffer);
+
+            assertEquals(0, srcBuffer.remaining());
+            assertEquals(payloadLength + WebSocketHeader.MIN_HEADER_LENGTH_MASKED, dstBuffer.position());
+
+            byte[] actual = dstBuffer.array();
+            for (int i = 0; i < payloadLength; i++) {
+                assertEquals("mismatch at " + i + " for length " + payloadLength,
+                    (byte) (data[i + 3] ^ maskingKey[i % 4]), actual[i + WebSocketHeader.MIN_HEADER_LENGTH_MASKED]);
+            }
+        }
+    }
+
+    @Test
+    public void testWrapBufferLittleEndianBuffers() {
+        WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl();
+        WebSocketHandlerImpl spyWebSocketHandler = spy(webSocketHandler);
+
+        byte[] maskingKey = new byte[]{0x01, 0x02, 0x03, 0x04};
+        doReturn(ByteBuffer.wrap(maskingKey).getInt()).when(spyWebSocketHandler).createMaskingKey();
+
+        int payloadLength = 37;
+        byte[] data = new byte[payloadLength];
+        SECURE_RANDOM.nextBytes(data);
+
+        ByteBuffer srcBuffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer dstBuffer = ByteBuffer.allocate(payloadLength + WebSocketHeader.MIN_HEADER_LENGTH_MASKED)
+            .order(ByteOrder.LITTLE_ENDIAN);
+
+        spyWebSocketHandler.wrapBuffer(srcBuffer, dstBuffer);
+
+        byte[] actual = dstBuffer.array();
+        for (int i = 0; i < payloadLength; i++) {
+            assertEquals((byte) (data[i] ^ maskingKey[i % 4]), actual[i + WebSocketHeader.MIN_HEADER_LENGTH_MASKED]);
+        }
+    }
+
     @Test
     public void testUnwrapBufferOpcodePing() {
         WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl();
@@ -980,6 +1224,48 @@ public class WebSocketHandlerImplTest {
         assertTrue(Arrays.equals(expected, actual));
     }
 
+    @Test
+    public void testUnwrapBufferReservedBits() {
+        WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl();
+
+        byte[] data = new byte[]{(byte) (WebSocketHeader.FINBIT_MASK | WebSocketHeader.RSV1_MASK | WebSocketHeader.OPCODE_BINARY), 1, 42};
+        WebSocketHandler.WebsocketTuple compressed = webSocketHandler.unwrapBuffer(ByteBuffer.wrap(data));
+        assertEquals(WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_AMQP, compressed.getType());
+        assertEquals(WebSocketHeader.RSV1_MASK, compressed.getReservedBits());
+        assertTrue(compressed.isFinal());
+
+        data[0] = WebSocketHeader.OPCODE_BINARY;
+        WebSocketHandler.WebsocketTuple plain = webSocketHandler.unwrapBuffer(ByteBuffer.wrap(data));
+        assertEquals(0, plain.getReservedBits());
+        assertFalse(plain.isFinal());
+    }
+
+    @Test
+    public void testDefaultUnwrapBufferDecodesHeaderBits() {
+        // A handler that only implements the single-argument unwrapBuffer reports the length and type alone.
+        WebSocketHandler legacyHandler = mock(WebSocketHandler.class);
+        doReturn(new WebSocketHandler.WebsocketTuple(3, WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_AMQP))
+            .when(legacyHandler).unwrapBuffer(any(ByteBuffer.class));
+        doCallRealMethod().when(legacyHandler).unwrapBuffer(any(ByteBuffer.class), any(WebSocketHandler.WebsocketTuple.class));
+
+        byte[] data = new byte[]{(byte) (WebSocketHeader.FINBIT_MASK | WebSocketHeader.RSV1_MASK | WebSocketHeader.OPCODE_BINARY), 1, 42};
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        WebSocketHandler.WebsocketTuple result = new WebSocketHandler.WebsocketTuple();
+        assertSame(result, legacyHandler.unwrapBuffer(buffer, result));
+        assertEquals(3, result.getLength());
+        assertEquals(WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_AMQP, result.getType());
+        assertEquals(WebSocketHeader.OPCODE_BINARY, result.getOpcode());
+        assertEquals(WebSocketHeader.RSV1_MASK, result.getReservedBits());
+        assertTrue(result.isFinal());
+        assertFalse(result.isMasked());
+
+        data[0] = WebSocketHeader.OPCODE_PONG;
+        legacyHandler.unwrapBuffer(ByteBuffer.wrap(data), result);
+        assertEquals(WebSocketHeader.OPCODE_PONG, result.getOpcode());
+        assertEquals(0, result.getReservedBits());
+        assertFalse(result.isFinal());
+    }
+
     @Test
     public void testUnwrapBufferShortMessageMin() {
         WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl();
@@ -1243,6 +1529,83 @@ public class WebSocketHandlerImplTest {
             spyWebSocketHandler.unwrapBuffer(srcBuffer).getType());
     }
 
+    @Test
+    public void testUnwrapBufferIntoReusedResult() {
+        WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl();
+        WebSocketHandler.WebsocketTuple result = new WebSocketHandler.WebsocketTuple();
+
+        byte[] data = {(byte) (WebSocketHeader.FINBIT_MASK | WebSocketHeader.OPCODE_PING), 5, 1, 2, 3, 4, 5};
+        ByteBuffer srcBuffer = ByteBuffer.wrap(data);
+
+        assertTrue(result == webSocketHandler.unwrapBuffer(srcBuffer, result));
+        assertEquals(WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_PING, result.getType());
+        assertEquals(5, result.getLength());
+        assertEquals(WebSocketHeader.OPCODE_PING, result.getOpcode());
+        assertTrue(result.isFinal());
+        assertFalse(result.isMasked());
+        assertEquals(WebSocketHeader.MIN_HEADER_LENGTH, srcBuffer.position());
+
+        // A continuation frame without FIN, decoded into the same instance.
+        data = new byte[]{WebSocketHeader.OPCODE_CONTINUATION, (byte) (WebSocketHeader.MASKBIT_MASK | 3), 0, 0, 0, 0, 1, 2, 3};
+        srcBuffer = ByteBuffer.wrap(data);
+
+        assertTrue(result == webSocketHandler.unwrapBuffer(srcBuffer, result));
+        assertEquals(WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_CHUNK, result.getType());
+        assertEquals(3, result.getLength());
+        assertEquals(WebSocketHeader.OPCODE_CONTINUATION, result.getOpcode());
+        assertFalse(result.isFinal());
+        assertTrue(result.isMasked());
+    }
+
+    @Test
+    public void testUnwrapBufferEmptyPayload() {
+        WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl();
+
+        // A frame without payload is only two bytes long, and must not be mistaken for the start of a header.
+        byte[] data = {(byte) (WebSocketHeader.FINBIT_MASK | WebSocketHeader.OPCODE_CLOSE), 0};
+        ByteBuffer srcBuffer = ByteBuffer.wrap(data);
+
+        WebSocketHandler.WebsocketTuple result = webSocketHandler.unwrapBuffer(srcBuffer);
+        assertEquals(WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_CLOSE, result.getType());
+        assertEquals(0, result.getLength());
+        assertFalse(srcBuffer.hasRemaining());
+    }
+
+    @Test
+    public void testUnwrapBufferSplitHeaderKeepsPosition() {
+        WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl();
+        WebSocketHandler.WebsocketTuple result = new WebSocketHandler.WebsocketTuple();
+
+        ByteBuffer medium = ByteBuffer.allocate(WebSocketHeader.MED_HEADER_LENGTH_NOMASK);
+        medium.put(WebSocketHeader.FINAL_OPCODE_BINARY).put(WebSocketHeader.PAYLOAD_EXTENDED_16).putShort((short) 0xFFFF);
+
+        ByteBuffer large = ByteBuffer.allocate(WebSocketHeader.MAX_HEADER_LENGTH_NOMASK);
+        large.put(WebSocketHeader.FINAL_OPCODE_BINARY).put(WebSocketHeader.PAYLOAD_EXTENDED_64).putLong(70000L);
+
+        for (ByteBuffer header : new ByteBuffer[]{medium, large}) {
+            final int headerLength = header.capacity();
+
+            // Every prefix of the header, as small socket reads would deliver it.
+            for (int available = 0; available < headerLength; available++) {
+                ByteBuffer srcBuffer = ByteBuffer.allocate(headerLength + 1);
+                srcBuffer.position(1);
+                srcBuffer.put(header.array(), 0, available);
+                srcBuffer.flip();
+                srcBuffer.position(1);
+
+                webSocketHandler.unwrapBuffer(srcBuffer, result);
+                assertEquals(WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_HEADER_CHUNK, result.getType());
+                assertEquals(1, srcBuffer.position());
+            }
+
+            ByteBuffer srcBuffer = ByteBuffer.wrap(header.array());
+            webSocketHandler.unwrapBuffer(srcBuffer, result);
+            assertEquals(WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_AMQP, result.getType());
+            assertEquals(header == medium ? 0xFFFF : 70000L, result.getLength());
+            assertEquals(headerLength, srcBuffer.position());
+        }
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testUnwrapBufferSrcBufferNull() {
         WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl();
@@ -3,34 +3,47 @@
 
 package com.microsoft.azure.proton.transport.ws.impl;
 
+import com.microsoft.azure.proton.transport.buffer.ByteBufferPool;
+import com.microsoft.azure.proton.transport.ws.PerMessageDeflateOptions;
 import com.microsoft.azure.proton.transport.ws.WebSocket;
 import com.microsoft.azure.proton.transport.ws.WebSocketHandler;
 import com.microsoft.azure.proton.transport.ws.WebSocketHeader;
 import org.apache.qpid.proton.engine.Transport;
 import org.apache.qpid.proton.engine.TransportException;
 import org.apache.qpid.proton.engine.impl.ByteBufferUtils;
+import org.apache.qpid.proton.engine.impl.TransportImpl;
 import org.apache.qpid.proton.engine.impl.TransportInput;
 import org.apache.qpid.proton.engine.impl.TransportOutput;
 import org.apache.qpid.proton.engine.impl.TransportWrapper;
 import org.junit.Assert;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -135,7 +148,7 @@ public class WebSocketImplTest {
         webSocketImpl.writeUpgradeRequest();
 
         verify(spyWebSocketHandler, times(1))
-            .createUpgradeRequest(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders);
+            .createUpgradeRequestBuffer(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders);
 
         ByteBuffer outputBuffer = webSocketImpl.getOutputBuffer();
         outputBuffer.flip();
@@ -154,36 +167,36 @@ public class WebSocketImplTest {
         webSocketImpl
             .configure(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders, spyWebSocketHandler);
 
-        ByteBuffer outputBuffer = webSocketImpl.getOutputBuffer();
         ByteBuffer pingBuffer = webSocketImpl.getPingBuffer();
+        pingBuffer.put((byte) 1);
 
         webSocketImpl.writePong();
 
-        verify(spyWebSocketHandler, times(1)).createPong(pingBuffer, outputBuffer);
+        verify(spyWebSocketHandler, times(1)).createPong(any(ByteBuffer.class), any(ByteBuffer.class));
+        assertEquals(1, pingBuffer.position());
     }
 
     @Test
     public void testWriteClose() {
-        init();
-
-        WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl();
-        WebSocketHandlerImpl spyWebSocketHandler = spy(webSocketHandler);
-
         WebSocketImpl webSocketImpl = new WebSocketImpl();
-        webSocketImpl
-            .configure(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders, spyWebSocketHandler);
-
-        String message = "Message";
+        TransportWrapper transportWrapper = connectWithRealFrameHandler(webSocketImpl, ByteBuffer.allocate(0));
 
-        ByteBuffer pingBuffer = webSocketImpl.getPingBuffer();
-        pingBuffer.clear();
-        pingBuffer.put(message.getBytes());
+        byte[] message = "Message".getBytes();
+        putServerFrame(transportWrapper.tail(), WebSocketHeader.OPCODE_CLOSE, message);
+        transportWrapper.process();
+        assertEquals(WebSocket.WebSocketState.PN_WS_CONNECTED_CLOSING, webSocketImpl.getState());
 
-        ByteBuffer outputBuffer = webSocketImpl.getOutputBuffer();
+        // The close frame echoes the payload of the peer's close frame.
+        int pending = transportWrapper.pending();
+        assertEquals(WebSocket.WebSocketState.PN_WS_CLOSED, webSocketImpl.getState());
+        assertEquals(WebSocketHeader.MIN_HEADER_LENGTH_MASKED + message.length, pending);
 
-        webSocketImpl.writeClose();
+        ByteBuffer head = transportWrapper.head();
+        assertEquals(pending, head.remaining());
+        assertTrue(Arrays.equals(message, readClientFrame(head, WebSocketHeader.OPCODE_CLOSE)));
 
-        assertTrue(Arrays.equals(pingBuffer.array(), outputBuffer.array()));
+        transportWrapper.pop(pending);
+        assertEquals(Transport.END_OF_STREAM, transportWrapper.pending());
     }
 
     @Test
@@ -429,8 +442,8 @@ public class WebSocketImplTest {
 
         when(mockWebSocketHandler.validateUpgradeReply((ByteBuffer) any())).thenReturn(true);
         when(mockWebSocketHandler
-            .createUpgradeRequest(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
-            .thenReturn("Request");
+            .createUpgradeRequestBuffer(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
+            .thenAnswer(upgradeRequest("Request"));
 
         assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_NOT_STARTED);
         transportWrapper.pending();
@@ -483,9 +496,8 @@ public class WebSocketImplTest {
             // can't happen since SHA-1 is a known digest
         }
         // Assemble a response that the upgrade verifier will accept
-        byte[] fakeInput = (
-            "http/1.1 101 switching protocols\nupgrade websocket\nconnection upgrade\nsec-websocket-protocol fakeprotocol\nsec-websocket-accept "
-                + expectedKey).getBytes();
+        byte[] fakeInput = ("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+            + "Sec-WebSocket-Protocol: fakeprotocol\r\nSec-WebSocket-Accept: " + expectedKey + "\r\n\r\n").getBytes();
 
         // Feed the response to the verifier, adding one byte at a time to simulate a response broken into chunks.
         // This test inspired by an issue with the IBM JRE which for some reason returned the service's response in multiple pieces.
@@ -502,6 +514,41 @@ public class WebSocketImplTest {
         assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_CONNECTED_FLOW);
     }
 
+    @Test
+    public void testFrameInSameReadAsUpgradeReply() throws NoSuchAlgorithmException {
+        init();
+
+        WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl();
+        WebSocketImpl webSocketImpl = new WebSocketImpl();
+        webSocketImpl.configure(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders, webSocketHandler);
+
+        ByteBuffer received = ByteBuffer.allocate(100);
+        TransportInput transportInput = mock(TransportInput.class);
+        when(transportInput.capacity()).thenAnswer(invocation -> received.remaining());
+        when(transportInput.tail()).thenReturn(received);
+        TransportWrapper transportWrapper = webSocketImpl.wrap(transportInput, mock(TransportOutput.class));
+        transportWrapper.pending();
+
+        String request = webSocketHandler.createUpgradeRequest("fakehost", "fakepath", "fakequery", 9999, "fakeprotocol", null);
+        String key = request.substring(request.indexOf("Sec-WebSocket-Key: ") + 19, request.indexOf("\r\n", request.indexOf("Sec-WebSocket-Key: ")));
+        String accept = Base64.encodeBase64StringLocal(MessageDigest.getInstance("SHA-1")
+            .digest((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes(StandardCharsets.ISO_8859_1))).trim();
+
+        // The server sends its first frame in the same read as its upgrade reply.
+        byte[] payload = createPayload(10);
+        ByteBuffer inputBuffer = transportWrapper.tail();
+        inputBuffer.put(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+            + "Sec-WebSocket-Protocol: fakeprotocol\r\nSec-WebSocket-Accept: " + accept + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        putServerFrame(inputBuffer, WebSocketHeader.OPCODE_BINARY, payload);
+        transportWrapper.process();
+
+        assertEquals(WebSocket.WebSocketState.PN_WS_CONNECTED_FLOW, webSocketImpl.getState());
+        received.flip();
+        byte[] actual = new byte[received.remaining()];
+        received.get(actual);
+        assertTrue(Arrays.equals(payload, actual));
+    }
+
     @Test
     public void testPendingStateFlowOutputNotEmpty() {
         init();
@@ -520,8 +567,8 @@ public class WebSocketImplTest {
 
         when(mockWebSocketHandler.validateUpgradeReply((ByteBuffer) any())).thenReturn(true);
         when(mockWebSocketHandler
-            .createUpgradeRequest(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
-            .thenReturn("Request");
+            .createUpgradeRequestBuffer(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
+            .thenAnswer(upgradeRequest("Request"));
 
         assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_NOT_STARTED);
         transportWrapper.pending();
@@ -560,9 +607,9 @@ public class WebSocketImplTest {
 
         when(mockWebSocketHandler.validateUpgradeReply((ByteBuffer) any())).thenReturn(true);
         when(mockWebSocketHandler
-            .createUpgradeRequest(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
-            .thenReturn("Request");
-        when(mockWebSocketHandler.unwrapBuffer((ByteBuffer) any()))
+            .createUpgradeRequestBuffer(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
+            .thenAnswer(upgradeRequest("Request"));
+        when(mockWebSocketHandler.unwrapBuffer(any(ByteBuffer.class), any(WebSocketHandler.WebsocketTuple.class)))
             .thenReturn(new WebSocketHandler.WebsocketTuple(7, WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_PING));
 
         assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_NOT_STARTED);
@@ -607,9 +654,9 @@ public class WebSocketImplTest {
 
         when(mockWebSocketHandler.validateUpgradeReply((ByteBuffer) any())).thenReturn(true);
         when(mockWebSocketHandler
-            .createUpgradeRequest(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
-            .thenReturn("Request");
-        when(mockWebSocketHandler.unwrapBuffer((ByteBuffer) any()))
+            .createUpgradeRequestBuffer(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
+            .thenAnswer(upgradeRequest("Request"));
+        when(mockWebSocketHandler.unwrapBuffer(any(ByteBuffer.class), any(WebSocketHandler.WebsocketTuple.class)))
             .thenReturn(new WebSocketHandler.WebsocketTuple(7, WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_CLOSE));
 
         assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_NOT_STARTED);
@@ -654,9 +701,9 @@ public class WebSocketImplTest {
 
         when(mockWebSocketHandler.validateUpgradeReply((ByteBuffer) any())).thenReturn(true);
         when(mockWebSocketHandler
-            .createUpgradeRequest(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
-            .thenReturn("Request");
-        when(mockWebSocketHandler.unwrapBuffer((ByteBuffer) any()))
+            .createUpgradeRequestBuffer(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
+            .thenAnswer(upgradeRequest("Request"));
+        when(mockWebSocketHandler.unwrapBuffer(any(ByteBuffer.class), any(WebSocketHandler.WebsocketTuple.class)))
             .thenReturn(new WebSocketHandler.WebsocketTuple(7, WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_CLOSE));
 
         assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_NOT_STARTED);
@@ -724,8 +771,8 @@ public class WebSocketImplTest {
 
         when(mockWebSocketHandler.validateUpgradeReply((ByteBuffer) any())).thenReturn(true);
         when(mockWebSocketHandler
-            .createUpgradeRequest(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
-            .thenReturn("Request");
+            .createUpgradeRequestBuffer(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
+            .thenAnswer(upgradeRequest("Request"));
 
         assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_NOT_STARTED);
         transportWrapper.pending();
@@ -818,9 +865,9 @@ public class WebSocketImplTest {
 
         when(mockWebSocketHandler.validateUpgradeReply((ByteBuffer) any())).thenReturn(true);
         when(mockWebSocketHandler
-            .createUpgradeRequest(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
-            .thenReturn("Request");
-        when(mockWebSocketHandler.unwrapBuffer((ByteBuffer) any()))
+            .createUpgradeRequestBuffer(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
+            .thenAnswer(upgradeRequest("Request"));
+        when(mockWebSocketHandler.unwrapBuffer(any(ByteBuffer.class), any(WebSocketHandler.WebsocketTuple.class)))
             .thenReturn(new WebSocketHandler.WebsocketTuple(7, WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_AMQP));
 
         assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_NOT_STARTED);
@@ -1017,9 +1064,9 @@ public class WebSocketImplTest {
 
         when(mockWebSocketHandler.validateUpgradeReply((ByteBuffer) any())).thenReturn(true);
         when(mockWebSocketHandler
-            .createUpgradeRequest(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
-            .thenReturn("Request");
-        when(mockWebSocketHandler.unwrapBuffer((ByteBuffer) any()))
+            .createUpgradeRequestBuffer(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
+            .thenAnswer(upgradeRequest("Request"));
+        when(mockWebSocketHandler.unwrapBuffer(any(ByteBuffer.class), any(WebSocketHandler.WebsocketTuple.class)))
             .thenReturn(new WebSocketHandler.WebsocketTuple(7, WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_PING));
 
         assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_NOT_STARTED);
@@ -1061,9 +1108,9 @@ public class WebSocketImplTest {
 
         when(mockWebSocketHandler.validateUpgradeReply((ByteBuffer) any())).thenReturn(true);
         when(mockWebSocketHandler
-            .createUpgradeRequest(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
-            .thenReturn("Request");
-        when(mockWebSocketHandler.unwrapBuffer((ByteBuffer) any()))
+            .createUpgradeRequestBuffer(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
+            .thenAnswer(upgradeRequest("Request"));
+        when(mockWebSocketHandler.unwrapBuffer(any(ByteBuffer.class), any(WebSocketHandler.WebsocketTuple.class)))
             .thenReturn(new WebSocketHandler.WebsocketTuple(7, WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_CLOSE));
 
         assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_NOT_STARTED);
@@ -1105,9 +1152,9 @@ public class WebSocketImplTest {
 
         when(mockWebSocketHandler.validateUpgradeReply((ByteBuffer) any())).thenReturn(true);
         when(mockWebSocketHandler
-            .createUpgradeRequest(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
-            .thenReturn("Request");
-        when(mockWebSocketHandler.unwrapBuffer((ByteBuffer) any()))
+            .createUpgradeRequestBuffer(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
+            .thenAnswer(upgradeRequest("Request"));
+        when(mockWebSocketHandler.unwrapBuffer(any(ByteBuffer.class), any(WebSocketHandler.WebsocketTuple.class)))
             .thenReturn(new WebSocketHandler.WebsocketTuple(7, WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_PING));
 
         assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_NOT_STARTED);
@@ -1211,6 +1258,7 @@ public class WebSocketImplTest {
             public void process() throws TransportException {
                 bb.flip();
                 actualFinalBuffer.put(bb);
+                bb.clear();
             }
 
             @Override
@@ -1224,14 +1272,14 @@ public class WebSocketImplTest {
 
         when(mockWebSocketHandler.validateUpgradeReply((ByteBuffer) any())).thenReturn(true);
         when(mockWebSocketHandler
-            .createUpgradeRequest(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
-            .thenReturn("Request");
-        when(mockWebSocketHandler.unwrapBuffer((ByteBuffer) any())).thenAnswer(new Answer<WebSocketHandler.WebsocketTuple>() {
+            .createUpgradeRequestBuffer(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
+            .thenAnswer(upgradeRequest("Request"));
+        when(mockWebSocketHandler.unwrapBuffer(any(ByteBuffer.class), any())).thenAnswer(new Answer<WebSocketHandler.WebsocketTuple>() {
             @Override
             public WebSocketHandler.WebsocketTuple answer(InvocationOnMock invocation) throws Throwable {
                 Object[] arguments = invocation.getArguments();
                 ByteBuffer bb = (ByteBuffer) arguments[0];
-                bb.position(2);
+                bb.position(bb.position() + 2);
                 return new WebSocketHandler.WebsocketTuple(98, WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_AMQP);
             }
         });
@@ -1310,14 +1358,14 @@ public class WebSocketImplTest {
 
         when(mockWebSocketHandler.validateUpgradeReply((ByteBuffer) any())).thenReturn(true);
         when(mockWebSocketHandler
-            .createUpgradeRequest(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
-            .thenReturn("Request");
-        when(mockWebSocketHandler.unwrapBuffer((ByteBuffer) any())).thenAnswer(new Answer<WebSocketHandler.WebsocketTuple>() {
+            .createUpgradeRequestBuffer(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
+            .thenAnswer(upgradeRequest("Request"));
+        when(mockWebSocketHandler.unwrapBuffer(any(ByteBuffer.class), any())).thenAnswer(new Answer<WebSocketHandler.WebsocketTuple>() {
             @Override
             public WebSocketHandler.WebsocketTuple answer(InvocationOnMock invocation) throws Throwable {
                 Object[] arguments = invocation.getArguments();
                 ByteBuffer bb = (ByteBuffer) arguments[0];
-                bb.position(2);
+                bb.position(bb.position() + 2);
                 return new WebSocketHandler.WebsocketTuple(payloadLength, WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_AMQP);
             }
         });
@@ -1382,6 +1430,977 @@ public class WebSocketImplTest {
         verify(mockTransportInput, times(chunkCount - 1)).process();
     }
 
+    @Test
+    public void testProcessFramesSplitAtEveryChunkSize() {
+        byte[] amqp1 = createPayload(5);
+        byte[] ping = createPayload(3);
+        byte[] amqp2 = createPayload(300);
+        byte[] continuation = createPayload(4);
+
+        ByteBuffer stream = ByteBuffer.allocate(400);
+        putServerFrame(stream, WebSocketHeader.OPCODE_BINARY, amqp1);
+        putServerFrame(stream, WebSocketHeader.OPCODE_PING, ping);
+        putServerFrame(stream, WebSocketHeader.OPCODE_BINARY, amqp2);
+        putServerFrame(stream, (byte) 0x0F, createPayload(6));
+        putServerFrame(stream, WebSocketHeader.OPCODE_CONTINUATION, continuation);
+        stream.flip();
+
+        ByteBuffer expected = ByteBuffer.allocate(amqp1.length + amqp2.length + continuation.length);
+        expected.put(amqp1).put(amqp2).put(continuation);
+
+        for (int chunkSize = 1; chunkSize <= stream.limit(); chunkSize++) {
+            final ByteBuffer received = ByteBuffer.allocate(expected.capacity());
+            WebSocketImpl webSocketImpl = new WebSocketImpl();
+            TransportWrapper transportWrapper = connectWithRealFrameHandler(webSocketImpl, received);
+
+            ByteBuffer inputBuffer = webSocketImpl.getInputBuffer();
+            ByteBuffer chunks = stream.duplicate();
+            while (chunks.hasRemaining()) {
+                ByteBuffer chunk = chunks.duplicate();
+                chunk.limit(Math.min(chunks.limit(), chunks.position() + chunkSize));
+                chunks.position(chunk.limit());
+
+                inputBuffer.put(chunk);
+                transportWrapper.process();
+            }
+
+            assertTrue("chunk size " + chunkSize, Arrays.equals(expected.array(), received.array()));
+            assertEquals(WebSocket.WebSocketState.PN_WS_CONNECTED_PONG, webSocketImpl.getState());
+
+            ByteBuffer pingBuffer = webSocketImpl.getPingBuffer();
+            pingBuffer.flip();
+            assertEquals(ByteBuffer.wrap(ping), pingBuffer);
+        }
+    }
+
+    @Test
+    public void testProcessPayloadWaitsForUnderlyingCapacity() {
+        byte[] payload = createPayload(20);
+        final ByteBuffer received = ByteBuffer.allocate(8);
+
+        WebSocketImpl webSocketImpl = new WebSocketImpl();
+        TransportWrapper transportWrapper = connectWithRealFrameHandler(webSocketImpl, received);
+
+        ByteBuffer inputBuffer = webSocketImpl.getInputBuffer();
+        putServerFrame(inputBuffer, WebSocketHeader.OPCODE_BINARY, payload);
+        transportWrapper.process();
+
+        // The bytes the underlying input could not take stay in the input buffer.
+        assertEquals(payload.length - received.capacity(), inputBuffer.position());
+        assertTrue(Arrays.equals(Arrays.copyOf(payload, received.capacity()), received.array()));
+
+        received.clear();
+        transportWrapper.process();
+
+        assertEquals(payload.length - 2 * received.capacity(), inputBuffer.position());
+        assertTrue(Arrays.equals(Arrays.copyOfRange(payload, received.capacity(), 2 * received.capacity()), received.array()));
+    }
+
+    @Test
+    public void testOutputLargerThanFrameIsSentAsSeveralFrames() {
+        final int frameSize = 1024;
+        byte[] data = createPayload(10000);
+
+        int frameCount = sendThroughFrames(data, frameSize, frameSize);
+
+        int maxPayloadSize = frameSize - WebSocketHeader.MED_HEADER_LENGTH_MASKED;
+        assertEquals((data.length + maxPayloadSize - 1) / maxPayloadSize, frameCount);
+    }
+
+    @Test
+    public void testPartiallyPoppedFramesAreNotFramedAgain() {
+        final int frameSize = 1024;
+        byte[] data = createPayload(10000);
+
+        // Pop sizes that do not line up with the frames.
+        for (int popSize : new int[]{1, 7, 300, 1000}) {
+            int frameCount = sendThroughFrames(data, frameSize, popSize);
+
+            int maxPayloadSize = frameSize - WebSocketHeader.MED_HEADER_LENGTH_MASKED;
+            assertEquals((data.length + maxPayloadSize - 1) / maxPayloadSize, frameCount);
+        }
+    }
+
+    /**
+     * Sends {@code data} through a WebSocket layer with buffers of {@code frameSize}, popping at most {@code popSize}
+     * bytes at a time, and checks that the frames carry {@code data}.
+     *
+     * @return The number of frames sent.
+     */
+    private int sendThroughFrames(byte[] data, int frameSize, int popSize) {
+        return sendThroughFrames(new WebSocketImpl(frameSize), data, frameSize, popSize);
+    }
+
+    private int sendThroughFrames(WebSocketImpl webSocketImpl, byte[] data, int frameSize, int popSize) {
+        final ByteBuffer output = ByteBuffer.wrap(data);
+        final int[] frameCount = new int[1];
+
+        TransportOutput transportOutput = new TransportOutput() {
+            @Override
+            public int pending() {
+                return output.remaining();
+            }
+
+            @Override
+            public ByteBuffer head() {
+                frameCount[0]++;
+                return output;
+            }
+
+            @Override
+            public void pop(int bytes) {
+                output.position(output.position() + bytes);
+            }
+
+            @Override
+            public void close_head() {
+            }
+        };
+
+        TransportWrapper transportWrapper = connectWithRealFrameHandler(webSocketImpl, ByteBuffer.allocate(0), transportOutput);
+
+        ByteBuffer sent = ByteBuffer.allocate(2 * data.length);
+        int pending;
+        while ((pending = transportWrapper.pending()) > 0) {
+            ByteBuffer head = transportWrapper.head();
+            assertEquals(pending, head.remaining());
+            assertTrue(pending <= frameSize);
+
+            int bytes = Math.min(pending, popSize);
+            head.limit(head.position() + bytes);
+            sent.put(head);
+            transportWrapper.pop(bytes);
+        }
+
+        // Unmask every frame and check the payloads add up to the original output.
+        sent.flip();
+        ByteBuffer unmasked = ByteBuffer.allocate(data.length);
+        while (sent.hasRemaining()) {
+            assertEquals(WebSocketHeader.FINBIT_MASK | WebSocketHeader.OPCODE_BINARY, sent.get());
+            int length = sent.get() & WebSocketHeader.PAYLOAD_MASK;
+            if (length == WebSocketHeader.PAYLOAD_EXTENDED_16) {
+                length = sent.getShort() & 0xFFFF;
+            }
+            byte[] maskingKey = new byte[4];
+            sent.get(maskingKey);
+            for (int i = 0; i < length; i++) {
+                unmasked.put((byte) (sent.get() ^ maskingKey[i % 4]));
+            }
+        }
+
+        assertTrue(Arrays.equals(data, unmasked.array()));
+        return frameCount[0];
+    }
+
+    @Test
+    public void testDirectBuffersSendFrames() {
+        final int frameSize = 1024;
+        WebSocketImpl webSocketImpl = new WebSocketImpl(frameSize, new ByteBufferPool(16 * frameSize, true));
+
+        assertTrue(webSocketImpl.getInputBuffer().isDirect());
+        assertTrue(webSocketImpl.getOutputBuffer().isDirect());
+        assertTrue(webSocketImpl.getPingBuffer().isDirect());
+        assertTrue(webSocketImpl.getWsInputBuffer().isDirect());
+
+        byte[] data = createPayload(3000);
+        int frameCount = sendThroughFrames(webSocketImpl, data, frameSize, 100);
+
+        int maxPayloadSize = frameSize - WebSocketHeader.MED_HEADER_LENGTH_MASKED;
+        assertEquals((data.length + maxPayloadSize - 1) / maxPayloadSize, frameCount);
+    }
+
+    @Test
+    public void testDirectBuffersReceiveFrames() {
+        WebSocketImpl webSocketImpl = new WebSocketImpl(1024, new ByteBufferPool(0, true));
+        final ByteBuffer received = ByteBuffer.allocate(100);
+        TransportWrapper transportWrapper = connectWithRealFrameHandler(webSocketImpl, received);
+
+        byte[] payload = createPayload(50);
+        byte[] pingPayload = {1, 2, 3, 4};
+        putServerFrame(transportWrapper.tail(), WebSocketHeader.OPCODE_BINARY, payload);
+        putServerFrame(transportWrapper.tail(), WebSocketHeader.OPCODE_PING, pingPayload);
+        transportWrapper.process();
+
+        assertEquals(payload.length, received.position());
+        assertTrue(Arrays.equals(payload, Arrays.copyOf(received.array(), payload.length)));
+        assertEquals(WebSocket.WebSocketState.PN_WS_CONNECTED_PONG, webSocketImpl.getState());
+
+        assertTrue(transportWrapper.pending() > 0);
+        assertEquals(WebSocketHeader.FINBIT_MASK | WebSocketHeader.OPCODE_PONG, transportWrapper.head().get(0));
+    }
+
+    @Test
+    public void testPendingStateFlowWriteCoalescing() {
+        init();
+
+        WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl();
+        WebSocketHandlerImpl mockWebSocketHandler = mock(webSocketHandler.getClass());
+
+        WebSocketImpl webSocketImpl = new WebSocketImpl();
+        webSocketImpl
+            .configure(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders, mockWebSocketHandler);
+        webSocketImpl.setWriteCoalescing(100, Duration.ofHours(1));
+
+        TransportInput mockTransportInput = mock(TransportInput.class);
+        TransportOutput mockTransportOutput = mock(TransportOutput.class);
+
+        TransportWrapper transportWrapper = webSocketImpl.wrap(mockTransportInput, mockTransportOutput);
+
+        when(mockWebSocketHandler.validateUpgradeReply((ByteBuffer) any())).thenReturn(true);
+        when(mockWebSocketHandler
+            .createUpgradeRequestBuffer(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
+            .thenAnswer(upgradeRequest("Request"));
+        when(mockWebSocketHandler.calculateHeaderSize(120)).thenReturn((int) WebSocketHeader.MIN_HEADER_LENGTH_MASKED);
+
+        transportWrapper.pending();
+        transportWrapper.process();
+        assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_CONNECTED_FLOW);
+
+        when(mockTransportOutput.pending()).thenReturn(10);
+        assertEquals(0, transportWrapper.pending());
+        when(mockTransportOutput.pending()).thenReturn(40);
+        assertEquals(0, transportWrapper.pending());
+        when(mockTransportOutput.pending()).thenReturn(120);
+        assertEquals(120 + WebSocketHeader.MIN_HEADER_LENGTH_MASKED, transportWrapper.pending());
+
+        assertEquals(2, webSocketImpl.getCoalescedFrameCount());
+        assertFalse(webSocketImpl.getCoalescingDelay().isNegative());
+
+        webSocketImpl.disableWriteCoalescing();
+        when(mockTransportOutput.pending()).thenReturn(120);
+        assertEquals(120 + WebSocketHeader.MIN_HEADER_LENGTH_MASKED, transportWrapper.pending());
+        assertEquals(0, webSocketImpl.getCoalescedFrameCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetWriteCoalescingInvalidThreshold() {
+        new WebSocketImpl().setWriteCoalescing(0, Duration.ofMillis(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetWriteCoalescingNegativeDelay() {
+        new WebSocketImpl().setWriteCoalescing(100, Duration.ofMillis(-1));
+    }
+
+    @Test
+    public void testRecycleReturnsPooledBuffers() {
+        final int frameSize = 1024;
+        ByteBufferPool pool = new ByteBufferPool(8 * frameSize);
+        WebSocketImpl webSocketImpl = new WebSocketImpl(frameSize, pool);
+        assertEquals(4, pool.getMissCount());
+
+        connectWithRealFrameHandler(webSocketImpl, ByteBuffer.allocate(0));
+
+        webSocketImpl.recycle();
+
+        assertEquals(WebSocket.WebSocketState.PN_WS_NOT_STARTED, webSocketImpl.getState());
+        assertEquals(4 * frameSize, pool.getRetainedBytes());
+        assertEquals(null, webSocketImpl.getInputBuffer());
+        assertEquals(null, webSocketImpl.getOutputBuffer());
+
+        // The recycled layer connects again on the pooled buffers.
+        connectWithRealFrameHandler(webSocketImpl, ByteBuffer.allocate(0));
+
+        assertEquals(frameSize, webSocketImpl.getInputBuffer().capacity());
+        assertEquals(0, pool.getRetainedBytes());
+        assertEquals(4, pool.getHitCount());
+    }
+
+    @Test
+    public void testRecycleWithoutPool() {
+        WebSocketImpl webSocketImpl = new WebSocketImpl();
+        ByteBuffer inputBuffer = webSocketImpl.getInputBuffer();
+
+        connectWithRealFrameHandler(webSocketImpl, ByteBuffer.allocate(0));
+
+        webSocketImpl.recycle();
+
+        assertEquals(WebSocket.WebSocketState.PN_WS_NOT_STARTED, webSocketImpl.getState());
+        assertTrue(inputBuffer == webSocketImpl.getInputBuffer());
+        assertEquals(0, webSocketImpl.getOutputBuffer().position());
+
+        connectWithRealFrameHandler(webSocketImpl, ByteBuffer.allocate(0));
+    }
+
+    @Test
+    public void testAdaptiveBufferSizingStartsSmall() {
+        WebSocketImpl webSocketImpl = new WebSocketImpl(64 * 1024);
+        webSocketImpl.setAdaptiveBufferSizing(512, Duration.ofSeconds(1));
+
+        assertEquals(512, webSocketImpl.getInputBuffer().capacity());
+        assertEquals(512, webSocketImpl.getOutputBuffer().capacity());
+        assertEquals(null, webSocketImpl.getPingBuffer());
+        assertEquals(null, webSocketImpl.getWsInputBuffer());
+    }
+
+    @Test
+    public void testAdaptiveBufferSizingGrowsAndShrinksOutput() {
+        final long[] now = new long[1];
+        final int maxFrameSize = 16 * 1024;
+        byte[] data = createPayload(10000);
+        final ByteBuffer output = ByteBuffer.wrap(data);
+
+        WebSocketImpl webSocketImpl = new WebSocketImpl(maxFrameSize);
+        webSocketImpl.setAdaptiveBufferSizing(512, Duration.ofNanos(100), () -> now[0]);
+        output.limit(0);
+        TransportWrapper transportWrapper = connectWithRealFrameHandler(webSocketImpl, ByteBuffer.allocate(0),
+            createTransportOutput(output));
+
+        // All the output fits in one frame once the buffer has grown.
+        output.limit(data.length);
+        int pending = transportWrapper.pending();
+        assertEquals(data.length + WebSocketHeader.MED_HEADER_LENGTH_MASKED, pending);
+        assertEquals(maxFrameSize, webSocketImpl.getOutputBuffer().capacity());
+        assertEquals(pending, transportWrapper.head().remaining());
+        transportWrapper.pop(pending);
+        assertFalse(output.hasRemaining());
+
+        // The buffer is kept while it may be needed again, and shrinks once it has been idle.
+        now[0] += 99;
+        assertEquals(0, transportWrapper.pending());
+        assertEquals(maxFrameSize, webSocketImpl.getOutputBuffer().capacity());
+
+        now[0] += 1;
+        assertEquals(0, transportWrapper.pending());
+        assertEquals(512, webSocketImpl.getOutputBuffer().capacity());
+    }
+
+    @Test
+    public void testAdaptiveBufferSizingGrowsAndShrinksInput() {
+        final long[] now = new long[1];
+        WebSocketImpl webSocketImpl = new WebSocketImpl(16 * 1024);
+        webSocketImpl.setAdaptiveBufferSizing(512, Duration.ofNanos(100), () -> now[0]);
+        final ByteBuffer received = ByteBuffer.allocate(0);
+        TransportWrapper transportWrapper = connectWithRealFrameHandler(webSocketImpl, received);
+
+        // The underlying input takes nothing, so the bytes stay and the buffer grows to make room for more.
+        byte[] payload = createPayload(300);
+        putServerFrame(transportWrapper.tail(), WebSocketHeader.OPCODE_BINARY, payload);
+        transportWrapper.process();
+
+        assertEquals(1024 - payload.length, transportWrapper.capacity());
+        assertEquals(1024, webSocketImpl.getInputBuffer().capacity());
+        assertEquals(payload.length, webSocketImpl.getInputBuffer().position());
+
+        ByteBuffer drained = ByteBuffer.allocate(payload.length);
+        transportWrapper.tail().flip();
+        drained.put(transportWrapper.tail());
+        transportWrapper.tail().clear();
+        assertTrue(Arrays.equals(payload, drained.array()));
+
+        now[0] += 100;
+        assertEquals(512, transportWrapper.capacity());
+        assertEquals(512, webSocketImpl.getInputBuffer().capacity());
+    }
+
+    @Test
+    public void testAdaptiveBufferSizingAllocatesPingBufferOnFirstPing() {
+        WebSocketImpl webSocketImpl = new WebSocketImpl(16 * 1024);
+        webSocketImpl.setAdaptiveBufferSizing(512, Duration.ofSeconds(1));
+        TransportWrapper transportWrapper = connectWithRealFrameHandler(webSocketImpl, ByteBuffer.allocate(0));
+
+        byte[] payload = createPayload(WebSocketHeader.PAYLOAD_SHORT_MAX);
+        putServerFrame(transportWrapper.tail(), WebSocketHeader.OPCODE_PING, payload);
+        transportWrapper.process();
+
+        assertEquals(512, webSocketImpl.getPingBuffer().capacity());
+        assertEquals(WebSocket.WebSocketState.PN_WS_CONNECTED_PONG, webSocketImpl.getState());
+        assertTrue(transportWrapper.pending() > payload.length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetAdaptiveBufferSizingInitialSizeTooSmall() {
+        new WebSocketImpl().setAdaptiveBufferSizing(255, Duration.ofSeconds(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetAdaptiveBufferSizingInitialSizeTooLarge() {
+        new WebSocketImpl(1024).setAdaptiveBufferSizing(1025, Duration.ofSeconds(1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSetAdaptiveBufferSizingAfterConnecting() {
+        WebSocketImpl webSocketImpl = new WebSocketImpl();
+        connectWithRealFrameHandler(webSocketImpl, ByteBuffer.allocate(0));
+
+        webSocketImpl.setAdaptiveBufferSizing(512, Duration.ofSeconds(1));
+    }
+
+    private TransportOutput createTransportOutput(final ByteBuffer output) {
+        return new TransportOutput() {
+            @Override
+            public int pending() {
+                return output.remaining();
+            }
+
+            @Override
+            public ByteBuffer head() {
+                return output;
+            }
+
+            @Override
+            public void pop(int bytes) {
+                output.position(output.position() + bytes);
+            }
+
+            @Override
+            public void close_head() {
+            }
+        };
+    }
+
+    @Test
+    public void testPongSentBetweenDataFrames() {
+        final int frameSize = 1024;
+        byte[] data = createPayload(3000);
+        byte[] ping = createPayload(20);
+        final ByteBuffer output = ByteBuffer.wrap(data);
+
+        TransportOutput transportOutput = new TransportOutput() {
+            @Override
+            public int pending() {
+                return output.remaining();
+            }
+
+            @Override
+            public ByteBuffer head() {
+                return output;
+            }
+
+            @Override
+            public void pop(int bytes) {
+                output.position(output.position() + bytes);
+            }
+
+            @Override
+            public void close_head() {
+            }
+        };
+
+        WebSocketImpl webSocketImpl = new WebSocketImpl(frameSize);
+        TransportWrapper transportWrapper = connectWithRealFrameHandler(webSocketImpl, ByteBuffer.allocate(0), transportOutput);
+
+        // Half of the first data frame is sent when the ping arrives.
+        ByteBuffer sent = ByteBuffer.allocate(2 * data.length);
+        int pending = transportWrapper.pending();
+        ByteBuffer head = transportWrapper.head();
+        head.limit(head.position() + pending / 2);
+        sent.put(head);
+        transportWrapper.pop(pending / 2);
+
+        putServerFrame(transportWrapper.tail(), WebSocketHeader.OPCODE_PING, ping);
+        transportWrapper.process();
+
+        while ((pending = transportWrapper.pending()) > 0) {
+            head = transportWrapper.head();
+            assertEquals(pending, head.remaining());
+            sent.put(head);
+            transportWrapper.pop(pending);
+        }
+
+        // The data frame in flight is completed, then the pong goes out with exactly the ping payload, then the rest.
+        sent.flip();
+        ByteBuffer received = ByteBuffer.allocate(data.length);
+        received.put(readClientFrame(sent, WebSocketHeader.OPCODE_BINARY));
+        assertTrue(Arrays.equals(ping, readClientFrame(sent, WebSocketHeader.OPCODE_PONG)));
+        while (sent.hasRemaining()) {
+            received.put(readClientFrame(sent, WebSocketHeader.OPCODE_BINARY));
+        }
+
+        assertTrue(Arrays.equals(data, received.array()));
+    }
+
+    @Test
+    public void testKeepAlivePingMeasuresRoundTrip() {
+        final long[] now = {0};
+        WebSocketImpl webSocketImpl = new WebSocketImpl();
+        webSocketImpl.setKeepAlive(Duration.ofSeconds(10), Duration.ofSeconds(5), null, () -> now[0]);
+        TransportWrapper transportWrapper = connectWithRealFrameHandler(webSocketImpl, ByteBuffer.allocate(0));
+
+        now[0] += Duration.ofSeconds(9).toNanos();
+        assertEquals(0, transportWrapper.pending());
+
+        now[0] += Duration.ofSeconds(1).toNanos();
+        int pending = transportWrapper.pending();
+        assertEquals(WebSocketHeader.MIN_HEADER_LENGTH_MASKED + Long.BYTES, pending);
+        byte[] ping = readClientFrame(transportWrapper.head(), WebSocketHeader.OPCODE_PING);
+        transportWrapper.pop(pending);
+
+        // Only one ping is outstanding at a time.
+        now[0] += Duration.ofSeconds(1).toNanos();
+        assertEquals(0, transportWrapper.pending());
+
+        putServerFrame(transportWrapper.tail(), WebSocketHeader.OPCODE_PONG, ping);
+        transportWrapper.process();
+
+        assertEquals(1, webSocketImpl.getRoundTripTimeCount());
+        assertEquals(Duration.ofSeconds(1), webSocketImpl.getMinRoundTripTime());
+        assertEquals(Duration.ofSeconds(1), webSocketImpl.getAverageRoundTripTime());
+        assertEquals(Duration.ofSeconds(1), webSocketImpl.getP99RoundTripTime());
+        assertEquals(WebSocket.WebSocketState.PN_WS_CONNECTED_FLOW, webSocketImpl.getState());
+    }
+
+    @Test
+    public void testKeepAliveFailsTransportWithoutPong() {
+        final long[] now = {0};
+        TransportImpl transport = mock(TransportImpl.class);
+        WebSocketImpl webSocketImpl = new WebSocketImpl();
+        webSocketImpl.setKeepAlive(Duration.ofSeconds(10), Duration.ofSeconds(5), transport, () -> now[0]);
+        TransportWrapper transportWrapper = connectWithRealFrameHandler(webSocketImpl, ByteBuffer.allocate(0));
+
+        now[0] += Duration.ofSeconds(10).toNanos();
+        int pending = transportWrapper.pending();
+        transportWrapper.head();
+        transportWrapper.pop(pending);
+
+        now[0] += Duration.ofSeconds(4).toNanos();
+        assertEquals(0, transportWrapper.pending());
+        verify(transport, never()).closed(any());
+
+        now[0] += Duration.ofSeconds(1).toNanos();
+        assertEquals(Transport.END_OF_STREAM, transportWrapper.pending());
+        assertEquals(WebSocket.WebSocketState.PN_WS_FAILED, webSocketImpl.getState());
+        assertEquals(Transport.END_OF_STREAM, transportWrapper.capacity());
+        assertEquals(0, webSocketImpl.getRoundTripTimeCount());
+
+        // The transport fails with an error naming the timeout, rather than looking closed by the peer.
+        ArgumentCaptor<TransportException> error = ArgumentCaptor.forClass(TransportException.class);
+        verify(transport, times(1)).closed(error.capture());
+        assertEquals("WebSocket keepalive ping was not answered within PT5S.", error.getValue().getMessage());
+
+        transportWrapper.pending();
+        verify(transport, times(1)).closed(any());
+    }
+
+    @Test
+    public void testKeepAlivePingsCarryNextSequenceNumber() {
+        final long[] now = {0};
+        WebSocketImpl webSocketImpl = new WebSocketImpl();
+        webSocketImpl.setKeepAlive(Duration.ofSeconds(10), Duration.ofSeconds(5), null, () -> now[0]);
+        TransportWrapper transportWrapper = connectWithRealFrameHandler(webSocketImpl, ByteBuffer.allocate(0));
+
+        for (long sequence = 0; sequence < 3; sequence++) {
+            now[0] += Duration.ofSeconds(10).toNanos();
+            int pending = transportWrapper.pending();
+            byte[] ping = readClientFrame(transportWrapper.head(), WebSocketHeader.OPCODE_PING);
+            transportWrapper.pop(pending);
+            assertEquals(sequence, ByteBuffer.wrap(ping).getLong());
+
+            putServerFrame(transportWrapper.tail(), WebSocketHeader.OPCODE_PONG, ping);
+            transportWrapper.process();
+        }
+
+        assertEquals(3, webSocketImpl.getRoundTripTimeCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeepAliveZeroInterval() {
+        new WebSocketImpl().setKeepAlive(Duration.ZERO, Duration.ofSeconds(1));
+    }
+
+    @Test
+    public void testPerMessageDeflateOffered() {
+        init();
+
+        WebSocketImpl webSocketImpl = new WebSocketImpl();
+        webSocketImpl.setPerMessageDeflate(new PerMessageDeflateOptions().setClientNoContextTakeover(true));
+        webSocketImpl.configure(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders,
+            new WebSocketHandlerImpl());
+
+        TransportWrapper transportWrapper = webSocketImpl.wrap(mock(TransportInput.class), mock(TransportOutput.class));
+        int pending = transportWrapper.pending();
+        byte[] request = new byte[pending];
+        transportWrapper.head().get(request);
+
+        String upgradeRequest = new String(request, StandardCharsets.ISO_8859_1);
+        assertTrue(upgradeRequest.contains("\r\nSec-WebSocket-Extensions: permessage-deflate; client_no_context_takeover\r\n"));
+        assertTrue(upgradeRequest.contains("\r\nheader1: content1\r\n"));
+    }
+
+    @Test
+    public void testPerMessageDeflateNotAccepted() {
+        WebSocketImpl webSocketImpl = new WebSocketImpl();
+        webSocketImpl.setPerMessageDeflate(new PerMessageDeflateOptions());
+        connectWithRealFrameHandler(webSocketImpl, ByteBuffer.allocate(0), mock(TransportOutput.class), null);
+
+        assertEquals(WebSocket.WebSocketState.PN_WS_CONNECTED_FLOW, webSocketImpl.getState());
+        assertFalse(webSocketImpl.isPerMessageDeflateNegotiated());
+    }
+
+    @Test
+    public void testPerMessageDeflateInvalidResponseFailsConnection() {
+        WebSocketImpl webSocketImpl = new WebSocketImpl();
+        webSocketImpl.setPerMessageDeflate(new PerMessageDeflateOptions());
+        TransportWrapper transportWrapper = connectWithRealFrameHandler(webSocketImpl, ByteBuffer.allocate(0),
+            mock(TransportOutput.class), "permessage-deflate; client_max_window_bits=10");
+
+        assertEquals(WebSocket.WebSocketState.PN_WS_FAILED, webSocketImpl.getState());
+        assertEquals(Transport.END_OF_STREAM, transportWrapper.capacity());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSetPerMessageDeflateAfterConnecting() {
+        WebSocketImpl webSocketImpl = new WebSocketImpl();
+        connectWithRealFrameHandler(webSocketImpl, ByteBuffer.allocate(0));
+
+        webSocketImpl.setPerMessageDeflate(new PerMessageDeflateOptions());
+    }
+
+    @Test
+    public void testPipelinedUpgradeSendsOutputBehindRequest() {
+        init();
+        byte[] data = createPayload(100);
+        byte[] moreData = createPayload(50);
+        ByteBuffer output = ByteBuffer.allocate(data.length + moreData.length);
+        output.put(data).flip();
+
+        WebSocketImpl webSocketImpl = new WebSocketImpl();
+        webSocketImpl.setPipelinedUpgrade(true);
+        assertTrue(webSocketImpl.isPipelinedUpgrade());
+        WebSocketHandlerImpl spyWebSocketHandler = spy(new WebSocketHandlerImpl());
+        webSocketImpl
+            .configure(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders, spyWebSocketHandler);
+        doAnswer(invocation -> {
+            ByteBuffer reply = invocation.getArgument(0);
+            reply.position(reply.limit());
+            return true;
+        }).when(spyWebSocketHandler).validateUpgradeReply((ByteBuffer) any());
+
+        TransportInput transportInput = mock(TransportInput.class);
+        TransportWrapper transportWrapper = webSocketImpl.wrap(transportInput, createTransportOutput(output));
+
+        // The first frame goes out right behind the upgrade request, before the reply arrives.
+        int pending = transportWrapper.pending();
+        assertEquals(WebSocket.WebSocketState.PN_WS_CONNECTING, webSocketImpl.getState());
+        ByteBuffer head = transportWrapper.head();
+        assertEquals(pending, head.remaining());
+        assertEquals(LENGTH_OF_UPGRADE_REQUEST, pending - data.length - WebSocketHeader.MIN_HEADER_LENGTH_MASKED);
+
+        byte[] request = new byte[LENGTH_OF_UPGRADE_REQUEST];
+        head.get(request);
+        assertTrue(new String(request, StandardCharsets.ISO_8859_1).endsWith("\r\n\r\n"));
+        assertTrue(Arrays.equals(data, readClientFrame(head, WebSocketHeader.OPCODE_BINARY)));
+
+        // The AMQP output is only consumed once its frame is sent, however the writes are split.
+        transportWrapper.pop(LENGTH_OF_UPGRADE_REQUEST + 10);
+        assertEquals(0, output.position());
+        assertEquals(pending - LENGTH_OF_UPGRADE_REQUEST - 10, transportWrapper.pending());
+        transportWrapper.pop(pending - LENGTH_OF_UPGRADE_REQUEST - 10);
+        assertEquals(data.length, output.position());
+
+        // Output written before the reply keeps being framed as it comes.
+        output.compact().put(moreData).flip();
+        pending = transportWrapper.pending();
+        assertTrue(Arrays.equals(moreData, readClientFrame(transportWrapper.head(), WebSocketHeader.OPCODE_BINARY)));
+        transportWrapper.pop(pending);
+        assertEquals(0, transportWrapper.pending());
+
+        transportWrapper.tail().put(createUpgradeReply(null));
+        transportWrapper.process();
+        assertEquals(WebSocket.WebSocketState.PN_WS_CONNECTED_FLOW, webSocketImpl.getState());
+    }
+
+    @Test
+    public void testUpgradeNotPipelinedByDefault() {
+        init();
+        WebSocketImpl webSocketImpl = new WebSocketImpl();
+        webSocketImpl.configure(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders,
+            new WebSocketHandlerImpl());
+        TransportWrapper transportWrapper = webSocketImpl.wrap(mock(TransportInput.class),
+            createTransportOutput(ByteBuffer.wrap(createPayload(100))));
+
+        assertFalse(webSocketImpl.isPipelinedUpgrade());
+        assertEquals(LENGTH_OF_UPGRADE_REQUEST, transportWrapper.pending());
+        transportWrapper.pop(LENGTH_OF_UPGRADE_REQUEST);
+        assertEquals(0, transportWrapper.pending());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSetPipelinedUpgradeAfterConnecting() {
+        WebSocketImpl webSocketImpl = new WebSocketImpl();
+        connectWithRealFrameHandler(webSocketImpl, ByteBuffer.allocate(0));
+
+        webSocketImpl.setPipelinedUpgrade(true);
+    }
+
+    @Test
+    public void testPerMessageDeflateCompressesOutput() throws DataFormatException {
+        byte[] data = createCompressiblePayload(3000);
+        WebSocketImpl webSocketImpl = new WebSocketImpl();
+        webSocketImpl.setPerMessageDeflate(new PerMessageDeflateOptions());
+        TransportWrapper transportWrapper = connectWithRealFrameHandler(webSocketImpl, ByteBuffer.allocate(0),
+            createTransportOutput(ByteBuffer.wrap(data)), "permessage-deflate");
+        assertTrue(webSocketImpl.isPerMessageDeflateNegotiated());
+
+        int pending = transportWrapper.pending();
+        ByteBuffer head = transportWrapper.head();
+        assertEquals(pending, head.remaining());
+        byte[] payload = readClientFrame(head, (byte) (WebSocketHeader.RSV1_MASK | WebSocketHeader.OPCODE_BINARY));
+        transportWrapper.pop(pending);
+
+        assertTrue(payload.length < data.length);
+        assertTrue(Arrays.equals(data, inflate(payload, data.length)));
+        assertEquals(0, transportWrapper.pending());
+        assertEquals(data.length, webSocketImpl.getCompressionInputBytes());
+        assertEquals(payload.length, webSocketImpl.getCompressedOutputBytes());
+    }
+
+    @Test
+    public void testPerMessageDeflateSmallOutputNotCompressed() {
+        byte[] data = createCompressiblePayload(100);
+        WebSocketImpl webSocketImpl = new WebSocketImpl();
+        webSocketImpl.setPerMessageDeflate(new PerMessageDeflateOptions());
+        TransportWrapper transportWrapper = connectWithRealFrameHandler(webSocketImpl, ByteBuffer.allocate(0),
+            createTransportOutput(ByteBuffer.wrap(data)), "permessage-deflate");
+
+        int pending = transportWrapper.pending();
+        assertTrue(Arrays.equals(data, readClientFrame(transportWrapper.head(), WebSocketHeader.OPCODE_BINARY)));
+        transportWrapper.pop(pending);
+
+        assertEquals(0, webSocketImpl.getCompressionInputBytes());
+        assertEquals(0, webSocketImpl.getCompressedOutputBytes());
+    }
+
+    @Test
+    public void testPerMessageDeflateDecompressesInput() {
+        byte[] data = createCompressiblePayload(3000);
+        byte[] uncompressed = createPayload(50);
+        ByteBuffer received = ByteBuffer.allocate(data.length + uncompressed.length);
+        WebSocketImpl webSocketImpl = new WebSocketImpl();
+        webSocketImpl.setPerMessageDeflate(new PerMessageDeflateOptions());
+        TransportWrapper transportWrapper = connectWithRealFrameHandler(webSocketImpl, received,
+            mock(TransportOutput.class), "permessage-deflate");
+
+        // The compressed message is split across two frames, and an uncompressed message follows it.
+        byte[] compressed = deflate(data);
+        int split = compressed.length / 2;
+        putServerFrame(transportWrapper.tail(), (byte) (WebSocketHeader.RSV1_MASK | WebSocketHeader.OPCODE_BINARY),
+            Arrays.copyOfRange(compressed, 0, split), false);
+        putServerFrame(transportWrapper.tail(), WebSocketHeader.OPCODE_CONTINUATION,
+            Arrays.copyOfRange(compressed, split, compressed.length), true);
+        putServerFrame(transportWrapper.tail(), WebSocketHeader.OPCODE_BINARY, uncompressed);
+        transportWrapper.process();
+
+        ByteBuffer expected = ByteBuffer.allocate(data.length + uncompressed.length);
+        expected.put(data).put(uncompressed);
+        assertTrue(Arrays.equals(expected.array(), received.array()));
+        assertEquals(compressed.length, webSocketImpl.getCompressedInputBytes());
+        assertEquals(data.length, webSocketImpl.getDecompressionOutputBytes());
+    }
+
+    @Test
+    public void testPerMessageDeflateDecompressesIntoFullInput() {
+        byte[] data = createCompressiblePayload(3000);
+        ByteBuffer received = ByteBuffer.allocate(1000);
+        WebSocketImpl webSocketImpl = new WebSocketImpl();
+        webSocketImpl.setPerMessageDeflate(new PerMessageDeflateOptions());
+        TransportWrapper transportWrapper = connectWithRealFrameHandler(webSocketImpl, received,
+            mock(TransportOutput.class), "permessage-deflate");
+
+        putServerFrame(transportWrapper.tail(), (byte) (WebSocketHeader.RSV1_MASK | WebSocketHeader.OPCODE_BINARY), deflate(data));
+        transportWrapper.process();
+
+        // The decompressed message does not fit at once. The rest is handed over as the underlying input makes room.
+        ByteBuffer output = ByteBuffer.allocate(data.length);
+        while (received.position() > 0) {
+            received.flip();
+            output.put(received);
+            received.clear();
+            transportWrapper.process();
+        }
+
+        assertTrue(Arrays.equals(data, output.array()));
+    }
+
+    @Test
+    public void testPerMessageDeflateEndedOnClose() {
+        WebSocketImpl webSocketImpl = new WebSocketImpl();
+        webSocketImpl.setPerMessageDeflate(new PerMessageDeflateOptions());
+        TransportWrapper transportWrapper = connectWithRealFrameHandler(webSocketImpl, ByteBuffer.allocate(0),
+            mock(TransportOutput.class), "permessage-deflate");
+        PerMessageDeflate perMessageDeflate = webSocketImpl.getPerMessageDeflate();
+
+        transportWrapper.close_tail();
+        assertFalse(perMessageDeflate.isEnded());
+
+        transportWrapper.close_head();
+        assertTrue(perMessageDeflate.isEnded());
+        assertTrue(webSocketImpl.isPerMessageDeflateNegotiated());
+        assertEquals(0, webSocketImpl.getCompressionInputBytes());
+    }
+
+    @Test
+    public void testPerMessageDeflateEndedWhenClosed() {
+        WebSocketImpl webSocketImpl = new WebSocketImpl();
+        webSocketImpl.setPerMessageDeflate(new PerMessageDeflateOptions());
+        TransportWrapper transportWrapper = connectWithRealFrameHandler(webSocketImpl, ByteBuffer.allocate(0),
+            mock(TransportOutput.class), "permessage-deflate");
+
+        putServerFrame(transportWrapper.tail(), WebSocketHeader.OPCODE_CLOSE, new byte[0]);
+        transportWrapper.process();
+        assertFalse(webSocketImpl.getPerMessageDeflate().isEnded());
+
+        transportWrapper.pending();
+        assertEquals(WebSocket.WebSocketState.PN_WS_CLOSED, webSocketImpl.getState());
+        assertTrue(webSocketImpl.getPerMessageDeflate().isEnded());
+    }
+
+    /**
+     * Answers with a new buffer holding the encoded {@code request} every time, since the caller consumes it.
+     */
+    private static Answer<ByteBuffer> upgradeRequest(String request) {
+        return invocation -> ByteBuffer.wrap(request.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private byte[] createUpgradeReply(String extensions) {
+        String reply = "HTTP/1.1 101 Switching Protocols\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + (extensions != null ? "Sec-WebSocket-Extensions: " + extensions + "\r\n" : "")
+            + "\r\n";
+        return reply.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private byte[] createCompressiblePayload(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ('a' + (i % 7) * (i % 3));
+        }
+        return data;
+    }
+
+    /**
+     * Compresses a message the way a permessage-deflate peer does, without the trailing empty block.
+     */
+    private byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data);
+        byte[] output = new byte[data.length + 64];
+        int size = deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH);
+        deflater.end();
+        return Arrays.copyOf(output, size - 4);
+    }
+
+    private byte[] inflate(byte[] payload, int size) throws DataFormatException {
+        // The sender leaves out the trailing empty block, which ends in 0x00 0x00 0xFF 0xFF.
+        byte[] input = Arrays.copyOf(payload, payload.length + 4);
+        input[input.length - 2] = (byte) 0xFF;
+        input[input.length - 1] = (byte) 0xFF;
+
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(input);
+        byte[] output = new byte[size];
+        assertEquals(size, inflater.inflate(output));
+        inflater.end();
+        return output;
+    }
+
+    /**
+     * Reads a masked frame that the layer sent, checks its opcode and returns its unmasked payload.
+     */
+    private byte[] readClientFrame(ByteBuffer buffer, byte opcode) {
+        assertEquals(WebSocketHeader.FINBIT_MASK | opcode, buffer.get());
+
+        byte second = buffer.get();
+        assertEquals(WebSocketHeader.MASKBIT_MASK, second & WebSocketHeader.MASKBIT_MASK);
+        int length = second & WebSocketHeader.PAYLOAD_MASK;
+        if (length == WebSocketHeader.PAYLOAD_EXTENDED_16) {
+            length = buffer.getShort() & 0xFFFF;
+        }
+
+        byte[] maskingKey = new byte[4];
+        buffer.get(maskingKey);
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (buffer.get() ^ maskingKey[i % 4]);
+        }
+
+        return payload;
+    }
+
+    private byte[] createPayload(int size) {
+        byte[] data = new byte[size];
+        Utils.getSecureRandom().nextBytes(data);
+        return data;
+    }
+
+    private void putServerFrame(ByteBuffer buffer, byte opcode, byte[] payload) {
+        putServerFrame(buffer, opcode, payload, true);
+    }
+
+    private void putServerFrame(ByteBuffer buffer, byte opcode, byte[] payload, boolean isFinal) {
+        buffer.put((byte) (isFinal ? WebSocketHeader.FINBIT_MASK | opcode : opcode));
+        if (payload.length <= WebSocketHeader.PAYLOAD_SHORT_MAX) {
+            buffer.put((byte) payload.length);
+        } else {
+            buffer.put(WebSocketHeader.PAYLOAD_EXTENDED_16);
+            buffer.putShort((short) payload.length);
+        }
+        buffer.put(payload);
+    }
+
+    private TransportWrapper connectWithRealFrameHandler(WebSocketImpl webSocketImpl, final ByteBuffer received) {
+        return connectWithRealFrameHandler(webSocketImpl, received, mock(TransportOutput.class));
+    }
+
+    private TransportWrapper connectWithRealFrameHandler(WebSocketImpl webSocketImpl, final ByteBuffer received,
+                                                         TransportOutput transportOutput) {
+        TransportWrapper transportWrapper = connectWithRealFrameHandler(webSocketImpl, received, transportOutput, null);
+        assertEquals(WebSocket.WebSocketState.PN_WS_CONNECTED_FLOW, webSocketImpl.getState());
+
+        return transportWrapper;
+    }
+
+    /**
+     * Connects the layer with an upgrade reply that is accepted as is, and whose extensions the handler reports.
+     */
+    private TransportWrapper connectWithRealFrameHandler(WebSocketImpl webSocketImpl, final ByteBuffer received,
+                                                         TransportOutput transportOutput, String extensions) {
+        init();
+
+        WebSocketHandlerImpl spyWebSocketHandler = spy(new WebSocketHandlerImpl());
+        webSocketImpl
+            .configure(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders, spyWebSocketHandler);
+        doAnswer(invocation -> {
+            ByteBuffer reply = invocation.getArgument(0);
+            reply.position(reply.limit());
+            return true;
+        }).when(spyWebSocketHandler).validateUpgradeReply((ByteBuffer) any());
+        doReturn(extensions).when(spyWebSocketHandler).getUpgradeReplyExtensions();
+
+        TransportInput transportInput = new TransportInput() {
+            @Override
+            public int capacity() {
+                return received.remaining();
+            }
+
+            @Override
+            public int position() {
+                return received.position();
+            }
+
+            @Override
+            public ByteBuffer tail() throws TransportException {
+                return received;
+            }
+
+            @Override
+            public void process() throws TransportException {
+            }
+
+            @Override
+            public void close_tail() {
+            }
+        };
+
+        TransportWrapper transportWrapper = webSocketImpl.wrap(transportInput, transportOutput);
+        transportWrapper.pending();
+        transportWrapper.tail().put(createUpgradeReply(extensions));
+        transportWrapper.process();
+
+        return transportWrapper;
+    }
+
     @Test
     public void testHeadWebsocketNotEnabled() {
         init();
@@ -1435,8 +2454,8 @@ public class WebSocketImplTest {
         String request = "Request";
         when(mockWebSocketHandler.validateUpgradeReply((ByteBuffer) any())).thenReturn(true);
         when(mockWebSocketHandler
-            .createUpgradeRequest(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
-            .thenReturn(request);
+            .createUpgradeRequestBuffer(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
+            .thenAnswer(upgradeRequest(request));
         //when(mockWebSocketHandler.unwrapBuffer((ByteBuffer) any())).thenReturn(WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_PING);
 
         assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_NOT_STARTED);
@@ -1469,8 +2488,8 @@ public class WebSocketImplTest {
         String request = "Request";
         when(mockWebSocketHandler.validateUpgradeReply((ByteBuffer) any())).thenReturn(true);
         when(mockWebSocketHandler
-            .createUpgradeRequest(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
-            .thenReturn(request);
+            .createUpgradeRequestBuffer(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
+            .thenAnswer(upgradeRequest(request));
         //when(mockWebSocketHandler.unwrapBuffer((ByteBuffer) any())).thenReturn(WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_PING);
 
         assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_NOT_STARTED);
@@ -1506,8 +2525,8 @@ public class WebSocketImplTest {
         String request = "Request";
         when(mockWebSocketHandler.validateUpgradeReply((ByteBuffer) any())).thenReturn(true);
         when(mockWebSocketHandler
-            .createUpgradeRequest(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
-            .thenReturn(request);
+            .createUpgradeRequestBuffer(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
+            .thenAnswer(upgradeRequest(request));
         //when(mockWebSocketHandler.unwrapBuffer((ByteBuffer) any())).thenReturn(WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_PING);
 
         assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_NOT_STARTED);
@@ -1517,6 +2536,7 @@ public class WebSocketImplTest {
         assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_CONNECTED_FLOW);
 
         when(mockTransportOutput.pending()).thenReturn(1024);
+        when(mockTransportOutput.head()).thenReturn(ByteBuffer.allocate(1024));
 
         ByteBuffer actual = transportWrapper.head();
         byte[] a = new byte[actual.remaining()];
@@ -1546,9 +2566,9 @@ public class WebSocketImplTest {
         String request = "Request";
         when(mockWebSocketHandler.validateUpgradeReply((ByteBuffer) any())).thenReturn(true);
         when(mockWebSocketHandler
-            .createUpgradeRequest(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
-            .thenReturn(request);
-        when(mockWebSocketHandler.unwrapBuffer((ByteBuffer) any()))
+            .createUpgradeRequestBuffer(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
+            .thenAnswer(upgradeRequest(request));
+        when(mockWebSocketHandler.unwrapBuffer(any(ByteBuffer.class), any(WebSocketHandler.WebsocketTuple.class)))
             .thenReturn(new WebSocketHandler.WebsocketTuple(7, WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_PING));
 
         assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_NOT_STARTED);
@@ -1643,8 +2663,8 @@ public class WebSocketImplTest {
         String request = "Request";
         when(mockWebSocketHandler.validateUpgradeReply((ByteBuffer) any())).thenReturn(true);
         when(mockWebSocketHandler
-            .createUpgradeRequest(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
-            .thenReturn(request);
+            .createUpgradeRequestBuffer(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
+            .thenAnswer(upgradeRequest(request));
         //when(mockWebSocketHandler.unwrapBuffer((ByteBuffer) any())).thenReturn(WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_PING);
 
         assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_NOT_STARTED);
@@ -1665,48 +2685,41 @@ public class WebSocketImplTest {
 
     @Test
     public void testPopStateConnectedFlow() {
-        init();
-
-        WebSocketHandlerImpl webSocketHandler = new WebSocketHandlerImpl();
-        WebSocketHandlerImpl mockWebSocketHandler = mock(webSocketHandler.getClass());
-
-        WebSocketImpl webSocketImpl = new WebSocketImpl();
-        webSocketImpl
-            .configure(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders, mockWebSocketHandler);
-
-        TransportInput mockTransportInput = mock(TransportInput.class);
         TransportOutput mockTransportOutput = mock(TransportOutput.class);
-
-        TransportWrapper transportWrapper = webSocketImpl.wrap(mockTransportInput, mockTransportOutput);
-
-        String request = "Request";
-        when(mockWebSocketHandler.validateUpgradeReply((ByteBuffer) any())).thenReturn(true);
-        when(mockWebSocketHandler
-            .createUpgradeRequest(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
-            .thenReturn(request);
-        //when(mockWebSocketHandler.unwrapBuffer((ByteBuffer) any())).thenReturn(WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_PING);
-
-        assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_NOT_STARTED);
-        transportWrapper.pending();
-        assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_CONNECTING);
-        transportWrapper.process();
-        assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_CONNECTED_FLOW);
-
-        int webSocketHeaderSize = transportWrapper.pending();
+        WebSocketImpl webSocketImpl = new WebSocketImpl();
+        TransportWrapper transportWrapper = connectWithRealFrameHandler(webSocketImpl, ByteBuffer.allocate(0), mockTransportOutput);
 
         String message = "Message";
-        ByteBuffer outputBuffer = webSocketImpl.getOutputBuffer();
-
-        outputBuffer.clear();
-        outputBuffer.put(message.getBytes());
+        when(mockTransportOutput.pending()).thenReturn(message.length());
+        when(mockTransportOutput.head()).thenReturn(ByteBuffer.wrap(message.getBytes()));
+
+        int frameSize = message.length() + WebSocketHeader.MIN_HEADER_LENGTH_MASKED;
+        assertEquals(frameSize, transportWrapper.pending());
+
+        ByteBuffer head = transportWrapper.head();
+        byte[] frame = new byte[head.remaining()];
+        head.duplicate().get(frame);
+        assertEquals(frameSize, frame.length);
+
+        // A partial pop leaves the rest of the frame as it was framed, without popping the underlying output.
+        int sent = 4;
+        transportWrapper.pop(sent);
+        verify(mockTransportOutput, times(0)).pop(anyInt());
+        assertEquals(frameSize - sent, transportWrapper.pending());
+
+        head = transportWrapper.head();
+        byte[] rest = new byte[head.remaining()];
+        head.duplicate().get(rest);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(frame, sent, frameSize), rest));
+        verify(mockTransportOutput, times(1)).head();
 
-        transportWrapper.pop(message.getBytes().length);
+        // Once the whole frame is sent, the bytes it carried are popped from the underlying output.
+        transportWrapper.pop(frameSize - sent);
+        verify(mockTransportOutput, times(1)).pop(message.length());
 
         ByteBuffer actual = webSocketImpl.getOutputBuffer();
         assertTrue(actual.limit() == ALLOCATED_WEB_SOCKET_BUFFER_SIZE);
         assertTrue(actual.position() == 0);
-
-        verify(mockTransportOutput, times(1)).pop(message.getBytes().length - webSocketHeaderSize);
     }
 
     @Test
@@ -1728,9 +2741,9 @@ public class WebSocketImplTest {
         String request = "Request";
         when(mockWebSocketHandler.validateUpgradeReply((ByteBuffer) any())).thenReturn(true);
         when(mockWebSocketHandler
-            .createUpgradeRequest(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
-            .thenReturn(request);
-        when(mockWebSocketHandler.unwrapBuffer((ByteBuffer) any()))
+            .createUpgradeRequestBuffer(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
+            .thenAnswer(upgradeRequest(request));
+        when(mockWebSocketHandler.unwrapBuffer(any(ByteBuffer.class), any(WebSocketHandler.WebsocketTuple.class)))
             .thenReturn(new WebSocketHandler.WebsocketTuple(7, WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_PING));
 
         assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_NOT_STARTED);
@@ -1753,15 +2766,22 @@ public class WebSocketImplTest {
         assertTrue(Arrays.equals(inputBuffer.array(), pingBuffer.array()));
         assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_CONNECTED_PONG);
 
-        ByteBuffer outputBuffer = webSocketImpl.getOutputBuffer();
+        doAnswer(invocation -> {
+            ByteBuffer pong = invocation.getArgument(1);
+            pong.clear();
+            pong.put(message.getBytes());
+            return null;
+        }).when(mockWebSocketHandler).createPong(any(ByteBuffer.class), any(ByteBuffer.class));
 
-        transportWrapper.pop(message.getBytes().length);
+        int pongSize = transportWrapper.pending();
+        assertEquals(message.length(), pongSize);
+        assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_CONNECTED_FLOW);
 
-        ByteBuffer actual = webSocketImpl.getOutputBuffer();
-        assertTrue(actual.limit() == ALLOCATED_WEB_SOCKET_BUFFER_SIZE);
-        assertTrue(actual.position() == 0);
+        transportWrapper.pop(pongSize);
+        assertEquals(0, transportWrapper.pending());
 
-        verify(mockTransportOutput, times(1)).pop(message.getBytes().length);
+        // The pong carries no AMQP output.
+        verify(mockTransportOutput, times(0)).pop(anyInt());
     }
 
     @Test
@@ -1783,8 +2803,8 @@ public class WebSocketImplTest {
         String request = "Request";
         when(mockWebSocketHandler.validateUpgradeReply((ByteBuffer) any())).thenReturn(true);
         when(mockWebSocketHandler
-            .createUpgradeRequest(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
-            .thenReturn(request);
+            .createUpgradeRequestBuffer(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
+            .thenAnswer(upgradeRequest(request));
         //when(mockWebSocketHandler.unwrapBuffer((ByteBuffer) any())).thenReturn(WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_PING);
 
         assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_NOT_STARTED);
@@ -1820,8 +2840,8 @@ public class WebSocketImplTest {
         String request = "Request";
         when(mockWebSocketHandler.validateUpgradeReply((ByteBuffer) any())).thenReturn(true);
         when(mockWebSocketHandler
-            .createUpgradeRequest(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
-            .thenReturn(request);
+            .createUpgradeRequestBuffer(hostName, webSocketPath, webSocketQuery, webSocketPort, webSocketProtocol, additionalHeaders))
+            .thenAnswer(upgradeRequest(request));
         //when(mockWebSocketHandler.unwrapBuffer((ByteBuffer) any())).thenReturn(WebSocketHandler.WebSocketMessageType.WEB_SOCKET_MESSAGE_TYPE_PING);
 
         assertTrue(webSocketImpl.getState() == WebSocket.WebSocketState.PN_WS_NOT_STARTED);
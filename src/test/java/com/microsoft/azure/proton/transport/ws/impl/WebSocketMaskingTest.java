@@ -0,0 +1,94 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.ws.impl;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class WebSocketMaskingTest {
+    private static final int MASKING_KEY = 0x11A233F4;
+    private static final byte[] MASKING_KEY_BYTES = new byte[]{0x11, (byte) 0xA2, 0x33, (byte) 0xF4};
+    private static final ByteOrder[] ORDERS = new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN};
+
+    @Test
+    public void testMaskMatchesBytewiseMask() {
+        for (int length = 0; length <= 3 * Long.BYTES + 3; length++) {
+            for (int keyIndex = 0; keyIndex < 4; keyIndex++) {
+                for (ByteOrder srcOrder : ORDERS) {
+                    for (ByteOrder dstOrder : ORDERS) {
+                        byte[] data = createData(length);
+                        ByteBuffer srcBuffer = ByteBuffer.wrap(data).order(srcOrder);
+                        ByteBuffer dstBuffer = ByteBuffer.allocateDirect(length).order(dstOrder);
+
+                        int nextKeyIndex = WebSocketMasking.mask(srcBuffer, dstBuffer, MASKING_KEY, keyIndex);
+
+                        String message = "length " + length + ", key index " + keyIndex + ", " + srcOrder + " to " + dstOrder;
+                        assertEquals(message, (keyIndex + length) % 4, nextKeyIndex);
+                        assertFalse(message, srcBuffer.hasRemaining());
+                        assertFalse(message, dstBuffer.hasRemaining());
+
+                        byte[] actual = new byte[length];
+                        dstBuffer.flip();
+                        dstBuffer.get(actual);
+                        assertArrayEquals(message, bytewiseMask(data, keyIndex), actual);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMaskInChunksMatchesMaskInOneCall() {
+        byte[] data = createData(100);
+        ByteBuffer whole = ByteBuffer.allocate(data.length);
+        WebSocketMasking.mask(ByteBuffer.wrap(data), whole, MASKING_KEY, 0);
+
+        ByteBuffer chunked = ByteBuffer.allocate(data.length);
+        int keyIndex = 0;
+        int position = 0;
+        for (int chunkSize : new int[]{3, 9, 1, 17, 70}) {
+            keyIndex = WebSocketMasking.mask(ByteBuffer.wrap(data, position, chunkSize), chunked, MASKING_KEY, keyIndex);
+            position += chunkSize;
+        }
+
+        assertArrayEquals(whole.array(), chunked.array());
+    }
+
+    @Test
+    public void testMaskTwiceRestoresPayload() {
+        byte[] data = createData(37);
+        ByteBuffer masked = ByteBuffer.allocate(data.length);
+        ByteBuffer unmasked = ByteBuffer.allocate(data.length);
+
+        WebSocketMasking.mask(ByteBuffer.wrap(data), masked, MASKING_KEY, 0);
+        masked.flip();
+        WebSocketMasking.mask(masked, unmasked, MASKING_KEY, 0);
+
+        assertFalse(Arrays.equals(data, masked.array()));
+        assertArrayEquals(data, unmasked.array());
+    }
+
+    private static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+
+    private static byte[] bytewiseMask(byte[] data, int keyIndex) {
+        byte[] masked = new byte[data.length];
+        for (int i = 0; i < data.length; i++) {
+            masked[i] = (byte) (data[i] ^ MASKING_KEY_BYTES[(keyIndex + i) % 4]);
+        }
+        return masked;
+    }
+}
@@ -3,17 +3,23 @@
 
 package com.microsoft.azure.proton.transport.ws.impl;
 
+import com.microsoft.azure.proton.transport.http.impl.HttpRequestTemplate;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidParameterException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Scanner;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class WebSocketUpgradeTest {
@@ -343,6 +349,32 @@ public class WebSocketUpgradeTest {
         }
     }
 
+    @Test
+    public void testValidateUpgradeReplyKeepsExtensions() throws NoSuchAlgorithmException {
+        String webSocketProtocol = "subprotocol_name";
+
+        WebSocketUpgrade webSocketUpgrade = new WebSocketUpgrade("host_XXX", "path1/path2", "", 1234, webSocketProtocol, null);
+        String upgradeRequest = webSocketUpgrade.createUpgradeRequest();
+        String keyBase64 = upgradeRequest
+            .substring(upgradeRequest.lastIndexOf("Sec-WebSocket-Key: ") + 19, upgradeRequest.lastIndexOf("Sec-WebSocket-Key: ") + 43);
+        MessageDigest messageDigest = MessageDigest.getInstance("SHA-1");
+        String serverKey = Base64.encodeBase64StringLocal(messageDigest.digest((keyBase64 + RFC_GUID).getBytes())).trim();
+
+        String responseStr = String.join("\r\n", "HTTP/1.1 101 Switching Protocols",
+            "Upgrade: websocket",
+            "Sec-WebSocket-Protocol: " + webSocketProtocol,
+            "Connection: Upgrade",
+            "Sec-WebSocket-Accept: " + serverKey,
+            "sec-websocket-extensions: permessage-deflate",
+            "Sec-WebSocket-Extensions: server_no_context_takeover",
+            "",
+            "Sec-WebSocket-Extensions: not a header");
+
+        assertNull(webSocketUpgrade.getExtensions());
+        assertTrue(webSocketUpgrade.validateUpgradeReply(responseStr.getBytes()));
+        assertEquals("permessage-deflate, server_no_context_takeover", webSocketUpgrade.getExtensions());
+    }
+
     @Test
     public void testValidateUpgradeReplyInvalidKey() {
         String hostName = "host_XXX";
@@ -592,4 +624,69 @@ public class WebSocketUpgradeTest {
 
         assertEquals("Unexpected value for toString()", expected, actual);
     }
+
+    @Test
+    public void testCreateUpgradeRequestBufferReusesEndpointTemplate() {
+        Map<String, String> additionalHeaders = new LinkedHashMap<>();
+        additionalHeaders.put("header1", "content1");
+
+        WebSocketUpgrade first = new WebSocketUpgrade("host_XXX", "path", "query", 443, "AMQPWSB10", additionalHeaders);
+        WebSocketUpgrade second = new WebSocketUpgrade("host_XXX", "path", "query", 443, "AMQPWSB10", additionalHeaders);
+        String firstRequest = StandardCharsets.ISO_8859_1.decode(first.createUpgradeRequestBuffer()).toString();
+        String secondRequest = StandardCharsets.ISO_8859_1.decode(second.createUpgradeRequestBuffer()).toString();
+
+        String expectedFormat = String.join("\r\n", "GET https://host_XXX/path?query HTTP/1.1",
+            "Connection: Upgrade,Keep-Alive",
+            "Upgrade: websocket",
+            "Sec-WebSocket-Version: 13",
+            "Sec-WebSocket-Key: %s",
+            "Sec-WebSocket-Protocol: AMQPWSB10",
+            "Host: host_XXX",
+            "%s",
+            "");
+
+        // Each request has its own key.
+        String firstKey = extractKey(firstRequest);
+        String secondKey = extractKey(secondRequest);
+        assertFalse(firstKey.equals(secondKey));
+        assertEquals(String.format(expectedFormat, firstKey, "header1: content1\r\n"), firstRequest);
+        assertEquals(String.format(expectedFormat, secondKey, "header1: content1\r\n"), secondRequest);
+
+        // The additional headers are written for each request, from the same template.
+        additionalHeaders.put("header2", "content2");
+        WebSocketUpgrade third = new WebSocketUpgrade("host_XXX", "path", "query", 443, "AMQPWSB10", additionalHeaders);
+        String thirdRequest = third.createUpgradeRequest();
+        assertEquals(String.format(expectedFormat, extractKey(thirdRequest), "header1: content1\r\nheader2: content2\r\n"),
+            thirdRequest);
+    }
+
+    @Test
+    public void testCreateUpgradeRequestBufferDoesNotCacheHeaderValues() {
+        for (int i = 0; i < 3; i++) {
+            Map<String, String> additionalHeaders = new LinkedHashMap<>();
+            additionalHeaders.put("Authorization", "Bearer token" + i);
+
+            WebSocketUpgrade upgrade = new WebSocketUpgrade("host_token", "path", "query", 443, "AMQPWSB10", additionalHeaders);
+            String request = upgrade.createUpgradeRequest();
+            assertTrue(request.endsWith("Host: host_token\r\nAuthorization: Bearer token" + i + "\r\n\r\n"));
+        }
+
+        // The template is kept for the endpoint alone, whatever the values of the headers.
+        HttpRequestTemplate template = HttpRequestTemplate.getOrCreate(
+            Arrays.asList("GET", "host_token", "/path", "?query", "AMQPWSB10"), () -> {
+                throw new AssertionError("The template of the endpoint should be cached.");
+            });
+        assertFalse(new String(render(template), StandardCharsets.ISO_8859_1).contains("Bearer"));
+    }
+
+    private static byte[] render(HttpRequestTemplate template) {
+        ByteBuffer buffer = ByteBuffer.allocate(template.size("key"));
+        template.write(buffer, "key");
+        return buffer.array();
+    }
+
+    private static String extractKey(String request) {
+        int start = request.indexOf("Sec-WebSocket-Key: ") + 19;
+        return request.substring(start, request.indexOf("\r\n", start));
+    }
 }
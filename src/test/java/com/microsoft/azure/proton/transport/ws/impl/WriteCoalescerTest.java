@@ -0,0 +1,77 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.azure.proton.transport.ws.impl;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WriteCoalescerTest {
+    private final AtomicLong now = new AtomicLong(1000);
+
+    @Test
+    public void testEmptyOutputIsNeverDeferred() {
+        WriteCoalescer writeCoalescer = new WriteCoalescer(100, 50, now::get);
+
+        assertFalse(writeCoalescer.shouldDefer(0));
+        assertFalse(writeCoalescer.shouldDefer(-1));
+    }
+
+    @Test
+    public void testOutputAtThresholdIsNotDeferred() {
+        WriteCoalescer writeCoalescer = new WriteCoalescer(100, 50, now::get);
+
+        assertFalse(writeCoalescer.shouldDefer(100));
+        assertEquals(0, writeCoalescer.getCoalescedFrameCount());
+        assertEquals(0, writeCoalescer.getTotalDelayNanos());
+    }
+
+    @Test
+    public void testZeroDelayNeverDefers() {
+        WriteCoalescer writeCoalescer = new WriteCoalescer(100, 0, now::get);
+
+        assertFalse(writeCoalescer.shouldDefer(10));
+    }
+
+    @Test
+    public void testDefersUntilThresholdReached() {
+        WriteCoalescer writeCoalescer = new WriteCoalescer(100, 50, now::get);
+
+        assertTrue(writeCoalescer.shouldDefer(10));
+        now.addAndGet(5);
+        // Asking again without new output does not count as a saved frame.
+        assertTrue(writeCoalescer.shouldDefer(10));
+        assertTrue(writeCoalescer.shouldDefer(40));
+        now.addAndGet(5);
+        assertFalse(writeCoalescer.shouldDefer(120));
+
+        assertEquals(2, writeCoalescer.getCoalescedFrameCount());
+        assertEquals(10, writeCoalescer.getTotalDelayNanos());
+        assertEquals(10, writeCoalescer.getMaxDelayNanos());
+    }
+
+    @Test
+    public void testDefersUntilMaxDelayPassed() {
+        WriteCoalescer writeCoalescer = new WriteCoalescer(100, 50, now::get);
+
+        assertTrue(writeCoalescer.shouldDefer(10));
+        now.addAndGet(49);
+        assertTrue(writeCoalescer.shouldDefer(20));
+        now.addAndGet(1);
+        assertFalse(writeCoalescer.shouldDefer(20));
+
+        // The next small write starts a new wait.
+        assertTrue(writeCoalescer.shouldDefer(5));
+        now.addAndGet(60);
+        assertFalse(writeCoalescer.shouldDefer(5));
+
+        assertEquals(1, writeCoalescer.getCoalescedFrameCount());
+        assertEquals(110, writeCoalescer.getTotalDelayNanos());
+        assertEquals(60, writeCoalescer.getMaxDelayNanos());
+    }
+}